@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2015 Eike Stepper (Berlin, Germany) and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Eike Stepper - initial API and implementation
+ */
+package org.eclipse.userstorage.benchmarks;
+
+import org.eclipse.userstorage.internal.util.IOUtil;
+
+import org.apache.commons.codec.binary.Base64InputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the throughput of the {@link Base64InputStream} that encodes blob contents for uploads and decodes them for downloads.
+ * The encoder is configured the same way as in the JSON builder, i.e., without line breaks.
+ *
+ * @author Eike Stepper
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class Base64Benchmark
+{
+  @Param({ "1024", "65536", "1048576", "52428800" })
+  public int size;
+
+  private byte[] contents;
+
+  private byte[] encoded;
+
+  @Setup
+  public void setUp() throws IOException
+  {
+    contents = Benchmarks.createBytes(size);
+    encoded = Benchmarks.read(new Base64InputStream(IOUtil.streamUTF(contents), true, Integer.MAX_VALUE, null));
+  }
+
+  @Benchmark
+  public long encode() throws IOException
+  {
+    return Benchmarks.drain(new Base64InputStream(IOUtil.streamUTF(contents), true, Integer.MAX_VALUE, null));
+  }
+
+  @Benchmark
+  public long decode() throws IOException
+  {
+    return Benchmarks.drain(new Base64InputStream(IOUtil.streamUTF(encoded)));
+  }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright (c) 2015 Eike Stepper (Berlin, Germany) and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Eike Stepper - initial API and implementation
+ */
+package org.eclipse.userstorage.benchmarks;
+
+import org.eclipse.userstorage.internal.util.BufferPool;
+import org.eclipse.userstorage.internal.util.IOUtil;
+import org.eclipse.userstorage.internal.util.JSONUtil;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Runs the benchmarks of this bundle and writes their results as JSON, so that they can be compared across builds.
+ * <p>
+ * All standard JMH command line options are accepted, e.g., a regular expression that selects the benchmarks to run.
+ * Unless <code>-rff</code> is specified the results are written to <code>target/benchmarks.json</code>.
+ * <p>
+ * The <code>pom.xml</code> of this bundle builds an executable jar, outside of the Tycho build.
+ * From the folder of this bundle the benchmarks are built and run with:
+ * <pre>
+ *   mvn package &amp;&amp; java -jar target/benchmarks.jar
+ * </pre>
+ *
+ * @author Eike Stepper
+ */
+public final class Benchmarks
+{
+  public static final String RESULT_FILE = "target/benchmarks.json";
+
+  private static final int BUFFER_SIZE = 8192;
+
+  private Benchmarks()
+  {
+  }
+
+  public static void main(String[] args) throws Exception
+  {
+    CommandLineOptions commandLineOptions = new CommandLineOptions(args);
+    ChainedOptionsBuilder builder = new OptionsBuilder().parent(commandLineOptions);
+
+    if (commandLineOptions.getIncludes().isEmpty())
+    {
+      builder.include(Benchmarks.class.getPackage().getName() + ".*");
+    }
+
+    if (!commandLineOptions.getResult().hasValue())
+    {
+      File resultFile = new File(RESULT_FILE);
+      IOUtil.mkdirs(resultFile.getParentFile());
+      builder.result(resultFile.getPath());
+    }
+
+    builder.resultFormat(ResultFormatType.JSON);
+    new Runner(builder.build()).run();
+  }
+
+  /**
+   * Returns the given number of random bytes. The same size always yields the same bytes.
+   */
+  static byte[] createBytes(int size)
+  {
+    byte[] bytes = new byte[size];
+    new Random(size).nextBytes(bytes);
+    return bytes;
+  }
+
+  /**
+   * Returns a JSON blob envelope, as the service returns it for a blob retrieval, with the given contents in its <code>value</code>.
+   */
+  static byte[] createEnvelope(byte[] contents) throws IOException
+  {
+    Map<String, Object> object = new LinkedHashMap<String, Object>();
+    object.put("application_token", "pDKTqBfDuNxlAKydhEwxBZPxa4q");
+    object.put("key", "benchmark_blob");
+    object.put("etag", "8e6706262c374adacd1048c5497e03cb4c5ea585c07d5e36c15150d4f7a40812");
+    object.put("value", IOUtil.streamUTF(contents));
+    return read(JSONUtil.build(object));
+  }
+
+  /**
+   * Returns the entries of a blob listing, as the service returns it for a properties retrieval, whose JSON form is at least the given number of bytes long.
+   */
+  static List<Object> createListing(int size)
+  {
+    List<Object> array = new ArrayList<Object>();
+    int length = 2;
+
+    for (int i = 0; length < size; i++)
+    {
+      Map<String, Object> object = new LinkedHashMap<String, Object>();
+      object.put("application_token", "pDKTqBfDuNxlAKydhEwxBZPxa4q");
+      object.put("key", "benchmark_blob_" + i);
+      object.put("etag", "8e6706262c374adacd1048c5497e03cb4c5ea585c07d5e36c15150d4f7a" + String.format("%05d", i));
+      object.put("url", "https://api.example.org/api/blob/pDKTqBfDuNxlAKydhEwxBZPxa4q/benchmark_blob_" + i);
+      array.add(object);
+
+      // Each entry is about 240 bytes long.
+      length += 240;
+    }
+
+    return array;
+  }
+
+  /**
+   * Reads the given stream to its end, closes it and returns the number of bytes read.
+   */
+  static long drain(InputStream in) throws IOException
+  {
+    byte[] buffer = BufferPool.getBuffer(BUFFER_SIZE);
+    long count = 0;
+
+    try
+    {
+      int n;
+      while ((n = in.read(buffer)) != -1)
+      {
+        count += n;
+      }
+
+      return count;
+    }
+    finally
+    {
+      BufferPool.release(buffer);
+      IOUtil.closeSilent(in);
+    }
+  }
+
+  static byte[] read(InputStream in) throws IOException
+  {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+    try
+    {
+      IOUtil.copy(in, out);
+      return out.toByteArray();
+    }
+    finally
+    {
+      IOUtil.closeSilent(in);
+    }
+  }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2015 Eike Stepper (Berlin, Germany) and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Eike Stepper - initial API and implementation
+ */
+package org.eclipse.userstorage.benchmarks;
+
+import org.eclipse.userstorage.IBlob;
+import org.eclipse.userstorage.IStorage;
+import org.eclipse.userstorage.internal.util.IOUtil;
+import org.eclipse.userstorage.tests.util.ServerFixture;
+import org.eclipse.userstorage.tests.util.USSServer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures uncached blob retrievals, updates and deletions through the whole client stack against an in-process {@link USSServer}.
+ *
+ * @author Eike Stepper
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EndToEndBenchmark
+{
+  private static final String APPLICATION_TOKEN = "pDKTqBfDuNxlAKydhEwxBZPxa4q";
+
+  private static final String KEY = "benchmark_blob";
+
+  @Param({ "1024", "65536", "1048576" })
+  public int size;
+
+  private ServerFixture serverFixture;
+
+  private IStorage storage;
+
+  private byte[] contents;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception
+  {
+    serverFixture = new ServerFixture(APPLICATION_TOKEN);
+    storage = serverFixture.createFactory(APPLICATION_TOKEN).create(APPLICATION_TOKEN);
+    contents = Benchmarks.createBytes(size);
+
+    put();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws Exception
+  {
+    if (serverFixture != null)
+    {
+      serverFixture.dispose();
+      serverFixture = null;
+    }
+  }
+
+  @Benchmark
+  public long get() throws Exception
+  {
+    return Benchmarks.drain(storage.getBlob(KEY).getContents());
+  }
+
+  @Benchmark
+  public boolean put() throws Exception
+  {
+    return storage.getBlob(KEY).setContents(IOUtil.streamUTF(contents));
+  }
+
+  @Benchmark
+  public boolean delete(DeletableBlob deletableBlob) throws Exception
+  {
+    return deletableBlob.blob.delete();
+  }
+
+  /**
+   * Provides a blob that exists on the server to each invocation of the {@link EndToEndBenchmark#delete(DeletableBlob) delete} benchmark.
+   *
+   * @author Eike Stepper
+   */
+  @State(Scope.Thread)
+  public static class DeletableBlob
+  {
+    private IBlob blob;
+
+    @Setup(Level.Invocation)
+    public void setUp(EndToEndBenchmark benchmark) throws Exception
+    {
+      blob = benchmark.storage.getBlob(KEY + "_deletable");
+      blob.setContents(IOUtil.streamUTF(benchmark.contents));
+    }
+  }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2015 Eike Stepper (Berlin, Germany) and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Eike Stepper - initial API and implementation
+ */
+package org.eclipse.userstorage.benchmarks;
+
+import org.eclipse.userstorage.internal.util.IOUtil;
+import org.eclipse.userstorage.util.FileStorageCache;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how fast a {@link FileStorageCache} reads and writes blob contents and round trips blob properties.
+ *
+ * @author Eike Stepper
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FileStorageCacheBenchmark
+{
+  private static final String APPLICATION_TOKEN = "pDKTqBfDuNxlAKydhEwxBZPxa4q";
+
+  private static final String KEY = "benchmark_blob";
+
+  @Param({ "1024", "65536", "1048576" })
+  public int size;
+
+  private BenchmarkCache cache;
+
+  private byte[] contents;
+
+  private Map<String, String> properties;
+
+  @Setup
+  public void setUp() throws IOException
+  {
+    cache = new BenchmarkCache();
+    contents = Benchmarks.createBytes(size);
+
+    properties = new HashMap<String, String>();
+    properties.put("etag", "8e6706262c374adacd1048c5497e03cb4c5ea585c07d5e36c15150d4f7a40812");
+
+    write();
+    cache.saveProperties(APPLICATION_TOKEN, KEY, properties);
+  }
+
+  @TearDown
+  public void tearDown()
+  {
+    IOUtil.deleteFiles(cache.getFolder());
+  }
+
+  @Benchmark
+  public long read() throws IOException
+  {
+    return Benchmarks.drain(cache.getInputStream(APPLICATION_TOKEN, KEY));
+  }
+
+  @Benchmark
+  public void write() throws IOException
+  {
+    OutputStream out = cache.getOutputStream(APPLICATION_TOKEN, KEY);
+
+    try
+    {
+      out.write(contents);
+    }
+    finally
+    {
+      IOUtil.close(out);
+    }
+  }
+
+  @Benchmark
+  public Map<String, String> properties() throws IOException
+  {
+    cache.saveProperties(APPLICATION_TOKEN, KEY, properties);
+
+    Map<String, String> result = new HashMap<String, String>();
+    cache.loadProperties(APPLICATION_TOKEN, KEY, result);
+    return result;
+  }
+
+  /**
+   * Makes the stream and properties methods of the {@link FileStorageCache} accessible to the benchmark.
+   *
+   * @author Eike Stepper
+   */
+  private static final class BenchmarkCache extends FileStorageCache
+  {
+    public BenchmarkCache()
+    {
+      super(new File(System.getProperty("java.io.tmpdir"), "uss-benchmarks/cache-" + Thread.currentThread().getId()));
+    }
+
+    @Override
+    public void loadProperties(String applicationToken, String key, Map<String, String> properties) throws IOException
+    {
+      super.loadProperties(applicationToken, key, properties);
+    }
+
+    @Override
+    public void saveProperties(String applicationToken, String key, Map<String, String> properties) throws IOException
+    {
+      super.saveProperties(applicationToken, key, properties);
+    }
+
+    @Override
+    public InputStream getInputStream(String applicationToken, String key) throws IOException
+    {
+      return super.getInputStream(applicationToken, key);
+    }
+
+    @Override
+    public OutputStream getOutputStream(String applicationToken, String key) throws IOException
+    {
+      return super.getOutputStream(applicationToken, key);
+    }
+  }
+}
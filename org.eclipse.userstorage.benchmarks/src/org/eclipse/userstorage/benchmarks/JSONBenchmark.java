@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2015 Eike Stepper (Berlin, Germany) and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Eike Stepper - initial API and implementation
+ */
+package org.eclipse.userstorage.benchmarks;
+
+import org.eclipse.userstorage.internal.util.IOUtil;
+import org.eclipse.userstorage.internal.util.JSONUtil;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how fast {@link JSONUtil} parses and builds blob listings and blob envelopes of 1 KB to 50 MB.
+ *
+ * @author Eike Stepper
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JSONBenchmark
+{
+  @Param({ "1024", "65536", "1048576", "52428800" })
+  public int size;
+
+  private List<Object> listing;
+
+  private byte[] listingJSON;
+
+  private byte[] contents;
+
+  private byte[] envelopeJSON;
+
+  @Setup
+  public void setUp() throws IOException
+  {
+    listing = Benchmarks.createListing(size);
+    listingJSON = Benchmarks.read(JSONUtil.build(listing));
+
+    contents = Benchmarks.createBytes(size);
+    envelopeJSON = Benchmarks.createEnvelope(contents);
+  }
+
+  @Benchmark
+  public List<Object> parseListing() throws IOException
+  {
+    return JSONUtil.parse(IOUtil.streamUTF(listingJSON), null);
+  }
+
+  @Benchmark
+  public long buildListing() throws IOException
+  {
+    return Benchmarks.drain(JSONUtil.build(listing));
+  }
+
+  @Benchmark
+  public long parseEnvelope() throws IOException
+  {
+    Map<String, Object> object = JSONUtil.parse(IOUtil.streamUTF(envelopeJSON), "value");
+    return Benchmarks.drain((InputStream)object.get("value"));
+  }
+
+  @Benchmark
+  public long buildEnvelope() throws IOException
+  {
+    return Benchmarks.drain(JSONUtil.build(Collections.singletonMap("value", IOUtil.streamUTF(contents))));
+  }
+}
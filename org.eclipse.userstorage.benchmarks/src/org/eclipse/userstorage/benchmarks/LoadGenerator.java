@@ -0,0 +1,801 @@
+/*
+ * Copyright (c) 2015 Eike Stepper (Berlin, Germany) and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Eike Stepper - initial API and implementation
+ */
+package org.eclipse.userstorage.benchmarks;
+
+import org.eclipse.userstorage.IBlob;
+import org.eclipse.userstorage.IStorage;
+import org.eclipse.userstorage.IStorageService;
+import org.eclipse.userstorage.StorageFactory;
+import org.eclipse.userstorage.internal.Activator;
+import org.eclipse.userstorage.internal.StorageServiceRegistry;
+import org.eclipse.userstorage.internal.util.IOUtil;
+import org.eclipse.userstorage.internal.util.StringUtil;
+import org.eclipse.userstorage.spi.Credentials;
+import org.eclipse.userstorage.spi.ICredentialsProvider;
+import org.eclipse.userstorage.spi.ISettings;
+import org.eclipse.userstorage.tests.util.FixedCredentialsProvider;
+import org.eclipse.userstorage.tests.util.USSServer;
+import org.eclipse.userstorage.tests.util.USSServer.NOOPLogger;
+import org.eclipse.userstorage.util.FileStorageCache;
+import org.eclipse.userstorage.util.LatencyHistogram;
+import org.eclipse.userstorage.util.NotFoundException;
+import org.eclipse.userstorage.util.Settings.MemorySettings;
+
+import org.eclipse.jetty.util.log.Log;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Generates load on a {@link USSServer} through the real client stack, i.e., {@link StorageFactory}, {@link IStorage} and {@link IBlob}.
+ * <p>
+ * Each simulated user runs in its own thread and performs a random mix of blob reads, writes, deletions and listings
+ * over all application tokens and keys, with random blob sizes and exponentially distributed think times.
+ * Every interval a line with the throughput, the error rate, the latency percentiles per operation,
+ * the used heap, the allocation rate and the number of live storages is printed and optionally appended to a CSV file.
+ * <p>
+ * In soak mode each operation creates a new storage and blob and drops them afterwards, and the heap is garbage collected before it's sampled.
+ * At the end the run fails if the live heap keeps growing or if, after a garbage collection, the {@link StorageServiceRegistry}
+ * keeps more storages than before the run.
+ * <p>
+ * Without <code>--target</code> a local server is started and each user talks to it via its own port,
+ * so that each user gets its own service, session and credentials.
+ * With <code>--target</code> all users share one service and log in with the {@link FixedCredentialsProvider#DEFAULT_CREDENTIALS default test credentials},
+ * which the server must know, e.g., a server that was started with {@link USSServer#main(String[]) USSServer.main()}.
+ * <p>
+ * Options (defaults in brackets):
+ * <pre>
+ *   --users N              number of simulated users [10]
+ *   --tokens M             number of application tokens [2]
+ *   --keys K               number of keys per user and application token [20]
+ *   --mix R:W:D:L          weights of reads, writes, deletes and listings [70:20:5:5]
+ *   --sizes S:W,...        blob sizes in bytes with their weights [1024:80,65536:15,1048576:5]
+ *   --think MILLIS         mean think time between two operations of a user [100]
+ *   --duration SECONDS     duration of the run [60]
+ *   --interval SECONDS     duration of a reporting interval [10]
+ *   --port PORT            first port to try for the local server, one port per user [8080]
+ *   --target URI           URI of a running server instead of a local one
+ *   --csv FILE             file to append the interval reports to
+ *   --soak                 enable the memory growth detection
+ *   --leak MB_PER_MINUTE   heap growth that fails a soak run [1]
+ * </pre>
+ *
+ * @author Eike Stepper
+ */
+public final class LoadGenerator
+{
+  private static final String[] OPERATIONS = { "read", "write", "delete", "list" };
+
+  private static final int READ = 0;
+
+  private static final int WRITE = 1;
+
+  private static final int DELETE = 2;
+
+  private static final int LIST = 3;
+
+  private static final int LIST_PAGE_SIZE = 20;
+
+  private static final String PASSWORD = "load_password_123456789";
+
+  private static final int GC_ATTEMPTS = 10;
+
+  private final Options options;
+
+  private final Statistics[] intervalStatistics = new Statistics[OPERATIONS.length];
+
+  private final Statistics[] totalStatistics = new Statistics[OPERATIONS.length];
+
+  private final List<Sample> samples = new ArrayList<Sample>();
+
+  private final List<IStorageService.Dynamic> services = new ArrayList<IStorageService.Dynamic>();
+
+  private final List<Worker> workers = new ArrayList<Worker>();
+
+  private final byte[][] payloads;
+
+  private final File folder = new File(System.getProperty("java.io.tmpdir"), "uss-load");
+
+  private USSServer server;
+
+  private PrintWriter csv;
+
+  private int baselineStorages;
+
+  private int remainingStorages;
+
+  private volatile boolean running;
+
+  private LoadGenerator(Options options)
+  {
+    this.options = options;
+
+    for (int i = 0; i < OPERATIONS.length; i++)
+    {
+      intervalStatistics[i] = new Statistics();
+      totalStatistics[i] = new Statistics();
+    }
+
+    payloads = new byte[options.sizes.length][];
+    for (int i = 0; i < payloads.length; i++)
+    {
+      payloads[i] = Benchmarks.createBytes(options.sizes[i]);
+    }
+  }
+
+  public static void main(String[] args) throws Exception
+  {
+    Options options = Options.parse(args);
+    boolean passed = new LoadGenerator(options).run();
+    System.exit(passed ? 0 : 1);
+  }
+
+  private boolean run() throws Exception
+  {
+    Log.setLog(new NOOPLogger());
+    Activator.start();
+
+    try
+    {
+      setUp();
+      baselineStorages = StorageServiceRegistry.INSTANCE.getStorageCount();
+
+      running = true;
+      for (Worker worker : workers)
+      {
+        worker.start();
+      }
+
+      report();
+    }
+    finally
+    {
+      running = false;
+      for (Worker worker : workers)
+      {
+        worker.join();
+      }
+
+      if (options.soak)
+      {
+        remainingStorages = collectStorages();
+      }
+
+      tearDown();
+      Activator.stop();
+    }
+
+    printSummary();
+    return !options.soak || checkSoak();
+  }
+
+  private void setUp() throws Exception
+  {
+    IOUtil.deleteFiles(folder);
+
+    if (options.target == null)
+    {
+      server = new USSServer(options.port, new File(folder, "server"));
+      for (int i = 0; i < options.tokens; i++)
+      {
+        server.getApplicationTokens().add(getApplicationToken(i));
+      }
+
+      for (int u = 0; u < options.users; u++)
+      {
+        server.addUser(getUsername(u), PASSWORD);
+      }
+
+      int port = server.start();
+      System.out.println("Started a server on port " + port);
+
+      for (int u = 0; u < options.users; u++)
+      {
+        // The client keeps one session per service, so each user needs a service URI of its own.
+        int userPort = u == 0 ? port : server.addPort();
+        URI serviceURI = StringUtil.newURI("http://localhost:" + userPort);
+        services.add(IStorageService.Registry.INSTANCE.addService("Load User " + u, serviceURI));
+        workers.add(new Worker(u, serviceURI, new Credentials(getUsername(u), PASSWORD)));
+      }
+    }
+    else
+    {
+      services.add(IStorageService.Registry.INSTANCE.addService("Load Target", options.target));
+
+      for (int u = 0; u < options.users; u++)
+      {
+        workers.add(new Worker(u, options.target, FixedCredentialsProvider.DEFAULT_CREDENTIALS));
+      }
+    }
+
+    if (options.csv != null)
+    {
+      boolean header = !options.csv.exists();
+      csv = new PrintWriter(new FileWriter(options.csv, true), true);
+
+      if (header)
+      {
+        StringBuilder builder = new StringBuilder("seconds,throughput,errorRate");
+        for (String operation : OPERATIONS)
+        {
+          builder.append(',').append(operation).append("P50,").append(operation).append("P99,").append(operation).append("Max");
+        }
+
+        builder.append(",heapUsed,allocationRate,storages");
+        csv.println(builder);
+      }
+    }
+  }
+
+  private void tearDown() throws Exception
+  {
+    for (IStorageService.Dynamic service : services)
+    {
+      service.remove();
+    }
+
+    services.clear();
+
+    if (server != null)
+    {
+      server.stop();
+      server = null;
+    }
+
+    if (csv != null)
+    {
+      csv.close();
+      csv = null;
+    }
+
+    IOUtil.deleteFiles(folder);
+  }
+
+  private void report() throws InterruptedException
+  {
+    ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+    long start = System.nanoTime();
+    long end = start + options.duration * 1000000000L;
+    long lastTime = start;
+    long lastAllocated = getAllocatedBytes(threadBean);
+
+    System.out.println(String.format(Locale.ROOT, "%8s %10s %7s %21s %21s %21s %21s %10s %10s %8s", "seconds", "ops/s", "errors", "read p50/p99 ms",
+        "write p50/p99 ms", "delete p50/p99 ms", "list p50/p99 ms", "heap MB", "alloc MB/s", "storages"));
+
+    while (lastTime < end)
+    {
+      Thread.sleep(Math.max(1, Math.min(options.interval * 1000L, (end - lastTime) / 1000000)));
+
+      if (options.soak)
+      {
+        // Sample the live heap rather than the garbage.
+        System.gc();
+      }
+
+      long time = System.nanoTime();
+      long allocated = getAllocatedBytes(threadBean);
+      double seconds = (time - lastTime) / 1e9;
+
+      Sample sample = new Sample();
+      sample.seconds = (time - start) / 1e9;
+      sample.heapUsed = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+      sample.allocationRate = Math.max(0, allocated - lastAllocated) / seconds;
+      sample.storages = StorageServiceRegistry.INSTANCE.getStorageCount();
+      samples.add(sample);
+
+      printInterval(sample, seconds);
+
+      lastTime = time;
+      lastAllocated = allocated;
+    }
+  }
+
+  private void printInterval(Sample sample, double seconds)
+  {
+    long operations = 0;
+    long errors = 0;
+
+    StringBuilder latencies = new StringBuilder();
+    StringBuilder csvLatencies = new StringBuilder();
+
+    for (Statistics statistics : intervalStatistics)
+    {
+      LatencyHistogram histogram = statistics.latencies;
+      long p50 = histogram.getPercentile(50);
+      long p99 = histogram.getPercentile(99);
+      long max = histogram.getMax();
+
+      operations += histogram.getCount();
+      errors += statistics.errors.get();
+
+      latencies.append(String.format(Locale.ROOT, " %10.1f/%10.1f", p50 / 1000.0, p99 / 1000.0));
+      csvLatencies.append(',').append(p50).append(',').append(p99).append(',').append(max);
+
+      statistics.reset();
+    }
+
+    double throughput = operations / seconds;
+    double errorRate = operations == 0 ? 0.0 : (double)errors / operations;
+
+    System.out.println(String.format(Locale.ROOT, "%8.0f %10.1f %6.2f%%%s %10.1f %10.1f %8d", sample.seconds, throughput, 100 * errorRate, latencies,
+        sample.heapUsed / 1048576.0, sample.allocationRate / 1048576.0, sample.storages));
+
+    if (csv != null)
+    {
+      csv.println(String.format(Locale.ROOT, "%.0f,%.1f,%.4f%s,%d,%.0f,%d", sample.seconds, throughput, errorRate, csvLatencies, sample.heapUsed,
+          sample.allocationRate, sample.storages));
+    }
+  }
+
+  private void printSummary()
+  {
+    System.out.println();
+    for (int i = 0; i < OPERATIONS.length; i++)
+    {
+      Statistics statistics = totalStatistics[i];
+      System.out.println(String.format(Locale.ROOT, "%-7s %s, notFound=%d, errors=%d", OPERATIONS[i], statistics.latencies, statistics.notFound.get(),
+          statistics.errors.get()));
+    }
+  }
+
+  /**
+   * Collects the garbage until the registry keeps no more storages than before the run, or gives up after a few attempts.
+   */
+  private int collectStorages() throws InterruptedException
+  {
+    int storages = StorageServiceRegistry.INSTANCE.getStorageCount();
+    for (int i = 0; i < GC_ATTEMPTS && storages > baselineStorages; i++)
+    {
+      System.gc();
+      Thread.sleep(100);
+      storages = StorageServiceRegistry.INSTANCE.getStorageCount();
+    }
+
+    return storages;
+  }
+
+  /**
+   * Fits a line through the live heap sizes of the second half of the run, after the warm-up, and fails if it rises too steeply.
+   * Also fails if the storages that the users have dropped are still alive after a garbage collection.
+   */
+  private boolean checkSoak()
+  {
+    boolean passed = true;
+
+    List<Sample> steadySamples = samples.subList(samples.size() / 2, samples.size());
+    if (steadySamples.size() >= 2)
+    {
+      double meanSeconds = 0;
+      double meanHeap = 0;
+      for (Sample sample : steadySamples)
+      {
+        meanSeconds += sample.seconds / steadySamples.size();
+        meanHeap += (double)sample.heapUsed / steadySamples.size();
+      }
+
+      double covariance = 0;
+      double variance = 0;
+      for (Sample sample : steadySamples)
+      {
+        covariance += (sample.seconds - meanSeconds) * (sample.heapUsed - meanHeap);
+        variance += (sample.seconds - meanSeconds) * (sample.seconds - meanSeconds);
+      }
+
+      double growth = variance == 0 ? 0 : covariance / variance * 60 / 1048576;
+      System.out.println(String.format(Locale.ROOT, "Live heap growth: %.2f MB/min", growth));
+
+      if (growth > options.leak)
+      {
+        System.out.println("FAILED: The live heap grows faster than " + options.leak + " MB/min");
+        passed = false;
+      }
+    }
+    else
+    {
+      System.out.println("The run is too short to detect heap growth");
+    }
+
+    System.out.println("Live storages after GC: " + remainingStorages + " (" + baselineStorages + " before the run)");
+    if (remainingStorages > baselineStorages)
+    {
+      System.out.println("FAILED: The storage service registry keeps storages that the users have dropped");
+      passed = false;
+    }
+
+    return passed;
+  }
+
+  private static long getAllocatedBytes(ThreadMXBean threadBean)
+  {
+    if (threadBean instanceof com.sun.management.ThreadMXBean)
+    {
+      com.sun.management.ThreadMXBean sunThreadBean = (com.sun.management.ThreadMXBean)threadBean;
+      if (sunThreadBean.isThreadAllocatedMemorySupported() && sunThreadBean.isThreadAllocatedMemoryEnabled())
+      {
+        long sum = 0;
+        for (long allocated : sunThreadBean.getThreadAllocatedBytes(sunThreadBean.getAllThreadIds()))
+        {
+          sum += Math.max(0, allocated);
+        }
+
+        return sum;
+      }
+    }
+
+    return 0;
+  }
+
+  private static String getApplicationToken(int i)
+  {
+    return String.format("loadToken%03d", i);
+  }
+
+  private static String getUsername(int u)
+  {
+    return String.format("load_user_%03d", u);
+  }
+
+  private static String getKey(int user, int k)
+  {
+    // Users that share an account on the target server must not write the same blobs.
+    return String.format("u%03d_blob_%04d", user, k);
+  }
+
+  /**
+   * A simulated user.
+   *
+   * @author Eike Stepper
+   */
+  private final class Worker extends Thread
+  {
+    private final int user;
+
+    private final Random random;
+
+    private final StorageFactory factory;
+
+    private final FileStorageCache cache;
+
+    private final ICredentialsProvider credentialsProvider;
+
+    private final IStorage[] storages;
+
+    public Worker(int user, URI serviceURI, final Credentials credentials) throws Exception
+    {
+      super("Load User " + user);
+      setDaemon(true);
+      this.user = user;
+      random = new Random(user);
+
+      ISettings settings = new MemorySettings();
+      for (int i = 0; i < options.tokens; i++)
+      {
+        settings.setValue(getApplicationToken(i), serviceURI.toString());
+      }
+
+      factory = new StorageFactory(settings);
+      cache = new FileStorageCache(new File(folder, "cache-" + user));
+
+      credentialsProvider = new ICredentialsProvider()
+      {
+        @Override
+        public Credentials provideCredentials(IStorageService service, boolean reauthentication)
+        {
+          return credentials;
+        }
+      };
+
+      storages = new IStorage[options.tokens];
+      for (int i = 0; i < storages.length; i++)
+      {
+        storages[i] = createStorage(i);
+      }
+    }
+
+    @Override
+    public void run()
+    {
+      while (running)
+      {
+        int operation = options.nextOperation(random);
+        int token = random.nextInt(storages.length);
+
+        // In soak mode the storage and the blob are dropped after the operation, so that leaks of either show up.
+        IStorage storage = options.soak ? createStorage(token) : storages[token];
+        IBlob blob = storage.getBlob(getKey(user, random.nextInt(options.keys)));
+
+        long start = System.nanoTime();
+        boolean notFound = false;
+        boolean error = false;
+
+        try
+        {
+          switch (operation)
+          {
+            case READ:
+              Benchmarks.drain(blob.getContents());
+              break;
+
+            case WRITE:
+              blob.setContents(IOUtil.streamUTF(payloads[options.nextSize(random)]));
+              break;
+
+            case DELETE:
+              notFound = !blob.delete();
+              break;
+
+            case LIST:
+              storage.getBlobs(LIST_PAGE_SIZE, 1);
+              break;
+          }
+        }
+        catch (NotFoundException ex)
+        {
+          notFound = true;
+        }
+        catch (Exception ex)
+        {
+          error = true;
+        }
+
+        long nanos = System.nanoTime() - start;
+        intervalStatistics[operation].record(nanos, notFound, error);
+        totalStatistics[operation].record(nanos, notFound, error);
+
+        think();
+      }
+    }
+
+    private IStorage createStorage(int token)
+    {
+      IStorage storage = factory.create(getApplicationToken(token), cache);
+      storage.setCredentialsProvider(credentialsProvider);
+      return storage;
+    }
+
+    private void think()
+    {
+      if (options.thinkTime > 0)
+      {
+        long millis = (long)(-Math.log(1.0 - random.nextDouble()) * options.thinkTime);
+
+        try
+        {
+          Thread.sleep(millis);
+        }
+        catch (InterruptedException ex)
+        {
+          interrupt();
+        }
+      }
+    }
+  }
+
+  /**
+   * @author Eike Stepper
+   */
+  private static final class Statistics
+  {
+    private final LatencyHistogram latencies = new LatencyHistogram();
+
+    private final AtomicLong notFound = new AtomicLong();
+
+    private final AtomicLong errors = new AtomicLong();
+
+    public void record(long nanos, boolean notFound, boolean error)
+    {
+      latencies.record(nanos);
+
+      if (notFound)
+      {
+        this.notFound.incrementAndGet();
+      }
+
+      if (error)
+      {
+        errors.incrementAndGet();
+      }
+    }
+
+    public void reset()
+    {
+      latencies.reset();
+      notFound.set(0);
+      errors.set(0);
+    }
+  }
+
+  /**
+   * @author Eike Stepper
+   */
+  private static final class Sample
+  {
+    private double seconds;
+
+    private long heapUsed;
+
+    private double allocationRate;
+
+    private int storages;
+  }
+
+  /**
+   * @author Eike Stepper
+   */
+  private static final class Options
+  {
+    private int users = 10;
+
+    private int tokens = 2;
+
+    private int keys = 20;
+
+    private int[] mix = { 70, 20, 5, 5 };
+
+    private int[] sizes = { 1024, 65536, 1048576 };
+
+    private int[] sizeWeights = { 80, 15, 5 };
+
+    private long thinkTime = 100;
+
+    private long duration = 60;
+
+    private long interval = 10;
+
+    private int port = 8080;
+
+    private URI target;
+
+    private File csv;
+
+    private boolean soak;
+
+    private double leak = 1.0;
+
+    public int nextOperation(Random random)
+    {
+      return next(random, mix);
+    }
+
+    public int nextSize(Random random)
+    {
+      return next(random, sizeWeights);
+    }
+
+    private static int next(Random random, int[] weights)
+    {
+      int total = 0;
+      for (int weight : weights)
+      {
+        total += weight;
+      }
+
+      int value = random.nextInt(total);
+      for (int i = 0; i < weights.length; i++)
+      {
+        value -= weights[i];
+        if (value < 0)
+        {
+          return i;
+        }
+      }
+
+      return weights.length - 1;
+    }
+
+    public static Options parse(String[] args)
+    {
+      Options options = new Options();
+
+      for (int i = 0; i < args.length; i++)
+      {
+        String arg = args[i];
+        if ("--soak".equals(arg))
+        {
+          options.soak = true;
+          continue;
+        }
+
+        if (i + 1 == args.length)
+        {
+          throw new IllegalArgumentException("Missing value of " + arg);
+        }
+
+        String value = args[++i];
+        if ("--users".equals(arg))
+        {
+          options.users = Integer.parseInt(value);
+          if (options.users < 1)
+          {
+            throw new IllegalArgumentException("Users must be positive: " + value);
+          }
+        }
+        else if ("--tokens".equals(arg))
+        {
+          options.tokens = Integer.parseInt(value);
+        }
+        else if ("--keys".equals(arg))
+        {
+          options.keys = Integer.parseInt(value);
+        }
+        else if ("--mix".equals(arg))
+        {
+          String[] weights = value.split(":");
+          if (weights.length != OPERATIONS.length)
+          {
+            throw new IllegalArgumentException("Mix must be R:W:D:L: " + value);
+          }
+
+          for (int j = 0; j < weights.length; j++)
+          {
+            options.mix[j] = Integer.parseInt(weights[j]);
+          }
+        }
+        else if ("--sizes".equals(arg))
+        {
+          String[] entries = value.split(",");
+          options.sizes = new int[entries.length];
+          options.sizeWeights = new int[entries.length];
+
+          for (int j = 0; j < entries.length; j++)
+          {
+            String[] entry = entries[j].split(":");
+            options.sizes[j] = Integer.parseInt(entry[0]);
+            options.sizeWeights[j] = entry.length == 1 ? 1 : Integer.parseInt(entry[1]);
+          }
+        }
+        else if ("--think".equals(arg))
+        {
+          options.thinkTime = Long.parseLong(value);
+        }
+        else if ("--duration".equals(arg))
+        {
+          options.duration = Long.parseLong(value);
+        }
+        else if ("--interval".equals(arg))
+        {
+          options.interval = Long.parseLong(value);
+        }
+        else if ("--port".equals(arg))
+        {
+          options.port = Integer.parseInt(value);
+        }
+        else if ("--target".equals(arg))
+        {
+          options.target = StringUtil.newURI(value);
+        }
+        else if ("--csv".equals(arg))
+        {
+          options.csv = new File(value);
+        }
+        else if ("--leak".equals(arg))
+        {
+          options.leak = Double.parseDouble(value);
+        }
+        else
+        {
+          throw new IllegalArgumentException("Unknown option: " + arg);
+        }
+      }
+
+      return options;
+    }
+  }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2015 Eike Stepper (Berlin, Germany) and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Eike Stepper - initial API and implementation
+ */
+package org.eclipse.userstorage.benchmarks;
+
+import org.eclipse.userstorage.IBlob;
+import org.eclipse.userstorage.IStorage;
+import org.eclipse.userstorage.tests.util.ClientFixture;
+import org.eclipse.userstorage.tests.util.ServerFixture;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link IStorage#getBlob(String) IStorage.getBlob()} and cached blob retrievals while many threads share one storage.
+ *
+ * @author Eike Stepper
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(8)
+@Fork(1)
+public class StorageContentionBenchmark
+{
+  private static final String APPLICATION_TOKEN = "pDKTqBfDuNxlAKydhEwxBZPxa4q";
+
+  private static final int KEYS = 16;
+
+  private ServerFixture serverFixture;
+
+  private ClientFixture clientFixture;
+
+  private IStorage storage;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception
+  {
+    serverFixture = new ServerFixture(APPLICATION_TOKEN);
+    clientFixture = new ClientFixture(serverFixture);
+    storage = clientFixture.getFactory().create(APPLICATION_TOKEN, clientFixture.getCache());
+
+    for (int i = 0; i < KEYS; i++)
+    {
+      storage.getBlob(getKey(i)).setContentsUTF("Benchmark contents " + i);
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws Exception
+  {
+    if (clientFixture != null)
+    {
+      clientFixture.dispose();
+      clientFixture = null;
+    }
+
+    if (serverFixture != null)
+    {
+      serverFixture.dispose();
+      serverFixture = null;
+    }
+  }
+
+  @Benchmark
+  public IBlob getBlob(ThreadIndex threadIndex)
+  {
+    return storage.getBlob(getKey(threadIndex.next()));
+  }
+
+  @Benchmark
+  public String getCachedContents(ThreadIndex threadIndex) throws Exception
+  {
+    // The blobs are cached, so the service answers with "304 Not Modified".
+    return storage.getBlob(getKey(threadIndex.next())).getContentsUTF();
+  }
+
+  private static String getKey(int i)
+  {
+    return "benchmark_blob_" + i;
+  }
+
+  /**
+   * Lets each thread cycle through the keys, so that the threads contend for the same blobs.
+   *
+   * @author Eike Stepper
+   */
+  @State(Scope.Thread)
+  public static class ThreadIndex
+  {
+    private int index;
+
+    public int next()
+    {
+      index = (index + 1) % KEYS;
+      return index;
+    }
+  }
+}
@@ -0,0 +1,245 @@
+/*
+ * Copyright (c) 2015 Eike Stepper (Berlin, Germany) and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Eike Stepper - initial API and implementation
+ */
+package org.eclipse.userstorage.jfr;
+
+import org.eclipse.userstorage.IStorageService;
+import org.eclipse.userstorage.spi.IStorageTracer;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Records the operations of all storages as JDK Flight Recorder events.
+ * <p>
+ * To use it start the application with <code>-Dorg.eclipse.userstorage.tracer=org.eclipse.userstorage.jfr.JFRTracer</code>.
+ * The events are disabled until a recording enables them, e.g., with <code>-XX:StartFlightRecording</code>,
+ * and disabled events are neither timed nor committed.
+ * <p>
+ *
+ * @author Eike Stepper
+ */
+public final class JFRTracer implements IStorageTracer
+{
+  public JFRTracer()
+  {
+  }
+
+  @Override
+  public Span beginRequest(IStorageService service, String method, String uriTemplate)
+  {
+    RequestEvent event = new RequestEvent();
+    if (!event.isEnabled())
+    {
+      return null;
+    }
+
+    event.serviceURI = String.valueOf(service.getServiceURI());
+    event.method = method;
+    event.uriTemplate = uriTemplate;
+    event.begin();
+    return event;
+  }
+
+  @Override
+  public Span beginAuthentication(IStorageService service)
+  {
+    AuthenticationEvent event = new AuthenticationEvent();
+    if (!event.isEnabled())
+    {
+      return null;
+    }
+
+    event.serviceURI = String.valueOf(service.getServiceURI());
+    event.begin();
+    return event;
+  }
+
+  @Override
+  public Span beginCacheOpen(String applicationToken, String key)
+  {
+    return begin(new CacheOpenEvent(), applicationToken, key);
+  }
+
+  @Override
+  public Span beginCacheFill(String applicationToken, String key)
+  {
+    return begin(new CacheFillEvent(), applicationToken, key);
+  }
+
+  @Override
+  public Span beginCacheEvict(String applicationToken, String key)
+  {
+    return begin(new CacheEvictEvent(), applicationToken, key);
+  }
+
+  @Override
+  public Span beginJSONParse()
+  {
+    return begin(new JSONParseEvent());
+  }
+
+  @Override
+  public Span beginJSONBuild()
+  {
+    return begin(new JSONBuildEvent());
+  }
+
+  private static Span begin(CacheEvent event, String applicationToken, String key)
+  {
+    if (!event.isEnabled())
+    {
+      return null;
+    }
+
+    event.applicationToken = applicationToken;
+    event.key = key;
+    event.begin();
+    return event;
+  }
+
+  private static Span begin(StorageEvent event)
+  {
+    if (!event.isEnabled())
+    {
+      return null;
+    }
+
+    event.begin();
+    return event;
+  }
+
+  /**
+   * @author Eike Stepper
+   */
+  @Category({ "Eclipse", "User Storage" })
+  abstract static class StorageEvent extends Event implements Span
+  {
+    @Label("Status")
+    int status;
+
+    @Label("Bytes")
+    @DataAmount
+    long bytes;
+
+    @Override
+    public void end(int status, long bytes)
+    {
+      this.status = status;
+      this.bytes = bytes;
+      end();
+
+      if (shouldCommit())
+      {
+        commit();
+      }
+    }
+  }
+
+  /**
+   * @author Eike Stepper
+   */
+  @Name("org.eclipse.userstorage.HttpRequest")
+  @Label("HTTP Request")
+  @Description("A request to a storage service. The status is the HTTP status code, or -1 if no response has been received, and the bytes are those of the response body.")
+  static final class RequestEvent extends StorageEvent
+  {
+    @Label("Service URI")
+    String serviceURI;
+
+    @Label("Method")
+    String method;
+
+    @Label("URI Template")
+    String uriTemplate;
+  }
+
+  /**
+   * @author Eike Stepper
+   */
+  @Name("org.eclipse.userstorage.Authentication")
+  @Label("Authentication")
+  @Description("A login to a storage service, including the acquisition of a CSRF token. The status is the HTTP status code of the login, or -1 if it has failed.")
+  static final class AuthenticationEvent extends StorageEvent
+  {
+    @Label("Service URI")
+    String serviceURI;
+  }
+
+  /**
+   * @author Eike Stepper
+   */
+  abstract static class CacheEvent extends StorageEvent
+  {
+    @Label("Application Token")
+    String applicationToken;
+
+    @Label("Key")
+    String key;
+  }
+
+  /**
+   * @author Eike Stepper
+   */
+  @Name("org.eclipse.userstorage.CacheOpen")
+  @Label("Cache Open")
+  @Description("Opening the cached contents of a blob, including the wait for a pending cache fill. The status is 1 if the contents are cached, 0 otherwise.")
+  static final class CacheOpenEvent extends CacheEvent
+  {
+  }
+
+  /**
+   * @author Eike Stepper
+   */
+  @Name("org.eclipse.userstorage.CacheFill")
+  @Label("Cache Fill")
+  @Description("Writing the contents of a blob to the cache. The status is 1 if the contents have been written completely, 0 otherwise.")
+  static final class CacheFillEvent extends CacheEvent
+  {
+  }
+
+  /**
+   * @author Eike Stepper
+   */
+  @Name("org.eclipse.userstorage.CacheEvict")
+  @Label("Cache Evict")
+  @Description("Deleting the cached contents of a blob.")
+  @StackTrace(false)
+  static final class CacheEvictEvent extends CacheEvent
+  {
+  }
+
+  /**
+   * @author Eike Stepper
+   */
+  @Name("org.eclipse.userstorage.JSONParse")
+  @Label("JSON Parse")
+  @Description("Parsing a JSON response. The bytes don't include a streamed blob value.")
+  @StackTrace(false)
+  static final class JSONParseEvent extends StorageEvent
+  {
+  }
+
+  /**
+   * @author Eike Stepper
+   */
+  @Name("org.eclipse.userstorage.JSONBuild")
+  @Label("JSON Build")
+  @Description("Building a JSON request body while it's sent.")
+  @StackTrace(false)
+  static final class JSONBuildEvent extends StorageEvent
+  {
+  }
+}
@@ -4,37 +4,48 @@
 package org.eclipse.userstorage.service.host;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
 import java.util.Collections;
 import java.util.Dictionary;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
 
 import javax.ws.rs.DELETE;
+import javax.ws.rs.DefaultValue;
 import javax.ws.rs.GET;
 import javax.ws.rs.PUT;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
 import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.Context;
 import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.ResponseBuilder;
 import javax.ws.rs.core.StreamingOutput;
 
 import org.eclipse.userstorage.internal.util.IOUtil;
 import org.eclipse.userstorage.internal.util.JSONUtil;
 import org.eclipse.userstorage.internal.util.StringUtil;
+import org.eclipse.userstorage.service.IBlobStore;
+import org.eclipse.userstorage.service.IBlobStore.Blob;
+import org.eclipse.userstorage.service.IBlobStore.Entry;
 import org.eclipse.userstorage.service.IUserStorageService;
-import org.eclipse.userstorage.tests.util.USSServer;
+import org.eclipse.userstorage.service.store.ConnectionPool;
+import org.eclipse.userstorage.service.store.FileBlobStore;
+import org.eclipse.userstorage.service.store.JdbcBlobStore;
+import org.eclipse.userstorage.service.store.MemoryBlobStore;
 import org.osgi.service.cm.ConfigurationException;
 import org.osgi.service.cm.ManagedService;
 import org.osgi.service.component.ComponentContext;
@@ -56,6 +67,35 @@ import org.osgi.service.component.annotations.Modified;
 public class UserStorageComponent
     implements ManagedService, IUserStorageService {
 
+    /**
+     * The configuration property that selects the {@link IBlobStore}: <code>file</code>, <code>jdbc</code> or <code>memory</code>.
+     * Defaults to <code>jdbc</code> if a <code>database</code> is configured and to <code>file</code> otherwise.
+     */
+    public static final String STORE = "store";
+
+    public static final String STORE_FILE = "file";
+
+    public static final String STORE_JDBC = "jdbc";
+
+    public static final String STORE_MEMORY = "memory";
+
+    /**
+     * The configuration property that limits the number of pooled database connections of the <code>jdbc</code> store.
+     */
+    public static final String POOL_SIZE = "pool.size";
+
+    /**
+     * The configuration property that sets the folder of the <code>file</code> store.
+     * Defaults to <code>uss-server</code> in the temporary folder.
+     */
+    public static final String FOLDER = "folder";
+
+    private static final int DEFAULT_POOL_SIZE = 16;
+
+    private static final long POOL_TIMEOUT = 30000;
+
+    private static final int MAX_PAGE_SIZE = 100;
+
     private String id;
     private String database;
     private String user;
@@ -67,6 +107,8 @@ public class UserStorageComponent
         new File(System.getProperty("java.io.tmpdir"), "uss-server");
     private final static String userApp = "eclipse_test_123456789";
 
+    private volatile IBlobStore blobStore;
+
     @PUT
     @Path("/{token}/{filename}")
     @Override
@@ -79,39 +121,35 @@ public class UserStorageComponent
             return Response.status(404).build();
         }
 
-        File etagFile = getUserFile(userApp, token, filename, USSServer.ETAG_EXTENSION);
+        String existingETag = getExistingETag(token, filename);
         String ifMatch = getEtag(headers, "If-Match");
 
-        if (etagFile.exists())
+        if (existingETag != null)
         {
-            String etag = IOUtil.readUTF(etagFile);
-
-            if (StringUtil.isEmpty(ifMatch) || !ifMatch.equals(etag))
+            if (StringUtil.isEmpty(ifMatch) || !ifMatch.equals(existingETag))
             {
-                return Response.status(409).header("ETag", "\"" + etag + "\"").build();
+                return Response.status(409).header("ETag", "\"" + existingETag + "\"").build();
             }
         }
 
         String etag = UUID.randomUUID().toString();
 
-        File blobFile = getUserFile(userApp, token, filename, USSServer.BLOB_EXTENSION);
-        IOUtil.mkdirs(blobFile.getParentFile());
-        FileOutputStream out = new FileOutputStream(blobFile);
         Map<String, Object> value = JSONUtil.parse(blob, "value");
 
         try
         {
-            IOUtil.copy((InputStream)value.get("value"), out);
+            // The store writes only if the blob is still the one checked above, so that no concurrent update gets lost.
+            if (!blobStore.setBlob(userApp, token, filename, (InputStream)value.get("value"), etag, existingETag))
+            {
+                return conflict(token, filename);
+            }
         }
         finally
         {
             IOUtil.closeSilent((InputStream)value.get("value"));
-            IOUtil.close(out);
         }
 
-        IOUtil.writeUTF(etagFile, etag);
-
-        return Response.status(etagFile.exists() ? 200 : 201).header("Etag", "\"" + etag + "\"").build();
+        return Response.status(existingETag != null ? 200 : 201).header("Etag", "\"" + etag + "\"").build();
 
     }
 
@@ -119,26 +157,27 @@ public class UserStorageComponent
     @Path("/{token}/{filename}")
     @Override
     public Response deleteBlob(@PathParam("token") String token, @PathParam("filename") String filename,
-        @Context HttpHeaders headers) {
+        @Context HttpHeaders headers)
+        throws IOException {
 
-        File etagFile = getUserFile(userApp, token, filename, USSServer.ETAG_EXTENSION);
+        String etag = this.isExistAppToken(token) ? getExistingETag(token, filename) : null;
 
-        if (!this.isExistAppToken(token) || !etagFile.exists())
+        if (etag == null)
         {
             return Response.status(404).build();
         }
 
-        String etag = IOUtil.readUTF(etagFile);
         String ifMatch = getEtag(headers, "If-Match");
         if (ifMatch != null && !ifMatch.equals(etag))
         {
             return Response.status(494).build();
         }
 
-        File blobFile = getUserFile(userApp, token, filename, USSServer.BLOB_EXTENSION);
-
-        IOUtil.delete(blobFile);
-        IOUtil.delete(etagFile);
+        if (!blobStore.deleteBlob(userApp, token, filename, ifMatch))
+        {
+            // The blob has been changed or deleted concurrently.
+            return Response.status(getExistingETag(token, filename) == null ? 404 : 494).build();
+        }
 
         return Response.noContent().build();
     }
@@ -151,23 +190,22 @@ public class UserStorageComponent
         @Context HttpHeaders headers)
         throws IOException {
 
-        File etagFile = getUserFile(userApp, token, filename, USSServer.ETAG_EXTENSION);
+        Blob existingBlob = this.isExistAppToken(token) ? blobStore.getBlob(userApp, token, filename) : null;
 
-        if (!this.isExistAppToken(token) || !etagFile.exists())
+        if (existingBlob == null)
         {
             return Response.status(404).build();
         }
 
-        String etag = IOUtil.readUTF(etagFile);
+        String etag = existingBlob.getETag();
         String ifNoneMatch = getEtag(headers, "If-None-Match");
         if (ifNoneMatch != null && ifNoneMatch.equals(etag))
         {
+            existingBlob.close();
             return Response.status(304).build();
         }
 
-        File blobFile = getUserFile(userApp, token, filename, USSServer.BLOB_EXTENSION);
-
-        InputStream body = JSONUtil.build(Collections.singletonMap("value", new FileInputStream(blobFile)));
+        InputStream body = JSONUtil.build(Collections.singletonMap("value", existingBlob.getContents()));
 
             StreamingOutput stream = new StreamingOutput()
             {
@@ -182,6 +220,131 @@ public class UserStorageComponent
         return Response.ok().header("Etag", "\"" + etag + "\"").entity(stream).type(MediaType.APPLICATION_JSON).build();
     }
 
+    @GET
+    @Produces("application/json")
+    @Path("/{token}")
+    @Override
+    public Response getBlobs(@PathParam("token") String token,
+        @QueryParam("pagesize") @DefaultValue("20") int pageSize, @QueryParam("page") @DefaultValue("1") int page,
+        @QueryParam("cursor") String cursor)
+        throws IOException {
+
+        if (!this.isExistAppToken(token))
+        {
+            return Response.status(404).build();
+        }
+
+        if (pageSize < 1 || pageSize > MAX_PAGE_SIZE || page < 1)
+        {
+            return Response.status(400).build();
+        }
+
+        String afterKey = null;
+        int skip = 0;
+
+        if (cursor != null)
+        {
+            afterKey = decodeCursor(cursor);
+            if (afterKey == null)
+            {
+                return Response.status(400).build();
+            }
+        }
+        else
+        {
+            // Pages far beyond the last entry would overflow the offset.
+            long offset = (long)(page - 1) * pageSize;
+            if (offset > Integer.MAX_VALUE)
+            {
+                return Response.status(400).build();
+            }
+
+            skip = (int)offset;
+        }
+
+        // Fetch one more entry to know whether there is a next page.
+        List<Entry> entries = blobStore.getEntries(userApp, token, afterKey, skip, pageSize + 1);
+        boolean hasNext = entries.size() > pageSize;
+        if (hasNext)
+        {
+            entries = entries.subList(0, pageSize);
+        }
+
+        List<Object> array = new ArrayList<>(entries.size());
+        for (Entry entry : entries)
+        {
+            Map<String, Object> properties = new LinkedHashMap<>();
+            properties.put("application_token", token);
+            properties.put("key", entry.getKey());
+            properties.put("etag", entry.getETag());
+            properties.put("size", Long.toString(entry.getSize()));
+            properties.put("modified", Long.toString(entry.getModified()));
+            array.add(properties);
+        }
+
+        InputStream body = JSONUtil.build(array);
+
+        StreamingOutput stream = new StreamingOutput()
+        {
+            @Override
+            public void write(OutputStream os) throws IOException, WebApplicationException {
+                IOUtil.copy(body, os);
+                os.flush();
+                IOUtil.closeSilent(body);
+            }
+        };
+
+        ResponseBuilder builder = Response.ok().entity(stream).type(MediaType.APPLICATION_JSON);
+        if (hasNext)
+        {
+            String next = "/api/blob/" + token + "?pagesize=" + pageSize + "&cursor="
+                + encodeCursor(entries.get(entries.size() - 1).getKey());
+            builder.header("Link", "<" + next + ">; rel=\"next\"");
+        }
+
+        return builder.build();
+    }
+
+    private Response conflict(String token, String filename) throws IOException {
+        String existingETag = getExistingETag(token, filename);
+        ResponseBuilder builder = Response.status(409);
+        if (existingETag != null)
+        {
+            builder.header("ETag", "\"" + existingETag + "\"");
+        }
+
+        return builder.build();
+    }
+
+    /**
+     * Returns the current ETag of the given blob, or <code>null</code> if it doesn't exist.
+     */
+    private String getExistingETag(String token, String filename) throws IOException {
+        Blob existingBlob = blobStore.getBlob(userApp, token, filename);
+        if (existingBlob == null)
+        {
+            return null;
+        }
+
+        existingBlob.close();
+        return existingBlob.getETag();
+    }
+
+    private static String encodeCursor(String key) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(key.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String decodeCursor(String cursor) {
+        try
+        {
+            return new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+        }
+        catch (IllegalArgumentException ex)
+        {
+            return null;
+        }
+    }
+
     private Set<String> getApplicationTokens() {
         return this.applicationTokens;
     }
@@ -190,12 +353,36 @@ public class UserStorageComponent
         return this.applicationTokens.contains(appToken);
     }
 
-    private File getUserFile(String user, String applicationToken, String key, String extension) {
-        return new File(getApplicationFolder(user, applicationToken), key + StringUtil.safe(extension));
-    }
+    private IBlobStore createBlobStore(Dictionary<String, Object> properties) throws IOException {
+        String store = (String)properties.get(STORE);
+        if (store == null)
+        {
+            store = database != null ? STORE_JDBC : STORE_FILE;
+        }
+
+        switch (store)
+        {
+            case STORE_FILE:
+                Object folder = properties.get(FOLDER);
+                return new FileBlobStore(folder == null ? applicationFolder : new File(folder.toString()));
+
+            case STORE_MEMORY:
+                return new MemoryBlobStore();
+
+            case STORE_JDBC:
+                if (database == null)
+                {
+                    throw new IOException("No database configured for the " + STORE_JDBC + " store");
+                }
 
-    private File getApplicationFolder(String user, String applicationFolder) {
-        return new File(new File(this.applicationFolder, user), applicationFolder);
+                Object poolSize = properties.get(POOL_SIZE);
+                String url = JdbcBlobStore.getURL(database, Boolean.parseBoolean(create));
+                return new JdbcBlobStore(new ConnectionPool(url, user, password,
+                    poolSize == null ? DEFAULT_POOL_SIZE : Integer.parseInt(poolSize.toString()), POOL_TIMEOUT));
+
+            default:
+                throw new IOException("Unknown store: " + store);
+        }
     }
 
     private String getEtag(HttpHeaders headers, String headerName) {
@@ -222,13 +409,20 @@ public class UserStorageComponent
         user = (String)properties.get("user");
         password = (String)properties.get("password");
         create = (String)properties.get("create");
+        blobStore = createBlobStore(properties);
         this.getApplicationTokens().add("pDKTqBfDuNxlAKydhEwxBZPxa4q");
-        System.out.println("USS service started");
+        System.out.println("USS service started with " + blobStore);
 
     }
 
     @Deactivate
-    public void deactivate(ComponentContext context) {
+    public void deactivate(ComponentContext context) throws IOException {
+        if (blobStore != null)
+        {
+            blobStore.close();
+            blobStore = null;
+        }
+
         System.out.println("USS service stopped");
     }
 
@@ -0,0 +1,134 @@
+/**
+ * Copyright (C) 2016, 1C
+ */
+package org.eclipse.userstorage.service.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.eclipse.userstorage.service.store.ConnectionPool;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author admin
+ *
+ */
+public class ConnectionPoolTests {
+
+    private DerbyFixture derbyFixture;
+
+    private ConnectionPool pool;
+
+    @Before
+    public void setUp() {
+        derbyFixture = new DerbyFixture();
+        pool = derbyFixture.createPool();
+    }
+
+    @After
+    public void tearDown() {
+        pool.close();
+        derbyFixture.dispose();
+    }
+
+    @Test
+    public void testReuse() throws Exception {
+        Connection connection = pool.acquire();
+        pool.release(connection, false);
+
+        assertSame(connection, pool.acquire());
+    }
+
+    @Test
+    public void testBrokenConnection() throws Exception {
+        Connection connection = pool.acquire();
+        pool.release(connection, true);
+
+        assertTrue(connection.isClosed());
+        assertNotSame(connection, pool.acquire());
+    }
+
+    @Test
+    public void testClosedConnection() throws Exception {
+        Connection connection = pool.acquire();
+        connection.close();
+        pool.release(connection, false);
+
+        assertNotSame(connection, pool.acquire());
+    }
+
+    @Test
+    public void testTimeout() throws Exception {
+        List<Connection> connections = new ArrayList<>();
+        for (int i = 0; i < DerbyFixture.POOL_SIZE; i++)
+        {
+            connections.add(pool.acquire());
+        }
+
+        long start = System.currentTimeMillis();
+
+        try
+        {
+            pool.acquire();
+            fail("SQLException expected");
+        }
+        catch (SQLException expected)
+        {
+            assertTrue(System.currentTimeMillis() - start >= DerbyFixture.POOL_TIMEOUT);
+        }
+
+        // A released connection makes room for the next one.
+        pool.release(connections.get(0), false);
+        assertSame(connections.get(0), pool.acquire());
+    }
+
+    @Test
+    public void testBrokenConnectionReleasesPermit() throws Exception {
+        for (int i = 0; i < 2 * DerbyFixture.POOL_SIZE; i++)
+        {
+            pool.release(pool.acquire(), true);
+        }
+
+        List<Connection> connections = new ArrayList<>();
+        for (int i = 0; i < DerbyFixture.POOL_SIZE; i++)
+        {
+            connections.add(pool.acquire());
+        }
+
+        assertEquals(DerbyFixture.POOL_SIZE, connections.size());
+    }
+
+    @Test
+    public void testClose() throws Exception {
+        Connection idleConnection = pool.acquire();
+        Connection busyConnection = pool.acquire();
+        pool.release(idleConnection, false);
+
+        pool.close();
+        assertTrue(idleConnection.isClosed());
+
+        // A connection that is released after the pool has been closed is closed, too.
+        pool.release(busyConnection, false);
+        assertTrue(busyConnection.isClosed());
+
+        try
+        {
+            pool.acquire();
+            fail("SQLException expected");
+        }
+        catch (SQLException expected)
+        {
+            //$FALL-THROUGH$
+        }
+    }
+}
@@ -0,0 +1,60 @@
+/**
+ * Copyright (C) 2016, 1C
+ */
+package org.eclipse.userstorage.service.tests;
+
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.userstorage.service.store.ConnectionPool;
+import org.eclipse.userstorage.service.store.JdbcBlobStore;
+
+/**
+ * An embedded Derby database in memory, so that the tests neither need a database server nor leave files behind.
+ * Every fixture uses a new database.
+ *
+ * @author admin
+ *
+ */
+public final class DerbyFixture {
+
+    public static final int POOL_SIZE = 4;
+
+    public static final long POOL_TIMEOUT = 500;
+
+    private static final AtomicInteger COUNTER = new AtomicInteger();
+
+    private final String database = "memory:uss-test-" + COUNTER.incrementAndGet();
+
+    public DerbyFixture() {
+        try
+        {
+            // Registers the embedded driver with the DriverManager.
+            Class.forName("org.apache.derby.jdbc.EmbeddedDriver");
+        }
+        catch (ClassNotFoundException ex)
+        {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    public String getURL() {
+        return JdbcBlobStore.getURL(database, true);
+    }
+
+    public ConnectionPool createPool() {
+        return new ConnectionPool(getURL(), null, null, POOL_SIZE, POOL_TIMEOUT);
+    }
+
+    public void dispose() {
+        try
+        {
+            DriverManager.getConnection(JdbcBlobStore.getURL(database, false) + ";drop=true");
+        }
+        catch (SQLException ex)
+        {
+            // Derby reports a successful drop with SQL state 08006.
+        }
+    }
+}
@@ -0,0 +1,211 @@
+/**
+ * Copyright (C) 2016, 1C
+ */
+package org.eclipse.userstorage.service.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.userstorage.internal.util.IOUtil;
+import org.eclipse.userstorage.service.IBlobStore.Blob;
+import org.eclipse.userstorage.service.IBlobStore.Entry;
+import org.eclipse.userstorage.service.store.FileBlobStore;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author admin
+ *
+ */
+public class FileBlobStoreTests {
+
+    private static final String USER = "eclipse_test_123456789";
+
+    private static final String APPLICATION_TOKEN = "pDKTqBfDuNxlAKydhEwxBZPxa4q";
+
+    private static final String KEY = "test_blob";
+
+    private File folder;
+
+    private FileBlobStore store;
+
+    @Before
+    public void setUp() throws Exception {
+        folder = Files.createTempDirectory("uss-file-store").toFile();
+        store = new FileBlobStore(folder);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        store.close();
+        IOUtil.delete(folder);
+    }
+
+    @Test
+    public void testUpdateWhileReading() throws Exception {
+        setBlob(KEY, "value1", "etag1", null);
+        Blob blob = store.getBlob(USER, APPLICATION_TOKEN, KEY);
+
+        // The blob keeps the contents of its own version, whatever happens after it has been retrieved.
+        assertTrue(setBlob(KEY, "value2", "etag2", "etag1"));
+        assertEquals("etag1", blob.getETag());
+        assertEquals("value1", read(blob));
+
+        assertEquals("value2", read(store.getBlob(USER, APPLICATION_TOKEN, KEY)));
+    }
+
+    @Test
+    public void testDeleteWhileReading() throws Exception {
+        setBlob(KEY, "value1", "etag1", null);
+        Blob blob = store.getBlob(USER, APPLICATION_TOKEN, KEY);
+
+        assertTrue(store.deleteBlob(USER, APPLICATION_TOKEN, KEY, "etag1"));
+        assertEquals("value1", read(blob));
+        assertNull(store.getBlob(USER, APPLICATION_TOKEN, KEY));
+    }
+
+    @Test
+    public void testGetEntries() throws Exception {
+        setBlob("key1", "value1", "etag1", null);
+        setBlob("key2", "value2", "etag2", null);
+
+        // The first listing scans the folder; later changes update the index.
+        assertEquals(Arrays.asList("key1 -> etag1 6", "key2 -> etag2 6"), list(store));
+
+        setBlob("key0", "value0", "etag0", null);
+        setBlob("key1", "value11", "etag11", "etag1");
+        store.deleteBlob(USER, APPLICATION_TOKEN, "key2", null);
+        assertEquals(Arrays.asList("key0 -> etag0 6", "key1 -> etag11 7"), list(store));
+
+        List<Entry> entries = store.getEntries(USER, APPLICATION_TOKEN, "key0", 0, 10);
+        assertEquals(1, entries.size());
+        assertEquals("key1", entries.get(0).getKey());
+
+        // A failed write must not change the index.
+        setBlob("key1", "value12", "etag12", "etag1");
+        assertEquals(Arrays.asList("key0 -> etag0 6", "key1 -> etag11 7"), list(store));
+        assertEquals(scan(), list(store));
+    }
+
+    @Test
+    public void testConcurrentWritesAndDeletes() throws Exception {
+        // Scan the empty folder, so that all changes go through the index.
+        assertTrue(list(store).isEmpty());
+
+        int threads = 8;
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicInteger etags = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+
+        try
+        {
+            List<Future<?>> results = new ArrayList<>();
+            for (int i = 0; i < threads; i++)
+            {
+                results.add(executor.submit(new Callable<Void>()
+                {
+                    @Override
+                    public Void call() throws Exception {
+                        Random random = new Random();
+                        start.await();
+
+                        for (int j = 0; j < 500; j++)
+                        {
+                            String key = "key" + random.nextInt(4);
+                            String etag = null;
+
+                            Blob blob = store.getBlob(USER, APPLICATION_TOKEN, key);
+                            if (blob != null)
+                            {
+                                etag = blob.getETag();
+                                blob.close();
+                            }
+
+                            if (etag != null && random.nextInt(3) == 0)
+                            {
+                                store.deleteBlob(USER, APPLICATION_TOKEN, key, etag);
+                            }
+                            else
+                            {
+                                setBlob(key, "value" + j, "etag" + etags.incrementAndGet(), etag);
+                            }
+                        }
+
+                        return null;
+                    }
+                }));
+            }
+
+            start.countDown();
+            for (Future<?> result : results)
+            {
+                result.get();
+            }
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+
+        // The index must list exactly what a new scan of the folder finds.
+        assertEquals(scan(), list(store));
+    }
+
+    private List<String> scan() throws IOException {
+        FileBlobStore newStore = new FileBlobStore(folder);
+
+        try
+        {
+            return list(newStore);
+        }
+        finally
+        {
+            newStore.close();
+        }
+    }
+
+    private static List<String> list(FileBlobStore store) throws IOException {
+        List<String> result = new ArrayList<>();
+        for (Entry entry : store.getEntries(USER, APPLICATION_TOKEN, null, 0, 100))
+        {
+            result.add(entry + " " + entry.getSize());
+        }
+
+        return result;
+    }
+
+    private boolean setBlob(String key, String value, String etag, String expectedETag) throws IOException {
+        InputStream contents = new ByteArrayInputStream(value.getBytes(StandardCharsets.UTF_8));
+        return store.setBlob(USER, APPLICATION_TOKEN, key, contents, etag, expectedETag);
+    }
+
+    private static String read(Blob blob) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream contents = blob.getContents())
+        {
+            IOUtil.copy(contents, out);
+        }
+
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,247 @@
+/**
+ * Copyright (C) 2016, 1C
+ */
+package org.eclipse.userstorage.service.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.eclipse.userstorage.internal.util.IOUtil;
+import org.eclipse.userstorage.service.IBlobStore.Blob;
+import org.eclipse.userstorage.service.IBlobStore.Entry;
+import org.eclipse.userstorage.service.store.JdbcBlobStore;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author admin
+ *
+ */
+public class JdbcBlobStoreTests {
+
+    private static final String USER = "eclipse_test_123456789";
+
+    private static final String APPLICATION_TOKEN = "pDKTqBfDuNxlAKydhEwxBZPxa4q";
+
+    private static final String KEY = "test_blob";
+
+    private DerbyFixture derbyFixture;
+
+    private JdbcBlobStore store;
+
+    @Before
+    public void setUp() throws Exception {
+        derbyFixture = new DerbyFixture();
+        store = new JdbcBlobStore(derbyFixture.createPool());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        store.close();
+        derbyFixture.dispose();
+    }
+
+    @Test
+    public void testCreate() throws Exception {
+        assertNull(store.getBlob(USER, APPLICATION_TOKEN, KEY));
+        assertTrue(setBlob(KEY, "value1", "etag1", null));
+
+        Blob blob = store.getBlob(USER, APPLICATION_TOKEN, KEY);
+        assertEquals("etag1", blob.getETag());
+        assertEquals("value1", read(blob));
+
+        // Without an expected ETag an existing blob is not replaced.
+        assertFalse(setBlob(KEY, "value2", "etag2", null));
+        assertEquals("value1", read(store.getBlob(USER, APPLICATION_TOKEN, KEY)));
+    }
+
+    @Test
+    public void testUpdate() throws Exception {
+        setBlob(KEY, "value1", "etag1", null);
+
+        assertTrue(setBlob(KEY, "value2", "etag2", "etag1"));
+        assertEquals("etag2", store.getBlob(USER, APPLICATION_TOKEN, KEY).getETag());
+
+        // The second writer that has read the first version must not overwrite the second version.
+        assertFalse(setBlob(KEY, "value3", "etag3", "etag1"));
+        Blob blob = store.getBlob(USER, APPLICATION_TOKEN, KEY);
+        assertEquals("etag2", blob.getETag());
+        assertEquals("value2", read(blob));
+
+        assertFalse(setBlob("missing_blob", "value", "etag", "etag1"));
+        assertNull(store.getBlob(USER, APPLICATION_TOKEN, "missing_blob"));
+    }
+
+    @Test
+    public void testDelete() throws Exception {
+        setBlob(KEY, "value1", "etag1", null);
+
+        assertFalse(store.deleteBlob(USER, APPLICATION_TOKEN, KEY, "etag0"));
+        assertEquals("etag1", store.getBlob(USER, APPLICATION_TOKEN, KEY).getETag());
+
+        assertTrue(store.deleteBlob(USER, APPLICATION_TOKEN, KEY, "etag1"));
+        assertNull(store.getBlob(USER, APPLICATION_TOKEN, KEY));
+        assertFalse(store.deleteBlob(USER, APPLICATION_TOKEN, KEY, null));
+
+        setBlob(KEY, "value2", "etag2", null);
+        assertTrue(store.deleteBlob(USER, APPLICATION_TOKEN, KEY, null));
+    }
+
+    @Test
+    public void testConcurrentUpdates() throws Exception {
+        setBlob(KEY, "value", "etag", null);
+
+        int writers = 2 * DerbyFixture.POOL_SIZE;
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(writers);
+
+        try
+        {
+            List<Future<Boolean>> results = new ArrayList<>();
+            for (int i = 0; i < writers; i++)
+            {
+                String value = "value" + i;
+                results.add(executor.submit(new Callable<Boolean>()
+                {
+                    @Override
+                    public Boolean call() throws Exception {
+                        start.await();
+                        return setBlob(KEY, value, value, "etag");
+                    }
+                }));
+            }
+
+            start.countDown();
+
+            // All writers have read the same version, so exactly one of them may replace it.
+            String winner = null;
+            for (int i = 0; i < writers; i++)
+            {
+                if (results.get(i).get())
+                {
+                    assertNull(winner);
+                    winner = "value" + i;
+                }
+            }
+
+            Blob blob = store.getBlob(USER, APPLICATION_TOKEN, KEY);
+            assertEquals(winner, blob.getETag());
+            assertEquals(winner, read(blob));
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testConcurrentCreates() throws Exception {
+        int writers = 2 * DerbyFixture.POOL_SIZE;
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(writers);
+
+        try
+        {
+            List<Future<Boolean>> results = new ArrayList<>();
+            for (int i = 0; i < writers; i++)
+            {
+                String value = "value" + i;
+                results.add(executor.submit(new Callable<Boolean>()
+                {
+                    @Override
+                    public Boolean call() throws Exception {
+                        start.await();
+                        return setBlob(KEY, value, value, null);
+                    }
+                }));
+            }
+
+            start.countDown();
+
+            int created = 0;
+            for (Future<Boolean> result : results)
+            {
+                if (result.get())
+                {
+                    ++created;
+                }
+            }
+
+            assertEquals(1, created);
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testGetEntries() throws Exception {
+        for (int i = 0; i < 5; i++)
+        {
+            setBlob("key" + i, "value" + i, "etag" + i, null);
+        }
+
+        setBlob(KEY, "value", "etag", null);
+
+        List<Entry> entries = store.getEntries(USER, APPLICATION_TOKEN, null, 0, 2);
+        assertEquals(2, entries.size());
+        assertEquals("key0", entries.get(0).getKey());
+        assertEquals("key1", entries.get(1).getKey());
+        assertEquals("value0".length(), entries.get(0).getSize());
+
+        // The next page starts after the last key, whether it's reached by a cursor or by skipping.
+        entries = store.getEntries(USER, APPLICATION_TOKEN, "key1", 0, 2);
+        assertEquals("key2", entries.get(0).getKey());
+        assertEquals("key3", entries.get(1).getKey());
+        assertEquals(entries.get(0).getKey(), store.getEntries(USER, APPLICATION_TOKEN, null, 2, 2).get(0).getKey());
+
+        entries = store.getEntries(USER, APPLICATION_TOKEN, "key3", 0, 10);
+        assertEquals(2, entries.size());
+        assertEquals("key4", entries.get(0).getKey());
+        assertEquals(KEY, entries.get(1).getKey());
+
+        assertTrue(store.getEntries(USER, "otherApplicationToken", null, 0, 10).isEmpty());
+    }
+
+    @Test
+    public void testReopen() throws Exception {
+        setBlob(KEY, "value", "etag", null);
+        store.close();
+
+        // The table of the existing database is reused.
+        store = new JdbcBlobStore(derbyFixture.createPool());
+        assertEquals("value", read(store.getBlob(USER, APPLICATION_TOKEN, KEY)));
+    }
+
+    private boolean setBlob(String key, String value, String etag, String expectedETag) throws IOException {
+        InputStream contents = new ByteArrayInputStream(value.getBytes(StandardCharsets.UTF_8));
+        return store.setBlob(USER, APPLICATION_TOKEN, key, contents, etag, expectedETag);
+    }
+
+    private static String read(Blob blob) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream contents = blob.getContents())
+        {
+            IOUtil.copy(contents, out);
+        }
+
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
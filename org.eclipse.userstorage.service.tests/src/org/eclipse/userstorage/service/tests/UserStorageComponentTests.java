@@ -0,0 +1,223 @@
+/**
+ * Copyright (C) 2016, 1C
+ */
+package org.eclipse.userstorage.service.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+
+import org.eclipse.userstorage.internal.util.IOUtil;
+import org.eclipse.userstorage.internal.util.JSONUtil;
+import org.eclipse.userstorage.service.host.UserStorageComponent;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+import org.osgi.service.component.ComponentContext;
+
+/**
+ * Tests the listing endpoint of the {@link UserStorageComponent} against each of its stores, without an HTTP server.
+ *
+ * @author admin
+ *
+ */
+@RunWith(Parameterized.class)
+public class UserStorageComponentTests {
+
+    private static final String APPLICATION_TOKEN = "pDKTqBfDuNxlAKydhEwxBZPxa4q";
+
+    private static final int BLOBS = 5;
+
+    private static final int PAGE_SIZE = 2;
+
+    private final HttpHeaders headers = (HttpHeaders)Proxy.newProxyInstance(getClass().getClassLoader(),
+        new Class<?>[] { HttpHeaders.class }, (proxy, method, args) -> null);
+
+    private final String store;
+
+    private File folder;
+
+    private DerbyFixture derbyFixture;
+
+    private UserStorageComponent component;
+
+    private ComponentContext context;
+
+    public UserStorageComponentTests(String store) {
+        this.store = store;
+    }
+
+    @Parameters(name = "{0}")
+    public static List<Object[]> getStores() {
+        return Arrays.asList(new Object[] { UserStorageComponent.STORE_FILE },
+            new Object[] { UserStorageComponent.STORE_JDBC }, new Object[] { UserStorageComponent.STORE_MEMORY });
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        Dictionary<String, Object> properties = new Hashtable<>();
+        properties.put(UserStorageComponent.STORE, store);
+
+        if (UserStorageComponent.STORE_FILE.equals(store))
+        {
+            folder = Files.createTempDirectory("uss-file-store").toFile();
+            properties.put(UserStorageComponent.FOLDER, folder.getPath());
+        }
+        else if (UserStorageComponent.STORE_JDBC.equals(store))
+        {
+            derbyFixture = new DerbyFixture();
+            properties.put("database", derbyFixture.getURL());
+        }
+
+        context = (ComponentContext)Proxy.newProxyInstance(getClass().getClassLoader(),
+            new Class<?>[] { ComponentContext.class },
+            (proxy, method, args) -> "getProperties".equals(method.getName()) ? properties : null);
+
+        component = new UserStorageComponent();
+        component.activate(context);
+
+        for (int i = 0; i < BLOBS; i++)
+        {
+            Response response = component.updateBlob(APPLICATION_TOKEN, "key" + i,
+                JSONUtil.build(Collections.singletonMap("value", IOUtil.streamUTF("value" + i))), headers);
+            assertEquals(201, response.getStatus());
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        component.deactivate(context);
+
+        if (folder != null)
+        {
+            IOUtil.delete(folder);
+        }
+
+        if (derbyFixture != null)
+        {
+            derbyFixture.dispose();
+        }
+    }
+
+    @Test
+    public void testPages() throws Exception {
+        // Session.retrieveProperties() requests pages by "pagesize" and "page", starting at page 1.
+        List<String> keys = new ArrayList<>();
+        for (int page = 1;; page++)
+        {
+            Response response = component.getBlobs(APPLICATION_TOKEN, PAGE_SIZE, page, null);
+            assertEquals(200, response.getStatus());
+
+            List<Map<String, Object>> array = readArray(response);
+            if (array.isEmpty())
+            {
+                assertNull(getNextCursor(response));
+                break;
+            }
+
+            assertTrue(array.size() <= PAGE_SIZE);
+            for (Map<String, Object> properties : array)
+            {
+                // These are the properties that Session.retrieveProperties() reads.
+                assertEquals(APPLICATION_TOKEN, properties.get("application_token"));
+                assertNotNull(properties.get("etag"));
+                keys.add((String)properties.get("key"));
+            }
+        }
+
+        assertEquals(getKeys(), keys);
+    }
+
+    @Test
+    public void testCursor() throws Exception {
+        List<String> keys = new ArrayList<>();
+        Response response = component.getBlobs(APPLICATION_TOKEN, PAGE_SIZE, 1, null);
+
+        for (;;)
+        {
+            assertEquals(200, response.getStatus());
+            for (Map<String, Object> properties : readArray(response))
+            {
+                keys.add((String)properties.get("key"));
+            }
+
+            String cursor = getNextCursor(response);
+            if (cursor == null)
+            {
+                break;
+            }
+
+            // The cursor replaces the page, so a client that passes both gets the page after the cursor.
+            response = component.getBlobs(APPLICATION_TOKEN, PAGE_SIZE, 1, cursor);
+        }
+
+        assertEquals(getKeys(), keys);
+    }
+
+    @Test
+    public void testBadRequests() throws Exception {
+        assertEquals(400, component.getBlobs(APPLICATION_TOKEN, 0, 1, null).getStatus());
+        assertEquals(400, component.getBlobs(APPLICATION_TOKEN, 101, 1, null).getStatus());
+        assertEquals(400, component.getBlobs(APPLICATION_TOKEN, PAGE_SIZE, 0, null).getStatus());
+        assertEquals(400, component.getBlobs(APPLICATION_TOKEN, PAGE_SIZE, Integer.MAX_VALUE, null).getStatus());
+        assertEquals(400, component.getBlobs(APPLICATION_TOKEN, PAGE_SIZE, 1, "not a cursor!").getStatus());
+        assertEquals(400, component.getBlobs(APPLICATION_TOKEN, PAGE_SIZE, 1, "a").getStatus());
+
+        assertEquals(404, component.getBlobs("unknownApplicationToken", PAGE_SIZE, 1, null).getStatus());
+    }
+
+    private static List<String> getKeys() {
+        List<String> keys = new ArrayList<>();
+        for (int i = 0; i < BLOBS; i++)
+        {
+            keys.add("key" + i);
+        }
+
+        return keys;
+    }
+
+    private static List<Map<String, Object>> readArray(Response response) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ((StreamingOutput)response.getEntity()).write(out);
+        return JSONUtil.parse(new ByteArrayInputStream(out.toByteArray()), null);
+    }
+
+    /**
+     * Returns the cursor of the <code>next</code> link of the given response, or <code>null</code> if it's the last page.
+     */
+    private static String getNextCursor(Response response) {
+        Object link = response.getMetadata().getFirst("Link");
+        if (link == null)
+        {
+            return null;
+        }
+
+        String value = link.toString();
+        assertTrue(value, value.endsWith("; rel=\"next\""));
+
+        int start = value.indexOf("cursor=") + "cursor=".length();
+        return value.substring(start, value.indexOf('>', start));
+    }
+}
@@ -0,0 +1,131 @@
+/**
+ * Copyright (C) 2016, 1C
+ */
+package org.eclipse.userstorage.service;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+/**
+ * Stores the contents and the ETags of the blobs of the user storage service per user, application token and key.
+ * <p>
+ * Implementations must be safe for concurrent use. A blob is always replaced as a whole, so that a reader never
+ * sees the contents of one version together with the ETag of another version.
+ *
+ * @author admin
+ *
+ */
+public interface IBlobStore extends AutoCloseable {
+
+    /**
+     * Returns the blob with the given key, or <code>null</code> if no such blob exists.
+     */
+    public Blob getBlob(String user, String applicationToken, String key) throws IOException;
+
+    /**
+     * Creates or replaces the blob with the given key if its current ETag is <code>expectedETag</code>,
+     * or creates it if <code>expectedETag</code> is <code>null</code> and no such blob exists.
+     * The check and the write are atomic, so that concurrent writers can't overwrite each other's changes.
+     * The contents are read to their end but not closed.
+     *
+     * @return <code>true</code> if the blob has been written, <code>false</code> if its ETag didn't match.
+     */
+    public boolean setBlob(String user, String applicationToken, String key, InputStream contents, String etag,
+        String expectedETag)
+        throws IOException;
+
+    /**
+     * Deletes the blob with the given key if its current ETag is <code>expectedETag</code>,
+     * or regardless of its ETag if <code>expectedETag</code> is <code>null</code>.
+     *
+     * @return <code>true</code> if the blob has been deleted, <code>false</code> if it didn't exist or its ETag didn't match.
+     */
+    public boolean deleteBlob(String user, String applicationToken, String key, String expectedETag)
+        throws IOException;
+
+    /**
+     * Returns at most <code>count</code> entries of the given application, sorted by their keys.
+     * The entries start after the given key, or at the first key if <code>afterKey</code> is <code>null</code>,
+     * and skip the first <code>skip</code> of the remaining entries.
+     * <p>
+     * Seeking to <code>afterKey</code> must not depend on the number of preceding keys, so that cursor-based paging
+     * costs the same for every page. Skipping is only needed for page-based paging.
+     */
+    public List<Entry> getEntries(String user, String applicationToken, String afterKey, int skip, int count)
+        throws IOException;
+
+    /**
+     * Releases the resources of this store, e.g., pooled database connections.
+     */
+    @Override
+    public void close() throws IOException;
+
+    /**
+     * The ETag and the contents of one version of a blob.
+     * <p>
+     * The contents may be an open stream that can be read only once. A blob whose contents are not read
+     * must be closed, so that the stream is released.
+     *
+     * @author admin
+     *
+     */
+    public interface Blob
+        extends Closeable {
+
+        public String getETag();
+
+        public InputStream getContents() throws IOException;
+
+        @Override
+        public default void close() throws IOException {
+        }
+    }
+
+    /**
+     * The key, the ETag, the size in bytes and the modification time of a blob, as listed by
+     * {@link IBlobStore#getEntries(String, String, String, int, int) getEntries()}.
+     *
+     * @author admin
+     *
+     */
+    public static final class Entry {
+
+        private final String key;
+
+        private final String etag;
+
+        private final long size;
+
+        private final long modified;
+
+        public Entry(String key, String etag, long size, long modified) {
+            this.key = key;
+            this.etag = etag;
+            this.size = size;
+            this.modified = modified;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public String getETag() {
+            return etag;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getModified() {
+            return modified;
+        }
+
+        @Override
+        public String toString() {
+            return key + " -> " + etag;
+        }
+    }
+}
@@ -7,11 +7,13 @@ import java.io.IOException;
 import java.io.InputStream;
 
 import javax.ws.rs.DELETE;
+import javax.ws.rs.DefaultValue;
 import javax.ws.rs.GET;
 import javax.ws.rs.PUT;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.Context;
 import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.Response;
@@ -22,12 +24,22 @@ public interface IUserStorageService {
     @DELETE
     @Path("/{token}/{filename}")
     public Response deleteBlob(@PathParam("token") String token, @PathParam("filename") String filename,
-        @Context HttpHeaders headers);
-//
-//    public OutputStream retrieveBlob(BlobServiceModel blob) throws IOException;
-//
-//    public void getListBlobs();
-//
+        @Context HttpHeaders headers)
+        throws IOException;
+
+    /**
+     * Lists the blobs of an application as a JSON array of their properties, sorted by their keys.
+     * <p>
+     * A page is either selected by <code>page</code>, which costs more for later pages, or by the opaque <code>cursor</code>
+     * of the <code>Link</code> header with <code>rel="next"</code> of the previous page, which costs the same for every page.
+     */
+    @GET
+    @Produces("application/json")
+    @Path("/{token}")
+    public Response getBlobs(@PathParam("token") String token,
+        @QueryParam("pagesize") @DefaultValue("20") int pageSize, @QueryParam("page") @DefaultValue("1") int page,
+        @QueryParam("cursor") String cursor)
+        throws IOException;
 
     @PUT
     @Path("/{token}/{filename}")
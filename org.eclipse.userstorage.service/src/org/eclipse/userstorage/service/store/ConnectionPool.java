@@ -0,0 +1,132 @@
+/**
+ * Copyright (C) 2016, 1C
+ */
+package org.eclipse.userstorage.service.store;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A bounded pool of JDBC connections. At most <code>size</code> connections are open at any time;
+ * further callers of {@link #acquire()} wait until a connection is {@link #release(Connection, boolean) released}.
+ *
+ * @author admin
+ *
+ */
+public class ConnectionPool
+    implements AutoCloseable {
+
+    private final String url;
+
+    private final String user;
+
+    private final String password;
+
+    private final long timeoutMillis;
+
+    private final Semaphore permits;
+
+    private final BlockingQueue<Connection> idleConnections = new LinkedBlockingQueue<>();
+
+    private volatile boolean closed;
+
+    public ConnectionPool(String url, String user, String password, int size, long timeoutMillis) {
+        this.url = url;
+        this.user = user;
+        this.password = password;
+        this.timeoutMillis = timeoutMillis;
+        permits = new Semaphore(size, true);
+    }
+
+    public String getURL() {
+        return url;
+    }
+
+    public Connection acquire() throws SQLException {
+        try
+        {
+            if (!permits.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS))
+            {
+                throw new SQLException("Timeout while waiting for a connection to " + url);
+            }
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a connection to " + url, ex);
+        }
+
+        try
+        {
+            if (closed)
+            {
+                throw new SQLException("Connection pool is closed: " + url);
+            }
+
+            Connection connection = idleConnections.poll();
+            if (connection == null)
+            {
+                connection = DriverManager.getConnection(url, user, password);
+            }
+
+            return connection;
+        }
+        catch (SQLException | RuntimeException ex)
+        {
+            permits.release();
+            throw ex;
+        }
+    }
+
+    /**
+     * Returns the given connection to this pool. A broken connection, i.e., one that failed
+     * with an exception that may have left it in an undefined state, is closed instead.
+     */
+    public void release(Connection connection, boolean broken) {
+        try
+        {
+            if (broken || closed || connection.isClosed())
+            {
+                closeSilent(connection);
+            }
+            else
+            {
+                idleConnections.offer(connection);
+            }
+        }
+        catch (SQLException ex)
+        {
+            closeSilent(connection);
+        }
+        finally
+        {
+            permits.release();
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+
+        for (Connection connection; (connection = idleConnections.poll()) != null;)
+        {
+            closeSilent(connection);
+        }
+    }
+
+    private static void closeSilent(Connection connection) {
+        try
+        {
+            connection.close();
+        }
+        catch (SQLException ex)
+        {
+            //$FALL-THROUGH$
+        }
+    }
+}
@@ -0,0 +1,282 @@
+/**
+ * Copyright (C) 2016, 1C
+ */
+package org.eclipse.userstorage.service.store;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Consumer;
+
+import org.eclipse.userstorage.service.IBlobStore;
+import org.eclipse.userstorage.service.IBlobStore.Entry;
+
+/**
+ * Stores each blob in a <code>key.blob</code> file and its ETag in a <code>key.etag</code> file
+ * under <code>folder/user/applicationToken</code>, i.e., in the layout of the test server.
+ * <p>
+ * The first listing of an application scans its folder once into a {@link KeyIndex};
+ * later changes update that index, so that listings don't touch the file system.
+ * <p>
+ * New contents are received into a temporary file first, which is moved into place once the expected ETag has been checked.
+ *
+ * @author admin
+ *
+ */
+public class FileBlobStore
+    implements IBlobStore {
+
+    public static final String BLOB_EXTENSION = ".blob";
+
+    public static final String ETAG_EXTENSION = ".etag";
+
+    private static final String TEMP_EXTENSION = ".tmp";
+
+    private static final int LOCK_STRIPES = 64;
+
+    private final File folder;
+
+    private final ConcurrentMap<String, KeyIndex> indexes = new ConcurrentHashMap<>();
+
+    /**
+     * Serializes the check of the ETag and the write of a blob per key, without serializing the writes of different keys.
+     */
+    private final Object[] locks = new Object[LOCK_STRIPES];
+
+    public FileBlobStore(File folder) {
+        this.folder = folder;
+
+        for (int i = 0; i < locks.length; i++)
+        {
+            locks[i] = new Object();
+        }
+    }
+
+    public File getFolder() {
+        return folder;
+    }
+
+    @Override
+    public Blob getBlob(String user, String applicationToken, String key) throws IOException {
+        File etagFile = getUserFile(user, applicationToken, key, ETAG_EXTENSION);
+        File blobFile = getUserFile(user, applicationToken, key, BLOB_EXTENSION);
+
+        // Open the contents together with reading the ETag, so that both belong to the same version.
+        // A later write moves a new file into place and a later delete unlinks it, but the open stream keeps reading this one.
+        synchronized (getLock(user, applicationToken, key))
+        {
+            String etag = readETag(etagFile);
+            if (etag == null)
+            {
+                return null;
+            }
+
+            try
+            {
+                return new FileBlob(etag, new FileInputStream(blobFile));
+            }
+            catch (FileNotFoundException ex)
+            {
+                return null;
+            }
+        }
+    }
+
+    @Override
+    public boolean setBlob(String user, String applicationToken, String key, InputStream contents, String etag,
+        String expectedETag)
+        throws IOException {
+        File blobFile = getUserFile(user, applicationToken, key, BLOB_EXTENSION);
+        File etagFile = getUserFile(user, applicationToken, key, ETAG_EXTENSION);
+        Files.createDirectories(blobFile.getParentFile().toPath());
+
+        // Receive the contents before the lock is taken, so that slow clients don't block other writers of the key.
+        Path tempFile = Files.createTempFile(blobFile.getParentFile().toPath(), key, TEMP_EXTENSION);
+
+        try
+        {
+            Files.copy(contents, tempFile, StandardCopyOption.REPLACE_EXISTING);
+
+            synchronized (getLock(user, applicationToken, key))
+            {
+                if (!Objects.equals(readETag(etagFile), expectedETag))
+                {
+                    return false;
+                }
+
+                Files.move(tempFile, blobFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                Files.write(etagFile.toPath(), etag.getBytes(StandardCharsets.UTF_8));
+
+                // The index is updated under the lock, too, so that it ends up with the entry of the last writer of the key.
+                Entry entry = new Entry(key, etag, blobFile.length(), blobFile.lastModified());
+                updateIndex(user, applicationToken, index -> index.put(entry));
+            }
+        }
+        finally
+        {
+            Files.deleteIfExists(tempFile);
+        }
+
+        return true;
+    }
+
+    @Override
+    public boolean deleteBlob(String user, String applicationToken, String key, String expectedETag)
+        throws IOException {
+        File etagFile = getUserFile(user, applicationToken, key, ETAG_EXTENSION);
+
+        synchronized (getLock(user, applicationToken, key))
+        {
+            String etag = readETag(etagFile);
+            if (etag == null || expectedETag != null && !expectedETag.equals(etag))
+            {
+                return false;
+            }
+
+            Files.deleteIfExists(getUserFile(user, applicationToken, key, BLOB_EXTENSION).toPath());
+            Files.deleteIfExists(etagFile.toPath());
+
+            updateIndex(user, applicationToken, index -> index.remove(key));
+        }
+
+        return true;
+    }
+
+    @Override
+    public List<Entry> getEntries(String user, String applicationToken, String afterKey, int skip, int count)
+        throws IOException {
+        try
+        {
+            return indexes.computeIfAbsent(getPath(user, applicationToken), path -> scan(user, applicationToken))
+                .getEntries(afterKey, skip, count);
+        }
+        catch (UncheckedIOException ex)
+        {
+            throw ex.getCause();
+        }
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public String toString() {
+        return "FileBlobStore[" + folder + "]";
+    }
+
+    /**
+     * Applies the given change to the index of the given application, if it has been scanned already.
+     * Waits for a concurrent scan of the folder, which may have missed the change.
+     */
+    private void updateIndex(String user, String applicationToken, Consumer<KeyIndex> change) {
+        indexes.computeIfPresent(getPath(user, applicationToken), (path, index) -> {
+            change.accept(index);
+            return index;
+        });
+    }
+
+    private KeyIndex scan(String user, String applicationToken) throws UncheckedIOException {
+        KeyIndex index = new KeyIndex();
+
+        File[] etagFiles =
+            getApplicationFolder(user, applicationToken).listFiles((dir, name) -> name.endsWith(ETAG_EXTENSION));
+        if (etagFiles != null)
+        {
+            for (File etagFile : etagFiles)
+            {
+                String name = etagFile.getName();
+                String key = name.substring(0, name.length() - ETAG_EXTENSION.length());
+                File blobFile = getUserFile(user, applicationToken, key, BLOB_EXTENSION);
+
+                try
+                {
+                    String etag = new String(Files.readAllBytes(etagFile.toPath()), StandardCharsets.UTF_8);
+                    index.put(new Entry(key, etag, blobFile.length(), blobFile.lastModified()));
+                }
+                catch (NoSuchFileException ex)
+                {
+                    // The blob has been deleted concurrently.
+                }
+                catch (IOException ex)
+                {
+                    throw new UncheckedIOException(ex);
+                }
+            }
+        }
+
+        return index;
+    }
+
+    private Object getLock(String user, String applicationToken, String key) {
+        int hash = (getPath(user, applicationToken) + "/" + key).hashCode();
+        return locks[(hash ^ hash >>> 16) & LOCK_STRIPES - 1];
+    }
+
+    private static String readETag(File etagFile) throws IOException {
+        try
+        {
+            return new String(Files.readAllBytes(etagFile.toPath()), StandardCharsets.UTF_8);
+        }
+        catch (NoSuchFileException ex)
+        {
+            return null;
+        }
+    }
+
+    private static String getPath(String user, String applicationToken) {
+        return user + "/" + applicationToken;
+    }
+
+    private File getUserFile(String user, String applicationToken, String key, String extension) {
+        return new File(getApplicationFolder(user, applicationToken), key + extension);
+    }
+
+    private File getApplicationFolder(String user, String applicationToken) {
+        return new File(new File(folder, user), applicationToken);
+    }
+
+    /**
+     * @author admin
+     *
+     */
+    private static final class FileBlob
+        implements Blob {
+
+        private final String etag;
+
+        private final InputStream contents;
+
+        public FileBlob(String etag, InputStream contents) {
+            this.etag = etag;
+            this.contents = contents;
+        }
+
+        @Override
+        public String getETag() {
+            return etag;
+        }
+
+        @Override
+        public InputStream getContents() {
+            return contents;
+        }
+
+        @Override
+        public void close() throws IOException {
+            contents.close();
+        }
+    }
+}
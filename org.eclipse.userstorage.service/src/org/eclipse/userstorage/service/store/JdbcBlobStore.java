@@ -0,0 +1,342 @@
+/**
+ * Copyright (C) 2016, 1C
+ */
+package org.eclipse.userstorage.service.store;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.eclipse.userstorage.service.IBlobStore;
+import org.eclipse.userstorage.service.IBlobStore.Entry;
+
+/**
+ * Stores the blobs in one table of a JDBC database, by default an embedded Derby database.
+ * The connections are taken from a {@link ConnectionPool}, so that concurrent requests don't
+ * pay for opening a connection and the database isn't flooded with more connections than it can serve.
+ *
+ * @author admin
+ *
+ */
+public class JdbcBlobStore
+    implements IBlobStore {
+
+    public static final String TABLE = "USS_BLOBS";
+
+    private static final String DERBY_PREFIX = "jdbc:derby:";
+
+    private static final String DERBY_DRIVER = "org.apache.derby.jdbc.EmbeddedDriver";
+
+    private static final String SELECT =
+        "SELECT ETAG, CONTENTS FROM " + TABLE + " WHERE USER_NAME = ? AND APPLICATION_TOKEN = ? AND BLOB_KEY = ?";
+
+    /**
+     * Checks the expected ETag in the same statement, so that no concurrent update can slip in between.
+     */
+    private static final String UPDATE = "UPDATE " + TABLE
+        + " SET ETAG = ?, CONTENTS = ?, CONTENTS_SIZE = ?, MODIFIED = ? WHERE USER_NAME = ? AND APPLICATION_TOKEN = ? AND BLOB_KEY = ? AND ETAG = ?";
+
+    private static final String INSERT = "INSERT INTO " + TABLE
+        + " (ETAG, CONTENTS, CONTENTS_SIZE, MODIFIED, USER_NAME, APPLICATION_TOKEN, BLOB_KEY) VALUES (?, ?, ?, ?, ?, ?, ?)";
+
+    /**
+     * Seeks in the primary key index, so that the cost of a page after a cursor doesn't depend on the preceding keys.
+     */
+    private static final String LIST = "SELECT BLOB_KEY, ETAG, CONTENTS_SIZE, MODIFIED FROM " + TABLE
+        + " WHERE USER_NAME = ? AND APPLICATION_TOKEN = ? AND BLOB_KEY > ? ORDER BY BLOB_KEY OFFSET ? ROWS FETCH NEXT ? ROWS ONLY";
+
+    private static final String DELETE =
+        "DELETE FROM " + TABLE + " WHERE USER_NAME = ? AND APPLICATION_TOKEN = ? AND BLOB_KEY = ?";
+
+    private static final String DELETE_IF_MATCH = DELETE + " AND ETAG = ?";
+
+    private static final String CREATE = "CREATE TABLE " + TABLE + " (" //
+        + "USER_NAME VARCHAR(255) NOT NULL, " //
+        + "APPLICATION_TOKEN VARCHAR(255) NOT NULL, " //
+        + "BLOB_KEY VARCHAR(255) NOT NULL, " //
+        + "ETAG VARCHAR(64) NOT NULL, " //
+        + "CONTENTS BLOB NOT NULL, " //
+        + "CONTENTS_SIZE BIGINT NOT NULL, " //
+        + "MODIFIED BIGINT NOT NULL, " //
+        + "PRIMARY KEY (USER_NAME, APPLICATION_TOKEN, BLOB_KEY))";
+
+    private final ConnectionPool pool;
+
+    public JdbcBlobStore(ConnectionPool pool) throws IOException {
+        this.pool = pool;
+
+        if (pool.getURL().startsWith(DERBY_PREFIX))
+        {
+            try
+            {
+                // Registers the embedded driver with the DriverManager.
+                Class.forName(DERBY_DRIVER);
+            }
+            catch (ClassNotFoundException ex)
+            {
+                //$FALL-THROUGH$
+            }
+        }
+
+        createTable();
+    }
+
+    /**
+     * Returns the JDBC URL of the given database. A plain database name denotes an embedded Derby database
+     * that is created on demand if <code>create</code> is <code>true</code>.
+     */
+    public static String getURL(String database, boolean create) {
+        if (database.startsWith("jdbc:"))
+        {
+            return database;
+        }
+
+        return DERBY_PREFIX + database + (create ? ";create=true" : "");
+    }
+
+    @Override
+    public Blob getBlob(String user, String applicationToken, String key) throws IOException {
+        Connection connection = acquire();
+        boolean broken = true;
+
+        try (PreparedStatement statement = connection.prepareStatement(SELECT))
+        {
+            statement.setString(1, user);
+            statement.setString(2, applicationToken);
+            statement.setString(3, key);
+
+            Blob blob = null;
+            try (ResultSet resultSet = statement.executeQuery())
+            {
+                if (resultSet.next())
+                {
+                    blob = new JdbcBlob(resultSet.getString(1), resultSet.getBytes(2));
+                }
+            }
+
+            broken = false;
+            return blob;
+        }
+        catch (SQLException ex)
+        {
+            throw new IOException(ex);
+        }
+        finally
+        {
+            pool.release(connection, broken);
+        }
+    }
+
+    @Override
+    public boolean setBlob(String user, String applicationToken, String key, InputStream contents, String etag,
+        String expectedETag)
+        throws IOException {
+        // Read the contents before a connection is taken from the pool, so that slow clients don't hold connections.
+        byte[] bytes = MemoryBlobStore.readAll(contents);
+
+        Connection connection = acquire();
+        boolean broken = true;
+
+        try (PreparedStatement statement = connection.prepareStatement(expectedETag == null ? INSERT : UPDATE))
+        {
+            statement.setString(1, etag);
+            statement.setBytes(2, bytes);
+            statement.setLong(3, bytes.length);
+            statement.setLong(4, System.currentTimeMillis());
+            statement.setString(5, user);
+            statement.setString(6, applicationToken);
+            statement.setString(7, key);
+            if (expectedETag != null)
+            {
+                statement.setString(8, expectedETag);
+            }
+
+            boolean written;
+            try
+            {
+                written = statement.executeUpdate() != 0;
+            }
+            catch (SQLException ex)
+            {
+                if (!isDuplicateKey(ex))
+                {
+                    throw ex;
+                }
+
+                // A concurrent request has created the same blob first.
+                written = false;
+            }
+
+            broken = false;
+            return written;
+        }
+        catch (SQLException ex)
+        {
+            throw new IOException(ex);
+        }
+        finally
+        {
+            pool.release(connection, broken);
+        }
+    }
+
+    @Override
+    public boolean deleteBlob(String user, String applicationToken, String key, String expectedETag)
+        throws IOException {
+        Connection connection = acquire();
+        boolean broken = true;
+
+        try (PreparedStatement statement = connection.prepareStatement(expectedETag == null ? DELETE : DELETE_IF_MATCH))
+        {
+            statement.setString(1, user);
+            statement.setString(2, applicationToken);
+            statement.setString(3, key);
+            if (expectedETag != null)
+            {
+                statement.setString(4, expectedETag);
+            }
+
+            boolean deleted = statement.executeUpdate() != 0;
+            broken = false;
+            return deleted;
+        }
+        catch (SQLException ex)
+        {
+            throw new IOException(ex);
+        }
+        finally
+        {
+            pool.release(connection, broken);
+        }
+    }
+
+    @Override
+    public List<Entry> getEntries(String user, String applicationToken, String afterKey, int skip, int count)
+        throws IOException {
+        Connection connection = acquire();
+        boolean broken = true;
+
+        try (PreparedStatement statement = connection.prepareStatement(LIST))
+        {
+            statement.setString(1, user);
+            statement.setString(2, applicationToken);
+            statement.setString(3, afterKey == null ? "" : afterKey);
+            statement.setInt(4, skip);
+            statement.setInt(5, count);
+
+            List<Entry> result = new ArrayList<>();
+            try (ResultSet resultSet = statement.executeQuery())
+            {
+                while (resultSet.next())
+                {
+                    result.add(new Entry(resultSet.getString(1), resultSet.getString(2), resultSet.getLong(3),
+                        resultSet.getLong(4)));
+                }
+            }
+
+            broken = false;
+            return result;
+        }
+        catch (SQLException ex)
+        {
+            throw new IOException(ex);
+        }
+        finally
+        {
+            pool.release(connection, broken);
+        }
+    }
+
+    @Override
+    public void close() {
+        pool.close();
+    }
+
+    @Override
+    public String toString() {
+        return "JdbcBlobStore[" + pool.getURL() + "]";
+    }
+
+    private Connection acquire() throws IOException {
+        try
+        {
+            return pool.acquire();
+        }
+        catch (SQLException ex)
+        {
+            throw new IOException(ex);
+        }
+    }
+
+    private void createTable() throws IOException {
+        Connection connection = acquire();
+        boolean broken = true;
+
+        try
+        {
+            boolean exists;
+            try (ResultSet resultSet = connection.getMetaData().getTables(null, null, TABLE, null))
+            {
+                exists = resultSet.next();
+            }
+
+            if (!exists)
+            {
+                try (Statement statement = connection.createStatement())
+                {
+                    statement.executeUpdate(CREATE);
+                }
+            }
+
+            broken = false;
+        }
+        catch (SQLException ex)
+        {
+            throw new IOException(ex);
+        }
+        finally
+        {
+            pool.release(connection, broken);
+        }
+    }
+
+    private static boolean isDuplicateKey(SQLException ex) {
+        // SQL state class 23 is "integrity constraint violation".
+        String sqlState = ex.getSQLState();
+        return sqlState != null && sqlState.startsWith("23");
+    }
+
+    /**
+     * @author admin
+     *
+     */
+    private static final class JdbcBlob
+        implements Blob {
+
+        private final String etag;
+
+        private final byte[] contents;
+
+        public JdbcBlob(String etag, byte[] contents) {
+            this.etag = etag;
+            this.contents = contents;
+        }
+
+        @Override
+        public String getETag() {
+            return etag;
+        }
+
+        @Override
+        public InputStream getContents() {
+            return new ByteArrayInputStream(contents);
+        }
+    }
+}
@@ -0,0 +1,65 @@
+/**
+ * Copyright (C) 2016, 1C
+ */
+package org.eclipse.userstorage.service.store;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import org.eclipse.userstorage.service.IBlobStore.Entry;
+
+/**
+ * The sorted entries of the blobs of one application of one user.
+ * Seeking to a key costs O(log n), so that listing a page after a cursor doesn't depend on the number of preceding keys.
+ *
+ * @author admin
+ *
+ */
+public class KeyIndex {
+
+    private final ConcurrentSkipListMap<String, Entry> entries = new ConcurrentSkipListMap<>();
+
+    public KeyIndex() {
+    }
+
+    public void put(Entry entry) {
+        entries.put(entry.getKey(), entry);
+    }
+
+    public void remove(String key) {
+        entries.remove(key);
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public List<Entry> getEntries(String afterKey, int skip, int count) {
+        return getEntries(entries, afterKey, skip, count);
+    }
+
+    /**
+     * Returns at most <code>count</code> values of the given sorted map, starting after the given key
+     * and skipping the first <code>skip</code> of the remaining values.
+     */
+    public static <V> List<V> getEntries(NavigableMap<String, V> map, String afterKey, int skip, int count) {
+        NavigableMap<String, V> tail = afterKey == null ? map : map.tailMap(afterKey, false);
+        List<V> result = new ArrayList<>(Math.min(count, 100));
+
+        Iterator<V> it = tail.values().iterator();
+        for (int i = 0; i < skip && it.hasNext(); i++)
+        {
+            it.next();
+        }
+
+        while (result.size() < count && it.hasNext())
+        {
+            result.add(it.next());
+        }
+
+        return result;
+    }
+}
@@ -0,0 +1,163 @@
+/**
+ * Copyright (C) 2016, 1C
+ */
+package org.eclipse.userstorage.service.store;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import org.eclipse.userstorage.internal.util.IOUtil;
+import org.eclipse.userstorage.service.IBlobStore;
+import org.eclipse.userstorage.service.IBlobStore.Entry;
+
+/**
+ * Keeps the blobs in memory, sorted by their keys per user and application token.
+ * The blobs are lost when the service stops.
+ *
+ * @author admin
+ *
+ */
+public class MemoryBlobStore
+    implements IBlobStore {
+
+    private final ConcurrentMap<String, ConcurrentNavigableMap<String, MemoryBlob>> applications =
+        new ConcurrentHashMap<>();
+
+    public MemoryBlobStore() {
+    }
+
+    @Override
+    public Blob getBlob(String user, String applicationToken, String key) {
+        ConcurrentNavigableMap<String, MemoryBlob> blobs = applications.get(getPath(user, applicationToken));
+        return blobs == null ? null : blobs.get(key);
+    }
+
+    @Override
+    public boolean setBlob(String user, String applicationToken, String key, InputStream contents, String etag,
+        String expectedETag)
+        throws IOException {
+        byte[] bytes = readAll(contents);
+
+        MemoryBlob blob = new MemoryBlob(new Entry(key, etag, bytes.length, System.currentTimeMillis()), bytes);
+        ConcurrentNavigableMap<String, MemoryBlob> blobs =
+            applications.computeIfAbsent(getPath(user, applicationToken), path -> new ConcurrentSkipListMap<>());
+
+        if (expectedETag == null)
+        {
+            return blobs.putIfAbsent(key, blob) == null;
+        }
+
+        // Replaces the very blob whose ETag has been checked, so that a concurrent change makes this one fail.
+        MemoryBlob existingBlob = blobs.get(key);
+        return existingBlob != null && expectedETag.equals(existingBlob.getETag())
+            && blobs.replace(key, existingBlob, blob);
+    }
+
+    @Override
+    public boolean deleteBlob(String user, String applicationToken, String key, String expectedETag) {
+        ConcurrentNavigableMap<String, MemoryBlob> blobs = applications.get(getPath(user, applicationToken));
+        if (blobs == null)
+        {
+            return false;
+        }
+
+        if (expectedETag == null)
+        {
+            return blobs.remove(key) != null;
+        }
+
+        MemoryBlob existingBlob = blobs.get(key);
+        return existingBlob != null && expectedETag.equals(existingBlob.getETag()) && blobs.remove(key, existingBlob);
+    }
+
+    @Override
+    public List<Entry> getEntries(String user, String applicationToken, String afterKey, int skip, int count) {
+        ConcurrentNavigableMap<String, MemoryBlob> blobs = applications.get(getPath(user, applicationToken));
+        if (blobs == null)
+        {
+            return Collections.emptyList();
+        }
+
+        List<Entry> result = new ArrayList<>();
+        for (MemoryBlob blob : KeyIndex.getEntries(blobs, afterKey, skip, count))
+        {
+            result.add(blob.entry);
+        }
+
+        return result;
+    }
+
+    @Override
+    public void close() {
+        applications.clear();
+    }
+
+    @Override
+    public String toString() {
+        return "MemoryBlobStore";
+    }
+
+    private static String getPath(String user, String applicationToken) {
+        return user + "/" + applicationToken;
+    }
+
+    /**
+     * Reads the given contents to their end with a pooled buffer.
+     */
+    static byte[] readAll(InputStream contents) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        try
+        {
+            IOUtil.copy(contents, out);
+        }
+        catch (RuntimeException ex)
+        {
+            // IOUtil wraps the I/O errors of the contents, e.g., of a client that has gone away.
+            if (ex.getCause() instanceof IOException)
+            {
+                throw (IOException)ex.getCause();
+            }
+
+            throw ex;
+        }
+
+        return out.toByteArray();
+    }
+
+    /**
+     * @author admin
+     *
+     */
+    private static final class MemoryBlob
+        implements Blob {
+
+        private final Entry entry;
+
+        private final byte[] contents;
+
+        public MemoryBlob(Entry entry, byte[] contents) {
+            this.entry = entry;
+            this.contents = contents;
+        }
+
+        @Override
+        public String getETag() {
+            return entry.getETag();
+        }
+
+        @Override
+        public InputStream getContents() {
+            return new ByteArrayInputStream(contents);
+        }
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright (c) 2015 Eike Stepper (Berlin, Germany) and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Eike Stepper - initial API and implementation
+ */
+package org.eclipse.userstorage.tests;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import org.eclipse.userstorage.internal.util.BufferPool;
+
+import org.junit.Assume;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * @author Eike Stepper
+ */
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public final class BufferPoolTests extends AbstractTest
+{
+  private boolean debug;
+
+  @Override
+  public void setUp() throws Exception
+  {
+    super.setUp();
+    debug = BufferPool.isDebug();
+  }
+
+  @Override
+  public void tearDown() throws Exception
+  {
+    BufferPool.setDebug(debug);
+    super.tearDown();
+  }
+
+  @Test
+  public void testSizeClasses() throws Exception
+  {
+    assertThat(BufferPool.getBuffer(1).length, is(BufferPool.MIN_SIZE));
+    assertThat(BufferPool.getBuffer(BufferPool.MIN_SIZE).length, is(BufferPool.MIN_SIZE));
+    assertThat(BufferPool.getBuffer(BufferPool.MIN_SIZE + 1).length, is(2 * BufferPool.MIN_SIZE));
+    assertThat(BufferPool.getBuffer(3 * BufferPool.MIN_SIZE).length, is(4 * BufferPool.MIN_SIZE));
+    assertThat(BufferPool.getBuffer(BufferPool.MAX_SIZE).length, is(BufferPool.MAX_SIZE));
+
+    // Larger buffers are allocated with the exact size.
+    assertThat(BufferPool.getBuffer(BufferPool.MAX_SIZE + 1).length, is(BufferPool.MAX_SIZE + 1));
+
+    ByteBuffer directBuffer = BufferPool.getDirectBuffer(BufferPool.MIN_SIZE + 1);
+    assertThat(directBuffer.isDirect(), is(true));
+    assertThat(directBuffer.capacity(), is(2 * BufferPool.MIN_SIZE));
+    BufferPool.release(directBuffer);
+  }
+
+  @Test
+  public void testReuse() throws Exception
+  {
+    byte[] buffer = BufferPool.getBuffer(BufferPool.MIN_SIZE);
+    BufferPool.release(buffer);
+    assertThat(BufferPool.getBuffer(BufferPool.MIN_SIZE), sameInstance(buffer));
+
+    // The buffer is found in the next larger size class only.
+    BufferPool.release(buffer);
+    assertThat(BufferPool.getBuffer(2 * BufferPool.MIN_SIZE), not(sameInstance(buffer)));
+    assertThat(BufferPool.getBuffer(1), sameInstance(buffer));
+
+    ByteBuffer directBuffer = BufferPool.getDirectBuffer(BufferPool.MIN_SIZE);
+    directBuffer.putInt(42);
+    BufferPool.release(directBuffer);
+
+    ByteBuffer reusedBuffer = BufferPool.getDirectBuffer(BufferPool.MIN_SIZE);
+    assertThat(reusedBuffer, sameInstance(directBuffer));
+    assertThat(reusedBuffer.position(), is(0));
+    BufferPool.release(reusedBuffer);
+  }
+
+  @Test
+  public void testNoReuseOfForeignSizes() throws Exception
+  {
+    byte[] buffer = new byte[BufferPool.MIN_SIZE + 1];
+    BufferPool.release(buffer);
+
+    byte[] largeBuffer = BufferPool.getBuffer(BufferPool.MAX_SIZE + 1);
+    BufferPool.release(largeBuffer);
+
+    long allocations = BufferPool.getAllocations();
+    assertThat(BufferPool.getBuffer(BufferPool.MAX_SIZE + 1), not(sameInstance(largeBuffer)));
+    assertThat(BufferPool.getAllocations(), is(allocations + 1));
+  }
+
+  @Test
+  public void testStriping() throws Exception
+  {
+    Assume.assumeTrue(BufferPool.getStripes() > 1);
+
+    byte[] buffer = BufferPool.getBuffer(BufferPool.MIN_SIZE);
+    BufferPool.release(buffer);
+
+    // A thread of another stripe doesn't see the buffer that the current thread has released.
+    int stripe = getStripe(Thread.currentThread());
+    assertThat(acquire(stripe + 1), not(sameInstance(buffer)));
+    assertThat(acquire(stripe), sameInstance(buffer));
+  }
+
+  @Test
+  public void testReleaseByOtherThread() throws Exception
+  {
+    final byte[] buffer = BufferPool.getBuffer(BufferPool.MIN_SIZE);
+    int stripe = getStripe(Thread.currentThread());
+
+    // The buffer is returned to the stripe of the releasing thread.
+    ExecutorService executor = newExecutor(stripe + 1);
+
+    try
+    {
+      executor.submit(new Runnable()
+      {
+        @Override
+        public void run()
+        {
+          BufferPool.release(buffer);
+        }
+      }).get();
+
+      assertThat(acquire(executor), sameInstance(buffer));
+    }
+    finally
+    {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void testDebugReleasedTwice() throws Exception
+  {
+    BufferPool.setDebug(true);
+
+    byte[] buffer = BufferPool.getBuffer(BufferPool.MIN_SIZE);
+    BufferPool.release(buffer);
+    BufferPool.release(buffer);
+
+    // The second release must not put the buffer into the pool again, so that it can't be handed out twice.
+    assertThat(BufferPool.getBuffer(BufferPool.MIN_SIZE), sameInstance(buffer));
+    assertThat(BufferPool.getBuffer(BufferPool.MIN_SIZE), not(sameInstance(buffer)));
+  }
+
+  @Test
+  public void testDebugLeak() throws Exception
+  {
+    BufferPool.setDebug(true);
+    long leaks = BufferPool.getLeaks();
+
+    // A released buffer is not a leak.
+    BufferPool.release(BufferPool.getBuffer(BufferPool.MIN_SIZE));
+    BufferPool.getBuffer(2 * BufferPool.MIN_SIZE);
+
+    for (int i = 0; i < 100 && BufferPool.getLeaks() == leaks; i++)
+    {
+      System.gc();
+      Thread.sleep(10);
+
+      // Leaks are detected when buffers are acquired.
+      BufferPool.release(BufferPool.getBuffer(BufferPool.MIN_SIZE));
+    }
+
+    assertThat(BufferPool.getLeaks(), is(leaks + 1));
+  }
+
+  private static int getStripe(Thread thread)
+  {
+    return (int)(thread.getId() & BufferPool.getStripes() - 1);
+  }
+
+  private static byte[] acquire(int stripe) throws Exception
+  {
+    ExecutorService executor = newExecutor(stripe);
+
+    try
+    {
+      return acquire(executor);
+    }
+    finally
+    {
+      executor.shutdown();
+    }
+  }
+
+  private static byte[] acquire(ExecutorService executor) throws Exception
+  {
+    return executor.submit(new Callable<byte[]>()
+    {
+      @Override
+      public byte[] call() throws Exception
+      {
+        return BufferPool.getBuffer(BufferPool.MIN_SIZE);
+      }
+    }).get();
+  }
+
+  /**
+   * Returns a single-threaded executor whose thread uses the given stripe of the buffer pool.
+   */
+  private static ExecutorService newExecutor(final int stripe)
+  {
+    return Executors.newSingleThreadExecutor(new ThreadFactory()
+    {
+      @Override
+      public Thread newThread(Runnable runnable)
+      {
+        // Thread IDs are assigned in creation order, so one of the next few threads has the right ID.
+        for (;;)
+        {
+          Thread thread = new Thread(runnable);
+          if (getStripe(thread) == (stripe & BufferPool.getStripes() - 1))
+          {
+            return thread;
+          }
+        }
+      }
+    });
+  }
+}
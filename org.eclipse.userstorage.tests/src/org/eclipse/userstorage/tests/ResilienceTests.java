@@ -0,0 +1,707 @@
+/*
+ * Copyright (c) 2015 Eike Stepper (Berlin, Germany) and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Eike Stepper - initial API and implementation
+ */
+package org.eclipse.userstorage.tests;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import org.eclipse.userstorage.IBlob;
+import org.eclipse.userstorage.IStorage;
+import org.eclipse.userstorage.IStorageService;
+import org.eclipse.userstorage.StorageFactory;
+import org.eclipse.userstorage.internal.CircuitBreaker;
+import org.eclipse.userstorage.internal.HedgingPolicy;
+import org.eclipse.userstorage.internal.RetryPolicy;
+import org.eclipse.userstorage.internal.StorageProperties;
+import org.eclipse.userstorage.internal.StorageService;
+import org.eclipse.userstorage.internal.StorageServiceRegistry;
+import org.eclipse.userstorage.spi.IStorageMetrics;
+import org.eclipse.userstorage.spi.IStorageMetrics.CircuitBreakerState;
+import org.eclipse.userstorage.spi.IStorageMetrics.Operation;
+import org.eclipse.userstorage.tests.util.ClientFixture;
+import org.eclipse.userstorage.tests.util.ClientFixture.TestCache;
+import org.eclipse.userstorage.tests.util.FaultInjector;
+import org.eclipse.userstorage.tests.util.FaultInjector.Faults;
+import org.eclipse.userstorage.tests.util.FaultInjector.Latency;
+import org.eclipse.userstorage.tests.util.ServerFixture;
+import org.eclipse.userstorage.util.ProtocolException;
+import org.eclipse.userstorage.util.ServiceUnavailableException;
+import org.eclipse.userstorage.util.StorageStatistics;
+
+import org.junit.Assume;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Tests how the client copes with a misbehaving server, as simulated by the {@link FaultInjector} of the local server.
+ *
+ * @author Eike Stepper
+ */
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public final class ResilienceTests extends AbstractTest
+{
+  private static final String APPLICATION_TOKEN = StorageTests.APPLICATION_TOKEN;
+
+  private static final String KEY = "test_blob";
+
+  private static final String VALUE = "A short UTF-8 string value";
+
+  private static final String LARGE_VALUE = createValue(20000);
+
+  private static final long HEDGING_DELAY = 500;
+
+  private static final long SLOW_LATENCY = 3000;
+
+  private static final long SOCKET_TIMEOUT = 500;
+
+  private ServerFixture serverFixture;
+
+  private ClientFixture clientFixture;
+
+  private StorageFactory factory;
+
+  private TestCache cache;
+
+  private FaultInjector faultInjector;
+
+  @Override
+  public void setUp() throws Exception
+  {
+    super.setUp();
+    StorageServiceRegistry.INSTANCE.stop();
+    StorageServiceRegistry.INSTANCE.start();
+
+    serverFixture = new ServerFixture(APPLICATION_TOKEN);
+    Assume.assumeTrue(serverFixture.hasLocalServer());
+
+    clientFixture = new ClientFixture(serverFixture);
+    factory = clientFixture.getFactory();
+    cache = clientFixture.getCache();
+    faultInjector = serverFixture.getServer().getFaultInjector();
+  }
+
+  @Override
+  public void tearDown() throws Exception
+  {
+    if (clientFixture != null)
+    {
+      clientFixture.dispose();
+      clientFixture = null;
+    }
+
+    if (serverFixture != null)
+    {
+      serverFixture.dispose();
+      serverFixture = null;
+    }
+
+    super.tearDown();
+  }
+
+  @Test
+  public void testRetryRead() throws Exception
+  {
+    IStorage storage = factory.create(APPLICATION_TOKEN);
+    IBlob blob = storage.getBlob(KEY);
+    blob.setContentsUTF(VALUE);
+
+    StorageStatistics statistics = storage.getService().getStatistics();
+    long gets = statistics.getLatencies(Operation.GET).getCount();
+
+    faultInjector.setFaults(FaultInjector.GET, new Faults().setErrorRate(1.0));
+
+    try
+    {
+      blob.getContentsUTF();
+      fail("ProtocolException expected");
+    }
+    catch (ProtocolException expected)
+    {
+      assertThat(expected.getStatusCode(), is(503));
+    }
+
+    assertThat(statistics.getLatencies(Operation.GET).getCount(), is(gets + 1 + RetryPolicy.INSTANCE.getMaxRetries()));
+  }
+
+  @Test
+  public void testRetryReadAfterReset() throws Exception
+  {
+    IStorage storage = factory.create(APPLICATION_TOKEN);
+    IBlob blob = storage.getBlob(KEY);
+    blob.setContentsUTF(VALUE);
+
+    StorageStatistics statistics = storage.getService().getStatistics();
+    long gets = statistics.getLatencies(Operation.GET).getCount();
+
+    faultInjector.setFaults(FaultInjector.GET, new Faults().setResetRate(1.0));
+
+    try
+    {
+      blob.getContentsUTF();
+      fail("IOException expected");
+    }
+    catch (IOException expected)
+    {
+      // SUCCESS
+    }
+
+    assertThat(statistics.getLatencies(Operation.GET).getCount(), is(gets + 1 + RetryPolicy.INSTANCE.getMaxRetries()));
+  }
+
+  @Test
+  public void testRetryBudget() throws Exception
+  {
+    IStorage storage = factory.create(APPLICATION_TOKEN);
+    IBlob blob = storage.getBlob(KEY);
+    blob.setContentsUTF(VALUE);
+
+    RetryPolicy.Budget budget = ((StorageService)storage.getService()).getRetryBudget();
+    while (budget.withdraw())
+    {
+      // Exhaust the budget.
+    }
+
+    StorageStatistics statistics = storage.getService().getStatistics();
+    long gets = statistics.getLatencies(Operation.GET).getCount();
+
+    faultInjector.setFaults(FaultInjector.GET, new Faults().setErrorRate(1.0));
+
+    try
+    {
+      blob.getContentsUTF();
+      fail("ProtocolException expected");
+    }
+    catch (ProtocolException expected)
+    {
+      // SUCCESS
+    }
+
+    assertThat(statistics.getLatencies(Operation.GET).getCount(), is(gets + 1));
+
+    // Successful requests refill the budget, one tenth of a retry each.
+    faultInjector.clear();
+    for (int i = 0; i < 10; i++)
+    {
+      assertThat(blob.getContentsUTF(), is(VALUE));
+    }
+
+    assertThat(budget.withdraw(), is(true));
+    assertThat(budget.withdraw(), is(false));
+  }
+
+  @Test
+  public void testUpdateNotResent() throws Exception
+  {
+    IStorage storage = factory.create(APPLICATION_TOKEN, cache);
+    IBlob blob = storage.getBlob(KEY);
+    blob.setContentsUTF(VALUE);
+    String eTag = blob.getETag();
+
+    StorageStatistics statistics = storage.getService().getStatistics();
+    long puts = statistics.getLatencies(Operation.PUT).getCount();
+
+    faultInjector.setFaults(FaultInjector.PUT, new Faults().setErrorRate(1.0));
+
+    try
+    {
+      blob.setContentsUTF("A different value");
+      fail("ProtocolException expected");
+    }
+    catch (ProtocolException expected)
+    {
+      assertThat(expected.getStatusCode(), is(503));
+    }
+
+    // The contents have been sent already, so they can't be sent again.
+    assertThat(statistics.getLatencies(Operation.PUT).getCount(), is(puts + 1));
+    assertThat(blob.getETag(), is(eTag));
+    assertThat(serverFixture.readServer(blob).contents, is(VALUE));
+
+    // The cache must not serve the contents that the server has not stored.
+    assertThat(cache.getFile(APPLICATION_TOKEN, KEY, null).exists(), is(false));
+    faultInjector.clear();
+    assertThat(blob.getContentsUTF(), is(VALUE));
+
+    blob.setContentsUTF("A different value");
+    assertThat(serverFixture.readServer(blob).contents, is("A different value"));
+  }
+
+  @Test
+  public void testUpdateAfterSessionExpiry() throws Exception
+  {
+    IStorage storage = factory.create(APPLICATION_TOKEN, cache);
+    IBlob blob = storage.getBlob(KEY);
+    blob.setContentsUTF(VALUE);
+
+    faultInjector.setFaults(FaultInjector.PUT, new Faults().setExpiryRate(1.0));
+
+    try
+    {
+      blob.setContentsUTF("A different value");
+      fail("ProtocolException expected");
+    }
+    catch (ProtocolException expected)
+    {
+      assertThat(expected.getStatusCode(), is(401));
+    }
+
+    // The consumed contents must not be sent again as an empty value.
+    assertThat(serverFixture.readServer(blob).contents, is(VALUE));
+
+    // The session has been reset, so the next update logs in again.
+    faultInjector.clear();
+    blob.setContentsUTF("A different value");
+    assertThat(serverFixture.readServer(blob).contents, is("A different value"));
+  }
+
+  @Test
+  public void testDeleteNotRetriedAfterReset() throws Exception
+  {
+    IStorage storage = factory.create(APPLICATION_TOKEN);
+    IBlob blob = storage.getBlob(KEY);
+    blob.setContentsUTF(VALUE);
+
+    StorageStatistics statistics = storage.getService().getStatistics();
+    long deletes = statistics.getLatencies(Operation.DELETE).getCount();
+
+    faultInjector.setFaults(FaultInjector.DELETE, new Faults().setResetRate(1.0));
+
+    try
+    {
+      blob.delete();
+      fail("IOException expected");
+    }
+    catch (IOException expected)
+    {
+      // SUCCESS
+    }
+
+    // The server may have deleted the blob before the connection was lost.
+    assertThat(statistics.getLatencies(Operation.DELETE).getCount(), is(deletes + 1));
+  }
+
+  @Test
+  public void testStalledResponse() throws Exception
+  {
+    IStorage storage = factory.create(APPLICATION_TOKEN, cache);
+    IBlob blob = storage.getBlob(KEY);
+    serverFixture.writeServer(blob, LARGE_VALUE);
+
+    String oldSocketTimeout = System.setProperty(StorageProperties.SOCKET_TIMEOUT, Long.toString(SOCKET_TIMEOUT));
+
+    try
+    {
+      faultInjector.setFaults(FaultInjector.GET, new Faults().setStallRate(1.0).setStallMillis(SLOW_LATENCY));
+
+      long start = System.currentTimeMillis();
+
+      try
+      {
+        blob.getContentsUTF();
+        fail("IOException expected");
+      }
+      catch (IOException expected)
+      {
+        // SUCCESS
+      }
+
+      // The socket timeout must end the stall rather than the server.
+      assertThat(System.currentTimeMillis() - start < SLOW_LATENCY, is(true));
+
+      // The cache must not serve the truncated contents.
+      faultInjector.clear();
+      assertThat(blob.getContentsUTF(), is(LARGE_VALUE));
+    }
+    finally
+    {
+      if (oldSocketTimeout == null)
+      {
+        System.clearProperty(StorageProperties.SOCKET_TIMEOUT);
+      }
+      else
+      {
+        System.setProperty(StorageProperties.SOCKET_TIMEOUT, oldSocketTimeout);
+      }
+    }
+  }
+
+  @Test
+  public void testThrottledResponse() throws Exception
+  {
+    IStorage storage = factory.create(APPLICATION_TOKEN, cache);
+    IBlob blob = storage.getBlob(KEY);
+    serverFixture.writeServer(blob, LARGE_VALUE);
+
+    // The slow response is read completely, chunk by chunk, and cached.
+    faultInjector.setFaults(FaultInjector.GET, new Faults().setBandwidth(2 * LARGE_VALUE.length()));
+
+    long start = System.currentTimeMillis();
+    assertThat(blob.getContentsUTF(), is(LARGE_VALUE));
+    assertThat(System.currentTimeMillis() - start >= 400, is(true));
+
+    faultInjector.clear();
+    assertThat(cache.getFile(APPLICATION_TOKEN, KEY, null).exists(), is(true));
+    assertThat(blob.getContentsUTF(), is(LARGE_VALUE));
+  }
+
+  @Test
+  public void testCircuitBreakerCycle() throws Exception
+  {
+    CircuitBreaker circuitBreaker = new CircuitBreaker(serverFixture.getService(), 2, 1.0, 200);
+    StateRecorder recorder = new StateRecorder(circuitBreaker.getService());
+    IStorageService.Registry.INSTANCE.addMetrics(recorder);
+
+    try
+    {
+      assertThat(circuitBreaker.allowRequest(), is(true));
+      circuitBreaker.recordFailure();
+      assertThat(circuitBreaker.getState(), is(CircuitBreakerState.CLOSED));
+
+      circuitBreaker.recordFailure();
+      assertThat(circuitBreaker.getState(), is(CircuitBreakerState.OPEN));
+      assertThat(circuitBreaker.isAvailable(), is(false));
+      assertThat(circuitBreaker.allowRequest(), is(false));
+
+      // After the open time a single probe is let through. A failed probe opens the breaker again.
+      Thread.sleep(250);
+      assertThat(circuitBreaker.isAvailable(), is(true));
+      assertThat(circuitBreaker.getState(), is(CircuitBreakerState.OPEN));
+      assertThat(circuitBreaker.allowRequest(), is(true));
+      assertThat(circuitBreaker.getState(), is(CircuitBreakerState.HALF_OPEN));
+      assertThat(circuitBreaker.allowRequest(), is(false));
+      circuitBreaker.recordFailure();
+      assertThat(circuitBreaker.getState(), is(CircuitBreakerState.OPEN));
+
+      // A successful probe closes the breaker.
+      Thread.sleep(250);
+      assertThat(circuitBreaker.allowRequest(), is(true));
+      circuitBreaker.recordSuccess();
+      assertThat(circuitBreaker.getState(), is(CircuitBreakerState.CLOSED));
+      assertThat(circuitBreaker.allowRequest(), is(true));
+
+      assertThat(recorder.transitions, is(Arrays.asList( //
+          "CLOSED -> OPEN", //
+          "OPEN -> HALF_OPEN", //
+          "HALF_OPEN -> OPEN", //
+          "OPEN -> HALF_OPEN", //
+          "HALF_OPEN -> CLOSED")));
+    }
+    finally
+    {
+      IStorageService.Registry.INSTANCE.removeMetrics(recorder);
+    }
+  }
+
+  @Test
+  public void testCircuitBreakerWithCache() throws Exception
+  {
+    IStorage storage = factory.create(APPLICATION_TOKEN, cache);
+    IBlob blob = storage.getBlob(KEY);
+    blob.setContentsUTF(VALUE);
+
+    IStorage uncachedStorage = factory.create(APPLICATION_TOKEN);
+    IBlob uncachedBlob = uncachedStorage.getBlob(KEY);
+
+    CircuitBreaker circuitBreaker = ((StorageService)storage.getService()).getCircuitBreaker();
+    StateRecorder recorder = new StateRecorder(circuitBreaker.getService());
+    IStorageService.Registry.INSTANCE.addMetrics(recorder);
+
+    StorageStatistics statistics = storage.getService().getStatistics();
+    long openings = statistics.getCircuitBreakerOpenings();
+
+    try
+    {
+      faultInjector.setFaults(FaultInjector.GET, new Faults().setErrorRate(1.0));
+
+      for (int i = 0; i < circuitBreaker.getFailureThreshold() && circuitBreaker.getState() == CircuitBreakerState.CLOSED; i++)
+      {
+        try
+        {
+          uncachedBlob.getContentsUTF();
+          fail("IOException expected");
+        }
+        catch (IOException expected)
+        {
+          // SUCCESS
+        }
+      }
+
+      assertThat(circuitBreaker.getState(), is(CircuitBreakerState.OPEN));
+      assertThat(recorder.transitions, is(Arrays.asList("CLOSED -> OPEN")));
+      assertThat(statistics.getCircuitBreakerOpenings(), is(openings + 1));
+
+      // While the breaker is open, the requests fail fast and the cached contents are served.
+      long gets = statistics.getLatencies(Operation.GET).getCount();
+
+      assertThat(blob.getContentsUTF(), is(VALUE));
+
+      try
+      {
+        uncachedBlob.getContentsUTF();
+        fail("ServiceUnavailableException expected");
+      }
+      catch (ServiceUnavailableException expected)
+      {
+        // SUCCESS
+      }
+
+      assertThat(statistics.getLatencies(Operation.GET).getCount(), is(gets));
+    }
+    finally
+    {
+      IStorageService.Registry.INSTANCE.removeMetrics(recorder);
+    }
+  }
+
+  @Test
+  public void testHedging() throws Exception
+  {
+    IStorage storage = factory.create(APPLICATION_TOKEN);
+    IBlob blob = storage.getBlob(KEY);
+    blob.setContentsUTF(VALUE);
+
+    StorageService service = (StorageService)storage.getService();
+    enableHedging(service);
+
+    StorageStatistics statistics = service.getStatistics();
+    long gets = statistics.getLatencies(Operation.GET).getCount();
+    long failures = statistics.getFailures();
+
+    // Only the first request is slow; the faults are gone when the duplicate is sent.
+    faultInjector.setFaults(FaultInjector.GET, new Faults().setLatency(Latency.fixed(SLOW_LATENCY)));
+    Thread clearer = new Thread()
+    {
+      @Override
+      public void run()
+      {
+        try
+        {
+          Thread.sleep(HEDGING_DELAY / 2);
+        }
+        catch (InterruptedException ex)
+        {
+          //$FALL-THROUGH$
+        }
+
+        faultInjector.clear();
+      }
+    };
+
+    long start = System.currentTimeMillis();
+    clearer.start();
+
+    assertThat(blob.getContentsUTF(), is(VALUE));
+    long millis = System.currentTimeMillis() - start;
+    assertThat(millis < SLOW_LATENCY, is(true));
+
+    // The slow request has been aborted, so it neither completes nor counts as a failure.
+    Thread.sleep(SLOW_LATENCY + 500 - millis);
+    assertThat(statistics.getLatencies(Operation.GET).getCount(), is(gets + 1));
+    assertThat(statistics.getFailures(), is(failures));
+    assertThat(service.getCircuitBreaker().getState(), is(CircuitBreakerState.CLOSED));
+  }
+
+  @Test
+  public void testHedgingBudget() throws Exception
+  {
+    IStorage storage = factory.create(APPLICATION_TOKEN);
+    IBlob blob = storage.getBlob(KEY);
+    blob.setContentsUTF(VALUE);
+
+    StorageService service = (StorageService)storage.getService();
+    enableHedging(service);
+
+    RetryPolicy.Budget budget = service.getHedgingBudget();
+    while (budget.withdraw())
+    {
+      // Exhaust the budget.
+    }
+
+    StorageStatistics statistics = service.getStatistics();
+    long gets = statistics.getLatencies(Operation.GET).getCount();
+
+    faultInjector.setFaults(FaultInjector.GET, new Faults().setLatency(Latency.fixed(2 * HEDGING_DELAY)));
+
+    long start = System.currentTimeMillis();
+    assertThat(blob.getContentsUTF(), is(VALUE));
+    assertThat(System.currentTimeMillis() - start >= 2 * HEDGING_DELAY, is(true));
+    assertThat(statistics.getLatencies(Operation.GET).getCount(), is(gets + 1));
+
+    // All successful requests refill the budget, not only the hedged ones.
+    faultInjector.clear();
+    for (int i = 0; i < 10; i++)
+    {
+      blob.setContentsUTF(VALUE + i);
+    }
+
+    assertThat(budget.withdraw(), is(true));
+    assertThat(budget.withdraw(), is(false));
+  }
+
+  @Test
+  public void testHedgingWithBusyThreads() throws Exception
+  {
+    IStorage storage = factory.create(APPLICATION_TOKEN);
+    IBlob blob = storage.getBlob(KEY);
+    blob.setContentsUTF(VALUE);
+
+    StorageService service = (StorageService)storage.getService();
+    HedgingPolicy hedgingPolicy = enableHedging(service, 1);
+
+    RetryPolicy.Budget budget = service.getHedgingBudget();
+    for (int i = 0; i < 100; i++)
+    {
+      // Fill the budget.
+      budget.deposit();
+    }
+
+    StorageStatistics statistics = service.getStatistics();
+    long gets = statistics.getLatencies(Operation.GET).getCount();
+
+    // The first request occupies the only thread, so the duplicate is rejected and the budget is refunded.
+    faultInjector.setFaults(FaultInjector.GET, new Faults().setLatency(Latency.fixed(2 * HEDGING_DELAY)));
+
+    long start = System.currentTimeMillis();
+    assertThat(blob.getContentsUTF(), is(VALUE));
+    assertThat(System.currentTimeMillis() - start >= 2 * HEDGING_DELAY, is(true));
+    assertThat(statistics.getLatencies(Operation.GET).getCount(), is(gets + 1));
+
+    int withdrawals = 0;
+    while (budget.withdraw())
+    {
+      ++withdrawals;
+    }
+
+    assertThat(withdrawals, is(10));
+
+    // If no thread is available at all, the read is sent without hedging.
+    faultInjector.clear();
+    final CountDownLatch release = new CountDownLatch(1);
+    hedgingPolicy.getExecutor().submit(new Callable<Void>()
+    {
+      @Override
+      public Void call() throws Exception
+      {
+        release.await();
+        return null;
+      }
+    });
+
+    try
+    {
+      blob.setContentsUTF(VALUE + 1);
+      assertThat(storage.getBlob(KEY).getContentsUTF(), is(VALUE + 1));
+      assertThat(statistics.getLatencies(Operation.GET).getCount(), is(gets + 2));
+    }
+    finally
+    {
+      release.countDown();
+    }
+  }
+
+  private static String createValue(int length)
+  {
+    StringBuilder builder = new StringBuilder();
+    while (builder.length() < length)
+    {
+      builder.append(VALUE);
+      builder.append('\n');
+    }
+
+    return builder.substring(0, length);
+  }
+
+  private static void enableHedging(StorageService service)
+  {
+    enableHedging(service, 16);
+  }
+
+  private static HedgingPolicy enableHedging(StorageService service, int threads)
+  {
+    HedgingPolicy hedgingPolicy = new HedgingPolicy(50, threads);
+    service.setHedgingPolicy(hedgingPolicy);
+
+    HedgingPolicy.LatencyTracker latencyTracker = service.getLatencyTracker();
+    for (int i = 0; i < 32; i++)
+    {
+      latencyTracker.record(HEDGING_DELAY);
+    }
+
+    return hedgingPolicy;
+  }
+
+  /**
+   * @author Eike Stepper
+   */
+  private static final class StateRecorder implements IStorageMetrics
+  {
+    private final IStorageService service;
+
+    private final List<String> transitions = new CopyOnWriteArrayList<String>();
+
+    public StateRecorder(IStorageService service)
+    {
+      this.service = service;
+    }
+
+    @Override
+    public void circuitBreakerStateChanged(IStorageService service, CircuitBreakerState oldState, CircuitBreakerState newState)
+    {
+      if (service == this.service)
+      {
+        transitions.add(oldState + " -> " + newState);
+      }
+    }
+
+    @Override
+    public void requestCompleted(IStorageService service, Operation operation, int statusCode, long nanos)
+    {
+      // Do nothing.
+    }
+
+    @Override
+    public void bytesSent(IStorageService service, long bytes)
+    {
+      // Do nothing.
+    }
+
+    @Override
+    public void bytesReceived(IStorageService service, long bytes)
+    {
+      // Do nothing.
+    }
+
+    @Override
+    public void cacheAccessed(IStorageService service, boolean hit)
+    {
+      // Do nothing.
+    }
+
+    @Override
+    public void authenticationRetried(IStorageService service)
+    {
+      // Do nothing.
+    }
+
+    @Override
+    public void readsFailedOver(IStorageService service, IStorageService failoverService)
+    {
+      // Do nothing.
+    }
+  }
+}
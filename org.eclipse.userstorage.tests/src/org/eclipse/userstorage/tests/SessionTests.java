@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) 2015 Eike Stepper (Berlin, Germany) and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Eike Stepper - initial API and implementation
+ */
+package org.eclipse.userstorage.tests;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import org.eclipse.userstorage.IBlob;
+import org.eclipse.userstorage.IStorage;
+import org.eclipse.userstorage.StorageFactory;
+import org.eclipse.userstorage.internal.Activator;
+import org.eclipse.userstorage.internal.Session;
+import org.eclipse.userstorage.internal.StorageProperties;
+import org.eclipse.userstorage.internal.StorageService;
+import org.eclipse.userstorage.internal.StorageServiceRegistry;
+import org.eclipse.userstorage.spi.IStorageMetrics.Operation;
+import org.eclipse.userstorage.tests.util.ClientFixture;
+import org.eclipse.userstorage.tests.util.FixedCredentialsProvider;
+import org.eclipse.userstorage.tests.util.MemorySecurePreferences;
+import org.eclipse.userstorage.tests.util.ServerFixture;
+import org.eclipse.userstorage.util.StorageStatistics;
+
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+/**
+ * Tests the persistence and the background renewal of sessions against a {@link MemorySecurePreferences secure storage in memory}.
+ *
+ * @author Eike Stepper
+ */
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public final class SessionTests extends AbstractTest
+{
+  private static final String APPLICATION_TOKEN = StorageTests.APPLICATION_TOKEN;
+
+  private static final String KEY = "test_blob";
+
+  private static final String VALUE = "A short UTF-8 string value";
+
+  private static final int SESSION_LIFETIME = 1000;
+
+  private MemorySecurePreferences securePreferences;
+
+  private ServerFixture serverFixture;
+
+  private ClientFixture clientFixture;
+
+  private StorageFactory factory;
+
+  @Override
+  public void setUp() throws Exception
+  {
+    super.setUp();
+    securePreferences = new MemorySecurePreferences();
+    Activator.setSecurePreferences(securePreferences);
+
+    StorageServiceRegistry.INSTANCE.stop();
+    StorageServiceRegistry.INSTANCE.start();
+
+    serverFixture = new ServerFixture(APPLICATION_TOKEN);
+    clientFixture = new ClientFixture(serverFixture);
+    factory = clientFixture.getFactory();
+  }
+
+  @Override
+  public void tearDown() throws Exception
+  {
+    System.clearProperty(StorageProperties.PERSISTENT_SESSIONS);
+    System.clearProperty(StorageProperties.SESSION_LIFETIME);
+
+    if (clientFixture != null)
+    {
+      clientFixture.dispose();
+      clientFixture = null;
+    }
+
+    if (serverFixture != null)
+    {
+      serverFixture.dispose();
+      serverFixture = null;
+    }
+
+    Activator.setSecurePreferences(null);
+    super.tearDown();
+  }
+
+  @Test
+  public void testPersistentSession() throws Exception
+  {
+    System.setProperty(StorageProperties.PERSISTENT_SESSIONS, "true");
+
+    IStorage storage = factory.create(APPLICATION_TOKEN);
+    StorageService service = (StorageService)storage.getService();
+    service.setCredentials(FixedCredentialsProvider.DEFAULT_CREDENTIALS);
+    int flushes = securePreferences.getFlushCount();
+
+    IBlob blob = storage.getBlob(KEY);
+    blob.setContentsUTF(VALUE);
+
+    // The login must save the new session only once.
+    assertThat(securePreferences.getFlushCount(), is(flushes + 1));
+    assertThat(new Session(service).getSessionAge() >= 0, is(true));
+
+    service.resetSession();
+    assertThat(securePreferences.getFlushCount(), is(flushes + 2));
+    assertThat(new Session(service).getSessionAge(), is(-1L));
+
+    // Without a persisted session there is nothing to remove.
+    service.resetSession();
+    assertThat(securePreferences.getFlushCount(), is(flushes + 2));
+  }
+
+  @Test
+  public void testPersistentSessionExpired() throws Exception
+  {
+    System.setProperty(StorageProperties.PERSISTENT_SESSIONS, "true");
+
+    IStorage storage = factory.create(APPLICATION_TOKEN);
+    StorageService service = (StorageService)storage.getService();
+    service.setCredentials(FixedCredentialsProvider.DEFAULT_CREDENTIALS);
+
+    IBlob blob = storage.getBlob(KEY);
+    blob.setContentsUTF(VALUE);
+
+    long created = System.currentTimeMillis() - 2 * SESSION_LIFETIME;
+    service.getSecurePreferences().put("sessionCreated", Long.toString(created), false);
+
+    // Sessions don't expire on the client unless a lifetime is configured.
+    assertThat(new Session(service).getSessionAge() >= 2 * SESSION_LIFETIME, is(true));
+
+    System.setProperty(StorageProperties.SESSION_LIFETIME, Integer.toString(SESSION_LIFETIME));
+    assertThat(new Session(service).getSessionAge(), is(-1L));
+  }
+
+  @Test
+  public void testSessionRenewal() throws Exception
+  {
+    System.setProperty(StorageProperties.SESSION_LIFETIME, Integer.toString(SESSION_LIFETIME));
+
+    IStorage storage = factory.create(APPLICATION_TOKEN);
+    StorageService service = (StorageService)storage.getService();
+    service.setCredentials(FixedCredentialsProvider.DEFAULT_CREDENTIALS);
+
+    IBlob blob = storage.getBlob(KEY);
+    blob.setContentsUTF(VALUE);
+
+    StorageStatistics statistics = service.getStatistics();
+    long logins = statistics.getLatencies(Operation.LOGIN).getCount();
+
+    long deadline = System.currentTimeMillis() + 10 * SESSION_LIFETIME;
+    while (statistics.getLatencies(Operation.LOGIN).getCount() == logins && System.currentTimeMillis() < deadline)
+    {
+      Thread.sleep(50);
+    }
+
+    assertThat(statistics.getLatencies(Operation.LOGIN).getCount(), is(logins + 1));
+    assertThat(service.getSessionAge() < SESSION_LIFETIME, is(true));
+    assertThat(blob.getContentsUTF(), is(VALUE));
+  }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2015 Eike Stepper (Berlin, Germany) and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Eike Stepper - initial API and implementation
+ */
+package org.eclipse.userstorage.tests;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import org.eclipse.userstorage.internal.util.IOUtil;
+import org.eclipse.userstorage.util.Settings.FileSettings;
+
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+import java.io.File;
+
+/**
+ * @author Eike Stepper
+ */
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public final class SettingsTests extends AbstractTest
+{
+  private static final File FOLDER = new File(System.getProperty("java.io.tmpdir"), "uss-tests/settings");
+
+  private File file;
+
+  @Override
+  public void setUp() throws Exception
+  {
+    super.setUp();
+    IOUtil.deleteFiles(FOLDER);
+    file = new File(FOLDER, testName.getMethodName() + ".properties");
+  }
+
+  @Override
+  public void tearDown() throws Exception
+  {
+    IOUtil.deleteFiles(FOLDER);
+    super.tearDown();
+  }
+
+  @Test
+  public void testSetGet() throws Exception
+  {
+    FileSettings settings = new FileSettings(file);
+    assertThat(settings.getValue("key"), isNull());
+
+    settings.setValue("key", "value");
+    assertThat(settings.getValue("key"), is("value"));
+    assertThat(new FileSettings(file).getValue("key"), is("value"));
+
+    settings.setValue("key", null);
+    assertThat(settings.getValue("key"), isNull());
+    assertThat(new FileSettings(file).getValue("key"), isNull());
+  }
+
+  @Test
+  public void testNoTempFiles() throws Exception
+  {
+    FileSettings settings = new FileSettings(file);
+    settings.setValue("key1", "value1");
+    settings.setValue("key2", "value2");
+
+    assertThat(FOLDER.list(), is(new String[] { file.getName() }));
+  }
+
+  @Test
+  public void testExternalChange() throws Exception
+  {
+    FileSettings settings = new FileSettings(file);
+    settings.setValue("key", "value");
+
+    FileSettings otherSettings = new FileSettings(file);
+    otherSettings.setValue("key", "other value");
+
+    assertThat(settings.getValue("key"), is("other value"));
+  }
+
+  @Test
+  public void testUnchangedFileNotReloaded() throws Exception
+  {
+    FileSettings settings = new FileSettings(file);
+    settings.setValue("key", "value1");
+    long lastModified = file.lastModified();
+
+    // Same length and same modification time, so the cached properties must be used.
+    IOUtil.writeUTF(file, IOUtil.readUTF(file).replace("value1", "value2"));
+    assertThat(file.setLastModified(lastModified), is(true));
+    assertThat(settings.getValue("key"), is("value1"));
+
+    assertThat(file.setLastModified(lastModified - 10000), is(true));
+    assertThat(settings.getValue("key"), is("value2"));
+  }
+
+  @Test
+  public void testAutoFlush() throws Exception
+  {
+    FileSettings settings = new FileSettings(file);
+    settings.setAutoFlush(false);
+
+    settings.setValue("key1", "value1");
+    settings.setValue("key2", "value2");
+    assertThat(file.exists(), is(false));
+    assertThat(settings.getValue("key1"), is("value1"));
+
+    settings.flush();
+    assertThat(new FileSettings(file).getValue("key2"), is("value2"));
+
+    settings.setValue("key1", "value3");
+    assertThat(new FileSettings(file).getValue("key1"), is("value1"));
+
+    // Turning auto flush on writes the pending change.
+    settings.setAutoFlush(true);
+    assertThat(new FileSettings(file).getValue("key1"), is("value3"));
+
+    settings.setValue("key2", "value4");
+    assertThat(new FileSettings(file).getValue("key2"), is("value4"));
+  }
+
+  @Test
+  public void testBackupFile() throws Exception
+  {
+    // Simulate a flush that has been interrupted after the old file has been renamed to the backup file.
+    File backupFile = new File(FOLDER, file.getName() + ".bak");
+    IOUtil.mkdirs(FOLDER);
+    IOUtil.writeUTF(backupFile, "key=value1\n");
+
+    FileSettings settings = new FileSettings(file);
+    assertThat(settings.getValue("key"), is("value1"));
+
+    settings.setValue("key", "value2");
+    assertThat(new FileSettings(file).getValue("key"), is("value2"));
+    assertThat(backupFile.exists(), is(false));
+    assertThat(FOLDER.list(), is(new String[] { file.getName() }));
+  }
+}
@@ -0,0 +1,459 @@
+/*
+ * Copyright (c) 2015 Eike Stepper (Berlin, Germany) and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Eike Stepper - initial API and implementation
+ */
+package org.eclipse.userstorage.tests;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import org.eclipse.userstorage.internal.StorageCacheAccessor;
+import org.eclipse.userstorage.internal.util.IOUtil;
+import org.eclipse.userstorage.internal.util.IOUtil.AsyncOutputStream;
+import org.eclipse.userstorage.internal.util.IOUtil.EndOfFileAware;
+import org.eclipse.userstorage.util.FileStorageCache;
+import org.eclipse.userstorage.util.MemoryStorageCache;
+import org.eclipse.userstorage.util.TieredStorageCache;
+
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author Eike Stepper
+ */
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public final class StorageCacheTests extends AbstractTest
+{
+  private static final String APPLICATION_TOKEN = "pDKTqBfDuNxlAKydhEwxBZPxa4q";
+
+  private static final int CHUNK_SIZE = 16;
+
+  private static final int BUFFER_SIZE = 4096;
+
+  private static final long IDLE_TIMEOUT = 60000;
+
+  private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool();
+
+  @Test
+  public void testMemoryCacheWriteRead() throws Exception
+  {
+    TestMemoryCache cache = new TestMemoryCache(4 * CHUNK_SIZE);
+    cache.write("key", 3 * CHUNK_SIZE - 1);
+
+    assertThat(cache.read("key"), is(3 * CHUNK_SIZE - 1));
+    assertThat(cache.getAllocatedBytes(), is(3L * CHUNK_SIZE));
+    assertThat(cache.getFreeBytes(), is(0L));
+  }
+
+  @Test
+  public void testMemoryCacheClearWhileWriting() throws Exception
+  {
+    TestMemoryCache cache = new TestMemoryCache(4 * CHUNK_SIZE);
+
+    OutputStream out = cache.openOutputStream("key");
+    out.write(new byte[CHUNK_SIZE]);
+    cache.clear();
+    out.write(new byte[CHUNK_SIZE]);
+    out.close();
+
+    // The stale stream must neither publish its contents nor hold chunks of the new slabs.
+    assertThat(cache.getEntryCount(), is(0));
+    assertThat(cache.getAllocatedBytes(), is(cache.getFreeBytes()));
+
+    cache.write("key", 4 * CHUNK_SIZE);
+    assertThat(cache.read("key"), is(4 * CHUNK_SIZE));
+    assertThat(cache.getEvictionCount(), is(0L));
+
+    cache.remove("key");
+    assertThat(cache.getAllocatedBytes(), is(4L * CHUNK_SIZE));
+    assertThat(cache.getFreeBytes(), is(4L * CHUNK_SIZE));
+  }
+
+  @Test
+  public void testMemoryCacheEviction() throws Exception
+  {
+    TestMemoryCache cache = new TestMemoryCache(4 * CHUNK_SIZE);
+    cache.saveProperties("properties", Collections.singletonMap("etag", "1"));
+    cache.write("key1", 2 * CHUNK_SIZE);
+    cache.write("key2", 2 * CHUNK_SIZE);
+    cache.write("key3", 2 * CHUNK_SIZE);
+
+    // Only key1 had to give up its chunks; the properties-only entry is neither evicted nor counted.
+    assertThat(cache.getEvictionCount(), is(1L));
+    assertThat(cache.getEntryCount(), is(3));
+    assertThat(cache.loadProperties("properties").get("etag"), is("1"));
+    assertThat(cache.read("key1"), is(-1));
+    assertThat(cache.read("key3"), is(2 * CHUNK_SIZE));
+  }
+
+  @Test
+  public void testMemoryCacheOverflow() throws Exception
+  {
+    TestMemoryCache cache = new TestMemoryCache(4 * CHUNK_SIZE);
+    cache.write("key", 5 * CHUNK_SIZE);
+
+    assertThat(cache.getEntryCount(), is(0));
+    assertThat(cache.getEvictionCount(), is(0L));
+    assertThat(cache.getFreeBytes(), is(4L * CHUNK_SIZE));
+  }
+
+  @Test
+  public void testFillEndOfFile() throws Exception
+  {
+    TestTarget target = new TestTarget();
+    CountDownLatch completion = new CountDownLatch(1);
+
+    AsyncOutputStream fill = new AsyncOutputStream(target, BUFFER_SIZE, IDLE_TIMEOUT, EXECUTOR, new Completion(completion));
+    fill.write(new byte[40]);
+    fill.write(new byte[40]);
+    fill.reachedEndOfFile();
+    fill.close();
+
+    assertThat(completion.await(10, TimeUnit.SECONDS), is(true));
+    assertThat(fill.isDone(), is(true));
+    assertThat(fill.isAbandoned(), is(false));
+    assertThat(target.size(), is(80));
+    assertThat(target.endOfFile, is(true));
+    assertThat(target.closed, is(true));
+  }
+
+  @Test
+  public void testFillWithoutEndOfFile() throws Exception
+  {
+    TestTarget target = new TestTarget();
+    CountDownLatch completion = new CountDownLatch(1);
+
+    AsyncOutputStream fill = new AsyncOutputStream(target, BUFFER_SIZE, IDLE_TIMEOUT, EXECUTOR, new Completion(completion));
+    fill.write(new byte[40]);
+    fill.close();
+
+    assertThat(completion.await(10, TimeUnit.SECONDS), is(true));
+    assertThat(target.size(), is(40));
+    assertThat(target.endOfFile, is(false));
+    assertThat(target.closed, is(true));
+  }
+
+  @Test
+  public void testFillOverflow() throws Exception
+  {
+    TestTarget target = new TestTarget();
+    target.blocker = new CountDownLatch(1);
+    CountDownLatch completion = new CountDownLatch(1);
+
+    AsyncOutputStream fill = new AsyncOutputStream(target, BUFFER_SIZE, IDLE_TIMEOUT, EXECUTOR, new Completion(completion));
+    fill.write(new byte[3 * BUFFER_SIZE / 4]);
+    fill.write(new byte[3 * BUFFER_SIZE / 4]);
+    assertThat(fill.isAbandoned(), is(true));
+
+    // Further writes are ignored.
+    fill.write(new byte[40]);
+    fill.reachedEndOfFile();
+    fill.close();
+    target.blocker.countDown();
+
+    assertThat(completion.await(10, TimeUnit.SECONDS), is(true));
+    assertThat(target.endOfFile, is(false));
+    assertThat(target.closed, is(true));
+  }
+
+  @Test
+  public void testFillAbandonedByWriter() throws Exception
+  {
+    TestTarget target = new TestTarget();
+    CountDownLatch completion = new CountDownLatch(1);
+
+    // The writer neither closes the stream nor writes more bytes, so the drainer must give up after the idle timeout.
+    AsyncOutputStream fill = new AsyncOutputStream(target, BUFFER_SIZE, 100, EXECUTOR, new Completion(completion));
+    fill.write(new byte[40]);
+
+    assertThat(completion.await(10, TimeUnit.SECONDS), is(true));
+    assertThat(fill.isAbandoned(), is(true));
+    assertThat(target.endOfFile, is(false));
+    assertThat(target.closed, is(true));
+
+    fill.write(new byte[40]);
+    fill.close();
+  }
+
+  @Test
+  public void testTieredCachePromotion() throws Exception
+  {
+    MemoryStorageCache lowerTier = createLowerTier(1000);
+    FileStorageCache upperTier = new FileStorageCache();
+    TieredStorageCache cache = new TieredStorageCache(upperTier, lowerTier);
+
+    try
+    {
+      InputStream in = StorageCacheAccessor.getInputStream(cache, APPLICATION_TOKEN, "key");
+      assertThat(in.read(new byte[100]), is(100));
+
+      // The promoted blob must not be visible in the upper tier before it's complete.
+      assertThat(readAll(StorageCacheAccessor.getInputStream(cache, APPLICATION_TOKEN, "key")), is(1000));
+
+      assertThat(readAll(in), is(900));
+      assertThat(readAll(StorageCacheAccessor.getCompleteInputStream(upperTier, APPLICATION_TOKEN, "key")), is(1000));
+      assertThat(loadProperties(upperTier, "key").get("etag"), is("1"));
+    }
+    finally
+    {
+      IOUtil.delete(upperTier.getFolder());
+    }
+  }
+
+  @Test
+  public void testTieredCachePromotionAbandoned() throws Exception
+  {
+    MemoryStorageCache lowerTier = createLowerTier(1000);
+    FileStorageCache upperTier = new FileStorageCache();
+    TieredStorageCache cache = new TieredStorageCache(upperTier, lowerTier);
+
+    try
+    {
+      InputStream in = StorageCacheAccessor.getInputStream(cache, APPLICATION_TOKEN, "key");
+      assertThat(in.read(new byte[100]), is(100));
+      in.close();
+
+      // The incomplete contents are discarded by the upper tier.
+      assertThat(StorageCacheAccessor.getCompleteInputStream(upperTier, APPLICATION_TOKEN, "key"), nullValue());
+      assertThat(loadProperties(upperTier, "key").isEmpty(), is(true));
+      assertThat(readAll(StorageCacheAccessor.getInputStream(cache, APPLICATION_TOKEN, "key")), is(1000));
+    }
+    finally
+    {
+      IOUtil.delete(upperTier.getFolder());
+    }
+  }
+
+  @Test
+  public void testFillAwait() throws Exception
+  {
+    TestTarget target = new TestTarget();
+    AsyncOutputStream fill = new AsyncOutputStream(target, BUFFER_SIZE, IDLE_TIMEOUT, EXECUTOR, null);
+    fill.write(new byte[40]);
+    fill.reachedEndOfFile();
+    fill.close();
+
+    // Awaiting a closed fill must not abandon it.
+    fill.await();
+    assertThat(fill.isAbandoned(), is(false));
+    assertThat(target.size(), is(40));
+    assertThat(target.endOfFile, is(true));
+  }
+
+  @Test
+  public void testFillRejected() throws Exception
+  {
+    TestTarget target = new TestTarget();
+    CountDownLatch completion = new CountDownLatch(1);
+
+    Executor executor = new Executor()
+    {
+      @Override
+      public void execute(Runnable command)
+      {
+        throw new RejectedExecutionException();
+      }
+    };
+
+    AsyncOutputStream fill = new AsyncOutputStream(target, BUFFER_SIZE, IDLE_TIMEOUT, executor, new Completion(completion));
+    assertThat(completion.getCount(), is(0L));
+    assertThat(fill.isDone(), is(true));
+    assertThat(fill.isAbandoned(), is(true));
+    assertThat(target.closed, is(true));
+
+    fill.write(new byte[40]);
+    fill.close();
+    assertThat(target.size(), is(0));
+  }
+
+  private static MemoryStorageCache createLowerTier(int length) throws IOException
+  {
+    MemoryStorageCache cache = new MemoryStorageCache();
+    OutputStream out = StorageCacheAccessor.getOutputStream(cache, APPLICATION_TOKEN, "key");
+
+    try
+    {
+      out.write(new byte[length]);
+    }
+    finally
+    {
+      IOUtil.close(out);
+    }
+
+    StorageCacheAccessor.saveProperties(cache, APPLICATION_TOKEN, "key", Collections.singletonMap("etag", "1"));
+    return cache;
+  }
+
+  private static Map<String, String> loadProperties(FileStorageCache cache, String key) throws IOException
+  {
+    Map<String, String> properties = new HashMap<String, String>();
+    StorageCacheAccessor.loadProperties(cache, APPLICATION_TOKEN, key, properties);
+    return properties;
+  }
+
+  private static int readAll(InputStream in) throws IOException
+  {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+
+    try
+    {
+      IOUtil.copy(in, baos);
+    }
+    finally
+    {
+      IOUtil.close(in);
+    }
+
+    return baos.size();
+  }
+
+  /**
+   * @author Eike Stepper
+   */
+  private static final class Completion implements Runnable
+  {
+    private final CountDownLatch latch;
+
+    public Completion(CountDownLatch latch)
+    {
+      this.latch = latch;
+    }
+
+    @Override
+    public void run()
+    {
+      latch.countDown();
+    }
+  }
+
+  /**
+   * @author Eike Stepper
+   */
+  private static final class TestTarget extends ByteArrayOutputStream implements EndOfFileAware
+  {
+    private volatile CountDownLatch blocker;
+
+    private volatile boolean endOfFile;
+
+    private volatile boolean closed;
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len)
+    {
+      if (blocker != null)
+      {
+        try
+        {
+          blocker.await();
+        }
+        catch (InterruptedException ex)
+        {
+          Thread.currentThread().interrupt();
+        }
+      }
+
+      super.write(b, off, len);
+    }
+
+    @Override
+    public void reachedEndOfFile()
+    {
+      endOfFile = true;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+      closed = true;
+    }
+  }
+
+  /**
+   * @author Eike Stepper
+   */
+  private static final class TestMemoryCache extends MemoryStorageCache
+  {
+    public TestMemoryCache(long maxBytes)
+    {
+      super(maxBytes, CHUNK_SIZE, CHUNK_SIZE);
+    }
+
+    public OutputStream openOutputStream(String key) throws IOException
+    {
+      return getOutputStream(APPLICATION_TOKEN, key);
+    }
+
+    public void write(String key, int length) throws IOException
+    {
+      OutputStream out = openOutputStream(key);
+
+      try
+      {
+        out.write(new byte[length]);
+      }
+      finally
+      {
+        IOUtil.close(out);
+      }
+    }
+
+    public int read(String key) throws IOException
+    {
+      InputStream in = getInputStream(APPLICATION_TOKEN, key);
+      if (in == null)
+      {
+        return -1;
+      }
+
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+
+      try
+      {
+        IOUtil.copy(in, baos);
+      }
+      finally
+      {
+        IOUtil.close(in);
+      }
+
+      return baos.size();
+    }
+
+    public Map<String, String> loadProperties(String key) throws IOException
+    {
+      Map<String, String> properties = new HashMap<String, String>();
+      loadProperties(APPLICATION_TOKEN, key, properties);
+      return properties;
+    }
+
+    public void saveProperties(String key, Map<String, String> properties) throws IOException
+    {
+      saveProperties(APPLICATION_TOKEN, key, properties);
+    }
+
+    public void remove(String key) throws IOException
+    {
+      delete(APPLICATION_TOKEN, key);
+    }
+  }
+}
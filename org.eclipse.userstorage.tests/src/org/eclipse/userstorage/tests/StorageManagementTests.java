@@ -0,0 +1,261 @@
+/*
+ * Copyright (c) 2015 Eike Stepper (Berlin, Germany) and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Eike Stepper - initial API and implementation
+ */
+package org.eclipse.userstorage.tests;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import org.eclipse.userstorage.IBlob;
+import org.eclipse.userstorage.IStorage;
+import org.eclipse.userstorage.IStorageService;
+import org.eclipse.userstorage.StorageFactory;
+import org.eclipse.userstorage.internal.StorageManagement;
+import org.eclipse.userstorage.internal.StorageProperties;
+import org.eclipse.userstorage.internal.StorageServiceRegistry;
+import org.eclipse.userstorage.internal.util.StringUtil;
+import org.eclipse.userstorage.spi.ISettings;
+import org.eclipse.userstorage.tests.util.ClientFixture;
+import org.eclipse.userstorage.tests.util.ClientFixture.TestCache;
+import org.eclipse.userstorage.tests.util.ServerFixture;
+import org.eclipse.userstorage.util.Settings.MemorySettings;
+
+import org.junit.Assume;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import java.lang.management.ManagementFactory;
+import java.net.URI;
+
+/**
+ * Tests the JMX MBeans of {@link StorageManagement} through the platform MBean server.
+ *
+ * @author Eike Stepper
+ */
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public final class StorageManagementTests extends AbstractTest
+{
+  private static final String APPLICATION_TOKEN = StorageTests.APPLICATION_TOKEN;
+
+  private static final String KEY = "test_blob";
+
+  private static final String VALUE = "A short UTF-8 string value";
+
+  private static final int GC_ATTEMPTS = 10;
+
+  private final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+  private ServerFixture serverFixture;
+
+  private ClientFixture clientFixture;
+
+  private StorageFactory factory;
+
+  private TestCache cache;
+
+  @Override
+  public void setUp() throws Exception
+  {
+    super.setUp();
+    System.setProperty(StorageProperties.JMX, Boolean.TRUE.toString());
+    StorageManagement.reload();
+
+    StorageServiceRegistry.INSTANCE.stop();
+    StorageServiceRegistry.INSTANCE.start();
+
+    serverFixture = new ServerFixture(APPLICATION_TOKEN);
+    Assume.assumeTrue(serverFixture.hasLocalServer());
+
+    clientFixture = new ClientFixture(serverFixture);
+    factory = clientFixture.getFactory();
+    cache = clientFixture.getCache();
+  }
+
+  @Override
+  public void tearDown() throws Exception
+  {
+    if (clientFixture != null)
+    {
+      clientFixture.dispose();
+      clientFixture = null;
+    }
+
+    if (serverFixture != null)
+    {
+      serverFixture.dispose();
+      serverFixture = null;
+    }
+
+    System.clearProperty(StorageProperties.JMX);
+    StorageManagement.reload();
+    super.tearDown();
+  }
+
+  @Test
+  public void testRegistration() throws Exception
+  {
+    assertThat(StorageManagement.isEnabled(), is(true));
+
+    IStorage storage = factory.create(APPLICATION_TOKEN, cache);
+    ObjectName storageName = getStorageName(storage);
+    ObjectName cacheName = getCacheName();
+    assertThat(server.getAttribute(storageName, "ApplicationToken"), is((Object)APPLICATION_TOKEN));
+    assertThat(server.getAttribute(cacheName, "Folder"), is((Object)cache.getFolder().getAbsolutePath()));
+
+    // The service is only registered when it opens its first session.
+    ObjectName serviceName = getServiceName(storage.getService());
+    assertThat(server.isRegistered(serviceName), is(false));
+
+    storage.getBlob(KEY).setContentsUTF(VALUE);
+    assertThat(storage.getBlob(KEY).getContentsUTF(), is(VALUE));
+
+    assertThat(server.getAttribute(serviceName, "ServiceURI"), is((Object)storage.getService().getServiceURI().toString()));
+    assertThat(server.getAttribute(serviceName, "ServiceLabel"), is((Object)storage.getService().getServiceLabel()));
+    assertThat(server.getAttribute(serviceName, "SessionState"), is((Object)"ACTIVE"));
+    assertThat((Long)server.getAttribute(serviceName, "SessionAge") >= 0, is(true));
+    assertThat((Long)server.getAttribute(serviceName, "BytesSent") > 0, is(true));
+    assertThat((Long)server.getAttribute(serviceName, "BytesReceived") > 0, is(true));
+    assertThat(server.getAttribute(serviceName, "CircuitBreakerState"), is((Object)"CLOSED"));
+    assertThat(server.getAttribute(serviceName, "Statistics"), is((Object)storage.getService().getStatistics().toString()));
+
+    assertThat(server.getAttribute(storageName, "ServiceURI"), is((Object)storage.getService().getServiceURI().toString()));
+    assertThat(server.getAttribute(storageName, "CacheEntryCount"), is((Object)1));
+    assertThat(server.getAttribute(cacheName, "EntryCount"), is((Object)cache.getEntryCount()));
+    assertThat((Long)server.getAttribute(cacheName, "DiskUsage") > 0, is(true));
+  }
+
+  @Test
+  public void testResetSession() throws Exception
+  {
+    IStorage storage = factory.create(APPLICATION_TOKEN, cache);
+    storage.getBlob(KEY).setContentsUTF(VALUE);
+
+    ObjectName serviceName = getServiceName(storage.getService());
+    assertThat(server.getAttribute(serviceName, "SessionState"), is((Object)"ACTIVE"));
+
+    server.invoke(serviceName, "resetSession", null, null);
+    assertThat(server.getAttribute(serviceName, "SessionState"), is((Object)"NONE"));
+    assertThat(server.getAttribute(serviceName, "SessionAge"), is((Object)(-1L)));
+    assertThat(server.getAttribute(serviceName, "LastLogin"), is((Object)""));
+
+    // The next request logs in again.
+    assertThat(storage.getBlob(KEY).getContentsUTF(), is(VALUE));
+    assertThat(server.getAttribute(serviceName, "SessionState"), is((Object)"ACTIVE"));
+  }
+
+  @Test
+  public void testClearCache() throws Exception
+  {
+    IStorage storage = factory.create(APPLICATION_TOKEN, cache);
+    storage.getBlob(KEY).setContentsUTF(VALUE);
+    assertThat(storage.getBlob(KEY).getContentsUTF(), is(VALUE));
+
+    ObjectName storageName = getStorageName(storage);
+    assertThat(server.getAttribute(storageName, "CacheEntryCount"), is((Object)1));
+
+    server.invoke(storageName, "clearCache", null, null);
+    assertThat(server.getAttribute(storageName, "CacheEntryCount"), is((Object)0));
+    assertThat(cache.getEntryCount(), is(0));
+
+    // The blob is still on the server.
+    assertThat(storage.getBlob(KEY).getContentsUTF(), is(VALUE));
+  }
+
+  @Test
+  public void testClearFileStorageCache() throws Exception
+  {
+    IStorage storage = factory.create(APPLICATION_TOKEN, cache);
+    storage.getBlob(KEY).setContentsUTF(VALUE);
+    storage.getBlob(KEY + "2").setContentsUTF(VALUE);
+
+    ObjectName cacheName = getCacheName();
+    assertThat(server.getAttribute(cacheName, "EntryCount"), is((Object)2));
+
+    server.invoke(cacheName, "clear", null, null);
+    assertThat(server.getAttribute(cacheName, "EntryCount"), is((Object)0));
+    assertThat(server.getAttribute(getStorageName(storage), "CacheEntryCount"), is((Object)0));
+  }
+
+  @Test
+  public void testUnregisterRemovedService() throws Exception
+  {
+    // A second service that reaches the same local server under another URI.
+    URI serviceURI = serverFixture.getService().getServiceURI();
+    IStorageService.Dynamic service = IStorageService.Registry.INSTANCE.addService("Other",
+        StringUtil.newURI("http://127.0.0.1:" + serviceURI.getPort()));
+
+    try
+    {
+      ISettings settings = new MemorySettings();
+      settings.setValue(APPLICATION_TOKEN, service.getServiceURI().toString());
+
+      IStorage storage = new StorageFactory(settings).create(APPLICATION_TOKEN);
+      storage.getBlob(KEY).setContentsUTF(VALUE);
+
+      ObjectName serviceName = getServiceName(service);
+      assertThat(server.isRegistered(serviceName), is(true));
+
+      service.remove();
+      service = null;
+      assertThat(server.isRegistered(serviceName), is(false));
+    }
+    finally
+    {
+      if (service != null)
+      {
+        service.remove();
+      }
+    }
+  }
+
+  @Test
+  public void testUnregisterCollectedStorage() throws Exception
+  {
+    ObjectName storageName = createStorage();
+    assertThat(server.isRegistered(storageName), is(true));
+
+    for (int i = 0; i < GC_ATTEMPTS && server.isRegistered(storageName); i++)
+    {
+      System.gc();
+      Thread.sleep(100);
+
+      // The MBeans of collected storages are unregistered when the next storage is registered.
+      factory.create(APPLICATION_TOKEN, cache);
+    }
+
+    assertThat(server.isRegistered(storageName), is(false));
+  }
+
+  private ObjectName createStorage() throws Exception
+  {
+    IStorage storage = factory.create(APPLICATION_TOKEN, cache);
+    storage.getBlob(KEY).setContentsUTF(VALUE);
+    return getStorageName(storage);
+  }
+
+  private static ObjectName getStorageName(IStorage storage) throws Exception
+  {
+    return new ObjectName(StorageManagement.DOMAIN + ":type=Storage,application=" + ObjectName.quote(storage.getApplicationToken()) + ",id="
+        + Integer.toHexString(System.identityHashCode(storage)));
+  }
+
+  private ObjectName getCacheName() throws Exception
+  {
+    return new ObjectName(StorageManagement.DOMAIN + ":type=FileStorageCache,folder=" + ObjectName.quote(cache.getFolder().getAbsolutePath()));
+  }
+
+  private static ObjectName getServiceName(IStorageService service) throws Exception
+  {
+    return new ObjectName(StorageManagement.DOMAIN + ":type=Service,uri=" + ObjectName.quote(service.getServiceURI().toString()));
+  }
+}
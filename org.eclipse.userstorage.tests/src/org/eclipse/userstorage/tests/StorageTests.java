@@ -14,40 +14,64 @@ import static org.hamcrest.MatcherAssert.assertThat;
 
 import org.eclipse.userstorage.IBlob;
 import org.eclipse.userstorage.IStorage;
+import org.eclipse.userstorage.IStorageService;
 import org.eclipse.userstorage.StorageFactory;
+import org.eclipse.userstorage.internal.CircuitBreaker;
 import org.eclipse.userstorage.internal.Session;
+import org.eclipse.userstorage.internal.StorageProperties;
 import org.eclipse.userstorage.internal.StorageService;
 import org.eclipse.userstorage.internal.StorageServiceRegistry;
 import org.eclipse.userstorage.internal.util.IOUtil;
+import org.eclipse.userstorage.internal.util.StringUtil;
 import org.eclipse.userstorage.spi.Credentials;
+import org.eclipse.userstorage.spi.IStorageMetrics.Operation;
+import org.eclipse.userstorage.tests.util.BlobStore;
 import org.eclipse.userstorage.tests.util.ClientFixture;
 import org.eclipse.userstorage.tests.util.ClientFixture.TestCache;
 import org.eclipse.userstorage.tests.util.FixedCredentialsProvider;
+import org.eclipse.userstorage.tests.util.Fixture;
 import org.eclipse.userstorage.tests.util.ServerFixture;
 import org.eclipse.userstorage.tests.util.ServerFixture.BlobInfo;
 import org.eclipse.userstorage.tests.util.USSServer;
+import org.eclipse.userstorage.tests.util.USSServer.User;
 import org.eclipse.userstorage.util.BadApplicationTokenException;
 import org.eclipse.userstorage.util.BadKeyException;
 import org.eclipse.userstorage.util.ConflictException;
+import org.eclipse.userstorage.util.MemoryStorageCache;
 import org.eclipse.userstorage.util.NotFoundException;
 import org.eclipse.userstorage.util.ProtocolException;
+import org.eclipse.userstorage.util.ServiceUnavailableException;
+import org.eclipse.userstorage.util.StorageStatistics;
+import org.eclipse.userstorage.util.TieredStorageCache;
 
 import org.junit.FixMethodOrder;
 import org.junit.Test;
+import org.junit.runner.RunWith;
 import org.junit.runners.MethodSorters;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
 
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.InputStream;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
 /**
+ * Runs against a local server with each kind of {@link BlobStore}, unless the system property {@link BlobStore#PROPERTY} selects one of them,
+ * or against the remote server.
+ *
  * @author Eike Stepper
  */
+@RunWith(Parameterized.class)
 @FixMethodOrder(MethodSorters.NAME_ASCENDING)
 public final class StorageTests extends AbstractTest
 {
@@ -60,6 +84,8 @@ public final class StorageTests extends AbstractTest
 
   private static final String WRONG_ETAG = "wrong_etag";
 
+  private final String blobStoreType;
+
   private ServerFixture serverFixture;
 
   private ClientFixture clientFixture;
@@ -68,6 +94,23 @@ public final class StorageTests extends AbstractTest
 
   private TestCache cache;
 
+  public StorageTests(String blobStoreType)
+  {
+    this.blobStoreType = blobStoreType;
+  }
+
+  @Parameters(name = "{0}")
+  public static List<Object[]> getBlobStoreTypes()
+  {
+    String blobStoreType = System.getProperty(BlobStore.PROPERTY);
+    if (blobStoreType != null || Fixture.REMOTE)
+    {
+      return Collections.singletonList(new Object[] { blobStoreType });
+    }
+
+    return Arrays.asList(new Object[] { BlobStore.FILE }, new Object[] { BlobStore.MEMORY });
+  }
+
   @Override
   public void setUp() throws Exception
   {
@@ -75,7 +118,7 @@ public final class StorageTests extends AbstractTest
     StorageServiceRegistry.INSTANCE.stop();
     StorageServiceRegistry.INSTANCE.start();
 
-    serverFixture = new ServerFixture(APPLICATION_TOKEN);
+    serverFixture = new ServerFixture(APPLICATION_TOKEN, blobStoreType);
     clientFixture = new ClientFixture(serverFixture);
     factory = clientFixture.getFactory();
     cache = clientFixture.getCache();
@@ -146,6 +189,15 @@ public final class StorageTests extends AbstractTest
     factory.create("aaaaaaaaaaaaaaaaaaaaaaaaaaa"); // Just long enough.
   }
 
+  @Test
+  public void testSharedStorage() throws Exception
+  {
+    IStorage storage = factory.getSharedStorage(APPLICATION_TOKEN, cache);
+    assertThat(factory.getSharedStorage(APPLICATION_TOKEN, cache), sameInstance(storage));
+    assertThat(factory.getSharedStorage(APPLICATION_TOKEN, null), not(sameInstance(storage)));
+    assertThat(factory.create(APPLICATION_TOKEN, cache), not(sameInstance(storage)));
+  }
+
   @Test
   public void testKey() throws Exception
   {
@@ -289,6 +341,34 @@ public final class StorageTests extends AbstractTest
     blob.setContentsUTF("Text 3"); // Update 2
   }
 
+  @Test
+  public void testUpdateAfterBlobCollected() throws Exception
+  {
+    IStorage storage = factory.create(APPLICATION_TOKEN);
+    WeakReference<IBlob> reference = createBlob(storage, "Text 1");
+
+    for (int i = 0; i < 100 && reference.get() != null; i++)
+    {
+      System.gc();
+      Thread.sleep(10);
+    }
+
+    assertThat(reference.get(), nullValue());
+
+    // Without a cache the storage must still know the ETag of the collected blob, so that the update is no conflict.
+    IBlob blob = storage.getBlob(KEY);
+    assertThat(blob.getETag(), notNullValue());
+    blob.setContentsUTF("Text 2");
+    assertThat(blob.getContentsUTF(), is("Text 2"));
+  }
+
+  private static WeakReference<IBlob> createBlob(IStorage storage, String value) throws Exception
+  {
+    IBlob blob = storage.getBlob(KEY);
+    blob.setContentsUTF(value);
+    return new WeakReference<IBlob>(blob);
+  }
+
   @Test
   public void testUpdateWithWrongETag() throws Exception
   {
@@ -416,6 +496,189 @@ public final class StorageTests extends AbstractTest
     assertThat(clientFixture.readCache(blob.getKey(), ".properties"), containsString("etag=" + blob.getETag()));
   }
 
+  @Test
+  public void testRetrieveWithMemoryCache() throws Exception
+  {
+    MemoryStorageCache memoryCache = new MemoryStorageCache();
+    IStorage storage = factory.create(APPLICATION_TOKEN, memoryCache);
+    IBlob blob = storage.getBlob(KEY);
+
+    String value = "A short UTF-8 string value";
+    blob.setContentsUTF(value);
+
+    assertThat(blob.getContentsUTF(), is(value));
+    assertThat(memoryCache.getEntryCount(), is(1));
+
+    InputStream contents = blob.getContents();
+    assertThat(contents, not(instanceOf(FileInputStream.class)));
+
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    IOUtil.copy(contents, baos);
+    IOUtil.close(contents);
+    assertThat(StringUtil.fromUTF(baos.toByteArray()), is(value));
+  }
+
+  @Test
+  public void testRetrieveWithTieredCache() throws Exception
+  {
+    MemoryStorageCache memoryCache = new MemoryStorageCache();
+    IStorage storage = factory.create(APPLICATION_TOKEN, new TieredStorageCache(memoryCache, cache));
+    IBlob blob = storage.getBlob(KEY);
+
+    String value = "A short UTF-8 string value";
+    blob.setContentsUTF(value);
+
+    assertThat(blob.getContentsUTF(), is(value));
+    assertThat(memoryCache.getEntryCount(), is(1));
+    assertThat(clientFixture.readCache(blob.getKey(), null), is(value));
+    assertThat(clientFixture.readCache(blob.getKey(), ".properties"), containsString("etag=" + blob.getETag()));
+
+    memoryCache.clear();
+    assertThat(blob.getContentsUTF(), is(value));
+
+    // The promotion completes in the background; the upper tier serves the blob once it's complete.
+    InputStream contents = blob.getContents();
+    assertThat(contents, not(instanceOf(FileInputStream.class)));
+    IOUtil.close(contents);
+    assertThat(memoryCache.getEntryCount(), is(1));
+  }
+
+  @Test
+  public void testRetrieveWithSharedCache() throws Exception
+  {
+    IStorage storage = factory.create(APPLICATION_TOKEN, cache);
+    storage.getBlob(KEY).setContentsUTF("A short UTF-8 string value");
+
+    // A new cache on the same folder indexes the cached blob once for all storages that share it.
+    TestCache sharedCache = new TestCache(cache.getFolder());
+    IStorage storage1 = factory.create(APPLICATION_TOKEN, sharedCache);
+    IStorage storage2 = factory.create(APPLICATION_TOKEN, sharedCache);
+    Thread.sleep(500); // Give the index time to load.
+
+    IBlob blob1 = storage1.getBlob(KEY);
+    String value = "A different value";
+    blob1.setContentsUTF(value);
+
+    // The write through the shared cache must have invalidated the indexed properties.
+    IBlob blob2 = storage2.getBlob(KEY);
+    assertThat(blob2.getETag(), is(blob1.getETag()));
+    assertThat(blob2.getContentsUTF(), is(value));
+  }
+
+  @Test
+  public void testRetrieveWithFailover() throws Exception
+  {
+    if (!serverFixture.hasLocalServer())
+    {
+      return;
+    }
+
+    IStorage storage = factory.create(APPLICATION_TOKEN, cache);
+    IBlob blob = storage.getBlob(KEY);
+    blob.setContentsUTF("Primary value");
+    String eTag = blob.getETag();
+
+    USSServer fallbackServer = new USSServer(8080, BlobStore.create(BlobStore.MEMORY, null));
+    User fallbackUser = fallbackServer.addUser(FixedCredentialsProvider.DEFAULT_CREDENTIALS);
+    fallbackServer.getApplicationTokens().add(APPLICATION_TOKEN);
+    fallbackServer.getBlobStore().setBlob(fallbackUser, APPLICATION_TOKEN, KEY, IOUtil.streamUTF("Fallback value"), "fallback_etag");
+    int port = fallbackServer.start();
+
+    IStorageService.Dynamic fallbackService = IStorageService.Registry.INSTANCE.addService("Fallback", StringUtil.newURI("http://localhost:" + port));
+    String oldFailover = System.setProperty(StorageProperties.SERVICE_FAILOVER, "true");
+    long oldReadFailovers = serverFixture.getService().getStatistics().getReadFailovers();
+
+    final List<IStorageService> serviceChanges = new ArrayList<IStorageService>();
+    storage.addListener(new IStorage.Listener()
+    {
+      @Override
+      public void serviceChanged(IStorage storage, IStorageService oldService, IStorageService newService)
+      {
+        serviceChanges.add(newService);
+      }
+    });
+
+    try
+    {
+      // Take down all services but the fallback service, including the predefined ones.
+      for (IStorageService service : IStorageService.Registry.INSTANCE.getServices())
+      {
+        if (service != fallbackService)
+        {
+          CircuitBreaker circuitBreaker = ((StorageService)service).getCircuitBreaker();
+          for (int i = 0; i < circuitBreaker.getFailureThreshold(); i++)
+          {
+            circuitBreaker.recordFailure();
+          }
+        }
+      }
+
+      // Reads go to the fallback service, but neither the blob nor the cache take over its ETag or contents.
+      assertThat(blob.getContentsUTF(), is("Fallback value"));
+      assertThat(blob.getETag(), is(eTag));
+      // The service of the storage doesn't change, so only the metrics learn about the failover.
+      assertThat(storage.getService(), is((IStorageService)serverFixture.getService()));
+      assertThat(serviceChanges.isEmpty(), is(true));
+      assertThat(serverFixture.getService().getStatistics().getReadFailovers(), is(oldReadFailovers + 1));
+
+      assertThat(blob.getContentsUTF(), is("Fallback value"));
+      assertThat(serverFixture.getService().getStatistics().getReadFailovers(), is(oldReadFailovers + 1));
+      assertThat(clientFixture.readCache(KEY, null), is("Primary value"));
+
+      // Writes must not go to the fallback service.
+      try
+      {
+        blob.setContentsUTF("New value");
+        fail("ServiceUnavailableException expected");
+      }
+      catch (ServiceUnavailableException expected)
+      {
+        // SUCCESS
+      }
+
+      assertThat(fallbackServer.getBlobStore().getBlob(fallbackUser, APPLICATION_TOKEN, KEY).getETag(), is("fallback_etag"));
+    }
+    finally
+    {
+      if (oldFailover == null)
+      {
+        System.clearProperty(StorageProperties.SERVICE_FAILOVER);
+      }
+      else
+      {
+        System.setProperty(StorageProperties.SERVICE_FAILOVER, oldFailover);
+      }
+
+      fallbackService.remove();
+      fallbackServer.stop();
+    }
+  }
+
+  @Test
+  public void testRetrieveStatistics() throws Exception
+  {
+    IStorage storage = factory.create(APPLICATION_TOKEN, cache);
+    StorageStatistics statistics = storage.getService().getStatistics();
+
+    long puts = statistics.getLatencies(Operation.PUT).getCount();
+    long gets = statistics.getLatencies(Operation.GET).getCount();
+    long notModified = statistics.getStatusCodeCount(304);
+    long cacheHits = statistics.getCacheHits();
+    long bytesSent = statistics.getBytesSent();
+
+    IBlob blob = storage.getBlob(KEY);
+
+    String value = "A short UTF-8 string value";
+    blob.setContentsUTF(value);
+    assertThat(blob.getContentsUTF(), is(value));
+
+    assertThat(statistics.getLatencies(Operation.PUT).getCount(), is(puts + 1));
+    assertThat(statistics.getLatencies(Operation.GET).getCount(), is(gets + 1));
+    assertThat(statistics.getStatusCodeCount(304), is(notModified + 1));
+    assertThat(statistics.getCacheHits(), is(cacheHits + 1));
+    assertThat(statistics.getBytesSent() > bytesSent, is(true));
+  }
+
   @Test
   public void testRetrieveMulti() throws Exception
   {
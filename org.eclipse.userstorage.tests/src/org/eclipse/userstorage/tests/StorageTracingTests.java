@@ -0,0 +1,495 @@
+/*
+ * Copyright (c) 2015 Eike Stepper (Berlin, Germany) and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Eike Stepper - initial API and implementation
+ */
+package org.eclipse.userstorage.tests;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import org.eclipse.userstorage.IBlob;
+import org.eclipse.userstorage.IStorage;
+import org.eclipse.userstorage.IStorageService;
+import org.eclipse.userstorage.StorageFactory;
+import org.eclipse.userstorage.internal.RetryPolicy;
+import org.eclipse.userstorage.internal.StorageProperties;
+import org.eclipse.userstorage.internal.StorageServiceRegistry;
+import org.eclipse.userstorage.internal.StorageTracing;
+import org.eclipse.userstorage.spi.IStorageTracer;
+import org.eclipse.userstorage.tests.util.ClientFixture;
+import org.eclipse.userstorage.tests.util.ClientFixture.TestCache;
+import org.eclipse.userstorage.tests.util.FaultInjector;
+import org.eclipse.userstorage.tests.util.FaultInjector.Faults;
+import org.eclipse.userstorage.tests.util.ServerFixture;
+
+import org.junit.Assume;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests the spans that {@link StorageTracing} reports to the {@link IStorageTracer tracer} that is named by the system property.
+ *
+ * @author Eike Stepper
+ */
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public final class StorageTracingTests extends AbstractTest
+{
+  private static final String APPLICATION_TOKEN = StorageTests.APPLICATION_TOKEN;
+
+  private static final String KEY = "test_blob";
+
+  private static final String VALUE = "A short UTF-8 string value";
+
+  private static final String LOGIN = "POST api/user/login";
+
+  private static final String GET = "GET api/blob/{applicationToken}/{key}";
+
+  private static final String PUT = "PUT api/blob/{applicationToken}/{key}";
+
+  private static final String DELETE = "DELETE api/blob/{applicationToken}/{key}";
+
+  private static final long TIMEOUT = 10000;
+
+  private ServerFixture serverFixture;
+
+  private ClientFixture clientFixture;
+
+  private StorageFactory factory;
+
+  private TestCache cache;
+
+  @Override
+  public void setUp() throws Exception
+  {
+    super.setUp();
+    StorageServiceRegistry.INSTANCE.stop();
+    StorageServiceRegistry.INSTANCE.start();
+
+    serverFixture = new ServerFixture(APPLICATION_TOKEN);
+    Assume.assumeTrue(serverFixture.hasLocalServer());
+
+    clientFixture = new ClientFixture(serverFixture);
+    factory = clientFixture.getFactory();
+    cache = clientFixture.getCache();
+
+    RecordingTracer.SPANS.clear();
+    ThrowingTracer.BEGINS.set(0);
+    ThrowingTracer.ENDS.set(0);
+  }
+
+  @Override
+  public void tearDown() throws Exception
+  {
+    System.clearProperty(StorageProperties.TRACER);
+    StorageTracing.reload();
+
+    if (clientFixture != null)
+    {
+      clientFixture.dispose();
+      clientFixture = null;
+    }
+
+    if (serverFixture != null)
+    {
+      serverFixture.dispose();
+      serverFixture = null;
+    }
+
+    super.tearDown();
+  }
+
+  @Test
+  public void testRequestSpans() throws Exception
+  {
+    installTracer(RecordingTracer.class);
+    assertThat(StorageTracing.isEnabled(), is(true));
+
+    IStorage storage = factory.create(APPLICATION_TOKEN);
+    IBlob blob = storage.getBlob(KEY);
+    blob.setContentsUTF(VALUE);
+
+    assertSpan("authentication", 200, 0);
+    RecordedSpan login = assertSpan(LOGIN, 200, -1);
+    assertThat(login.getBytes() > 0, is(true));
+
+    // The login response is the only JSON document that is parsed, and the parser consumes all of it.
+    assertSpan("jsonParse", 0, login.getBytes());
+    assertSpan(PUT, 201, 0);
+
+    // The login arguments and the blob are built as JSON documents.
+    List<RecordedSpan> builds = getSpans("jsonBuild");
+    assertThat(builds.size(), is(2));
+    for (RecordedSpan build : builds)
+    {
+      assertThat(build.getEnds(), is(1));
+      assertThat(build.getBytes() > 0, is(true));
+    }
+
+    RecordingTracer.SPANS.clear();
+    assertThat(blob.getContentsUTF(), is(VALUE));
+    assertResponseSpans(GET, 200);
+
+    RecordingTracer.SPANS.clear();
+    blob.delete();
+    assertSpan(DELETE, 204, 0);
+  }
+
+  @Test
+  public void testFailedRequestSpans() throws Exception
+  {
+    installTracer(RecordingTracer.class);
+
+    IStorage storage = factory.create(APPLICATION_TOKEN);
+    IBlob blob = storage.getBlob(KEY);
+    blob.setContentsUTF(VALUE);
+
+    RecordingTracer.SPANS.clear();
+    serverFixture.getServer().getFaultInjector().setFaults(FaultInjector.GET, new Faults().setResetRate(1.0));
+
+    try
+    {
+      blob.getContentsUTF();
+      fail("IOException expected");
+    }
+    catch (IOException expected)
+    {
+      // SUCCESS
+    }
+
+    // Each attempt is a request of its own, and none of them has received a response.
+    List<RecordedSpan> gets = getSpans(GET);
+    assertThat(gets.size(), is(1 + RetryPolicy.INSTANCE.getMaxRetries()));
+    for (RecordedSpan get : gets)
+    {
+      assertThat(get.getEnds(), is(1));
+      assertThat(get.getStatus(), is(-1));
+      assertThat(get.getBytes(), is(0L));
+    }
+  }
+
+  @Test
+  public void testCacheSpans() throws Exception
+  {
+    installTracer(RecordingTracer.class);
+    factory.create(APPLICATION_TOKEN).getBlob(KEY).setContentsUTF(VALUE);
+
+    IStorage storage = factory.create(APPLICATION_TOKEN, cache);
+    IBlob blob = storage.getBlob(KEY);
+
+    RecordingTracer.SPANS.clear();
+    assertThat(blob.getContentsUTF(), is(VALUE));
+    assertSpan("cacheOpen " + KEY, 0, 0);
+    assertResponseSpans(GET, 200);
+
+    // The cache is filled in the background.
+    RecordedSpan fill = getSpans("cacheFill " + KEY).get(0);
+    fill.awaitEnd();
+    assertSpan("cacheFill " + KEY, 1, VALUE.length());
+
+    RecordingTracer.SPANS.clear();
+    assertThat(blob.getContentsUTF(), is(VALUE));
+    assertSpan("cacheOpen " + KEY, 1, 0);
+    assertSpan(GET, 304, 0);
+    assertThat(getSpans("cacheFill " + KEY).isEmpty(), is(true));
+
+    RecordingTracer.SPANS.clear();
+    blob.delete();
+    assertSpan("cacheEvict " + KEY, 0, 0);
+  }
+
+  @Test
+  public void testThrowingTracer() throws Exception
+  {
+    installTracer(ThrowingTracer.class);
+    assertThat(StorageTracing.isEnabled(), is(true));
+
+    // A tracer that fails must not fail the operations that it traces.
+    IStorage storage = factory.create(APPLICATION_TOKEN, cache);
+    IBlob blob = storage.getBlob(KEY);
+    blob.setContentsUTF(VALUE);
+    assertThat(factory.create(APPLICATION_TOKEN).getBlob(KEY).getContentsUTF(), is(VALUE));
+    assertThat(blob.getContentsUTF(), is(VALUE));
+    assertThat(blob.delete(), is(true));
+
+    assertThat(ThrowingTracer.BEGINS.get() > 0, is(true));
+    assertThat(ThrowingTracer.ENDS.get() > 0, is(true));
+  }
+
+  @Test
+  public void testNoTracer() throws Exception
+  {
+    installTracer(RecordingTracer.class);
+    assertThat(StorageTracing.isEnabled(), is(true));
+
+    System.clearProperty(StorageProperties.TRACER);
+    StorageTracing.reload();
+    assertThat(StorageTracing.isEnabled(), is(false));
+
+    factory.create(APPLICATION_TOKEN, cache).getBlob(KEY).setContentsUTF(VALUE);
+    assertThat(RecordingTracer.SPANS.isEmpty(), is(true));
+  }
+
+  /**
+   * Asserts that exactly one span of the given name has been ended exactly once, with the given status and, unless it's <code>-1</code>, the given number of bytes.
+   */
+  private static RecordedSpan assertSpan(String name, int status, long bytes)
+  {
+    List<RecordedSpan> spans = getSpans(name);
+    assertThat(name, spans.size(), is(1));
+
+    RecordedSpan span = spans.get(0);
+    assertThat(name, span.getEnds(), is(1));
+    assertThat(name, span.getStatus(), is(status));
+    if (bytes != -1)
+    {
+      assertThat(name, span.getBytes(), is(bytes));
+    }
+
+    return span;
+  }
+
+  /**
+   * Asserts that a request has received a JSON response and that the parser hasn't consumed more bytes than the response has.
+   */
+  private static void assertResponseSpans(String name, int status)
+  {
+    RecordedSpan request = assertSpan(name, status, -1);
+    assertThat(request.getBytes() > 0, is(true));
+
+    RecordedSpan parse = assertSpan("jsonParse", 0, -1);
+    assertThat(parse.getBytes() > 0, is(true));
+    assertThat(parse.getBytes() <= request.getBytes(), is(true));
+  }
+
+  private static List<RecordedSpan> getSpans(String name)
+  {
+    List<RecordedSpan> result = new ArrayList<RecordedSpan>();
+    for (RecordedSpan span : RecordingTracer.SPANS)
+    {
+      if (span.getName().equals(name))
+      {
+        result.add(span);
+      }
+    }
+
+    return result;
+  }
+
+  private static void installTracer(Class<? extends IStorageTracer> c)
+  {
+    System.setProperty(StorageProperties.TRACER, c.getName());
+    StorageTracing.reload();
+  }
+
+  /**
+   * Records all spans, so that the tests can check how they have been ended.
+   *
+   * @author Eike Stepper
+   */
+  public static final class RecordingTracer implements IStorageTracer
+  {
+    static final List<RecordedSpan> SPANS = new CopyOnWriteArrayList<RecordedSpan>();
+
+    public RecordingTracer()
+    {
+    }
+
+    @Override
+    public Span beginRequest(IStorageService service, String method, String uriTemplate)
+    {
+      return begin(method + " " + uriTemplate);
+    }
+
+    @Override
+    public Span beginAuthentication(IStorageService service)
+    {
+      return begin("authentication");
+    }
+
+    @Override
+    public Span beginCacheOpen(String applicationToken, String key)
+    {
+      return begin("cacheOpen " + key);
+    }
+
+    @Override
+    public Span beginCacheFill(String applicationToken, String key)
+    {
+      return begin("cacheFill " + key);
+    }
+
+    @Override
+    public Span beginCacheEvict(String applicationToken, String key)
+    {
+      return begin("cacheEvict " + key);
+    }
+
+    @Override
+    public Span beginJSONParse()
+    {
+      return begin("jsonParse");
+    }
+
+    @Override
+    public Span beginJSONBuild()
+    {
+      return begin("jsonBuild");
+    }
+
+    private static Span begin(String name)
+    {
+      RecordedSpan span = new RecordedSpan(name);
+      SPANS.add(span);
+      return span;
+    }
+  }
+
+  /**
+   * Fails in every <code>begin</code> method that traces a request and in every span that it returns from the others.
+   *
+   * @author Eike Stepper
+   */
+  public static final class ThrowingTracer implements IStorageTracer
+  {
+    static final AtomicInteger BEGINS = new AtomicInteger();
+
+    static final AtomicInteger ENDS = new AtomicInteger();
+
+    public ThrowingTracer()
+    {
+    }
+
+    @Override
+    public Span beginRequest(IStorageService service, String method, String uriTemplate)
+    {
+      BEGINS.incrementAndGet();
+      throw new IllegalStateException("Tracer failure");
+    }
+
+    @Override
+    public Span beginAuthentication(IStorageService service)
+    {
+      BEGINS.incrementAndGet();
+      throw new IllegalStateException("Tracer failure");
+    }
+
+    @Override
+    public Span beginCacheOpen(String applicationToken, String key)
+    {
+      return begin();
+    }
+
+    @Override
+    public Span beginCacheFill(String applicationToken, String key)
+    {
+      return begin();
+    }
+
+    @Override
+    public Span beginCacheEvict(String applicationToken, String key)
+    {
+      return begin();
+    }
+
+    @Override
+    public Span beginJSONParse()
+    {
+      return begin();
+    }
+
+    @Override
+    public Span beginJSONBuild()
+    {
+      return begin();
+    }
+
+    private static Span begin()
+    {
+      BEGINS.incrementAndGet();
+      return new Span()
+      {
+        @Override
+        public void end(int status, long bytes)
+        {
+          ENDS.incrementAndGet();
+          throw new IllegalStateException("Tracer failure");
+        }
+      };
+    }
+  }
+
+  /**
+   * @author Eike Stepper
+   */
+  private static final class RecordedSpan implements IStorageTracer.Span
+  {
+    private final String name;
+
+    private int ends;
+
+    private int status;
+
+    private long bytes;
+
+    public RecordedSpan(String name)
+    {
+      this.name = name;
+    }
+
+    public String getName()
+    {
+      return name;
+    }
+
+    public synchronized int getEnds()
+    {
+      return ends;
+    }
+
+    public synchronized int getStatus()
+    {
+      return status;
+    }
+
+    public synchronized long getBytes()
+    {
+      return bytes;
+    }
+
+    public synchronized void awaitEnd() throws InterruptedException
+    {
+      long end = System.currentTimeMillis() + TIMEOUT;
+      while (ends == 0 && System.currentTimeMillis() < end)
+      {
+        wait(100);
+      }
+    }
+
+    @Override
+    public synchronized void end(int status, long bytes)
+    {
+      ++ends;
+      this.status = status;
+      this.bytes = bytes;
+      notifyAll();
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+      return name + " [ends=" + ends + ", status=" + status + ", bytes=" + bytes + "]";
+    }
+  }
+}
@@ -0,0 +1,372 @@
+/*
+ * Copyright (c) 2015 Eike Stepper (Berlin, Germany) and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Eike Stepper - initial API and implementation
+ */
+package org.eclipse.userstorage.tests.util;
+
+import org.eclipse.userstorage.internal.util.IOUtil;
+import org.eclipse.userstorage.internal.util.StringUtil;
+import org.eclipse.userstorage.tests.util.USSServer.User;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Stores the blobs of a {@link USSServer}, i.e., the contents and the ETag per user, application token and key.
+ * <p>
+ * The {@link FileBlobStore file store} keeps two files per blob and survives a restart of the server.
+ * The {@link MemoryBlobStore memory store} keeps everything in a concurrent map, so that the disk I/O of the server
+ * does not dominate the measurements of benchmarks and the run time of tests.
+ * <p>
+ * These stores are deliberately separate from the <code>IBlobStore</code> implementations of the <code>org.eclipse.userstorage.service</code> bundle.
+ * That bundle requires Java 8, JAX-RS and ECF remote services, none of which the client's target platform and this test bundle may depend on,
+ * and its stores implement cursor paging, blob sizes, modification times and conditional writes that the test server doesn't need.
+ *
+ * @author Eike Stepper
+ */
+public abstract class BlobStore
+{
+  /**
+   * The name of the system property that selects the store of the {@link ServerFixture}, either <code>file</code> (the default) or <code>memory</code>.
+   */
+  public static final String PROPERTY = "org.eclipse.userstorage.tests.server.store";
+
+  public static final String FILE = "file";
+
+  public static final String MEMORY = "memory";
+
+  protected BlobStore()
+  {
+  }
+
+  /**
+   * Returns the blob with the given key.
+   *
+   * @return the blob with the given key, or <code>null</code> if no such blob exists.<p>
+   */
+  public abstract Blob getBlob(User user, String applicationToken, String key) throws IOException;
+
+  /**
+   * Creates or replaces the blob with the given key.
+   * The contents are read to their end but not closed.
+   */
+  public abstract void setBlob(User user, String applicationToken, String key, InputStream contents, String eTag) throws IOException;
+
+  /**
+   * Deletes the blob with the given key.
+   *
+   * @return <code>true</code> if the blob existed, <code>false</code> otherwise.<p>
+   */
+  public abstract boolean deleteBlob(User user, String applicationToken, String key) throws IOException;
+
+  /**
+   * Returns the ETags of at most <code>count</code> blobs of the given application, starting with the blob at the given zero-based index.
+   * The blobs are sorted by their keys, so that consecutive pages neither overlap nor skip blobs that are not concurrently added or deleted.
+   *
+   * @return a map from keys to ETags in the order of the keys.<p>
+   */
+  public abstract Map<String, String> getETags(User user, String applicationToken, int index, int count) throws IOException;
+
+  /**
+   * Deletes all blobs of all users.
+   */
+  public abstract void clear();
+
+  public static BlobStore create(String type, File folder) throws IllegalArgumentException
+  {
+    if (type == null || FILE.equals(type))
+    {
+      return new FileBlobStore(folder);
+    }
+
+    if (MEMORY.equals(type))
+    {
+      return new MemoryBlobStore();
+    }
+
+    throw new IllegalArgumentException("Unknown blob store: " + type);
+  }
+
+  /**
+   * The contents and the ETag of a blob.
+   *
+   * @author Eike Stepper
+   */
+  public static abstract class Blob
+  {
+    private final String eTag;
+
+    protected Blob(String eTag)
+    {
+      this.eTag = eTag;
+    }
+
+    public final String getETag()
+    {
+      return eTag;
+    }
+
+    public abstract InputStream getContents() throws IOException;
+  }
+
+  /**
+   * Stores each blob in a <code>key.blob</code> file and its ETag in a <code>key.etag</code> file
+   * under <code>folder/username/applicationToken</code>.
+   *
+   * @author Eike Stepper
+   */
+  public static final class FileBlobStore extends BlobStore
+  {
+    public static final String BLOB_EXTENSION = ".blob";
+
+    public static final String ETAG_EXTENSION = ".etag";
+
+    private final File folder;
+
+    public FileBlobStore(File folder)
+    {
+      this.folder = folder;
+    }
+
+    public File getFolder()
+    {
+      return folder;
+    }
+
+    public File getUserFile(User user, String applicationToken, String key, String extension)
+    {
+      return new File(getApplicationFolder(user, applicationToken), key + StringUtil.safe(extension));
+    }
+
+    public File getApplicationFolder(User user, String applicationToken)
+    {
+      return new File(new File(folder, user.getUsername()), applicationToken);
+    }
+
+    @Override
+    public Blob getBlob(User user, String applicationToken, String key) throws IOException
+    {
+      File etagFile = getUserFile(user, applicationToken, key, ETAG_EXTENSION);
+      if (!etagFile.isFile())
+      {
+        return null;
+      }
+
+      final File blobFile = getUserFile(user, applicationToken, key, BLOB_EXTENSION);
+      return new Blob(IOUtil.readUTF(etagFile))
+      {
+        @Override
+        public InputStream getContents() throws IOException
+        {
+          return new FileInputStream(blobFile);
+        }
+      };
+    }
+
+    @Override
+    public void setBlob(User user, String applicationToken, String key, InputStream contents, String eTag) throws IOException
+    {
+      File blobFile = getUserFile(user, applicationToken, key, BLOB_EXTENSION);
+      IOUtil.mkdirs(blobFile.getParentFile());
+
+      FileOutputStream out = new FileOutputStream(blobFile);
+
+      try
+      {
+        IOUtil.copy(contents, out);
+      }
+      finally
+      {
+        IOUtil.close(out);
+      }
+
+      IOUtil.writeUTF(getUserFile(user, applicationToken, key, ETAG_EXTENSION), eTag);
+    }
+
+    @Override
+    public boolean deleteBlob(User user, String applicationToken, String key) throws IOException
+    {
+      File etagFile = getUserFile(user, applicationToken, key, ETAG_EXTENSION);
+      if (!etagFile.isFile())
+      {
+        return false;
+      }
+
+      IOUtil.delete(getUserFile(user, applicationToken, key, BLOB_EXTENSION));
+      IOUtil.delete(etagFile);
+      return true;
+    }
+
+    @Override
+    public Map<String, String> getETags(User user, String applicationToken, int index, int count) throws IOException
+    {
+      Map<String, String> result = new LinkedHashMap<String, String>();
+
+      String[] names = getApplicationFolder(user, applicationToken).list();
+      if (names != null)
+      {
+        Arrays.sort(names);
+        int i = 0;
+
+        for (String name : names)
+        {
+          if (name.endsWith(ETAG_EXTENSION) && i++ >= index)
+          {
+            String key = name.substring(0, name.length() - ETAG_EXTENSION.length());
+            result.put(key, IOUtil.readUTF(getUserFile(user, applicationToken, key, ETAG_EXTENSION)));
+
+            if (result.size() == count)
+            {
+              break;
+            }
+          }
+        }
+      }
+
+      return result;
+    }
+
+    @Override
+    public void clear()
+    {
+      IOUtil.deleteFiles(folder);
+    }
+
+    @Override
+    public String toString()
+    {
+      return "FileBlobStore[" + folder + "]";
+    }
+  }
+
+  /**
+   * Keeps the blobs in memory, sorted by their keys per user and application token.
+   * A blob is replaced as a whole, so that a reader never sees the contents of one version with the ETag of another.
+   *
+   * @author Eike Stepper
+   */
+  public static final class MemoryBlobStore extends BlobStore
+  {
+    private final ConcurrentMap<String, ConcurrentNavigableMap<String, MemoryBlob>> applications = new ConcurrentHashMap<String, ConcurrentNavigableMap<String, MemoryBlob>>();
+
+    public MemoryBlobStore()
+    {
+    }
+
+    @Override
+    public Blob getBlob(User user, String applicationToken, String key)
+    {
+      ConcurrentNavigableMap<String, MemoryBlob> blobs = getBlobs(user, applicationToken, false);
+      return blobs == null ? null : blobs.get(key);
+    }
+
+    @Override
+    public void setBlob(User user, String applicationToken, String key, InputStream contents, String eTag) throws IOException
+    {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      IOUtil.copy(contents, out);
+
+      getBlobs(user, applicationToken, true).put(key, new MemoryBlob(eTag, out.toByteArray()));
+    }
+
+    @Override
+    public boolean deleteBlob(User user, String applicationToken, String key)
+    {
+      ConcurrentNavigableMap<String, MemoryBlob> blobs = getBlobs(user, applicationToken, false);
+      return blobs != null && blobs.remove(key) != null;
+    }
+
+    @Override
+    public Map<String, String> getETags(User user, String applicationToken, int index, int count)
+    {
+      Map<String, String> result = new LinkedHashMap<String, String>();
+
+      ConcurrentNavigableMap<String, MemoryBlob> blobs = getBlobs(user, applicationToken, false);
+      if (blobs != null)
+      {
+        Iterator<Map.Entry<String, MemoryBlob>> it = blobs.entrySet().iterator();
+        for (int i = 0; i < index && it.hasNext(); i++)
+        {
+          it.next();
+        }
+
+        while (it.hasNext() && result.size() < count)
+        {
+          Map.Entry<String, MemoryBlob> entry = it.next();
+          result.put(entry.getKey(), entry.getValue().getETag());
+        }
+      }
+
+      return result;
+    }
+
+    @Override
+    public void clear()
+    {
+      applications.clear();
+    }
+
+    @Override
+    public String toString()
+    {
+      return "MemoryBlobStore";
+    }
+
+    private ConcurrentNavigableMap<String, MemoryBlob> getBlobs(User user, String applicationToken, boolean createOnDemand)
+    {
+      String path = user.getUsername() + "/" + applicationToken;
+
+      ConcurrentNavigableMap<String, MemoryBlob> blobs = applications.get(path);
+      if (blobs == null && createOnDemand)
+      {
+        blobs = new ConcurrentSkipListMap<String, MemoryBlob>();
+
+        ConcurrentNavigableMap<String, MemoryBlob> existing = applications.putIfAbsent(path, blobs);
+        if (existing != null)
+        {
+          blobs = existing;
+        }
+      }
+
+      return blobs;
+    }
+
+    /**
+     * @author Eike Stepper
+     */
+    private static final class MemoryBlob extends Blob
+    {
+      private final byte[] contents;
+
+      public MemoryBlob(String eTag, byte[] contents)
+      {
+        super(eTag);
+        this.contents = contents;
+      }
+
+      @Override
+      public InputStream getContents()
+      {
+        return IOUtil.streamUTF(contents);
+      }
+    }
+  }
+}
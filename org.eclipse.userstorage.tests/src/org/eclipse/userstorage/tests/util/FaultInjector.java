@@ -0,0 +1,513 @@
+/*
+ * Copyright (c) 2015 Eike Stepper (Berlin, Germany) and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Eike Stepper - initial API and implementation
+ */
+package org.eclipse.userstorage.tests.util;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Holds the {@link Faults faults} that a {@link USSServer} injects into the requests to its endpoints,
+ * so that retries, hedging and timeouts of the client can be tested against a realistically misbehaving server.
+ * <p>
+ * The faults can be changed while the server is running, either via {@link USSServer#getFaultInjector()} or via the admin endpoint of the server:
+ * <pre>
+ *   GET    /admin/faults                                      returns the faults of all endpoints
+ *   POST   /admin/faults?endpoint=get&amp;latency=uniform:10:100   replaces the faults of an endpoint
+ *   DELETE /admin/faults[?endpoint=get]                       removes the faults of one or all endpoints
+ * </pre>
+ * The endpoints are {@link #LOGIN login}, {@link #LIST list}, {@link #GET get}, {@link #PUT put}, {@link #DELETE delete}
+ * and {@link #ALL *} for all endpoints that have no faults of their own.
+ * The parameters are described in {@link Faults#parse(Map)}.
+ *
+ * @author Eike Stepper
+ */
+public final class FaultInjector
+{
+  public static final String LOGIN = "login";
+
+  public static final String LIST = "list";
+
+  public static final String GET = "get";
+
+  public static final String PUT = "put";
+
+  public static final String DELETE = "delete";
+
+  public static final String ALL = "*";
+
+  private final Map<String, Faults> faults = new ConcurrentHashMap<String, Faults>();
+
+  private final Random random = new Random();
+
+  public FaultInjector()
+  {
+  }
+
+  /**
+   * Returns the faults to inject into the requests to the given endpoint.
+   *
+   * @return the faults to inject into the requests to the given endpoint, or <code>null</code> if requests to the given endpoint are handled normally.<p>
+   */
+  public Faults getFaults(String endpoint)
+  {
+    Faults result = faults.get(endpoint);
+    if (result == null)
+    {
+      result = faults.get(ALL);
+    }
+
+    return result;
+  }
+
+  /**
+   * Sets the faults to inject into the requests to the given endpoint, or removes them if <code>null</code> is passed.
+   */
+  public void setFaults(String endpoint, Faults faults)
+  {
+    if (faults == null)
+    {
+      this.faults.remove(endpoint);
+    }
+    else
+    {
+      this.faults.put(endpoint, faults);
+    }
+  }
+
+  public void clear()
+  {
+    faults.clear();
+  }
+
+  public Map<String, Faults> getAllFaults()
+  {
+    return new TreeMap<String, Faults>(faults);
+  }
+
+  Random getRandom()
+  {
+    return random;
+  }
+
+  /**
+   * The faults that are injected into the requests to one endpoint.
+   * Each fault is decided independently per request; a request that fails with an error, an expiry or a reset is not delayed.
+   *
+   * @author Eike Stepper
+   */
+  public static final class Faults
+  {
+    private Latency latency;
+
+    private long bandwidth;
+
+    private double errorRate;
+
+    private int errorStatus = 503;
+
+    private double expiryRate;
+
+    private double resetRate;
+
+    private double stallRate;
+
+    private long stallMillis = 30000;
+
+    public Faults()
+    {
+    }
+
+    public Latency getLatency()
+    {
+      return latency;
+    }
+
+    public Faults setLatency(Latency latency)
+    {
+      this.latency = latency;
+      return this;
+    }
+
+    /**
+     * Returns the maximum number of response body bytes per second, or zero if the response bodies are not throttled.
+     */
+    public long getBandwidth()
+    {
+      return bandwidth;
+    }
+
+    public Faults setBandwidth(long bandwidth)
+    {
+      this.bandwidth = bandwidth;
+      return this;
+    }
+
+    /**
+     * Returns the probability of a request failing with the {@link #getErrorStatus() error status}.
+     */
+    public double getErrorRate()
+    {
+      return errorRate;
+    }
+
+    public Faults setErrorRate(double errorRate)
+    {
+      this.errorRate = errorRate;
+      return this;
+    }
+
+    public int getErrorStatus()
+    {
+      return errorStatus;
+    }
+
+    public Faults setErrorStatus(int errorStatus)
+    {
+      this.errorStatus = errorStatus;
+      return this;
+    }
+
+    /**
+     * Returns the probability of the session of a request expiring, so that the request fails with "401 Unauthorized".
+     */
+    public double getExpiryRate()
+    {
+      return expiryRate;
+    }
+
+    public Faults setExpiryRate(double expiryRate)
+    {
+      this.expiryRate = expiryRate;
+      return this;
+    }
+
+    /**
+     * Returns the probability of the connection of a request being closed without a response.
+     */
+    public double getResetRate()
+    {
+      return resetRate;
+    }
+
+    public Faults setResetRate(double resetRate)
+    {
+      this.resetRate = resetRate;
+      return this;
+    }
+
+    /**
+     * Returns the probability of a response body stalling for {@link #getStallMillis() some time} after its first bytes, like a slow-loris attack in reverse.
+     */
+    public double getStallRate()
+    {
+      return stallRate;
+    }
+
+    public Faults setStallRate(double stallRate)
+    {
+      this.stallRate = stallRate;
+      return this;
+    }
+
+    public long getStallMillis()
+    {
+      return stallMillis;
+    }
+
+    public Faults setStallMillis(long stallMillis)
+    {
+      this.stallMillis = stallMillis;
+      return this;
+    }
+
+    public Map<String, Object> toMap()
+    {
+      Map<String, Object> map = new LinkedHashMap<String, Object>();
+      if (latency != null)
+      {
+        map.put("latency", latency.toString());
+      }
+
+      map.put("bandwidth", Long.toString(bandwidth));
+      map.put("errorRate", Double.toString(errorRate));
+      map.put("errorStatus", Integer.toString(errorStatus));
+      map.put("expiryRate", Double.toString(expiryRate));
+      map.put("resetRate", Double.toString(resetRate));
+      map.put("stallRate", Double.toString(stallRate));
+      map.put("stallMillis", Long.toString(stallMillis));
+      return map;
+    }
+
+    @Override
+    public String toString()
+    {
+      return "Faults" + toMap();
+    }
+
+    /**
+     * Creates faults from the given parameters. All parameters are optional:
+     * <pre>
+     *   latency       fixed:MILLIS, uniform:MIN:MAX or longtail:MEDIAN:P99 (log-normal)
+     *   bandwidth     maximum response body bytes per second
+     *   errorRate     probability of a request failing with the error status
+     *   errorStatus   HTTP status code of the errors [503]
+     *   expiryRate    probability of a session expiring with "401 Unauthorized"
+     *   resetRate     probability of a connection being closed without a response
+     *   stallRate     probability of a response body stalling after its first bytes
+     *   stallMillis   duration of a stall [30000]
+     * </pre>
+     *
+     * @throws IllegalArgumentException if a parameter is unknown or has an invalid value.
+     */
+    public static Faults parse(Map<String, String> parameters) throws IllegalArgumentException
+    {
+      Faults faults = new Faults();
+
+      for (Map.Entry<String, String> entry : parameters.entrySet())
+      {
+        String name = entry.getKey();
+        String value = entry.getValue();
+
+        try
+        {
+          if ("latency".equals(name))
+          {
+            faults.setLatency(Latency.parse(value));
+          }
+          else if ("bandwidth".equals(name))
+          {
+            faults.setBandwidth(Long.parseLong(value));
+          }
+          else if ("errorRate".equals(name))
+          {
+            faults.setErrorRate(Double.parseDouble(value));
+          }
+          else if ("errorStatus".equals(name))
+          {
+            faults.setErrorStatus(Integer.parseInt(value));
+          }
+          else if ("expiryRate".equals(name))
+          {
+            faults.setExpiryRate(Double.parseDouble(value));
+          }
+          else if ("resetRate".equals(name))
+          {
+            faults.setResetRate(Double.parseDouble(value));
+          }
+          else if ("stallRate".equals(name))
+          {
+            faults.setStallRate(Double.parseDouble(value));
+          }
+          else if ("stallMillis".equals(name))
+          {
+            faults.setStallMillis(Long.parseLong(value));
+          }
+          else if (!"endpoint".equals(name))
+          {
+            throw new IllegalArgumentException("Unknown fault: " + name);
+          }
+        }
+        catch (NumberFormatException ex)
+        {
+          throw new IllegalArgumentException("Invalid " + name + ": " + value);
+        }
+      }
+
+      return faults;
+    }
+  }
+
+  /**
+   * A distribution of the latencies that are added to the requests.
+   *
+   * @author Eike Stepper
+   */
+  public static abstract class Latency
+  {
+    private final String spec;
+
+    private Latency(String spec)
+    {
+      this.spec = spec;
+    }
+
+    public abstract long nextMillis(Random random);
+
+    @Override
+    public String toString()
+    {
+      return spec;
+    }
+
+    public static Latency fixed(final long millis)
+    {
+      return new Latency("fixed:" + millis)
+      {
+        @Override
+        public long nextMillis(Random random)
+        {
+          return millis;
+        }
+      };
+    }
+
+    public static Latency uniform(final long min, final long max)
+    {
+      if (max < min)
+      {
+        throw new IllegalArgumentException("Invalid uniform latency: " + min + ":" + max);
+      }
+
+      return new Latency("uniform:" + min + ":" + max)
+      {
+        @Override
+        public long nextMillis(Random random)
+        {
+          return min + (long)(random.nextDouble() * (max - min));
+        }
+      };
+    }
+
+    /**
+     * Returns a log-normal distribution with the given median and 99th percentile, i.e., a distribution with a long tail.
+     */
+    public static Latency longTail(final long median, final long p99)
+    {
+      if (median <= 0 || p99 < median)
+      {
+        throw new IllegalArgumentException("Invalid long-tail latency: " + median + ":" + p99);
+      }
+
+      // The 99th percentile of the standard normal distribution.
+      final double sigma = Math.log((double)p99 / median) / 2.326;
+
+      return new Latency("longtail:" + median + ":" + p99)
+      {
+        @Override
+        public long nextMillis(Random random)
+        {
+          // Cap the tail so that a single request can't stall a test forever.
+          return Math.min((long)(median * Math.exp(sigma * random.nextGaussian())), 10 * p99);
+        }
+      };
+    }
+
+    public static Latency parse(String spec) throws IllegalArgumentException
+    {
+      String[] fields = spec.split(":");
+
+      try
+      {
+        if ("fixed".equals(fields[0]) && fields.length == 2)
+        {
+          return fixed(Long.parseLong(fields[1]));
+        }
+
+        if ("uniform".equals(fields[0]) && fields.length == 3)
+        {
+          return uniform(Long.parseLong(fields[1]), Long.parseLong(fields[2]));
+        }
+
+        if ("longtail".equals(fields[0]) && fields.length == 3)
+        {
+          return longTail(Long.parseLong(fields[1]), Long.parseLong(fields[2]));
+        }
+      }
+      catch (NumberFormatException ex)
+      {
+        //$FALL-THROUGH$
+      }
+
+      throw new IllegalArgumentException("Invalid latency: " + spec);
+    }
+  }
+
+  /**
+   * Throttles the bytes written to a response body and optionally stalls after the first bytes.
+   *
+   * @author Eike Stepper
+   */
+  static final class FaultyOutputStream extends FilterOutputStream
+  {
+    private static final int CHUNKS_PER_SECOND = 20;
+
+    private final long bandwidth;
+
+    private final long start = System.currentTimeMillis();
+
+    private long stallMillis;
+
+    private long bytes;
+
+    public FaultyOutputStream(OutputStream out, long bandwidth, long stallMillis)
+    {
+      super(out);
+      this.bandwidth = bandwidth;
+      this.stallMillis = stallMillis;
+    }
+
+    @Override
+    public void write(int b) throws IOException
+    {
+      write(new byte[] { (byte)b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException
+    {
+      int chunkSize = bandwidth > 0 ? (int)Math.max(1, bandwidth / CHUNKS_PER_SECOND) : len;
+
+      while (len > 0)
+      {
+        int n = Math.min(len, chunkSize);
+        out.write(b, off, n);
+        off += n;
+        len -= n;
+        bytes += n;
+
+        if (stallMillis > 0)
+        {
+          out.flush();
+          sleep(stallMillis);
+          stallMillis = 0;
+        }
+
+        if (bandwidth > 0)
+        {
+          out.flush();
+          sleep(bytes * 1000 / bandwidth - (System.currentTimeMillis() - start));
+        }
+      }
+    }
+
+    private static void sleep(long millis) throws InterruptedIOException
+    {
+      if (millis > 0)
+      {
+        try
+        {
+          Thread.sleep(millis);
+        }
+        catch (InterruptedException ex)
+        {
+          throw new InterruptedIOException();
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,277 @@
+/*
+ * Copyright (c) 2015 Eike Stepper (Berlin, Germany) and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Eike Stepper - initial API and implementation
+ */
+package org.eclipse.userstorage.tests.util;
+
+import org.eclipse.equinox.security.storage.ISecurePreferences;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An unencrypted {@link ISecurePreferences} tree in memory, so that the tests neither depend on nor modify the secure storage of the user.
+ * The {@link #getFlushCount() flushes} are counted across all nodes of the tree.
+ *
+ * @author Eike Stepper
+ */
+public final class MemorySecurePreferences implements ISecurePreferences
+{
+  private final MemorySecurePreferences parent;
+
+  private final String name;
+
+  private final AtomicInteger flushCount;
+
+  private final Map<String, String> values = new TreeMap<String, String>();
+
+  private final Map<String, MemorySecurePreferences> children = new TreeMap<String, MemorySecurePreferences>();
+
+  public MemorySecurePreferences()
+  {
+    this(null, "", new AtomicInteger());
+  }
+
+  private MemorySecurePreferences(MemorySecurePreferences parent, String name, AtomicInteger flushCount)
+  {
+    this.parent = parent;
+    this.name = name;
+    this.flushCount = flushCount;
+  }
+
+  public int getFlushCount()
+  {
+    return flushCount.get();
+  }
+
+  @Override
+  public synchronized void put(String key, String value, boolean encrypt)
+  {
+    if (value == null)
+    {
+      values.remove(key);
+    }
+    else
+    {
+      values.put(key, value);
+    }
+  }
+
+  @Override
+  public synchronized String get(String key, String def)
+  {
+    String value = values.get(key);
+    return value == null ? def : value;
+  }
+
+  @Override
+  public synchronized void remove(String key)
+  {
+    values.remove(key);
+  }
+
+  @Override
+  public synchronized void clear()
+  {
+    values.clear();
+  }
+
+  @Override
+  public synchronized String[] keys()
+  {
+    return values.keySet().toArray(new String[values.size()]);
+  }
+
+  @Override
+  public synchronized String[] childrenNames()
+  {
+    return children.keySet().toArray(new String[children.size()]);
+  }
+
+  @Override
+  public ISecurePreferences parent()
+  {
+    return parent;
+  }
+
+  @Override
+  public synchronized ISecurePreferences node(String pathName)
+  {
+    int slash = pathName.indexOf('/');
+    if (slash == 0)
+    {
+      return getRoot().node(pathName.substring(1));
+    }
+
+    String childName = slash == -1 ? pathName : pathName.substring(0, slash);
+    if (childName.length() == 0)
+    {
+      return this;
+    }
+
+    MemorySecurePreferences child = children.get(childName);
+    if (child == null)
+    {
+      child = new MemorySecurePreferences(this, childName, flushCount);
+      children.put(childName, child);
+    }
+
+    return slash == -1 ? child : child.node(pathName.substring(slash + 1));
+  }
+
+  @Override
+  public synchronized boolean nodeExists(String pathName)
+  {
+    int slash = pathName.indexOf('/');
+    if (slash == 0)
+    {
+      return getRoot().nodeExists(pathName.substring(1));
+    }
+
+    String childName = slash == -1 ? pathName : pathName.substring(0, slash);
+    if (childName.length() == 0)
+    {
+      return true;
+    }
+
+    MemorySecurePreferences child = children.get(childName);
+    if (child == null)
+    {
+      return false;
+    }
+
+    return slash == -1 || child.nodeExists(pathName.substring(slash + 1));
+  }
+
+  @Override
+  public void removeNode()
+  {
+    if (parent != null)
+    {
+      synchronized (parent)
+      {
+        parent.children.remove(name);
+      }
+    }
+  }
+
+  @Override
+  public String name()
+  {
+    return name;
+  }
+
+  @Override
+  public String absolutePath()
+  {
+    if (parent == null)
+    {
+      return "/";
+    }
+
+    String parentPath = parent.absolutePath();
+    return parentPath.endsWith("/") ? parentPath + name : parentPath + "/" + name;
+  }
+
+  @Override
+  public void flush()
+  {
+    flushCount.incrementAndGet();
+  }
+
+  @Override
+  public void putInt(String key, int value, boolean encrypt)
+  {
+    put(key, Integer.toString(value), encrypt);
+  }
+
+  @Override
+  public int getInt(String key, int def)
+  {
+    String value = get(key, null);
+    return value == null ? def : Integer.parseInt(value);
+  }
+
+  @Override
+  public void putLong(String key, long value, boolean encrypt)
+  {
+    put(key, Long.toString(value), encrypt);
+  }
+
+  @Override
+  public long getLong(String key, long def)
+  {
+    String value = get(key, null);
+    return value == null ? def : Long.parseLong(value);
+  }
+
+  @Override
+  public void putBoolean(String key, boolean value, boolean encrypt)
+  {
+    put(key, Boolean.toString(value), encrypt);
+  }
+
+  @Override
+  public boolean getBoolean(String key, boolean def)
+  {
+    String value = get(key, null);
+    return value == null ? def : Boolean.parseBoolean(value);
+  }
+
+  @Override
+  public void putFloat(String key, float value, boolean encrypt)
+  {
+    put(key, Float.toString(value), encrypt);
+  }
+
+  @Override
+  public float getFloat(String key, float def)
+  {
+    String value = get(key, null);
+    return value == null ? def : Float.parseFloat(value);
+  }
+
+  @Override
+  public void putDouble(String key, double value, boolean encrypt)
+  {
+    put(key, Double.toString(value), encrypt);
+  }
+
+  @Override
+  public double getDouble(String key, double def)
+  {
+    String value = get(key, null);
+    return value == null ? def : Double.parseDouble(value);
+  }
+
+  @Override
+  public synchronized void putByteArray(String key, byte[] value, boolean encrypt)
+  {
+    put(key, value == null ? null : new String(value), encrypt);
+  }
+
+  @Override
+  public byte[] getByteArray(String key, byte[] def)
+  {
+    String value = get(key, null);
+    return value == null ? def : value.getBytes();
+  }
+
+  @Override
+  public boolean isEncrypted(String key)
+  {
+    return false;
+  }
+
+  private MemorySecurePreferences getRoot()
+  {
+    return parent == null ? this : parent.getRoot();
+  }
+}
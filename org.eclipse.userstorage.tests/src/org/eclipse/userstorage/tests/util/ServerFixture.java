@@ -18,6 +18,7 @@ import org.eclipse.userstorage.internal.Activator;
 import org.eclipse.userstorage.internal.util.IOUtil;
 import org.eclipse.userstorage.internal.util.StringUtil;
 import org.eclipse.userstorage.spi.ISettings;
+import org.eclipse.userstorage.tests.util.BlobStore.Blob;
 import org.eclipse.userstorage.tests.util.USSServer.NOOPLogger;
 import org.eclipse.userstorage.tests.util.USSServer.User;
 import org.eclipse.userstorage.util.NotFoundException;
@@ -25,8 +26,10 @@ import org.eclipse.userstorage.util.Settings.MemorySettings;
 
 import org.eclipse.jetty.util.log.Log;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.UUID;
 
 /**
@@ -45,6 +48,15 @@ public class ServerFixture extends Fixture
   private IStorageService.Dynamic service;
 
   public ServerFixture(String applicationToken) throws Exception
+  {
+    this(applicationToken, System.getProperty(BlobStore.PROPERTY));
+  }
+
+  /**
+   * Creates a fixture whose local server stores the blobs in the {@link BlobStore} of the given type,
+   * either {@link BlobStore#FILE} or {@link BlobStore#MEMORY}.
+   */
+  public ServerFixture(String applicationToken, String blobStoreType) throws Exception
   {
     this.applicationToken = applicationToken;
 
@@ -66,9 +78,10 @@ public class ServerFixture extends Fixture
     }
     else
     {
-      IOUtil.deleteFiles(SERVER_FOLDER);
+      BlobStore blobStore = BlobStore.create(blobStoreType, SERVER_FOLDER);
+      blobStore.clear();
 
-      server = new USSServer(8080, SERVER_FOLDER);
+      server = new USSServer(8080, blobStore);
       user = server.addUser(FixedCredentialsProvider.DEFAULT_CREDENTIALS);
       server.getApplicationTokens().add(applicationToken);
       int port = server.start();
@@ -121,15 +134,26 @@ public class ServerFixture extends Fixture
     {
       try
       {
-        File blobFile = server.getUserFile(user, applicationToken, key, USSServer.BLOB_EXTENSION);
-        File etagFile = server.getUserFile(user, applicationToken, key, USSServer.ETAG_EXTENSION);
-        if (!blobFile.isFile() || !etagFile.isFile())
+        Blob serverBlob = server.getBlobStore().getBlob(user, applicationToken, key);
+        if (serverBlob == null)
         {
           return null;
         }
 
-        result.contents = IOUtil.readUTF(blobFile);
-        result.eTag = IOUtil.readUTF(etagFile);
+        InputStream contents = serverBlob.getContents();
+
+        try
+        {
+          ByteArrayOutputStream out = new ByteArrayOutputStream();
+          IOUtil.copy(contents, out);
+          result.contents = StringUtil.fromUTF(out.toByteArray());
+        }
+        finally
+        {
+          IOUtil.closeSilent(contents);
+        }
+
+        result.eTag = serverBlob.getETag();
       }
       catch (RuntimeException ex)
       {
@@ -175,8 +199,7 @@ public class ServerFixture extends Fixture
     if (hasLocalServer())
     {
       String eTag = UUID.randomUUID().toString();
-      IOUtil.writeUTF(server.getUserFile(user, applicationToken, key, USSServer.ETAG_EXTENSION), eTag);
-      IOUtil.writeUTF(server.getUserFile(user, applicationToken, key, USSServer.BLOB_EXTENSION), value);
+      server.getBlobStore().setBlob(user, applicationToken, key, IOUtil.streamUTF(value), eTag);
       return eTag;
     }
 
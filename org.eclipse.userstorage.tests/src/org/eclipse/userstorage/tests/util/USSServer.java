@@ -15,66 +15,84 @@ import org.eclipse.userstorage.internal.util.JSONUtil;
 import org.eclipse.userstorage.internal.util.StringUtil;
 import org.eclipse.userstorage.spi.Credentials;
 import org.eclipse.userstorage.tests.StorageTests;
+import org.eclipse.userstorage.tests.util.BlobStore.Blob;
+import org.eclipse.userstorage.tests.util.BlobStore.FileBlobStore;
+import org.eclipse.userstorage.tests.util.FaultInjector.Faults;
+import org.eclipse.userstorage.tests.util.FaultInjector.FaultyOutputStream;
 
 import org.eclipse.core.runtime.Path;
 import org.eclipse.jetty.http.HttpMethod;
 import org.eclipse.jetty.server.Request;
 import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
 import org.eclipse.jetty.server.handler.AbstractHandler;
 import org.eclipse.jetty.util.log.Log;
 import org.eclipse.jetty.util.log.Logger;
 
 import javax.servlet.ServletException;
-import javax.servlet.ServletOutputStream;
 import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Random;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * @author Eike Stepper
  */
 public final class USSServer
 {
-  public static final String BLOB_EXTENSION = ".blob";
+  public static final String BLOB_EXTENSION = FileBlobStore.BLOB_EXTENSION;
 
-  public static final String ETAG_EXTENSION = ".etag";
+  public static final String ETAG_EXTENSION = FileBlobStore.ETAG_EXTENSION;
 
   private static final boolean DEBUG = Boolean.getBoolean("org.eclipse.userstorage.tests.server.debug");
 
+  private static final String ADMIN_FAULTS_PATH = "/admin/faults";
+
+  private static final String STALL_ATTRIBUTE = USSServer.class.getName() + ".stall";
+
   private final USSHandler handler = new USSHandler();
 
+  private final FaultInjector faultInjector = new FaultInjector();
+
   private final Set<String> applicationTokens = new HashSet<String>();
 
   private final Map<String, User> users = new HashMap<String, User>();
 
-  private final Map<String, Session> sessions = new HashMap<String, Session>();
+  private final Map<String, Session> sessions = new ConcurrentHashMap<String, Session>();
 
-  private final File folder;
+  private final BlobStore blobStore;
 
   private final int startPort;
 
   private int port;
 
+  private int lastPort;
+
   private Server server;
 
   public USSServer(int startPort, File folder)
+  {
+    this(startPort, new FileBlobStore(folder));
+  }
+
+  public USSServer(int startPort, BlobStore blobStore)
   {
     this.startPort = startPort;
-    this.folder = folder;
+    this.blobStore = blobStore;
   }
 
   public int getPort()
@@ -82,9 +100,17 @@ public final class USSServer
     return port;
   }
 
+  public BlobStore getBlobStore()
+  {
+    return blobStore;
+  }
+
+  /**
+   * Returns the folder of the {@link FileBlobStore file store}, or <code>null</code> if the blobs are stored elsewhere.
+   */
   public File getFolder()
   {
-    return folder;
+    return blobStore instanceof FileBlobStore ? ((FileBlobStore)blobStore).getFolder() : null;
   }
 
   public Set<String> getApplicationTokens()
@@ -111,12 +137,22 @@ public final class USSServer
 
   public File getUserFile(User user, String applicationToken, String key, String extension)
   {
-    return new File(getApplicationFolder(user, applicationToken), key + StringUtil.safe(extension));
+    return getFileBlobStore().getUserFile(user, applicationToken, key, extension);
   }
 
   public File getApplicationFolder(User user, String applicationToken)
   {
-    return new File(new File(folder, user.getUsername()), applicationToken);
+    return getFileBlobStore().getApplicationFolder(user, applicationToken);
+  }
+
+  private FileBlobStore getFileBlobStore() throws IllegalStateException
+  {
+    if (blobStore instanceof FileBlobStore)
+    {
+      return (FileBlobStore)blobStore;
+    }
+
+    throw new IllegalStateException("Blobs are not stored in files: " + blobStore);
   }
 
   public Map<String, Session> getSessions()
@@ -124,6 +160,11 @@ public final class USSServer
     return sessions;
   }
 
+  public FaultInjector getFaultInjector()
+  {
+    return faultInjector;
+  }
+
   public int start() throws Exception
   {
     Exception exception = new Exception("No free port");
@@ -136,6 +177,7 @@ public final class USSServer
       try
       {
         server.start();
+        lastPort = port;
         return port;
       }
       catch (Exception ex)
@@ -160,6 +202,45 @@ public final class USSServer
     throw exception;
   }
 
+  /**
+   * Makes the running server listen on the next free port as well and returns that port.
+   * Clients that must not share a service, and hence a session, can reach the same server via different ports.
+   */
+  public int addPort() throws Exception
+  {
+    Exception exception = new Exception("No free port");
+
+    for (int port = lastPort + 1; port < 65535; port++)
+    {
+      ServerConnector connector = new ServerConnector(server);
+      connector.setPort(port);
+      server.addConnector(connector);
+
+      try
+      {
+        connector.start();
+        lastPort = port;
+        return port;
+      }
+      catch (Exception ex)
+      {
+        exception = ex;
+        server.removeConnector(connector);
+
+        try
+        {
+          connector.stop();
+        }
+        catch (Exception ignore)
+        {
+          //$FALL-THROUGH$
+        }
+      }
+    }
+
+    throw exception;
+  }
+
   public void stop() throws Exception
   {
     if (server != null)
@@ -206,7 +287,7 @@ public final class USSServer
 
     try
     {
-      ServletOutputStream out = response.getOutputStream();
+      OutputStream out = getOutputStream(request, response);
       IOUtil.copy(body, out);
       out.flush();
     }
@@ -216,10 +297,8 @@ public final class USSServer
     }
   }
 
-  protected void retrieveProperties(HttpServletRequest request, HttpServletResponse response, File applicationFolder) throws IOException
+  protected void retrieveProperties(HttpServletRequest request, HttpServletResponse response, User user, String applicationToken) throws IOException
   {
-    String applicationToken = applicationFolder.getName();
-
     int pageSize = getIntParameter(request, "pageSize", 20);
     if (pageSize < 1 || pageSize > 100)
     {
@@ -239,52 +318,32 @@ public final class USSServer
     StringBuilder builder = new StringBuilder();
     builder.append('[');
 
-    File[] files = applicationFolder.listFiles();
-    if (files != null)
+    for (Map.Entry<String, String> entry : blobStore.getETags(user, applicationToken, (page - 1) * pageSize, pageSize).entrySet())
     {
-      int first = (page - 1) * pageSize + 1;
-      System.out.println("##### " + first);
-      int i = 0;
-
-      for (File file : files)
+      if (empty)
       {
-        String name = file.getName();
-        if (name.endsWith(ETAG_EXTENSION))
-        {
-          if (++i >= first)
-          {
-            String key = name.substring(0, name.length() - ETAG_EXTENSION.length());
-            System.out.println("##### " + key);
-            String etag = IOUtil.readUTF(file);
-
-            if (empty)
-            {
-              empty = false;
-            }
-            else
-            {
-              builder.append(",");
-            }
-
-            builder.append("{\"application_token\":\"");
-            builder.append(applicationToken);
-            builder.append("\",\"key\":\"");
-            builder.append(key);
-            builder.append("\",\"etag\":\"");
-            builder.append(etag);
-            builder.append("\"}");
-
-            if (--pageSize == 0)
-            {
-              break;
-            }
-          }
-        }
+        empty = false;
+      }
+      else
+      {
+        builder.append(",");
       }
+
+      builder.append("{\"application_token\":\"");
+      builder.append(applicationToken);
+      builder.append("\",\"key\":\"");
+      builder.append(entry.getKey());
+      builder.append("\",\"etag\":\"");
+      builder.append(entry.getValue());
+      builder.append("\"}");
     }
 
     builder.append(']');
-    System.out.println(builder);
+
+    if (DEBUG)
+    {
+      System.out.println(builder);
+    }
 
     response.setStatus(HttpServletResponse.SC_OK);
     response.setContentType("application/json");
@@ -293,7 +352,7 @@ public final class USSServer
 
     try
     {
-      ServletOutputStream out = response.getOutputStream();
+      OutputStream out = getOutputStream(request, response);
       IOUtil.copy(body, out);
       out.flush();
     }
@@ -303,15 +362,15 @@ public final class USSServer
     }
   }
 
-  protected void retrieveBlob(HttpServletRequest request, HttpServletResponse response, File blobFile, File etagFile, boolean exists) throws IOException
+  protected void retrieveBlob(HttpServletRequest request, HttpServletResponse response, Blob blob) throws IOException
   {
-    if (!exists)
+    if (blob == null)
     {
       response.sendError(HttpServletResponse.SC_NOT_FOUND);
       return;
     }
 
-    String etag = IOUtil.readUTF(etagFile);
+    String etag = blob.getETag();
     String ifNoneMatch = getETag(request, "If-None-Match");
     if (ifNoneMatch != null && ifNoneMatch.equals(etag))
     {
@@ -323,11 +382,11 @@ public final class USSServer
     response.setContentType("application/json");
     response.setHeader("ETag", "\"" + etag + "\"");
 
-    InputStream body = JSONUtil.build(Collections.singletonMap("value", new FileInputStream(blobFile)));
+    InputStream body = JSONUtil.build(Collections.singletonMap("value", blob.getContents()));
 
     try
     {
-      ServletOutputStream out = response.getOutputStream();
+      OutputStream out = getOutputStream(request, response);
       IOUtil.copy(body, out);
       out.flush();
     }
@@ -337,13 +396,13 @@ public final class USSServer
     }
   }
 
-  protected void updateBlob(HttpServletRequest request, HttpServletResponse response, File blobFile, File etagFile, boolean exists) throws IOException
+  protected void updateBlob(HttpServletRequest request, HttpServletResponse response, User user, String applicationToken, String key, Blob blob) throws IOException
   {
     String ifMatch = getETag(request, "If-Match");
 
-    if (exists)
+    if (blob != null)
     {
-      String etag = IOUtil.readUTF(etagFile);
+      String etag = blob.getETag();
 
       if (StringUtil.isEmpty(ifMatch) || !ifMatch.equals(etag))
       {
@@ -354,9 +413,6 @@ public final class USSServer
     }
 
     String etag = UUID.randomUUID().toString();
-
-    IOUtil.mkdirs(blobFile.getParentFile());
-    FileOutputStream out = new FileOutputStream(blobFile);
     InputStream body = null;
 
     try
@@ -364,25 +420,22 @@ public final class USSServer
       Map<String, Object> requestObject = JSONUtil.parse(request.getInputStream(), "value");
       body = (InputStream)requestObject.get("value");
 
-      IOUtil.copy(body, out);
+      blobStore.setBlob(user, applicationToken, key, body, etag);
     }
     finally
     {
       IOUtil.closeSilent(body);
-      IOUtil.close(out);
     }
 
-    IOUtil.writeUTF(etagFile, etag);
-
-    response.setStatus(exists ? HttpServletResponse.SC_OK : HttpServletResponse.SC_CREATED);
+    response.setStatus(blob != null ? HttpServletResponse.SC_OK : HttpServletResponse.SC_CREATED);
     response.setHeader("ETag", "\"" + etag + "\"");
   }
 
-  protected void deleteBlob(HttpServletRequest request, HttpServletResponse response, File blobFile, File etagFile, boolean exists) throws IOException
+  protected void deleteBlob(HttpServletRequest request, HttpServletResponse response, User user, String applicationToken, String key, Blob blob) throws IOException
   {
-    if (exists)
+    if (blob != null)
     {
-      String etag = IOUtil.readUTF(etagFile);
+      String etag = blob.getETag();
       String ifMatch = getETag(request, "If-Match");
       if (ifMatch != null && !ifMatch.equals(etag))
       {
@@ -396,12 +449,155 @@ public final class USSServer
       return;
     }
 
-    IOUtil.delete(blobFile);
-    IOUtil.delete(etagFile);
+    blobStore.deleteBlob(user, applicationToken, key);
 
     response.setStatus(HttpServletResponse.SC_NO_CONTENT);
   }
 
+  protected void administrateFaults(String method, HttpServletRequest request, HttpServletResponse response) throws IOException
+  {
+    String endpoint = request.getParameter("endpoint");
+
+    if (HttpMethod.POST.is(method) || HttpMethod.PUT.is(method))
+    {
+      Map<String, String> parameters = new LinkedHashMap<String, String>();
+      for (Enumeration<String> it = request.getParameterNames(); it.hasMoreElements();)
+      {
+        String name = it.nextElement();
+        parameters.put(name, request.getParameter(name));
+      }
+
+      try
+      {
+        faultInjector.setFaults(endpoint == null ? FaultInjector.ALL : endpoint, Faults.parse(parameters));
+      }
+      catch (IllegalArgumentException ex)
+      {
+        response.sendError(HttpServletResponse.SC_BAD_REQUEST, ex.getMessage());
+        return;
+      }
+    }
+    else if (HttpMethod.DELETE.is(method))
+    {
+      if (endpoint == null)
+      {
+        faultInjector.clear();
+      }
+      else
+      {
+        faultInjector.setFaults(endpoint, null);
+      }
+    }
+    else if (!HttpMethod.GET.is(method))
+    {
+      response.sendError(HttpServletResponse.SC_METHOD_NOT_ALLOWED);
+      return;
+    }
+
+    Map<String, Object> responseObject = new LinkedHashMap<String, Object>();
+    for (Map.Entry<String, Faults> entry : faultInjector.getAllFaults().entrySet())
+    {
+      responseObject.put(entry.getKey(), entry.getValue().toMap());
+    }
+
+    response.setStatus(HttpServletResponse.SC_OK);
+    response.setContentType("application/json");
+
+    InputStream body = JSONUtil.build(responseObject);
+
+    try
+    {
+      OutputStream out = response.getOutputStream();
+      IOUtil.copy(body, out);
+      out.flush();
+    }
+    finally
+    {
+      IOUtil.closeSilent(body);
+    }
+  }
+
+  /**
+   * Injects the faults that are configured for the given endpoint into the given request.
+   *
+   * @return <code>true</code> if the request should be handled, <code>false</code> if it has already been answered or aborted.
+   */
+  private boolean injectFaults(String endpoint, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException
+  {
+    Faults faults = faultInjector.getFaults(endpoint);
+    if (faults == null)
+    {
+      return true;
+    }
+
+    Random random = faultInjector.getRandom();
+
+    if (random.nextDouble() < faults.getResetRate())
+    {
+      baseRequest.getHttpChannel().getEndPoint().close();
+      return false;
+    }
+
+    if (random.nextDouble() < faults.getErrorRate())
+    {
+      response.sendError(faults.getErrorStatus());
+      return false;
+    }
+
+    if (random.nextDouble() < faults.getExpiryRate())
+    {
+      Session session = getSession(request);
+      if (session != null)
+      {
+        sessions.remove(session.getID());
+      }
+
+      response.sendError(HttpServletResponse.SC_UNAUTHORIZED);
+      return false;
+    }
+
+    if (faults.getLatency() != null)
+    {
+      try
+      {
+        Thread.sleep(faults.getLatency().nextMillis(random));
+      }
+      catch (InterruptedException ex)
+      {
+        Thread.currentThread().interrupt();
+        return false;
+      }
+    }
+
+    if (random.nextDouble() < faults.getStallRate())
+    {
+      request.setAttribute(STALL_ATTRIBUTE, faults.getStallMillis());
+    }
+
+    request.setAttribute(Faults.class.getName(), faults);
+    return true;
+  }
+
+  /**
+   * Returns the output stream of the given response, throttled or stalled according to the injected faults.
+   */
+  private OutputStream getOutputStream(HttpServletRequest request, HttpServletResponse response) throws IOException
+  {
+    OutputStream out = response.getOutputStream();
+
+    Faults faults = (Faults)request.getAttribute(Faults.class.getName());
+    if (faults != null)
+    {
+      Long stallMillis = (Long)request.getAttribute(STALL_ATTRIBUTE);
+      if (faults.getBandwidth() > 0 || stallMillis != null)
+      {
+        return new FaultyOutputStream(out, faults.getBandwidth(), stallMillis == null ? 0 : stallMillis);
+      }
+    }
+
+    return out;
+  }
+
   private Session getSession(HttpServletRequest request)
   {
     String csrfToken = request.getHeader("X-CSRF-Token");
@@ -493,6 +689,16 @@ public final class USSServer
       {
         baseRequest.setHandled(true);
 
+        String method = request.getMethod();
+        String path = request.getPathInfo();
+
+        if (ADMIN_FAULTS_PATH.equals(path))
+        {
+          // The admin endpoint is meant for scripts, so don't check the User-Agent.
+          administrateFaults(method, request, response);
+          return;
+        }
+
         String userAgent = request.getHeader("User-Agent");
         if (!org.eclipse.userstorage.internal.Session.USER_AGENT_ID.equals(userAgent))
         {
@@ -500,9 +706,6 @@ public final class USSServer
           return;
         }
 
-        String method = request.getMethod();
-        String path = request.getPathInfo();
-
         if (DEBUG)
         {
           StringBuilder builder = new StringBuilder();
@@ -533,6 +736,11 @@ public final class USSServer
 
         if (path != null && method != null)
         {
+          if (!injectFaults(getEndpoint(method, path), baseRequest, request, response))
+          {
+            return;
+          }
+
           handle(method, path, request, response);
 
           if (DEBUG)
@@ -580,6 +788,31 @@ public final class USSServer
       }
     }
 
+    private String getEndpoint(String method, String path)
+    {
+      if (path.equals("/api/user/login"))
+      {
+        return FaultInjector.LOGIN;
+      }
+
+      if (HttpMethod.GET.is(method))
+      {
+        return new Path(path).segmentCount() < 4 ? FaultInjector.LIST : FaultInjector.GET;
+      }
+
+      if (HttpMethod.PUT.is(method))
+      {
+        return FaultInjector.PUT;
+      }
+
+      if (HttpMethod.DELETE.is(method))
+      {
+        return FaultInjector.DELETE;
+      }
+
+      return FaultInjector.ALL;
+    }
+
     private void handle(String method, String path, HttpServletRequest request, HttpServletResponse response) throws IOException
     {
       if (path.equals("/api/user/login") && HttpMethod.POST.is(method))
@@ -612,8 +845,7 @@ public final class USSServer
         {
           if (HttpMethod.GET.is(method))
           {
-            File applicationFolder = getApplicationFolder(user, applicationToken);
-            retrieveProperties(request, response, applicationFolder);
+            retrieveProperties(request, response, user, applicationToken);
             return;
           }
 
@@ -622,25 +854,23 @@ public final class USSServer
         }
 
         String key = segments.segment(3);
-        File blobFile = getUserFile(user, applicationToken, key, BLOB_EXTENSION);
-        File etagFile = getUserFile(user, applicationToken, key, ETAG_EXTENSION);
-        boolean exists = etagFile.exists();
+        Blob blob = blobStore.getBlob(user, applicationToken, key);
 
         if (HttpMethod.GET.is(method))
         {
-          retrieveBlob(request, response, blobFile, etagFile, exists);
+          retrieveBlob(request, response, blob);
           return;
         }
 
         if (HttpMethod.PUT.is(method))
         {
-          updateBlob(request, response, blobFile, etagFile, exists);
+          updateBlob(request, response, user, applicationToken, key, blob);
           return;
         }
 
         if (HttpMethod.DELETE.is(method))
         {
-          deleteBlob(request, response, blobFile, etagFile, exists);
+          deleteBlob(request, response, user, applicationToken, key, blob);
           return;
         }
 
@@ -891,14 +1121,16 @@ public final class USSServer
   {
     Log.setLog(new NOOPLogger());
 
-    USSServer server = new USSServer(8080, new File(System.getProperty("java.io.tmpdir"), "uss-server"));
+    BlobStore blobStore = BlobStore.create(System.getProperty(BlobStore.PROPERTY), new File(System.getProperty("java.io.tmpdir"), "uss-server"));
+
+    USSServer server = new USSServer(8080, blobStore);
     server.addUser(FixedCredentialsProvider.DEFAULT_CREDENTIALS);
 
     Set<String> applicationTokens = server.getApplicationTokens();
     applicationTokens.add(StorageTests.APPLICATION_TOKEN);
     applicationTokens.add("cNhDr0INs8T109P8h6E1r_GvU3I"); // Oomph
 
-    System.out.println(server.getFolder());
+    System.out.println(blobStore);
     System.out.println("Listening on port " + server.start());
     server.join();
   }
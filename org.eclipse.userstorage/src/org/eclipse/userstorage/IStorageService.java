@@ -12,6 +12,8 @@ package org.eclipse.userstorage;
 
 import org.eclipse.userstorage.internal.StorageServiceRegistry;
 import org.eclipse.userstorage.spi.ICredentialsProvider;
+import org.eclipse.userstorage.spi.IStorageMetrics;
+import org.eclipse.userstorage.util.StorageStatistics;
 
 import java.net.URI;
 import java.util.concurrent.Semaphore;
@@ -84,6 +86,13 @@ public interface IStorageService extends Comparable<IStorageService>
    */
   public Semaphore getAuthenticationSemaphore();
 
+  /**
+   * Returns the statistics of the requests that have been sent to this service and of the cache accesses of its storages.
+   *
+   * @return the statistics of this service, never <code>null</code>.<p>
+   */
+  public StorageStatistics getStatistics();
+
   /**
    * A {@link IStorageService storage service} that is dynamically created as opposed to being
    * statically contributed via the <code>org.eclipse.userstorage.storages</code> extension point).
@@ -215,6 +224,20 @@ public interface IStorageService extends Comparable<IStorageService>
      */
     public void removeListener(Listener listener);
 
+    /**
+     * Adds the given metrics to the list of metrics that receive the measurements of all services.
+     *
+     * @param metrics the metrics to add to the list of metrics that receive the measurements of all services.
+     */
+    public void addMetrics(IStorageMetrics metrics);
+
+    /**
+     * Removes the given metrics from the list of metrics that receive the measurements of all services.
+     *
+     * @param metrics the metrics to remove from the list of metrics that receive the measurements of all services.
+     */
+    public void removeMetrics(IStorageMetrics metrics);
+
     /**
      * Listens to changes in the {@link Registry#INSTANCE storage service registry}.
      *
@@ -12,6 +12,7 @@ package org.eclipse.userstorage;
 
 import org.eclipse.userstorage.IStorageService.Registry;
 import org.eclipse.userstorage.internal.Storage;
+import org.eclipse.userstorage.internal.util.WeakValueMap;
 import org.eclipse.userstorage.spi.ISettings;
 import org.eclipse.userstorage.spi.StorageCache;
 import org.eclipse.userstorage.util.BadApplicationTokenException;
@@ -30,6 +31,8 @@ public final class StorageFactory
 
   private final ISettings settings;
 
+  private final WeakValueMap<SharedStorageKey, IStorage> sharedStorages = new WeakValueMap<SharedStorageKey, IStorage>();
+
   /**
    * Constructs this storage factory with the given settings.
    *
@@ -111,4 +114,83 @@ public final class StorageFactory
   {
     return new Storage(this, applicationToken, cache);
   }
+
+  /**
+   * Returns a storage for the application identified by the given application token that is shared with all other callers
+   * that pass the same application token and the same {@link StorageCache storage cache} into this method.
+   * <p>
+   * The shared storage is created with {@link #create(String, StorageCache) create()} on the first call and is reused
+   * as long as it is reachable. That avoids the construction of a new storage for every short-lived use.
+   * Note that the state of a shared storage, such as its {@link IStorage#getService() service}
+   * or its {@link IStorage#getCredentialsProvider() credentials provider}, is visible to all callers.
+   * <p>
+   *
+   * @param applicationToken the application token that identifies the application of the storage to be returned.
+   *        Minimal {@link BadApplicationTokenException#validate(String) lexical validation} is performed on the passed application token.<p>
+   * @param cache a local storage cache to be used as a locally persistent optimization, or <code>null</code> if local caching is not wanted.<p>
+   * @return the shared storage, never <code>null</code>.<p>
+   * @throws BadApplicationTokenException if {@link BadApplicationTokenException#validate(String) lexical validation} of the passed application token fails.<p>
+   *
+   * @see #create(String, StorageCache)
+   */
+  public IStorage getSharedStorage(String applicationToken, StorageCache cache) throws BadApplicationTokenException
+  {
+    applicationToken = BadApplicationTokenException.validate(applicationToken);
+    SharedStorageKey key = new SharedStorageKey(applicationToken, cache);
+
+    IStorage storage = sharedStorages.get(key);
+    if (storage == null)
+    {
+      storage = create(applicationToken, cache);
+
+      IStorage existingStorage = sharedStorages.putIfAbsent(key, storage);
+      if (existingStorage != null)
+      {
+        storage = existingStorage;
+      }
+    }
+
+    return storage;
+  }
+
+  /**
+   * Identifies a shared storage by its application token and the identity of its cache.
+   *
+   * @author Eike Stepper
+   */
+  private static final class SharedStorageKey
+  {
+    private final String applicationToken;
+
+    private final StorageCache cache;
+
+    public SharedStorageKey(String applicationToken, StorageCache cache)
+    {
+      this.applicationToken = applicationToken;
+      this.cache = cache;
+    }
+
+    @Override
+    public int hashCode()
+    {
+      return 31 * applicationToken.hashCode() + System.identityHashCode(cache);
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+      if (this == obj)
+      {
+        return true;
+      }
+
+      if (!(obj instanceof SharedStorageKey))
+      {
+        return false;
+      }
+
+      SharedStorageKey other = (SharedStorageKey)obj;
+      return applicationToken.equals(other.applicationToken) && cache == other.cache;
+    }
+  }
 }
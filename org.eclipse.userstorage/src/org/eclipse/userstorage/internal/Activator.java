@@ -58,6 +58,8 @@ public class Activator extends Plugin
 
   private static ICredentialsProvider credentialsProvider = CANCEL_CREDENTIALS_PROVIDER;
 
+  private static ISecurePreferences securePreferences;
+
   @Override
   public void start(BundleContext bundleContext) throws Exception
   {
@@ -149,6 +151,11 @@ public class Activator extends Plugin
 
   public static ISecurePreferences getSecurePreferences()
   {
+    if (securePreferences != null)
+    {
+      return securePreferences;
+    }
+
     if (PLATFORM_RUNNING)
     {
       return SecurePreferencesFactory.getDefault().node(PLUGIN_ID);
@@ -157,6 +164,15 @@ public class Activator extends Plugin
     return null;
   }
 
+  /**
+   * Replaces the default secure storage with the given preferences, or restores it if <code>null</code> is passed.
+   * Intended for tests that must not touch the secure storage of the user.
+   */
+  public static void setSecurePreferences(ISecurePreferences securePreferences)
+  {
+    Activator.securePreferences = securePreferences;
+  }
+
   public static ICredentialsProvider getCredentialsProvider()
   {
     return credentialsProvider;
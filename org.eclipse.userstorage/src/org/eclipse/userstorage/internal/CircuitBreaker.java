@@ -0,0 +1,226 @@
+/*
+ * Copyright (c) 2015 Eike Stepper (Berlin, Germany) and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Eike Stepper - initial API and implementation
+ */
+package org.eclipse.userstorage.internal;
+
+import org.eclipse.userstorage.IStorageService;
+import org.eclipse.userstorage.spi.IStorageMetrics;
+import org.eclipse.userstorage.spi.IStorageMetrics.CircuitBreakerState;
+
+/**
+ * Stops sending requests to a storage service that keeps failing.
+ * <p>
+ * The breaker {@link CircuitBreakerState#OPEN opens} after {@link #getFailureThreshold() a number of} consecutive failures,
+ * or if the average error rate exceeds {@link #getErrorRateThreshold() a threshold}.
+ * While it's open, requests fail fast. After {@link #getOpenTime() a while} the breaker becomes {@link CircuitBreakerState#HALF_OPEN half-open}
+ * and lets a single probe request through. The probe closes the breaker if it succeeds and opens it again if it fails.
+ * <p>
+ * The state changes are reported to the {@link IStorageMetrics#circuitBreakerStateChanged(IStorageService, CircuitBreakerState, CircuitBreakerState) metrics}.
+ *
+ * @author Eike Stepper
+ */
+public final class CircuitBreaker
+{
+  private static final double WEIGHT = 0.1;
+
+  private static final int MIN_REQUESTS = 10;
+
+  private final IStorageService service;
+
+  private final int failureThreshold;
+
+  private final double errorRateThreshold;
+
+  private final long openTime;
+
+  private CircuitBreakerState state = CircuitBreakerState.CLOSED;
+
+  private int consecutiveFailures;
+
+  private double errorRate;
+
+  private int requests;
+
+  private long openedAt;
+
+  private long probeStartedAt;
+
+  public CircuitBreaker(IStorageService service)
+  {
+    this(service, //
+        StorageProperties.getProperty(StorageProperties.CIRCUIT_BREAKER_FAILURES, 5), //
+        StorageProperties.getProperty(StorageProperties.CIRCUIT_BREAKER_ERROR_RATE, 50) / 100.0, //
+        StorageProperties.getProperty(StorageProperties.CIRCUIT_BREAKER_OPEN_TIME, 30000));
+  }
+
+  public CircuitBreaker(IStorageService service, int failureThreshold, double errorRateThreshold, long openTime)
+  {
+    this.service = service;
+    this.failureThreshold = failureThreshold;
+    this.errorRateThreshold = errorRateThreshold;
+    this.openTime = openTime;
+  }
+
+  public IStorageService getService()
+  {
+    return service;
+  }
+
+  public int getFailureThreshold()
+  {
+    return failureThreshold;
+  }
+
+  public double getErrorRateThreshold()
+  {
+    return errorRateThreshold;
+  }
+
+  public long getOpenTime()
+  {
+    return openTime;
+  }
+
+  public synchronized CircuitBreakerState getState()
+  {
+    return state;
+  }
+
+  /**
+   * Returns whether {@link #allowRequest()} would currently permit a request, without changing the state of this breaker.
+   */
+  public synchronized boolean isAvailable()
+  {
+    long now = System.currentTimeMillis();
+
+    switch (state)
+    {
+      case OPEN:
+        return now - openedAt >= openTime;
+
+      case HALF_OPEN:
+        return now - probeStartedAt >= openTime;
+
+      default:
+        return true;
+    }
+  }
+
+  /**
+   * Returns whether a request may be sent to the service now.
+   * In the half-open state only the first caller gets permission to send a probe.
+   */
+  public boolean allowRequest()
+  {
+    CircuitBreakerState oldState;
+
+    synchronized (this)
+    {
+      oldState = state;
+      long now = System.currentTimeMillis();
+
+      switch (state)
+      {
+        case CLOSED:
+          return true;
+
+        case OPEN:
+          if (now - openedAt < openTime)
+          {
+            return false;
+          }
+
+          state = CircuitBreakerState.HALF_OPEN;
+          probeStartedAt = now;
+          break;
+
+        case HALF_OPEN:
+          // Let another probe through if the current one never reported back.
+          if (now - probeStartedAt < openTime)
+          {
+            return false;
+          }
+
+          probeStartedAt = now;
+          return true;
+      }
+    }
+
+    notifyListeners(oldState, CircuitBreakerState.HALF_OPEN);
+    return true;
+  }
+
+  public void recordSuccess()
+  {
+    CircuitBreakerState oldState;
+
+    synchronized (this)
+    {
+      record(0.0);
+      consecutiveFailures = 0;
+
+      oldState = state;
+      if (oldState == CircuitBreakerState.CLOSED)
+      {
+        return;
+      }
+
+      state = CircuitBreakerState.CLOSED;
+      errorRate = 0.0;
+      requests = 0;
+    }
+
+    notifyListeners(oldState, CircuitBreakerState.CLOSED);
+  }
+
+  public void recordFailure()
+  {
+    CircuitBreakerState oldState;
+
+    synchronized (this)
+    {
+      record(1.0);
+      ++consecutiveFailures;
+
+      oldState = state;
+      if (oldState == CircuitBreakerState.OPEN)
+      {
+        return;
+      }
+
+      if (oldState == CircuitBreakerState.CLOSED && consecutiveFailures < failureThreshold && (requests < MIN_REQUESTS || errorRate < errorRateThreshold))
+      {
+        return;
+      }
+
+      state = CircuitBreakerState.OPEN;
+      openedAt = System.currentTimeMillis();
+    }
+
+    notifyListeners(oldState, CircuitBreakerState.OPEN);
+  }
+
+  @Override
+  public synchronized String toString()
+  {
+    return "CircuitBreaker[" + service.getServiceURI() + ", " + state + "]";
+  }
+
+  private void record(double error)
+  {
+    ++requests;
+    errorRate += WEIGHT * (error - errorRate);
+  }
+
+  private void notifyListeners(CircuitBreakerState oldState, CircuitBreakerState newState)
+  {
+    StorageMetrics.INSTANCE.circuitBreakerStateChanged(service, oldState, newState);
+  }
+}
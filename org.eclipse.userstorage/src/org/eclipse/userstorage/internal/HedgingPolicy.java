@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) 2015 Eike Stepper (Berlin, Germany) and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Eike Stepper - initial API and implementation
+ */
+package org.eclipse.userstorage.internal;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides when a duplicate of a slow idempotent read is sent.
+ * <p>
+ * Hedging is disabled unless the system property {@link StorageProperties#HEDGING_PERCENTILE} is set.
+ * If a read hasn't returned within that percentile of the recent read latencies of a service, a duplicate is sent
+ * and the first response wins. The duplicates of each service are limited by a {@link RetryPolicy.Budget budget}.
+ * <p>
+ * The hedged requests run on at most {@link StorageProperties#HEDGING_THREADS a number of} threads.
+ * If all of them are busy, the {@link #getExecutor() executor} rejects new requests and the reads are sent without duplicates.
+ *
+ * @author Eike Stepper
+ */
+public final class HedgingPolicy
+{
+  private static final int DEFAULT_HEDGING_THREADS = 16;
+
+  public static final HedgingPolicy INSTANCE = new HedgingPolicy(StorageProperties.getProperty(StorageProperties.HEDGING_PERCENTILE, 0),
+      StorageProperties.getProperty(StorageProperties.HEDGING_THREADS, DEFAULT_HEDGING_THREADS));
+
+  public static final long NO_HEDGING = -1;
+
+  private final int percentile;
+
+  private final int threads;
+
+  private ExecutorService executor;
+
+  public HedgingPolicy(int percentile)
+  {
+    this(percentile, DEFAULT_HEDGING_THREADS);
+  }
+
+  public HedgingPolicy(int percentile, int threads)
+  {
+    this.percentile = percentile;
+    this.threads = Math.max(1, threads);
+  }
+
+  public boolean isEnabled()
+  {
+    return percentile > 0 && percentile < 100;
+  }
+
+  public int getPercentile()
+  {
+    return percentile;
+  }
+
+  public int getThreads()
+  {
+    return threads;
+  }
+
+  /**
+   * Returns the number of milliseconds after which a duplicate of a read is sent, or {@link #NO_HEDGING}.
+   */
+  public long getDelay(LatencyTracker latencyTracker)
+  {
+    if (!isEnabled())
+    {
+      return NO_HEDGING;
+    }
+
+    return latencyTracker.getPercentile(percentile);
+  }
+
+  /**
+   * Returns the executor of the hedged requests. It throws a {@link RejectedExecutionException} rather than queueing a request if all threads are busy.
+   */
+  public synchronized ExecutorService getExecutor()
+  {
+    if (executor == null)
+    {
+      executor = new ThreadPoolExecutor(0, threads, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory()
+      {
+        private int counter;
+
+        @Override
+        public synchronized Thread newThread(Runnable runnable)
+        {
+          Thread thread = new Thread(runnable, "UserStorage Hedged Request " + ++counter);
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    }
+
+    return executor;
+  }
+
+  /**
+   * Remembers the latencies of the most recent reads of a service.
+   *
+   * @author Eike Stepper
+   */
+  public static final class LatencyTracker
+  {
+    private static final int SAMPLES = 128;
+
+    private static final int MIN_SAMPLES = 16;
+
+    private final long[] samples = new long[SAMPLES];
+
+    private int count;
+
+    private int next;
+
+    public LatencyTracker()
+    {
+    }
+
+    public synchronized void record(long millis)
+    {
+      samples[next] = millis;
+      next = (next + 1) % SAMPLES;
+
+      if (count < SAMPLES)
+      {
+        ++count;
+      }
+    }
+
+    /**
+     * Returns the given percentile of the recorded latencies in milliseconds, or {@link HedgingPolicy#NO_HEDGING} if there are too few samples.
+     */
+    public long getPercentile(int percentile)
+    {
+      long[] sorted;
+
+      synchronized (this)
+      {
+        if (count < MIN_SAMPLES)
+        {
+          return NO_HEDGING;
+        }
+
+        sorted = new long[count];
+        System.arraycopy(samples, 0, sorted, 0, count);
+      }
+
+      Arrays.sort(sorted);
+      return sorted[Math.min(count - 1, count * percentile / 100)];
+    }
+  }
+}
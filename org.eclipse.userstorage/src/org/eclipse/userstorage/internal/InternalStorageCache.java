@@ -11,19 +11,83 @@
 package org.eclipse.userstorage.internal;
 
 import org.eclipse.userstorage.IStorageService;
+import org.eclipse.userstorage.internal.util.IOUtil.AsyncOutputStream;
 import org.eclipse.userstorage.internal.util.IOUtil.EndOfFileAware;
+import org.eclipse.userstorage.spi.IStorageTracer.Span;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * @author Eike Stepper
  */
 public abstract class InternalStorageCache
 {
+  private static final int DEFAULT_CACHE_FILL_BUFFER_SIZE = 1024 * 1024;
+
+  private static final int DEFAULT_CACHE_FILL_THREADS = 8;
+
+  private static final int DEFAULT_CACHE_FILL_IDLE_TIMEOUT = 30000;
+
+  /**
+   * Drains the cache fills of all caches. If all threads are busy new fills are skipped rather than queued,
+   * so that neither threads nor ring buffers pile up behind a slow cache.
+   */
+  private static final ExecutorService FILL_EXECUTOR = new ThreadPoolExecutor(0,
+      Math.max(1, StorageProperties.getProperty(StorageProperties.CACHE_FILL_THREADS, DEFAULT_CACHE_FILL_THREADS)), 60, TimeUnit.SECONDS,
+      new SynchronousQueue<Runnable>(), new ThreadFactory()
+      {
+        private int counter;
+
+        @Override
+        public synchronized Thread newThread(Runnable runnable)
+        {
+          Thread thread = new Thread(runnable, "UserStorage Cache Writer " + ++counter);
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+
+  private static final int PROPERTIES_INDEX_THREADS = 2;
+
+  /**
+   * Loads the properties indexes of all caches. Each cache is scanned at most once per application token, so the scans are queued.
+   */
+  private static final ThreadPoolExecutor INDEX_EXECUTOR = new ThreadPoolExecutor(PROPERTIES_INDEX_THREADS, PROPERTIES_INDEX_THREADS, 60,
+      TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory()
+      {
+        private int counter;
+
+        @Override
+        public synchronized Thread newThread(Runnable runnable)
+        {
+          Thread thread = new Thread(runnable, "UserStorage Cache Index " + ++counter);
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+
+  static
+  {
+    INDEX_EXECUTOR.allowCoreThreadTimeOut(true);
+  }
+
+  private final Map<String, AsyncOutputStream> pendingFills = new HashMap<String, AsyncOutputStream>();
+
+  private final ConcurrentMap<String, PropertiesIndex> propertiesIndexes = new ConcurrentHashMap<String, PropertiesIndex>();
+
   private IStorageService service;
 
   public InternalStorageCache()
@@ -48,29 +112,209 @@ public abstract class InternalStorageCache
 
   protected abstract void storageChanged(IStorageService oldService, IStorageService newService);
 
+  /**
+   * Loads the properties of all blobs of the given application in the background, unless that has already been started.
+   * Afterwards {@link #internalLoadProperties(String, String, Map) internalLoadProperties()} can hand out
+   * the properties of each blob once without reading them from this cache.
+   */
+  void internalIndexProperties(String applicationToken)
+  {
+    PropertiesIndex index = new PropertiesIndex(applicationToken);
+    if (propertiesIndexes.putIfAbsent(applicationToken, index) == null)
+    {
+      INDEX_EXECUTOR.execute(index);
+    }
+  }
+
   void internalLoadProperties(String applicationToken, String key, Map<String, String> properties) throws IOException
   {
-    loadProperties(applicationToken, key, properties);
+    PropertiesIndex index = propertiesIndexes.get(applicationToken);
+    if (index != null)
+    {
+      Map<String, String> indexedProperties = index.claim(key);
+      if (indexedProperties != null)
+      {
+        properties.putAll(indexedProperties);
+        return;
+      }
+    }
+
+    // A blob that is still being filled has no valid properties, yet.
+    if (awaitFill(applicationToken, key, false))
+    {
+      loadProperties(applicationToken, key, properties);
+    }
   }
 
   void internalSaveProperties(String applicationToken, String key, Map<String, String> properties) throws IOException
   {
+    invalidateProperties(applicationToken, key);
+    awaitFill(applicationToken, key, true);
     saveProperties(applicationToken, key, properties);
   }
 
   InputStream internalGetInputStream(String applicationToken, String key) throws IOException
   {
-    return getInputStream(applicationToken, key);
+    Span span = StorageTracing.beginCacheOpen(applicationToken, key);
+    InputStream stream = null;
+
+    try
+    {
+      if (awaitFill(applicationToken, key, false))
+      {
+        stream = getInputStream(applicationToken, key);
+      }
+
+      return stream;
+    }
+    finally
+    {
+      StorageTracing.end(span, stream == null ? 0 : 1, 0);
+    }
   }
 
-  OutputStream internalGetOutputStream(final String applicationToken, final String key, final Map<String, String> properties) throws IOException
+  OutputStream internalGetOutputStream(String applicationToken, String key, Map<String, String> properties) throws IOException
   {
+    invalidateProperties(applicationToken, key);
+    awaitFill(applicationToken, key, true);
     return new TransactionalOutputStream(applicationToken, key, properties);
   }
 
+  /**
+   * Returns a stream that fills this cache in the background, so that the caller is not slowed down by this cache,
+   * or <code>null</code> if the blob is already being filled by another reader or if no background thread is available.
+   * If the caller writes faster than this cache can absorb the bytes, or stops writing without closing the stream, the fill is abandoned.
+   * Subsequent reads of the same blob bypass this cache until the caller has closed the stream, and then wait for the fill to complete.
+   * Subsequent writes of the same blob abandon the fill.
+   */
+  OutputStream internalGetFillOutputStream(String applicationToken, String key, Map<String, String> properties) throws IOException
+  {
+    int bufferSize = StorageProperties.getProperty(StorageProperties.CACHE_FILL_BUFFER_SIZE, DEFAULT_CACHE_FILL_BUFFER_SIZE);
+    if (bufferSize <= 0)
+    {
+      return internalGetOutputStream(applicationToken, key, properties);
+    }
+
+    if (!awaitFill(applicationToken, key, false))
+    {
+      return null;
+    }
+
+    invalidateProperties(applicationToken, key);
+
+    // The properties are saved in the background, so take a snapshot of them.
+    properties = new HashMap<String, String>(properties);
+
+    String fillKey = getFillKey(applicationToken, key);
+    int idleTimeout = StorageProperties.getProperty(StorageProperties.CACHE_FILL_IDLE_TIMEOUT, DEFAULT_CACHE_FILL_IDLE_TIMEOUT);
+
+    synchronized (pendingFills)
+    {
+      if (pendingFills.containsKey(fillKey))
+      {
+        // Another reader has started a fill in the meantime.
+        return null;
+      }
+
+      FillCompletion completion = new FillCompletion(fillKey);
+      AsyncOutputStream fill = new AsyncOutputStream(new TransactionalOutputStream(applicationToken, key, properties), bufferSize, idleTimeout,
+          FILL_EXECUTOR, completion);
+
+      if (fill.isDone())
+      {
+        // No thread was available.
+        return null;
+      }
+
+      completion.fill = fill;
+      pendingFills.put(fillKey, fill);
+      return fill;
+    }
+  }
+
   void internalDelete(String applicationToken, String key) throws IOException
   {
-    delete(applicationToken, key);
+    invalidateProperties(applicationToken, key);
+    awaitFill(applicationToken, key, true);
+    traceDelete(applicationToken, key);
+  }
+
+  int getPendingFillCount()
+  {
+    synchronized (pendingFills)
+    {
+      return pendingFills.size();
+    }
+  }
+
+  /**
+   * Makes sure that the properties index doesn't hand out properties that are about to change.
+   */
+  private void invalidateProperties(String applicationToken, String key)
+  {
+    PropertiesIndex index = propertiesIndexes.get(applicationToken);
+    if (index != null)
+    {
+      index.invalidate(key);
+    }
+  }
+
+  /**
+   * Waits for a pending fill of the given blob that its reader has already closed.
+   * A fill that its reader is still writing is abandoned and awaited if <code>abandon</code> is <code>true</code>,
+   * otherwise it's left alone and <code>false</code> is returned.
+   */
+  boolean awaitFill(String applicationToken, String key, boolean abandon) throws IOException
+  {
+    AsyncOutputStream fill;
+    synchronized (pendingFills)
+    {
+      fill = pendingFills.get(getFillKey(applicationToken, key));
+    }
+
+    if (fill != null)
+    {
+      if (!fill.isClosed())
+      {
+        if (!abandon)
+        {
+          return false;
+        }
+
+        fill.abandon();
+      }
+
+      try
+      {
+        fill.await();
+      }
+      catch (InterruptedException ex)
+      {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while waiting for the cache fill of " + key);
+      }
+    }
+
+    return true;
+  }
+
+  private void traceDelete(String applicationToken, String key) throws IOException
+  {
+    Span span = StorageTracing.beginCacheEvict(applicationToken, key);
+
+    try
+    {
+      delete(applicationToken, key);
+    }
+    finally
+    {
+      StorageTracing.end(span, 0, 0);
+    }
+  }
+
+  private static String getFillKey(String applicationToken, String key)
+  {
+    return applicationToken + "/" + key;
   }
 
   public abstract Iterator<String> getKeys(String applicationToken) throws IOException;
@@ -85,6 +329,106 @@ public abstract class InternalStorageCache
 
   protected abstract void delete(String applicationToken, String key) throws IOException;
 
+  /**
+   * Holds the properties of the blobs of one application that this cache contained when the index was loaded.
+   * Each entry is handed out at most once, because afterwards the properties are maintained by the {@link Blob}
+   * and read from this cache if the blob is created again.
+   * Entries of blobs that are written or deleted through this cache are invalidated, even before the loader reaches them.
+   *
+   * @author Eike Stepper
+   */
+  private final class PropertiesIndex implements Runnable
+  {
+    private final Map<String, String> invalid = new HashMap<String, String>();
+
+    private final ConcurrentMap<String, Map<String, String>> entries = new ConcurrentHashMap<String, Map<String, String>>();
+
+    private final String applicationToken;
+
+    public PropertiesIndex(String applicationToken)
+    {
+      this.applicationToken = applicationToken;
+    }
+
+    /**
+     * Returns the indexed properties of the given key, or <code>null</code> if they must be loaded from the cache.
+     */
+    public Map<String, String> claim(String key)
+    {
+      Map<String, String> properties = entries.put(key, invalid);
+      return properties == invalid ? null : properties;
+    }
+
+    public void invalidate(String key)
+    {
+      entries.put(key, invalid);
+    }
+
+    @Override
+    public void run()
+    {
+      try
+      {
+        for (Iterator<String> it = getKeys(applicationToken); it.hasNext();)
+        {
+          String key = it.next();
+          if (entries.containsKey(key))
+          {
+            continue;
+          }
+
+          Map<String, String> properties = new HashMap<String, String>();
+
+          try
+          {
+            loadProperties(applicationToken, key, properties);
+          }
+          catch (IOException ex)
+          {
+            Activator.log(ex);
+            continue;
+          }
+
+          // Don't overwrite an entry that has been claimed or invalidated in the meantime.
+          entries.putIfAbsent(key, properties);
+        }
+      }
+      catch (Exception ex)
+      {
+        Activator.log(ex);
+      }
+    }
+  }
+
+  /**
+   * Removes a fill from the pending fills when it's done, so that neither the fill nor its target stream are retained.
+   *
+   * @author Eike Stepper
+   */
+  private final class FillCompletion implements Runnable
+  {
+    private final String fillKey;
+
+    private AsyncOutputStream fill;
+
+    public FillCompletion(String fillKey)
+    {
+      this.fillKey = fillKey;
+    }
+
+    @Override
+    public void run()
+    {
+      synchronized (pendingFills)
+      {
+        if (fill != null && pendingFills.get(fillKey) == fill)
+        {
+          pendingFills.remove(fillKey);
+        }
+      }
+    }
+  }
+
   /**
    * @author Eike Stepper
    */
@@ -96,15 +440,20 @@ public abstract class InternalStorageCache
 
     private final Map<String, String> properties;
 
+    private final Span span;
+
     private OutputStream output;
 
     private boolean fullyWritten;
 
+    private long bytes;
+
     private TransactionalOutputStream(String applicationToken, String key, Map<String, String> properties)
     {
       this.applicationToken = applicationToken;
       this.key = key;
       this.properties = properties;
+      span = StorageTracing.beginCacheFill(applicationToken, key);
     }
 
     private void init() throws IOException
@@ -121,6 +470,7 @@ public abstract class InternalStorageCache
     {
       init();
       output.write(b);
+      ++bytes;
     }
 
     @Override
@@ -128,6 +478,7 @@ public abstract class InternalStorageCache
     {
       init();
       output.write(b);
+      bytes += b.length;
     }
 
     @Override
@@ -135,6 +486,7 @@ public abstract class InternalStorageCache
     {
       init();
       output.write(b, off, len);
+      bytes += len;
     }
 
     @Override
@@ -150,15 +502,28 @@ public abstract class InternalStorageCache
       {
         try
         {
-          if (fullyWritten)
+          try
           {
-            saveProperties(applicationToken, key, properties);
+            if (fullyWritten)
+            {
+              saveProperties(applicationToken, key, properties);
+            }
+          }
+          finally
+          {
+            output.close();
+            output = null;
           }
         }
         finally
         {
-          output.close();
-          output = null;
+          StorageTracing.end(span, fullyWritten ? 1 : 0, bytes);
+        }
+
+        if (!fullyWritten)
+        {
+          // Don't leave incomplete contents behind that a "304 Not Modified" response could expose.
+          traceDelete(applicationToken, key);
         }
       }
     }
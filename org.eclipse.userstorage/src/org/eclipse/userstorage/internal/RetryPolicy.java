@@ -0,0 +1,199 @@
+/*
+ * Copyright (c) 2015 Eike Stepper (Berlin, Germany) and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Eike Stepper - initial API and implementation
+ */
+package org.eclipse.userstorage.internal;
+
+import org.eclipse.userstorage.util.ProtocolException;
+
+import org.apache.http.NoHttpResponseException;
+import org.apache.http.conn.ConnectTimeoutException;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+
+/**
+ * Decides whether and when a failed request is sent again.
+ * <p>
+ * The delays grow exponentially with "full jitter", i.e., a delay is a random value between zero and the exponential bound.
+ * A <code>Retry-After</code> header of the response takes precedence over the computed delay.
+ * The retries of each service are limited by a {@link Budget budget}, so that retries can't amplify an outage.
+ *
+ * @author Eike Stepper
+ */
+public final class RetryPolicy
+{
+  public static final RetryPolicy INSTANCE = new RetryPolicy( //
+      StorageProperties.getProperty(StorageProperties.RETRY_ATTEMPTS, 2), //
+      StorageProperties.getProperty(StorageProperties.RETRY_DELAY, 250), //
+      StorageProperties.getProperty(StorageProperties.RETRY_MAX_DELAY, 5000));
+
+  public static final long NO_RETRY = -1;
+
+  private static final int TOO_MANY_REQUESTS = 429;
+
+  private static final int BAD_GATEWAY = 502;
+
+  private static final int SERVICE_UNAVAILABLE = 503;
+
+  private static final int GATEWAY_TIMEOUT = 504;
+
+  private final Random random = new Random();
+
+  private final int maxRetries;
+
+  private final long baseDelay;
+
+  private final long maxDelay;
+
+  public RetryPolicy(int maxRetries, long baseDelay, long maxDelay)
+  {
+    this.maxRetries = maxRetries;
+    this.baseDelay = baseDelay;
+    this.maxDelay = maxDelay;
+  }
+
+  public int getMaxRetries()
+  {
+    return maxRetries;
+  }
+
+  /**
+   * Returns whether the given failure is likely to go away if the request is sent again.
+   */
+  public boolean isTransient(IOException ex)
+  {
+    if (ex instanceof ProtocolException)
+    {
+      int statusCode = ((ProtocolException)ex).getStatusCode();
+      return statusCode == TOO_MANY_REQUESTS || statusCode == BAD_GATEWAY || statusCode == SERVICE_UNAVAILABLE || statusCode == GATEWAY_TIMEOUT;
+    }
+
+    return isConnectFailure(ex) || ex instanceof SocketTimeoutException || ex instanceof NoHttpResponseException;
+  }
+
+  /**
+   * Returns whether the given failure happened before a connection was established, i.e., before anything was sent.
+   */
+  public boolean isConnectFailure(IOException ex)
+  {
+    return ex instanceof ConnectException || ex instanceof ConnectTimeoutException;
+  }
+
+  /**
+   * Returns the number of milliseconds to wait before the given retry, or {@link #NO_RETRY} if the request must not be sent again.
+   *
+   * @param retry the number of the retry, starting with 1.
+   * @param retryAfter the value of the <code>Retry-After</code> header of the response, or <code>null</code>.
+   */
+  public long getDelay(int retry, String retryAfter)
+  {
+    if (retry > maxRetries)
+    {
+      return NO_RETRY;
+    }
+
+    if (retryAfter != null)
+    {
+      long delay = parseRetryAfter(retryAfter);
+      if (delay >= 0)
+      {
+        // Don't wait longer than the caller is willing to, but don't retry earlier than the server asks.
+        return delay <= maxDelay ? delay : NO_RETRY;
+      }
+    }
+
+    long bound = Math.min(maxDelay, baseDelay << Math.min(retry - 1, 30));
+
+    synchronized (random)
+    {
+      return (long)(random.nextDouble() * bound);
+    }
+  }
+
+  private static long parseRetryAfter(String retryAfter)
+  {
+    retryAfter = retryAfter.trim();
+
+    try
+    {
+      return Math.max(0, Long.parseLong(retryAfter) * 1000);
+    }
+    catch (NumberFormatException ex)
+    {
+      //$FALL-THROUGH$
+    }
+
+    try
+    {
+      SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+      format.setTimeZone(TimeZone.getTimeZone("GMT"));
+
+      Date date = format.parse(retryAfter);
+      return Math.max(0, date.getTime() - System.currentTimeMillis());
+    }
+    catch (Exception ex)
+    {
+      return -1;
+    }
+  }
+
+  /**
+   * Limits the extra requests to a service, such as retries or hedged requests, to a fraction of its successful requests.
+   * <p>
+   * Each successful request deposits a tenth of a token, up to a maximum of ten tokens, and each extra request withdraws a whole token.
+   *
+   * @author Eike Stepper
+   */
+  public static final class Budget
+  {
+    private static final int TOKEN = 10;
+
+    private static final int MAX_BALANCE = 10 * TOKEN;
+
+    private int balance = MAX_BALANCE;
+
+    public Budget()
+    {
+    }
+
+    public synchronized void deposit()
+    {
+      if (balance < MAX_BALANCE)
+      {
+        ++balance;
+      }
+    }
+
+    public synchronized boolean withdraw()
+    {
+      if (balance >= TOKEN)
+      {
+        balance -= TOKEN;
+        return true;
+      }
+
+      return false;
+    }
+
+    /**
+     * Pays back a {@link #withdraw() withdrawal} that hasn't been used.
+     */
+    public synchronized void refund()
+    {
+      balance = Math.min(MAX_BALANCE, balance + TOKEN);
+    }
+  }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2015 Eike Stepper (Berlin, Germany) and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Eike Stepper - initial API and implementation
+ */
+package org.eclipse.userstorage.internal;
+
+/**
+ * Tracks exponentially weighted moving averages of the latency and the error rate of the requests to a storage service.
+ * <p>
+ * Whether a service is available at all is decided by its {@link CircuitBreaker}; the health only ranks the available services.
+ *
+ * @author Eike Stepper
+ */
+public final class ServiceHealth
+{
+  private static final double WEIGHT = 0.2;
+
+  private double latency;
+
+  private double errorRate;
+
+  private long requests;
+
+  public ServiceHealth()
+  {
+  }
+
+  public synchronized void recordSuccess(long nanos)
+  {
+    record(nanos, 0.0);
+  }
+
+  public synchronized void recordFailure(long nanos)
+  {
+    record(nanos, 1.0);
+  }
+
+  /**
+   * Returns the average latency in milliseconds.
+   */
+  public synchronized double getLatency()
+  {
+    return latency;
+  }
+
+  /**
+   * Returns the average error rate between 0.0 and 1.0.
+   */
+  public synchronized double getErrorRate()
+  {
+    return errorRate;
+  }
+
+  public synchronized long getRequests()
+  {
+    return requests;
+  }
+
+  /**
+   * Returns a score that is the lower the healthier the service is.
+   */
+  public synchronized double getScore()
+  {
+    // Each percent of errors weighs like ten percent more latency.
+    return latency * (1.0 + 10.0 * errorRate);
+  }
+
+  @Override
+  public synchronized String toString()
+  {
+    return "ServiceHealth[latency=" + latency + "ms, errorRate=" + errorRate + ", requests=" + requests + "]";
+  }
+
+  private void record(long nanos, double error)
+  {
+    double millis = nanos / 1000000.0;
+
+    if (requests++ == 0)
+    {
+      latency = millis;
+      errorRate = error;
+    }
+    else
+    {
+      latency += WEIGHT * (millis - latency);
+      errorRate += WEIGHT * (error - errorRate);
+    }
+  }
+}
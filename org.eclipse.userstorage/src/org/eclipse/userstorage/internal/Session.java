@@ -11,18 +11,24 @@
 package org.eclipse.userstorage.internal;
 
 import org.eclipse.userstorage.IStorageService;
+import org.eclipse.userstorage.internal.StorageTracing.SpanInputStream;
 import org.eclipse.userstorage.internal.util.IOUtil;
 import org.eclipse.userstorage.internal.util.JSONUtil;
 import org.eclipse.userstorage.internal.util.ProxyUtil;
 import org.eclipse.userstorage.internal.util.StringUtil;
 import org.eclipse.userstorage.spi.Credentials;
 import org.eclipse.userstorage.spi.ICredentialsProvider;
+import org.eclipse.userstorage.spi.IStorageMetrics.Operation;
+import org.eclipse.userstorage.spi.IStorageTracer.Span;
 import org.eclipse.userstorage.util.ConflictException;
 import org.eclipse.userstorage.util.NotFoundException;
 import org.eclipse.userstorage.util.ProtocolException;
+import org.eclipse.userstorage.util.ServiceUnavailableException;
 
 import org.eclipse.core.runtime.OperationCanceledException;
 
+import org.eclipse.equinox.security.storage.ISecurePreferences;
+
 import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
@@ -32,17 +38,33 @@ import org.apache.http.client.CookieStore;
 import org.apache.http.client.fluent.Executor;
 import org.apache.http.client.fluent.Request;
 import org.apache.http.client.fluent.Response;
+import org.apache.http.cookie.Cookie;
 
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.lang.reflect.Field;
 import java.net.URI;
 import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * @author Eike Stepper
@@ -61,6 +83,21 @@ public class Session implements Headers, Codes
 
   private static final boolean DEBUG = Boolean.getBoolean("org.eclipse.userstorage.session.debug");
 
+  /**
+   * The fraction of the {@link #sessionLifetime} after which a session is renewed in the background.
+   */
+  private static final double SESSION_RENEWAL = 0.8;
+
+  private static final String SESSION_ID_KEY = "sessionID";
+
+  private static final String CSRF_TOKEN_KEY = "csrfToken";
+
+  private static final String SESSION_CREATED_KEY = "sessionCreated";
+
+  private static final String COOKIES_KEY = "cookies";
+
+  private static ScheduledExecutorService renewalExecutor;
+
   /**
    * It's important that the cookie store is <b>not</b> declared as a static field!
    * Otherwise session cookies could be left over even if the sessionID is set to null and
@@ -73,13 +110,39 @@ public class Session implements Headers, Codes
 
   private final StorageService service;
 
-  private String sessionID;
+  private final boolean persistentSessions = Boolean.getBoolean(StorageProperties.PERSISTENT_SESSIONS);
+
+  /**
+   * The number of milliseconds after which a session is considered expired, or zero if the server decides when a session expires.
+   */
+  private final long sessionLifetime = StorageProperties.getProperty(StorageProperties.SESSION_LIFETIME, 0);
+
+  /**
+   * Serializes the logins of the requests and of the background renewal.
+   */
+  private final Object loginLock = new Object();
+
+  private volatile String sessionID;
 
-  private String csrfToken;
+  private volatile String csrfToken;
+
+  private volatile long sessionCreated;
+
+  private ScheduledFuture<?> renewal;
+
+  /**
+   * Whether the secure storage may hold a session that {@link #reset()} must remove.
+   */
+  private volatile boolean sessionPersisted;
 
   public Session(StorageService service)
   {
     this.service = service;
+
+    if (persistentSessions)
+    {
+      loadSession();
+    }
   }
 
   public IStorageService getService()
@@ -88,6 +151,59 @@ public class Session implements Headers, Codes
   }
 
   public void reset()
+  {
+    clearSession();
+
+    if (sessionPersisted)
+    {
+      saveSession();
+    }
+  }
+
+  /**
+   * Returns the number of milliseconds since the current session was established, or -1 if there is no session.
+   */
+  public long getSessionAge()
+  {
+    return sessionID == null ? -1 : System.currentTimeMillis() - sessionCreated;
+  }
+
+  /**
+   * Replaces the current session with a new one, if the credentials are stored.
+   * Called in the background before the current session expires, so that the next request doesn't have to log in.
+   */
+  void renew()
+  {
+    Credentials credentials = service.getCredentials();
+    if (credentials == null || StringUtil.isEmpty(credentials.getUsername()) || StringUtil.isEmpty(credentials.getPassword()))
+    {
+      return;
+    }
+
+    synchronized (loginLock)
+    {
+      // Nothing to renew if a request has discarded the session in the meantime; the next request logs in.
+      if (sessionID == null)
+      {
+        return;
+      }
+
+      try
+      {
+        login(credentials, null, false);
+      }
+      catch (Exception ex)
+      {
+        // The next request will log in again.
+        if (DEBUG)
+        {
+          ex.printStackTrace();
+        }
+      }
+    }
+  }
+
+  private void clearSession()
   {
     sessionID = null;
     csrfToken = null;
@@ -95,6 +211,189 @@ public class Session implements Headers, Codes
     // Make sure no old session cookies are sent.
     // Otherwise the server would reply with "401: CSRF Validation Failed".
     cookieStore.clear();
+
+    cancelRenewal();
+  }
+
+  private void sessionEstablished()
+  {
+    sessionCreated = System.currentTimeMillis();
+
+    if (persistentSessions)
+    {
+      saveSession();
+    }
+
+    scheduleRenewal();
+  }
+
+  private synchronized void scheduleRenewal()
+  {
+    cancelRenewal();
+
+    // Renewing a session without stored credentials would prompt the user in the background.
+    if (sessionLifetime <= 0 || service.getCredentials() == null)
+    {
+      return;
+    }
+
+    long delay = sessionCreated + (long)(sessionLifetime * SESSION_RENEWAL) - System.currentTimeMillis();
+    renewal = getRenewalExecutor().schedule(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        service.renewSession(Session.this);
+      }
+    }, Math.max(0, delay), TimeUnit.MILLISECONDS);
+  }
+
+  private synchronized void cancelRenewal()
+  {
+    if (renewal != null)
+    {
+      renewal.cancel(false);
+      renewal = null;
+    }
+  }
+
+  private void loadSession()
+  {
+    try
+    {
+      ISecurePreferences securePreferences = service.getSecurePreferences();
+      if (securePreferences != null)
+      {
+        String sessionID = securePreferences.get(SESSION_ID_KEY, null);
+        String csrfToken = securePreferences.get(CSRF_TOKEN_KEY, null);
+        long sessionCreated = Long.parseLong(securePreferences.get(SESSION_CREATED_KEY, "0"));
+
+        if (StringUtil.isEmpty(sessionID) || StringUtil.isEmpty(csrfToken) || isExpired(sessionCreated))
+        {
+          return;
+        }
+
+        decodeCookies(securePreferences.get(COOKIES_KEY, ""));
+        this.csrfToken = csrfToken;
+        this.sessionCreated = sessionCreated;
+        this.sessionID = sessionID;
+        sessionPersisted = true;
+
+        scheduleRenewal();
+      }
+    }
+    catch (Exception ex)
+    {
+      StorageService.logSecureStorageProblem(ex);
+    }
+  }
+
+  private void saveSession()
+  {
+    try
+    {
+      ISecurePreferences securePreferences = service.getSecurePreferences();
+      if (securePreferences != null)
+      {
+        String sessionID = this.sessionID;
+        String csrfToken = this.csrfToken;
+
+        if (sessionID == null || csrfToken == null)
+        {
+          securePreferences.remove(SESSION_ID_KEY);
+          securePreferences.remove(CSRF_TOKEN_KEY);
+          securePreferences.remove(SESSION_CREATED_KEY);
+          securePreferences.remove(COOKIES_KEY);
+          sessionPersisted = false;
+        }
+        else
+        {
+          securePreferences.put(SESSION_ID_KEY, sessionID, true);
+          securePreferences.put(CSRF_TOKEN_KEY, csrfToken, true);
+          securePreferences.put(SESSION_CREATED_KEY, Long.toString(sessionCreated), false);
+          securePreferences.put(COOKIES_KEY, encodeCookies(), true);
+          sessionPersisted = true;
+        }
+
+        securePreferences.flush();
+      }
+    }
+    catch (Exception ex)
+    {
+      StorageService.logSecureStorageProblem(ex);
+    }
+  }
+
+  /**
+   * Encodes the session cookies as one line per cookie with the tab-separated name, value, domain, path, expiry date, and secure flag.
+   */
+  private String encodeCookies()
+  {
+    StringBuilder builder = new StringBuilder();
+
+    for (Cookie cookie : cookieStore.getCookies())
+    {
+      Date expiryDate = cookie.getExpiryDate();
+
+      builder.append(cookie.getName());
+      builder.append('\t');
+      builder.append(StringUtil.safe(cookie.getValue()));
+      builder.append('\t');
+      builder.append(StringUtil.safe(cookie.getDomain()));
+      builder.append('\t');
+      builder.append(StringUtil.safe(cookie.getPath()));
+      builder.append('\t');
+      builder.append(expiryDate == null ? "" : Long.toString(expiryDate.getTime()));
+      builder.append('\t');
+      builder.append(cookie.isSecure());
+      builder.append('\n');
+    }
+
+    return builder.toString();
+  }
+
+  @SuppressWarnings("restriction")
+  private void decodeCookies(String cookies)
+  {
+    for (String line : cookies.split("\n"))
+    {
+      String[] fields = line.split("\t", -1);
+      if (fields.length == 6)
+      {
+        org.apache.http.impl.cookie.BasicClientCookie cookie = new org.apache.http.impl.cookie.BasicClientCookie(fields[0], fields[1]);
+        cookie.setDomain(StringUtil.isEmpty(fields[2]) ? null : fields[2]);
+        cookie.setPath(StringUtil.isEmpty(fields[3]) ? null : fields[3]);
+        cookie.setExpiryDate(StringUtil.isEmpty(fields[4]) ? null : new Date(Long.parseLong(fields[4])));
+        cookie.setSecure(Boolean.parseBoolean(fields[5]));
+        cookieStore.addCookie(cookie);
+      }
+    }
+
+    cookieStore.clearExpired(new Date());
+  }
+
+  private boolean isExpired(long sessionCreated)
+  {
+    return sessionLifetime > 0 && System.currentTimeMillis() - sessionCreated >= sessionLifetime;
+  }
+
+  private static synchronized ScheduledExecutorService getRenewalExecutor()
+  {
+    if (renewalExecutor == null)
+    {
+      renewalExecutor = new ScheduledThreadPoolExecutor(1, new ThreadFactory()
+      {
+        @Override
+        public Thread newThread(Runnable runnable)
+        {
+          Thread thread = new Thread(runnable, "UserStorage Session Renewer");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    }
+
+    return renewalExecutor;
   }
 
   public Map<String, Map<String, Object>> retrieveProperties(final String applicationToken, ICredentialsProvider credentialsProvider, int pageSize, int page)
@@ -112,8 +411,20 @@ public class Session implements Headers, Codes
 
     URI uri = StringUtil.newURI(service.getServiceURI(), "api/blob/" + applicationToken + "?pagesize=" + pageSize + "&page=" + page);
 
-    return new RequestTemplate<Map<String, Map<String, Object>>>(uri)
+    return new RequestTemplate<Map<String, Map<String, Object>>>(Operation.LIST, uri)
     {
+      @Override
+      protected boolean isHedgeable()
+      {
+        return true;
+      }
+
+      @Override
+      protected boolean isRetryable(IOException ex)
+      {
+        return true;
+      }
+
       @Override
       protected Request prepareRequest() throws IOException
       {
@@ -124,7 +435,7 @@ public class Session implements Headers, Codes
       protected Map<String, Map<String, Object>> handleResponse(HttpResponse response, HttpEntity responseEntity) throws IOException
       {
         getStatusCode("GET", uri, response, OK);
-        List<Object> array = JSONUtil.parse(responseEntity.getContent(), null);
+        List<Object> array = parseJSON(responseEntity.getContent(), null);
 
         Map<String, Map<String, Object>> result = new HashMap<String, Map<String, Object>>();
 
@@ -157,8 +468,20 @@ public class Session implements Headers, Codes
   {
     URI uri = StringUtil.newURI(service.getServiceURI(), "api/blob/" + applicationToken + "/" + key);
 
-    return new RequestTemplate<InputStream>(uri)
+    return new RequestTemplate<InputStream>(Operation.GET, uri)
     {
+      @Override
+      protected boolean isHedgeable()
+      {
+        return true;
+      }
+
+      @Override
+      protected boolean isRetryable(IOException ex)
+      {
+        return true;
+      }
+
       @Override
       protected Request prepareRequest() throws IOException
       {
@@ -200,7 +523,7 @@ public class Session implements Headers, Codes
 
         if (statusCode == OK)
         {
-          Map<String, Object> object = JSONUtil.parse(responseEntity.getContent(), "value");
+          Map<String, Object> object = parseJSON(responseEntity.getContent(), "value");
           InputStream stream = (InputStream)object.remove("value");
 
           for (Map.Entry<String, Object> entry : object.entrySet())
@@ -230,9 +553,23 @@ public class Session implements Headers, Codes
       ICredentialsProvider credentialsProvider) throws IOException, ConflictException
   {
     URI uri = StringUtil.newURI(service.getServiceURI(), "api/blob/" + applicationToken + "/" + key);
+    final ContentsInputStream contents = new ContentsInputStream(in);
 
-    return new RequestTemplate<Boolean>(uri)
+    return new RequestTemplate<Boolean>(Operation.PUT, uri)
     {
+      @Override
+      protected boolean isResendable()
+      {
+        // The contents can't be sent twice.
+        return !contents.isRead();
+      }
+
+      @Override
+      protected boolean isRetryable(IOException ex)
+      {
+        return isResendable();
+      }
+
       @Override
       protected Request prepareRequest() throws IOException
       {
@@ -250,8 +587,8 @@ public class Session implements Headers, Codes
           request.setHeader(IF_MATCH, "\"" + eTag + "\"");
         }
 
-        body = JSONUtil.build(Collections.singletonMap("value", in));
-        request.bodyStream(body);
+        body = buildJSON(Collections.singletonMap("value", contents));
+        request.bodyStream(new CountingInputStream(body));
         return request;
       }
 
@@ -289,8 +626,15 @@ public class Session implements Headers, Codes
   {
     URI uri = StringUtil.newURI(service.getServiceURI(), "api/blob/" + applicationToken + "/" + key);
 
-    boolean deleted = new RequestTemplate<Boolean>(uri)
+    boolean deleted = new RequestTemplate<Boolean>(Operation.DELETE, uri)
     {
+      @Override
+      protected boolean isRetryable(IOException ex)
+      {
+        // After a timeout the blob may have been deleted already, and the retry would then fail with a conflict.
+        return !StringUtil.isEmpty(properties.get(Blob.ETAG)) && RetryPolicy.INSTANCE.isConnectFailure(ex);
+      }
+
       @Override
       protected Request prepareRequest() throws IOException
       {
@@ -335,6 +679,62 @@ public class Session implements Headers, Codes
     }
   }
 
+  private static String getHeader(HttpResponse response, String name)
+  {
+    if (response != null)
+    {
+      Header header = response.getFirstHeader(name);
+      if (header != null)
+      {
+        return header.getValue();
+      }
+    }
+
+    return null;
+  }
+
+  /**
+   * Builds the JSON body of a request and traces the encoding while the body is read.
+   */
+  private static InputStream buildJSON(Object value)
+  {
+    InputStream result = JSONUtil.build(value);
+
+    Span span = StorageTracing.beginJSONBuild();
+    if (span != null)
+    {
+      result = new SpanInputStream(result, span);
+    }
+
+    return result;
+  }
+
+  /**
+   * Parses the JSON body of a response and traces the decoding.
+   */
+  private static <T> T parseJSON(InputStream in, String streamKey) throws IOException
+  {
+    SpanInputStream spanStream = null;
+    Span span = StorageTracing.beginJSONParse();
+    if (span != null)
+    {
+      in = spanStream = new SpanInputStream(in, span);
+    }
+
+    try
+    {
+      return JSONUtil.parse(in, streamKey);
+    }
+    finally
+    {
+      if (spanStream != null)
+      {
+        // A streamed value is read later, so don't count its bytes.
+        spanStream.end();
+      }
+    }
+  }
+
   private static String getETag(HttpResponse response)
   {
     Header[] headers = response.getHeaders(Headers.ETAG);
@@ -352,361 +752,790 @@ public class Session implements Headers, Codes
   }
 
   /**
-   * @author Eike Stepper
+   * Replaces the current session, if any, with a new one. The caller must hold the {@link #loginLock}.
    */
-  private abstract class RequestTemplate<T>
+  private void login(Credentials credentials, ICredentialsProvider credentialsProvider, boolean reauthentication) throws IOException
   {
-    protected final URI uri;
+    // Don't persist the removal of a session that is replaced right away.
+    clearSession();
 
-    protected InputStream body;
+    Span span = StorageTracing.beginAuthentication(service);
+    int statusCode = -1;
+    InputStream body = null;
+    HttpEntity responseEntity = null;
 
-    public RequestTemplate(URI uri)
+    try
     {
-      this.uri = uri;
+      credentials = getCredentials(credentials, credentialsProvider, reauthentication);
+
+      Map<String, Object> arguments = new LinkedHashMap<String, Object>();
+      arguments.put("username", credentials.getUsername());
+      arguments.put("password", credentials.getPassword());
+
+      URI uri = StringUtil.newURI(service.getServiceURI(), "api/user/login");
+
+      Request request = configureRequest(Request.Post(uri), uri);
+      body = buildJSON(arguments);
+      request.bodyStream(new CountingInputStream(body));
+
+      HttpResponse response = sendRequest(request, uri, Operation.LOGIN);
+      responseEntity = response.getEntity();
+
+      getStatusCode("POST", uri, response, OK);
+
+      Map<String, Object> object = parseJSON(responseEntity.getContent(), null);
+
+      sessionID = (String)object.get("sessid");
+      if (sessionID == null)
+      {
+        throw new IOException("No session ID");
+      }
+
+      // Servers that return the CSRF token with the login response save the extra round trip to api/user/token.
+      csrfToken = (String)object.get("token");
+      acquireCSRFToken();
+      statusCode = OK;
     }
+    catch (IOException ex)
+    {
+      sessionID = null;
+      csrfToken = null;
 
-    public final synchronized T send(ICredentialsProvider credentialsProvider) throws IOException
+      debugResponseEntity(responseEntity);
+
+      if (ex instanceof ProtocolException)
+      {
+        statusCode = ((ProtocolException)ex).getStatusCode();
+      }
+
+      throw ex;
+    }
+    finally
     {
-      int authenticationAttempts = AUTHENTICATION_ATTEMPTS;
-      boolean reauthentication = false;
+      IOUtil.closeSilent(body);
+      StorageTracing.end(span, statusCode, 0);
+    }
 
-      Credentials credentials = service.getCredentials();
-      if (credentials != null)
+    sessionEstablished();
+  }
+
+  private void acquireCSRFToken() throws IOException
+  {
+    if (csrfToken == null)
+    {
+      HttpEntity responseEntity = null;
+
+      try
       {
-        if (StringUtil.isEmpty(credentials.getUsername()) || StringUtil.isEmpty(credentials.getPassword()))
-        {
-          credentials = null;
-        }
-        else
+        URI uri = StringUtil.newURI(service.getServiceURI(), "api/user/token");
+
+        Request request = configureRequest(Request.Post(uri), uri);
+        HttpResponse response = sendRequest(request, uri, Operation.TOKEN);
+        responseEntity = response.getEntity();
+
+        Map<String, Object> object = parseJSON(responseEntity.getContent(), null);
+
+        csrfToken = (String)object.get("token");
+        if (csrfToken == null)
         {
-          // The first attempt will be made with the stored credentials, so increase authenticationAttempts to 4 to prompt 3 times.
-          ++authenticationAttempts;
+          throw new IOException("No CSRF token");
         }
       }
-
-      boolean authenticated = false;
-      for (;;)
+      catch (IOException ex)
       {
-        body = null;
-        HttpEntity responseEntity = null;
+        csrfToken = null;
 
-        try
-        {
-          authenticated = false;
-          authenticate(credentials, credentialsProvider, reauthentication);
-          authenticated = true;
+        debugResponseEntity(responseEntity);
 
-          Request request = prepareRequest();
-          HttpResponse response = sendRequest(request, uri);
+        throw ex;
+      }
+    }
+  }
 
-          IOUtil.closeSilent(body);
-          body = null;
+  private Request configureRequest(Request request, URI uri)
+  {
+    if (csrfToken != null)
+    {
+      request.setHeader(CSRF_TOKEN, csrfToken);
+    }
 
-          responseEntity = response.getEntity();
-          return handleResponse(response, responseEntity);
-        }
-        catch (IOException ex)
-        {
-          debugResponseEntity(responseEntity);
+    String userAgent = System.getProperty(USER_AGENT_PROPERTY, USER_AGENT_ID);
 
-          if (ex instanceof ProtocolException)
-          {
-            ProtocolException protocolException = (ProtocolException)ex;
-            if (protocolException.getStatusCode() == AUTHORIZATION_REQUIRED)
-            {
-              if (authenticated)
-              {
-                // This means that the initial authenticate() call was skipped because we already have a session,
-                // but this session is no longer valid on the server.
-                // So call reset() to force a full reauthentication with initial credentials.
-                reset();
-                continue;
-              }
+    return request //
+        .viaProxy(ProxyUtil.getProxyHost(uri)) //
+        .staleConnectionCheck(true) //
+        .connectTimeout(StorageProperties.getProperty(StorageProperties.CONNECT_TIMEOUT, 3000)) //
+        .socketTimeout(StorageProperties.getProperty(StorageProperties.SOCKET_TIMEOUT, 10000)) //
+        .addHeader(USER_AGENT, userAgent) //
+        .addHeader(CONTENT_TYPE, APPLICATION_JSON) //
+        .addHeader(ACCEPT, APPLICATION_JSON);
+  }
 
-              if (--authenticationAttempts > 0)
-              {
-                reauthentication = true;
-                credentials = null;
-                continue;
-              }
-            }
-          }
+  private HttpResponse sendRequest(Request request, URI uri, Operation operation) throws IOException
+  {
+    return sendRequest(request, uri, operation, null);
+  }
 
-          throw ex;
-        }
-        finally
+  private HttpResponse sendRequest(Request request, URI uri, Operation operation, HedgedCall call) throws IOException
+  {
+    long start = 0;
+    if (DEBUG)
+    {
+      try
+      {
+        start = System.currentTimeMillis();
+        StringBuilder builder = new StringBuilder();
+        builder.append(request);
+        builder.append('\n');
+
+        Field f1 = Request.class.getDeclaredField("request");
+        f1.setAccessible(true);
+        Object o1 = f1.get(request);
+
+        Field f2 = Class.forName("org.apache.http.message.AbstractHttpMessage").getDeclaredField("headergroup");
+        f2.setAccessible(true);
+        Object o2 = f2.get(o1);
+
+        Field f3 = o2.getClass().getDeclaredField("headers");
+        f3.setAccessible(true);
+        @SuppressWarnings("unchecked")
+        List<Header> o3 = (List<Header>)f3.get(o2);
+
+        for (Header header : o3)
         {
-          IOUtil.closeSilent(body);
-          body = null;
+          builder.append("   ");
+          builder.append(header);
+          builder.append('\n');
         }
+
+        System.out.print(builder);
+      }
+      catch (Throwable ex)
+      {
+        ex.printStackTrace();
       }
     }
 
-    protected final void authenticate(Credentials credentials, ICredentialsProvider credentialsProvider, boolean reauthentication) throws IOException
+    CircuitBreaker circuitBreaker = service.getCircuitBreaker();
+    if (!circuitBreaker.allowRequest())
     {
-      if (sessionID == null)
-      {
-        reset();
-
-        InputStream body = null;
-        HttpEntity responseEntity = null;
+      throw new ServiceUnavailableException(service.getServiceURI());
+    }
 
-        try
-        {
-          credentials = getCredentials(credentials, credentialsProvider, reauthentication);
+    ServiceHealth health = StorageServiceRegistry.INSTANCE.getHealth(service);
+    AtomicInteger inFlightRequests = service.getInFlightRequestsCounter();
+    Span span = StorageTracing.beginRequest(service, operation);
+    long startTime = System.nanoTime();
+    HttpResponse response;
 
-          Map<String, Object> arguments = new LinkedHashMap<String, Object>();
-          arguments.put("username", credentials.getUsername());
-          arguments.put("password", credentials.getPassword());
+    try
+    {
+      inFlightRequests.incrementAndGet();
+      Response result = ProxyUtil.proxyAuthentication(executor, uri).execute(request);
+      response = result.returnResponse();
+    }
+    catch (IOException ex)
+    {
+      // An aborted hedged request doesn't say anything about the service.
+      if (call == null || !call.isAborted())
+      {
+        long nanos = System.nanoTime() - startTime;
+        health.recordFailure(nanos);
+        circuitBreaker.recordFailure();
+        StorageMetrics.INSTANCE.requestCompleted(service, operation, -1, nanos);
+      }
 
-          URI uri = StringUtil.newURI(service.getServiceURI(), "api/user/login");
+      StorageTracing.end(span, -1, 0);
+      throw ex;
+    }
+    finally
+    {
+      inFlightRequests.decrementAndGet();
+    }
 
-          Request request = configureRequest(Request.Post(uri), uri);
-          body = JSONUtil.build(arguments);
-          request.bodyStream(body);
+    long nanos = System.nanoTime() - startTime;
+    StatusLine statusLine = response.getStatusLine();
+    int statusCode = statusLine == null ? -1 : statusLine.getStatusCode();
 
-          HttpResponse response = sendRequest(request, uri);
-          responseEntity = response.getEntity();
+    if (statusCode >= INTERNAL_SERVER_ERROR)
+    {
+      health.recordFailure(nanos);
+      circuitBreaker.recordFailure();
+    }
+    else
+    {
+      health.recordSuccess(nanos);
+      circuitBreaker.recordSuccess();
 
-          getStatusCode("POST", uri, response, OK);
+      // Every successful request refills both budgets, but a duplicate must not pay for the next duplicates.
+      if (call == null || !call.isHedge())
+      {
+        service.getRetryBudget().deposit();
+        service.getHedgingBudget().deposit();
+      }
+    }
 
-          Map<String, Object> object = JSONUtil.parse(responseEntity.getContent(), null);
+    StorageMetrics.INSTANCE.requestCompleted(service, operation, statusCode, nanos);
 
-          sessionID = (String)object.get("sessid");
-          if (sessionID == null)
-          {
-            throw new IOException("No session ID");
-          }
+    // The fluent API has already buffered the response entity, so its length is known.
+    HttpEntity entity = response.getEntity();
+    long contentLength = entity == null ? 0 : Math.max(entity.getContentLength(), 0);
+    if (contentLength > 0)
+    {
+      StorageMetrics.INSTANCE.bytesReceived(service, contentLength);
+    }
 
-          csrfToken = (String)object.get("token");
-        }
-        catch (IOException ex)
-        {
-          sessionID = null;
-          csrfToken = null;
+    StorageTracing.end(span, statusCode, contentLength);
 
-          debugResponseEntity(responseEntity);
+    if (DEBUG)
+    {
+      try
+      {
+        StringBuilder builder = new StringBuilder();
+        builder.append(response.getStatusLine());
+        builder.append('\n');
 
-          throw ex;
+        for (Header header : response.getAllHeaders())
+        {
+          builder.append("   ");
+          builder.append(header);
+          builder.append('\n');
         }
-        finally
+
+        if (start != 0)
         {
-          IOUtil.closeSilent(body);
+          long millis = System.currentTimeMillis() - start;
+          builder.append("Took: ");
+          builder.append(millis);
+          builder.append(" millis");
+          builder.append('\n');
         }
+
+        builder.append('\n');
+        System.out.print(builder);
+      }
+      catch (Throwable ex)
+      {
+        ex.printStackTrace();
       }
+    }
 
-      acquireCSRFToken();
+    return response;
+  }
+
+  private int getStatusCode(String method, URI uri, HttpResponse response, int... expectedStatusCodes) throws ProtocolException
+  {
+    StatusLine statusLine = response.getStatusLine();
+    if (statusLine == null)
+    {
+      throw new ProtocolException(method, uri, getProtocolVersion(statusLine), BAD_RESPONSE, "Bad Response : No status line returned");
     }
 
-    protected final void acquireCSRFToken() throws IOException
+    int statusCode = statusLine.getStatusCode();
+    if (statusCode == AUTHORIZATION_REQUIRED)
     {
-      if (csrfToken == null)
+      sessionID = null;
+      csrfToken = null;
+    }
+
+    for (int i = 0; i < expectedStatusCodes.length; i++)
+    {
+      int expectedStatusCode = expectedStatusCodes[i];
+      if (statusCode == expectedStatusCode)
       {
-        HttpEntity responseEntity = null;
+        return statusCode;
+      }
+    }
 
-        try
-        {
-          URI uri = StringUtil.newURI(service.getServiceURI(), "api/user/token");
+    throw new ProtocolException(method, uri, getProtocolVersion(statusLine), statusCode, statusLine.getReasonPhrase());
+  }
 
-          Request request = configureRequest(Request.Post(uri), uri);
-          HttpResponse response = sendRequest(request, uri);
-          responseEntity = response.getEntity();
+  private String getProtocolVersion(StatusLine statusLine)
+  {
+    if (statusLine != null)
+    {
+      ProtocolVersion protocolVersion = statusLine.getProtocolVersion();
+      if (protocolVersion != null)
+      {
+        return protocolVersion.toString();
+      }
+    }
 
-          Map<String, Object> object = JSONUtil.parse(responseEntity.getContent(), null);
+    return "HTTP";
+  }
 
-          csrfToken = (String)object.get("token");
-          if (csrfToken == null)
-          {
-            throw new IOException("No CSRF token");
-          }
-        }
-        catch (IOException ex)
+  private Credentials getCredentials(Credentials credentials, ICredentialsProvider credentialsProvider, boolean reauthentication)
+      throws OperationCanceledException
+  {
+    if (credentials == null)
+    {
+      if (credentialsProvider != null)
+      {
+        Semaphore semaphore = service.getAuthenticationSemaphore();
+
+        try
         {
-          csrfToken = null;
+          semaphore.acquire();
 
-          debugResponseEntity(responseEntity);
+          credentials = credentialsProvider.provideCredentials(service, reauthentication);
+        }
+        catch (InterruptedException ex)
+        {
+          //$FALL-THROUGH$
+        }
+        finally
+        {
+          semaphore.release();
+        }
 
-          throw ex;
+        if (credentials != null)
+        {
+          service.setCredentials(credentials);
         }
       }
     }
 
-    protected final Request configureRequest(Request request, URI uri)
+    if (credentials == null)
     {
-      if (csrfToken != null)
+      throw new OperationCanceledException("No credentials provided");
+    }
+
+    return credentials;
+  }
+
+  /**
+   * @author Eike Stepper
+   */
+  private final class HedgedCall implements Callable<HttpResponse>
+  {
+    private final Request request;
+
+    private final URI uri;
+
+    private final Operation operation;
+
+    private final boolean hedge;
+
+    private volatile boolean aborted;
+
+    public HedgedCall(Request request, URI uri, Operation operation, boolean hedge)
+    {
+      this.request = request;
+      this.uri = uri;
+      this.operation = operation;
+      this.hedge = hedge;
+    }
+
+    /**
+     * Returns whether this is the duplicate of a slow request.
+     */
+    public boolean isHedge()
+    {
+      return hedge;
+    }
+
+    public boolean isAborted()
+    {
+      return aborted;
+    }
+
+    public void abort()
+    {
+      aborted = true;
+
+      try
+      {
+        request.abort();
+      }
+      catch (Exception ex)
       {
-        request.setHeader(CSRF_TOKEN, csrfToken);
+        //$FALL-THROUGH$
       }
+    }
 
-      String userAgent = System.getProperty(USER_AGENT_PROPERTY, USER_AGENT_ID);
+    @Override
+    public HttpResponse call() throws Exception
+    {
+      return sendRequest(request, uri, operation, this);
+    }
+  }
 
-      return request //
-          .viaProxy(ProxyUtil.getProxyHost(uri)) //
-          .staleConnectionCheck(true) //
-          .connectTimeout(StorageProperties.getProperty(StorageProperties.CONNECT_TIMEOUT, 3000)) //
-          .socketTimeout(StorageProperties.getProperty(StorageProperties.SOCKET_TIMEOUT, 10000)) //
-          .addHeader(USER_AGENT, userAgent) //
-          .addHeader(CONTENT_TYPE, APPLICATION_JSON) //
-          .addHeader(ACCEPT, APPLICATION_JSON);
+  /**
+   * Reports the bytes of a request body to the {@link StorageMetrics metrics} while they're sent.
+   *
+   * @author Eike Stepper
+   */
+  private final class CountingInputStream extends FilterInputStream
+  {
+    public CountingInputStream(InputStream in)
+    {
+      super(in);
     }
 
-    protected final HttpResponse sendRequest(Request request, URI uri) throws IOException
+    @Override
+    public int read() throws IOException
     {
-      long start = 0;
-      if (DEBUG)
+      int c = super.read();
+      if (c != -1)
       {
-        try
-        {
-          start = System.currentTimeMillis();
-          StringBuilder builder = new StringBuilder();
-          builder.append(request);
-          builder.append('\n');
+        StorageMetrics.INSTANCE.bytesSent(service, 1);
+      }
 
-          Field f1 = Request.class.getDeclaredField("request");
-          f1.setAccessible(true);
-          Object o1 = f1.get(request);
+      return c;
+    }
 
-          Field f2 = Class.forName("org.apache.http.message.AbstractHttpMessage").getDeclaredField("headergroup");
-          f2.setAccessible(true);
-          Object o2 = f2.get(o1);
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException
+    {
+      int n = super.read(b, off, len);
+      if (n > 0)
+      {
+        StorageMetrics.INSTANCE.bytesSent(service, n);
+      }
 
-          Field f3 = o2.getClass().getDeclaredField("headers");
-          f3.setAccessible(true);
-          @SuppressWarnings("unchecked")
-          List<Header> o3 = (List<Header>)f3.get(o2);
+      return n;
+    }
+  }
 
-          for (Header header : o3)
-          {
-            builder.append("   ");
-            builder.append(header);
-            builder.append('\n');
-          }
+  /**
+   * Shields the contents of an update from the request body that wraps them, so that the caller stays in charge of closing them,
+   * and remembers whether they have been read, i.e., whether they can still be sent.
+   *
+   * @author Eike Stepper
+   */
+  private static final class ContentsInputStream extends FilterInputStream
+  {
+    private volatile boolean read;
+
+    public ContentsInputStream(InputStream in)
+    {
+      super(in);
+    }
+
+    public boolean isRead()
+    {
+      return read;
+    }
+
+    @Override
+    public int read() throws IOException
+    {
+      read = true;
+      return super.read();
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException
+    {
+      read = true;
+      return super.read(b, off, len);
+    }
+
+    @Override
+    public long skip(long n) throws IOException
+    {
+      read = true;
+      return super.skip(n);
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+      // Leave the contents open.
+    }
+  }
+
+  /**
+   * @author Eike Stepper
+   */
+  private abstract class RequestTemplate<T>
+  {
+    protected final Operation operation;
 
-          System.out.print(builder);
+    protected final URI uri;
+
+    protected InputStream body;
+
+    public RequestTemplate(Operation operation, URI uri)
+    {
+      this.operation = operation;
+      this.uri = uri;
+    }
+
+    public final synchronized T send(ICredentialsProvider credentialsProvider) throws IOException
+    {
+      int authenticationAttempts = AUTHENTICATION_ATTEMPTS;
+      boolean reauthentication = false;
+
+      Credentials credentials = service.getCredentials();
+      if (credentials != null)
+      {
+        if (StringUtil.isEmpty(credentials.getUsername()) || StringUtil.isEmpty(credentials.getPassword()))
+        {
+          credentials = null;
         }
-        catch (Throwable ex)
+        else
         {
-          ex.printStackTrace();
+          // The first attempt will be made with the stored credentials, so increase authenticationAttempts to 4 to prompt 3 times.
+          ++authenticationAttempts;
         }
       }
 
-      Response result = ProxyUtil.proxyAuthentication(executor, uri).execute(request);
-      HttpResponse response = result.returnResponse();
-
-      if (DEBUG)
+      int retries = 0;
+      boolean authenticated = false;
+      for (;;)
       {
+        body = null;
+        HttpResponse response = null;
+        HttpEntity responseEntity = null;
+
         try
         {
-          StringBuilder builder = new StringBuilder();
-          builder.append(response.getStatusLine());
-          builder.append('\n');
+          authenticated = false;
+          authenticate(credentials, credentialsProvider, reauthentication);
+          authenticated = true;
+
+          Request request = prepareRequest();
+          response = isHedgeable() ? sendHedgedRequest(request) : sendRequest(request, uri, operation);
+
+          IOUtil.closeSilent(body);
+          body = null;
+
+          responseEntity = response.getEntity();
+          return handleResponse(response, responseEntity);
+        }
+        catch (IOException ex)
+        {
+          debugResponseEntity(responseEntity);
 
-          for (Header header : response.getAllHeaders())
+          if (ex instanceof ProtocolException)
           {
-            builder.append("   ");
-            builder.append(header);
-            builder.append('\n');
+            ProtocolException protocolException = (ProtocolException)ex;
+            if (protocolException.getStatusCode() == AUTHORIZATION_REQUIRED)
+            {
+              if (authenticated)
+              {
+                // This means that the initial authenticate() call was skipped because we already have a session,
+                // but this session is no longer valid on the server.
+                // So call reset() to force a full reauthentication with initial credentials.
+                reset();
+
+                if (isResendable())
+                {
+                  StorageMetrics.INSTANCE.authenticationRetried(service);
+                  continue;
+                }
+              }
+              else if (--authenticationAttempts > 0)
+              {
+                reauthentication = true;
+                credentials = null;
+                StorageMetrics.INSTANCE.authenticationRetried(service);
+                continue;
+              }
+            }
           }
 
-          if (start != 0)
+          RetryPolicy retryPolicy = RetryPolicy.INSTANCE;
+          if (retryPolicy.isTransient(ex) && isRetryable(ex))
           {
-            long millis = System.currentTimeMillis() - start;
-            builder.append("Took: ");
-            builder.append(millis);
-            builder.append(" millis");
-            builder.append('\n');
+            long delay = retryPolicy.getDelay(++retries, getHeader(response, RETRY_AFTER));
+            if (delay != RetryPolicy.NO_RETRY && service.getRetryBudget().withdraw())
+            {
+              try
+              {
+                Thread.sleep(delay);
+                continue;
+              }
+              catch (InterruptedException interrupted)
+              {
+                Thread.currentThread().interrupt();
+              }
+            }
           }
 
-          builder.append('\n');
-          System.out.print(builder);
+          throw ex;
         }
-        catch (Throwable ex)
+        finally
         {
-          ex.printStackTrace();
+          IOUtil.closeSilent(body);
+          body = null;
         }
       }
+    }
 
-      return response;
+    protected final void authenticate(Credentials credentials, ICredentialsProvider credentialsProvider, boolean reauthentication) throws IOException
+    {
+      synchronized (loginLock)
+      {
+        if (sessionID != null && isExpired(sessionCreated))
+        {
+          // Don't wait for the server to reject an expired session.
+          sessionID = null;
+        }
+
+        if (sessionID == null)
+        {
+          login(credentials, credentialsProvider, reauthentication);
+        }
+        else
+        {
+          acquireCSRFToken();
+        }
+      }
     }
 
-    protected final int getStatusCode(String method, URI uri, HttpResponse response, int... expectedStatusCodes) throws ProtocolException
+    /**
+     * Sends the given read request and, if it's slow, a duplicate of it. The first response wins and the other request is aborted.
+     */
+    private HttpResponse sendHedgedRequest(Request request) throws IOException
     {
-      StatusLine statusLine = response.getStatusLine();
-      if (statusLine == null)
+      HedgingPolicy hedgingPolicy = service.getHedgingPolicy();
+      HedgingPolicy.LatencyTracker latencyTracker = service.getLatencyTracker();
+      RetryPolicy.Budget hedgingBudget = service.getHedgingBudget();
+
+      long delay = hedgingPolicy.getDelay(latencyTracker);
+      long startTime = System.nanoTime();
+
+      if (delay == HedgingPolicy.NO_HEDGING)
       {
-        throw new ProtocolException(method, uri, getProtocolVersion(statusLine), BAD_RESPONSE, "Bad Response : No status line returned");
+        return sendUnhedgedRequest(request, latencyTracker, startTime);
       }
 
-      int statusCode = statusLine.getStatusCode();
-      if (statusCode == AUTHORIZATION_REQUIRED)
+      CompletionService<HttpResponse> completionService = new ExecutorCompletionService<HttpResponse>(hedgingPolicy.getExecutor());
+      HedgedCall primaryCall = new HedgedCall(request, uri, operation, false);
+      HedgedCall hedgeCall = null;
+
+      Map<Future<HttpResponse>, HedgedCall> calls = new HashMap<Future<HttpResponse>, HedgedCall>();
+
+      try
       {
-        sessionID = null;
-        csrfToken = null;
+        calls.put(completionService.submit(primaryCall), primaryCall);
+      }
+      catch (RejectedExecutionException ex)
+      {
+        // All hedging threads are busy, so this read is sent without a duplicate.
+        return sendUnhedgedRequest(request, latencyTracker, startTime);
       }
 
-      for (int i = 0; i < expectedStatusCodes.length; i++)
+      Future<HttpResponse> winner = null;
+
+      try
       {
-        int expectedStatusCode = expectedStatusCodes[i];
-        if (statusCode == expectedStatusCode)
+        Future<HttpResponse> done = completionService.poll(delay, TimeUnit.MILLISECONDS);
+        if (done == null)
         {
-          return statusCode;
+          if (hedgingBudget.withdraw())
+          {
+            hedgeCall = new HedgedCall(prepareRequest(), uri, operation, true);
+
+            try
+            {
+              calls.put(completionService.submit(hedgeCall), hedgeCall);
+            }
+            catch (RejectedExecutionException ex)
+            {
+              // All hedging threads are busy, so only the first request is awaited.
+              hedgeCall = null;
+              hedgingBudget.refund();
+            }
+          }
+
+          done = completionService.take();
         }
-      }
 
-      throw new ProtocolException(method, uri, getProtocolVersion(statusLine), statusCode, statusLine.getReasonPhrase());
-    }
+        HttpResponse response;
 
-    protected final String getProtocolVersion(StatusLine statusLine)
-    {
-      if (statusLine != null)
-      {
-        ProtocolVersion protocolVersion = statusLine.getProtocolVersion();
-        if (protocolVersion != null)
+        try
         {
-          return protocolVersion.toString();
+          response = done.get();
         }
-      }
+        catch (ExecutionException ex)
+        {
+          if (hedgeCall == null)
+          {
+            throw ex;
+          }
 
-      return "HTTP";
-    }
+          // The other request may still succeed.
+          done = completionService.take();
+          response = done.get();
+        }
 
-    protected final Credentials getCredentials(Credentials credentials, ICredentialsProvider credentialsProvider, boolean reauthentication)
-        throws OperationCanceledException
-    {
-      if (credentials == null)
+        winner = done;
+        latencyTracker.record((System.nanoTime() - startTime) / 1000000);
+        return response;
+      }
+      catch (ExecutionException ex)
       {
-        if (credentialsProvider != null)
+        Throwable cause = ex.getCause();
+        if (cause instanceof IOException)
         {
-          Semaphore semaphore = service.getAuthenticationSemaphore();
+          throw (IOException)cause;
+        }
 
-          try
-          {
-            semaphore.acquire();
+        if (cause instanceof RuntimeException)
+        {
+          throw (RuntimeException)cause;
+        }
 
-            credentials = credentialsProvider.provideCredentials(service, reauthentication);
-          }
-          catch (InterruptedException ex)
-          {
-            //$FALL-THROUGH$
-          }
-          finally
-          {
-            semaphore.release();
-          }
+        if (cause instanceof Error)
+        {
+          throw (Error)cause;
+        }
 
-          if (credentials != null)
+        throw new IOException(cause.getMessage());
+      }
+      catch (InterruptedException ex)
+      {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException();
+      }
+      finally
+      {
+        for (Map.Entry<Future<HttpResponse>, HedgedCall> entry : calls.entrySet())
+        {
+          Future<HttpResponse> future = entry.getKey();
+          if (future != winner && !future.isDone())
           {
-            service.setCredentials(credentials);
+            entry.getValue().abort();
+            future.cancel(true);
           }
         }
       }
+    }
 
-      if (credentials == null)
-      {
-        throw new OperationCanceledException("No credentials provided");
-      }
+    private HttpResponse sendUnhedgedRequest(Request request, HedgingPolicy.LatencyTracker latencyTracker, long startTime) throws IOException
+    {
+      HttpResponse response = sendRequest(request, uri, operation);
+      latencyTracker.record((System.nanoTime() - startTime) / 1000000);
+      return response;
+    }
+
+    /**
+     * Returns whether a duplicate of this request may be sent if it is slow.
+     * Only idempotent reads may be hedged.
+     */
+    protected boolean isHedgeable()
+    {
+      return false;
+    }
 
-      return credentials;
+    /**
+     * Returns whether the body of this request, if any, can still be sent, i.e., whether this request can be sent again at all.
+     */
+    protected boolean isResendable()
+    {
+      return true;
+    }
+
+    /**
+     * Returns whether this request can be sent again after the given transient failure.
+     * Only idempotent requests can be sent again and only if they are {@link #isResendable() resendable}.
+     */
+    protected boolean isRetryable(IOException ex)
+    {
+      return false;
     }
 
     protected abstract Request prepareRequest() throws IOException;
@@ -733,6 +1562,8 @@ interface Headers
   public static final String IF_MATCH = "If-Match";
 
   public static final String IF_NONE_MATCH = "If-None-Match";
+
+  public static final String RETRY_AFTER = "Retry-After";
 }
 
 /**
@@ -761,4 +1592,6 @@ interface Codes
   public static final int CONFLICT = 409;
 
   public static final int BAD_RESPONSE = 444;
+
+  public static final int INTERNAL_SERVER_ERROR = 500;
 }
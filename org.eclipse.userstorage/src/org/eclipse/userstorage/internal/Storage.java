@@ -17,13 +17,16 @@ import org.eclipse.userstorage.StorageFactory;
 import org.eclipse.userstorage.internal.util.IOUtil;
 import org.eclipse.userstorage.internal.util.IOUtil.TeeInputStream;
 import org.eclipse.userstorage.internal.util.StringUtil;
+import org.eclipse.userstorage.internal.util.WeakValueMap;
 import org.eclipse.userstorage.spi.ICredentialsProvider;
 import org.eclipse.userstorage.spi.ISettings;
 import org.eclipse.userstorage.spi.StorageCache;
 import org.eclipse.userstorage.util.BadApplicationTokenException;
+import org.eclipse.userstorage.util.BadKeyException;
 import org.eclipse.userstorage.util.ConflictException;
 import org.eclipse.userstorage.util.NoServiceException;
 import org.eclipse.userstorage.util.NotFoundException;
+import org.eclipse.userstorage.util.ServiceUnavailableException;
 
 import java.io.IOException;
 import java.io.InputStream;
@@ -34,8 +37,10 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * @author Eike Stepper
@@ -54,19 +59,50 @@ public final class Storage implements IStorage
 
   private final InternalStorageCache cache;
 
-  private final Map<String, Blob> blobs = new WeakHashMap<String, Blob>();
+  private final WeakValueMap<String, Blob> blobs = new WeakValueMap<String, Blob>();
 
-  private StorageService service;
+  /**
+   * The properties of the blobs, per key, if there is no {@link #cache} that keeps them.
+   * They outlive the collected {@link #blobs}, so that a blob that is looked up again still knows its ETag.
+   */
+  private final ConcurrentMap<String, Map<String, String>> blobProperties;
+
+  private volatile StorageService service;
+
+  /**
+   * The {@link StorageServiceRegistry#getVersion() registry version} at which the {@link #service} has been resolved.
+   */
+  private volatile int serviceVersion = -1;
+
+  /**
+   * The service that serves the reads instead of the unavailable {@link #service} if {@link StorageProperties#SERVICE_FAILOVER} is enabled.
+   */
+  private volatile StorageService failoverService;
 
   private ICredentialsProvider credentialsProvider;
 
+  private final AtomicLong cacheHits = new AtomicLong();
+
+  private final AtomicLong cacheMisses = new AtomicLong();
+
   public Storage(StorageFactory factory, String applicationToken, InternalStorageCache cache) throws BadApplicationTokenException
   {
     this.applicationToken = BadApplicationTokenException.validate(applicationToken);
     this.factory = factory;
     this.cache = cache;
 
+    if (cache != null)
+    {
+      cache.internalIndexProperties(applicationToken);
+      blobProperties = null;
+    }
+    else
+    {
+      blobProperties = new ConcurrentHashMap<String, Map<String, String>>();
+    }
+
     StorageServiceRegistry.INSTANCE.addStorage(this);
+    StorageManagement.registerStorage(this);
   }
 
   @Override
@@ -90,6 +126,17 @@ public final class Storage implements IStorage
   @Override
   public StorageService getService()
   {
+    int version = StorageServiceRegistry.INSTANCE.getVersion();
+    if (serviceVersion == version)
+    {
+      // The registry has not changed since the service has been resolved.
+      StorageService service = this.service;
+      if (service != null)
+      {
+        return service;
+      }
+    }
+
     StorageService oldService;
     StorageService newService;
 
@@ -112,6 +159,8 @@ public final class Storage implements IStorage
           cache.setService(newService);
         }
       }
+
+      serviceVersion = version;
     }
 
     notifyListeners(oldService, newService);
@@ -132,6 +181,8 @@ public final class Storage implements IStorage
         disposeBlobs();
 
         this.service = (StorageService)service;
+        serviceVersion = -1;
+        failoverService = null;
 
         String serviceURI = service == null ? null : service.getServiceURI().toString();
         setServiceURI(serviceURI);
@@ -272,32 +323,20 @@ public final class Storage implements IStorage
   @Override
   public IBlob getBlob(String key)
   {
-    synchronized (this)
-    {
-      Blob blob = blobs.get(key);
-      if (blob == null)
-      {
-        Map<String, String> properties = new HashMap<String, String>();
-
-        if (cache != null)
-        {
-          try
-          {
-            cache.internalLoadProperties(applicationToken, key, properties);
-          }
-          catch (IOException ex)
-          {
-            properties.clear();
-            Activator.log(ex);
-          }
-        }
-
-        blob = new Blob(this, key, properties);
-        blobs.put(key, blob);
-      }
+    BadKeyException.validate(key);
 
+    Blob blob = blobs.get(key);
+    if (blob != null)
+    {
       return blob;
     }
+
+    Map<String, String> properties = loadProperties(key);
+    blob = new Blob(this, key, properties);
+
+    // If another thread has won the race use its blob, so that there's only one blob per key.
+    Blob existingBlob = blobs.putIfAbsent(key, blob);
+    return existingBlob != null ? existingBlob : blob;
   }
 
   @Override
@@ -330,7 +369,7 @@ public final class Storage implements IStorage
         if (!StringUtil.isEmpty(eTag))
         {
           Map<String, String> cacheProperties = new HashMap<String, String>();
-          cache.loadProperties(applicationToken, key, cacheProperties);
+          cache.internalLoadProperties(applicationToken, key, cacheProperties);
           String cacheETag = cacheProperties.get(Blob.ETAG);
           if (eTag.equals(cacheETag))
           {
@@ -350,6 +389,25 @@ public final class Storage implements IStorage
 
   public InputStream retrieveBlob(String key, Map<String, String> properties) throws IOException, NoServiceException
   {
+    StorageService service = getServiceSafe();
+
+    if (Boolean.getBoolean(StorageProperties.SERVICE_FAILOVER))
+    {
+      StorageService readService = failover(service);
+      if (readService != service)
+      {
+        try
+        {
+          // The ETags of another service don't match the ones of the blob and the cache, so both must stay untouched.
+          return readService.retrieveBlob(credentialsProvider, applicationToken, key, new HashMap<String, String>(properties), false);
+        }
+        catch (ServiceUnavailableException ex)
+        {
+          // The preferred service fails fast, too, and the cached contents are served, if there are any.
+        }
+      }
+    }
+
     InputStream cacheStream = null;
     if (cache != null)
     {
@@ -365,13 +423,14 @@ public final class Storage implements IStorage
 
     try
     {
-      StorageService service = getServiceSafe();
       InputStream contents = service.retrieveBlob(credentialsProvider, applicationToken, key, properties, cacheStream != null);
 
       if (cacheStream != null)
       {
         if (contents == Blob.NOT_MODIFIED)
         {
+          cacheAccessed(service, true);
+
           InputStream cacheStreamResult = cacheStream;
           cacheStream = null; // Avoid closing the result stream in the finally block
           return cacheStreamResult;
@@ -382,7 +441,9 @@ public final class Storage implements IStorage
 
       if (cache != null)
       {
-        OutputStream output = cache.internalGetOutputStream(applicationToken, key, properties);
+        cacheAccessed(service, false);
+
+        OutputStream output = cache.internalGetFillOutputStream(applicationToken, key, properties);
         if (output != null)
         {
           return new TeeInputStream(contents, output);
@@ -391,6 +452,20 @@ public final class Storage implements IStorage
 
       return contents;
     }
+    catch (ServiceUnavailableException ex)
+    {
+      if (cacheStream != null)
+      {
+        // Better serve possibly stale contents than nothing.
+        cacheAccessed(service, true);
+
+        InputStream cacheStreamResult = cacheStream;
+        cacheStream = null; // Avoid closing the result stream in the finally block
+        return cacheStreamResult;
+      }
+
+      throw ex;
+    }
     catch (NotFoundException ex)
     {
       IOUtil.closeSilent(cacheStream);
@@ -422,7 +497,15 @@ public final class Storage implements IStorage
 
     try
     {
-      created = service.updateBlob(credentialsProvider, applicationToken, key, properties, in);
+      try
+      {
+        created = service.updateBlob(credentialsProvider, applicationToken, key, properties, in);
+      }
+      finally
+      {
+        // The session leaves the contents open, so that it can send them again, but the cache needs to know when they're complete.
+        IOUtil.closeSilent(in);
+      }
     }
     catch (ConflictException ex)
     {
@@ -435,6 +518,16 @@ public final class Storage implements IStorage
 
       throw ex;
     }
+    catch (IOException ex)
+    {
+      if (cache != null)
+      {
+        // The cache may have received contents that the service has not stored.
+        cache.internalDelete(applicationToken, key);
+      }
+
+      throw ex;
+    }
 
     if (cache != null)
     {
@@ -492,6 +585,46 @@ public final class Storage implements IStorage
     {
       setService(null);
     }
+    else if (failoverService == service)
+    {
+      StorageService preferredService = this.service;
+      failoverService = null;
+
+      if (preferredService != null)
+      {
+        StorageMetrics.INSTANCE.readsFailedOver(preferredService, null);
+      }
+    }
+  }
+
+  /**
+   * Returns the service that serves the reads, i.e., the given preferred service or, if it's unavailable, the healthiest available service of the registry.
+   * <p>
+   * Writes and deletes always go to the preferred service, because the ETags of the blobs and of the cache belong to it.
+   * As the {@link #getService() service} of this storage doesn't change, the failover is reported to the {@link StorageMetrics metrics}
+   * and not to the {@link IStorage.Listener listeners}.
+   */
+  private StorageService failover(StorageService preferredService)
+  {
+    StorageService selectedService = StorageServiceRegistry.INSTANCE.selectService(preferredService);
+    StorageService newFailoverService = selectedService == preferredService ? null : selectedService;
+    if (newFailoverService == failoverService)
+    {
+      return selectedService;
+    }
+
+    synchronized (this)
+    {
+      if (newFailoverService == failoverService)
+      {
+        return selectedService;
+      }
+
+      failoverService = newFailoverService;
+    }
+
+    StorageMetrics.INSTANCE.readsFailedOver(preferredService, newFailoverService);
+    return selectedService;
   }
 
   private StorageService getServiceSafe() throws NoServiceException
@@ -589,6 +722,67 @@ public final class Storage implements IStorage
     }
   }
 
+  private Map<String, String> loadProperties(String key)
+  {
+    Map<String, String> properties = new HashMap<String, String>();
+
+    if (cache == null)
+    {
+      Map<String, String> existingProperties = blobProperties.putIfAbsent(key, properties);
+      return existingProperties != null ? existingProperties : properties;
+    }
+
+    try
+    {
+      cache.internalLoadProperties(applicationToken, key, properties);
+    }
+    catch (IOException ex)
+    {
+      properties.clear();
+      Activator.log(ex);
+    }
+
+    return properties;
+  }
+
+  /**
+   * Returns the number of blobs of this storage that are currently referenced.
+   */
+  int getBlobCount()
+  {
+    return blobs.size();
+  }
+
+  long getCacheHits()
+  {
+    return cacheHits.get();
+  }
+
+  long getCacheMisses()
+  {
+    return cacheMisses.get();
+  }
+
+  /**
+   * Removes all blobs of this storage from the cache. The blobs themselves stay valid and reload their contents when needed.
+   */
+  void clearCache() throws IOException
+  {
+    if (cache != null)
+    {
+      for (Iterator<String> it = cache.getKeys(applicationToken); it.hasNext();)
+      {
+        cache.internalDelete(applicationToken, it.next());
+      }
+    }
+  }
+
+  private void cacheAccessed(StorageService service, boolean hit)
+  {
+    (hit ? cacheHits : cacheMisses).incrementAndGet();
+    StorageMetrics.INSTANCE.cacheAccessed(service, hit);
+  }
+
   private void disposeBlobs()
   {
     for (Blob blob : blobs.values())
@@ -598,6 +792,11 @@ public final class Storage implements IStorage
 
     blobs.clear();
 
+    if (blobProperties != null)
+    {
+      blobProperties.clear();
+    }
+
     if (cache != null)
     {
       try
@@ -608,7 +807,7 @@ public final class Storage implements IStorage
 
           try
           {
-            cache.delete(applicationToken, key);
+            cache.internalDelete(applicationToken, key);
           }
           catch (Exception ex)
           {
@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2015 Eike Stepper (Berlin, Germany) and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Eike Stepper - initial API and implementation
+ */
+package org.eclipse.userstorage.internal;
+
+import org.eclipse.userstorage.IStorageService;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+
+/**
+ * Gives caches that delegate to other caches access to the protected methods of their delegates.
+ *
+ * @author Eike Stepper
+ */
+public final class StorageCacheAccessor
+{
+  private StorageCacheAccessor()
+  {
+  }
+
+  public static void setService(InternalStorageCache cache, IStorageService service)
+  {
+    cache.setService(service);
+  }
+
+  public static void loadProperties(InternalStorageCache cache, String applicationToken, String key, Map<String, String> properties) throws IOException
+  {
+    cache.loadProperties(applicationToken, key, properties);
+  }
+
+  public static void saveProperties(InternalStorageCache cache, String applicationToken, String key, Map<String, String> properties) throws IOException
+  {
+    cache.saveProperties(applicationToken, key, properties);
+  }
+
+  public static InputStream getInputStream(InternalStorageCache cache, String applicationToken, String key) throws IOException
+  {
+    return cache.getInputStream(applicationToken, key);
+  }
+
+  public static OutputStream getOutputStream(InternalStorageCache cache, String applicationToken, String key) throws IOException
+  {
+    return cache.getOutputStream(applicationToken, key);
+  }
+
+  public static void delete(InternalStorageCache cache, String applicationToken, String key) throws IOException
+  {
+    cache.delete(applicationToken, key);
+  }
+
+  /**
+   * Returns the contents of the given blob, or <code>null</code> if the blob is not in the given cache or if it's still being filled.
+   */
+  public static InputStream getCompleteInputStream(InternalStorageCache cache, String applicationToken, String key) throws IOException
+  {
+    if (cache.awaitFill(applicationToken, key, false))
+    {
+      return cache.getInputStream(applicationToken, key);
+    }
+
+    return null;
+  }
+
+  /**
+   * Returns a stream that fills the given cache like the contents of a retrieved blob, or <code>null</code> if the blob is already being filled.
+   * The blob is kept only if the end of the contents is reported to the stream before it's closed.
+   *
+   * @see InternalStorageCache#internalGetFillOutputStream(String, String, Map)
+   */
+  public static OutputStream getFillOutputStream(InternalStorageCache cache, String applicationToken, String key, Map<String, String> properties)
+      throws IOException
+  {
+    return cache.internalGetFillOutputStream(applicationToken, key, properties);
+  }
+
+  /**
+   * Abandons a pending fill of the given blob and waits until it's done, so that the blob can be written or deleted.
+   */
+  public static void abandonFill(InternalStorageCache cache, String applicationToken, String key) throws IOException
+  {
+    cache.awaitFill(applicationToken, key, true);
+  }
+}
@@ -0,0 +1,594 @@
+/*
+ * Copyright (c) 2015 Eike Stepper (Berlin, Germany) and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Eike Stepper - initial API and implementation
+ */
+package org.eclipse.userstorage.internal;
+
+import org.eclipse.userstorage.IStorageService;
+import org.eclipse.userstorage.util.FileStorageCache;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.Reference;
+import java.lang.ref.WeakReference;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+/**
+ * Registers JMX MBeans for the storage services, the storages, and their file caches.
+ * <p>
+ * The MBeans are only registered if the system property {@link StorageProperties#JMX} is set to <code>true</code>,
+ * or if the JVM has been started with remote JMX management. Even then nothing is registered at startup:
+ * a service is registered when it opens its first session and a storage is registered when it's created.
+ * The MBeans don't keep the storages and caches from being garbage collected and are unregistered lazily after they have been collected.
+ *
+ * @author Eike Stepper
+ */
+public final class StorageManagement
+{
+  public static final String DOMAIN = "org.eclipse.userstorage";
+
+  private static volatile boolean enabled = isEnabledByProperties();
+
+  /**
+   * The registered MBeans, mapped to references of the objects that they expose. Guarded by the class lock.
+   */
+  private static final Map<ObjectName, Reference<?>> REGISTRATIONS = new HashMap<ObjectName, Reference<?>>();
+
+  private static final Map<ObjectName, FileStorageCacheBean> CACHE_BEANS = new HashMap<ObjectName, FileStorageCacheBean>();
+
+  private static MBeanServer server;
+
+  private StorageManagement()
+  {
+  }
+
+  public static boolean isEnabled()
+  {
+    return enabled;
+  }
+
+  /**
+   * Re-reads the system properties that enable the MBeans, for tests that set them after this class has been initialized.
+   */
+  public static void reload()
+  {
+    enabled = isEnabledByProperties();
+  }
+
+  static void registerService(StorageService service)
+  {
+    if (enabled)
+    {
+      try
+      {
+        ObjectName name = new ObjectName(DOMAIN + ":type=Service,uri=" + ObjectName.quote(service.getServiceURI().toString()));
+        register(name, service, new StandardMBean(new ServiceBean(service), ServiceMBean.class));
+      }
+      catch (Exception ex)
+      {
+        Activator.log(ex);
+      }
+    }
+  }
+
+  static void unregisterService(IStorageService service)
+  {
+    if (enabled)
+    {
+      try
+      {
+        unregister(new ObjectName(DOMAIN + ":type=Service,uri=" + ObjectName.quote(service.getServiceURI().toString())));
+      }
+      catch (Exception ex)
+      {
+        Activator.log(ex);
+      }
+    }
+  }
+
+  static void registerStorage(Storage storage)
+  {
+    if (enabled)
+    {
+      try
+      {
+        ObjectName name = new ObjectName(DOMAIN + ":type=Storage,application=" + ObjectName.quote(storage.getApplicationToken()) + ",id="
+            + Integer.toHexString(System.identityHashCode(storage)));
+        register(name, storage, new StandardMBean(new StorageBean(storage), StorageMBean.class));
+
+        InternalStorageCache cache = storage.getCache();
+        if (cache instanceof FileStorageCache)
+        {
+          registerCache((FileStorageCache)cache, storage.getApplicationToken());
+        }
+      }
+      catch (Exception ex)
+      {
+        Activator.log(ex);
+      }
+    }
+  }
+
+  private static void registerCache(FileStorageCache cache, String applicationToken) throws Exception
+  {
+    ObjectName name = new ObjectName(DOMAIN + ":type=FileStorageCache,folder=" + ObjectName.quote(cache.getFolder().getAbsolutePath()));
+
+    FileStorageCacheBean bean;
+    synchronized (StorageManagement.class)
+    {
+      bean = CACHE_BEANS.get(name);
+      if (bean == null || bean.getCache() != cache)
+      {
+        bean = new FileStorageCacheBean(cache);
+        register(name, cache, new StandardMBean(bean, FileStorageCacheMBean.class));
+        CACHE_BEANS.put(name, bean);
+      }
+    }
+
+    bean.addApplicationToken(applicationToken);
+  }
+
+  private static synchronized void register(ObjectName name, Object object, Object mbean) throws Exception
+  {
+    MBeanServer server = getServer();
+    expunge(server);
+
+    if (server.isRegistered(name))
+    {
+      Reference<?> reference = REGISTRATIONS.get(name);
+      if (reference != null && reference.get() == object)
+      {
+        return;
+      }
+
+      server.unregisterMBean(name);
+    }
+
+    server.registerMBean(mbean, name);
+    REGISTRATIONS.put(name, new WeakReference<Object>(object));
+  }
+
+  private static synchronized void unregister(ObjectName name) throws Exception
+  {
+    if (server != null && REGISTRATIONS.remove(name) != null)
+    {
+      CACHE_BEANS.remove(name);
+
+      if (server.isRegistered(name))
+      {
+        server.unregisterMBean(name);
+      }
+    }
+  }
+
+  /**
+   * Unregisters the MBeans of the objects that have been garbage collected.
+   */
+  private static void expunge(MBeanServer server)
+  {
+    for (Iterator<Map.Entry<ObjectName, Reference<?>>> it = REGISTRATIONS.entrySet().iterator(); it.hasNext();)
+    {
+      Map.Entry<ObjectName, Reference<?>> entry = it.next();
+      if (entry.getValue().get() == null)
+      {
+        ObjectName name = entry.getKey();
+        it.remove();
+        CACHE_BEANS.remove(name);
+
+        try
+        {
+          if (server.isRegistered(name))
+          {
+            server.unregisterMBean(name);
+          }
+        }
+        catch (Exception ex)
+        {
+          //$FALL-THROUGH$
+        }
+      }
+    }
+  }
+
+  private static boolean isEnabledByProperties()
+  {
+    return Boolean.getBoolean(StorageProperties.JMX) || System.getProperty("com.sun.management.jmxremote") != null;
+  }
+
+  private static MBeanServer getServer()
+  {
+    if (server == null)
+    {
+      server = ManagementFactory.getPlatformMBeanServer();
+    }
+
+    return server;
+  }
+
+  /**
+   * @author Eike Stepper
+   */
+  public interface ServiceMBean
+  {
+    public String getServiceLabel();
+
+    public String getServiceURI();
+
+    public int getInFlightRequests();
+
+    public String getSessionState();
+
+    public long getSessionAge();
+
+    public String getLastLogin();
+
+    public double getErrorRate();
+
+    public double getAverageLatency();
+
+    public String getCircuitBreakerState();
+
+    public long getFailures();
+
+    public double getNotModifiedRatio();
+
+    public long getBytesSent();
+
+    public long getBytesReceived();
+
+    public long getAuthenticationRetries();
+
+    public long getReadFailovers();
+
+    public String getStatistics();
+
+    public void resetSession();
+
+    public void resetStatistics();
+  }
+
+  /**
+   * @author Eike Stepper
+   */
+  public interface StorageMBean
+  {
+    public String getApplicationToken();
+
+    public String getServiceURI();
+
+    public int getBlobCount();
+
+    public int getCacheEntryCount() throws IOException;
+
+    public long getCacheHits();
+
+    public long getCacheMisses();
+
+    public double getCacheHitRatio();
+
+    public void clearCache() throws IOException;
+  }
+
+  /**
+   * @author Eike Stepper
+   */
+  public interface FileStorageCacheMBean
+  {
+    public String getFolder();
+
+    public int getEntryCount();
+
+    public long getDiskUsage();
+
+    public long getEvictionCount();
+
+    public void clear() throws IOException;
+  }
+
+  /**
+   * @author Eike Stepper
+   */
+  private static final class ServiceBean implements ServiceMBean
+  {
+    private final StorageService service;
+
+    public ServiceBean(StorageService service)
+    {
+      this.service = service;
+    }
+
+    @Override
+    public String getServiceLabel()
+    {
+      return service.getServiceLabel();
+    }
+
+    @Override
+    public String getServiceURI()
+    {
+      return service.getServiceURI().toString();
+    }
+
+    @Override
+    public int getInFlightRequests()
+    {
+      return service.getInFlightRequests();
+    }
+
+    @Override
+    public String getSessionState()
+    {
+      return service.getSessionAge() == -1 ? "NONE" : "ACTIVE";
+    }
+
+    @Override
+    public long getSessionAge()
+    {
+      return service.getSessionAge();
+    }
+
+    @Override
+    public String getLastLogin()
+    {
+      long sessionAge = service.getSessionAge();
+      return sessionAge == -1 ? "" : new Date(System.currentTimeMillis() - sessionAge).toString();
+    }
+
+    @Override
+    public double getErrorRate()
+    {
+      return StorageServiceRegistry.INSTANCE.getHealth(service).getErrorRate();
+    }
+
+    @Override
+    public double getAverageLatency()
+    {
+      return StorageServiceRegistry.INSTANCE.getHealth(service).getLatency();
+    }
+
+    @Override
+    public String getCircuitBreakerState()
+    {
+      return service.getCircuitBreaker().getState().toString();
+    }
+
+    @Override
+    public long getFailures()
+    {
+      return service.getStatistics().getFailures();
+    }
+
+    @Override
+    public double getNotModifiedRatio()
+    {
+      return service.getStatistics().getNotModifiedRatio();
+    }
+
+    @Override
+    public long getBytesSent()
+    {
+      return service.getStatistics().getBytesSent();
+    }
+
+    @Override
+    public long getBytesReceived()
+    {
+      return service.getStatistics().getBytesReceived();
+    }
+
+    @Override
+    public long getAuthenticationRetries()
+    {
+      return service.getStatistics().getAuthenticationRetries();
+    }
+
+    @Override
+    public long getReadFailovers()
+    {
+      return service.getStatistics().getReadFailovers();
+    }
+
+    @Override
+    public String getStatistics()
+    {
+      return service.getStatistics().toString();
+    }
+
+    @Override
+    public void resetSession()
+    {
+      service.resetSession();
+    }
+
+    @Override
+    public void resetStatistics()
+    {
+      service.getStatistics().reset();
+    }
+  }
+
+  /**
+   * @author Eike Stepper
+   */
+  private static final class StorageBean implements StorageMBean
+  {
+    private final WeakReference<Storage> storage;
+
+    private final String applicationToken;
+
+    public StorageBean(Storage storage)
+    {
+      this.storage = new WeakReference<Storage>(storage);
+      applicationToken = storage.getApplicationToken();
+    }
+
+    @Override
+    public String getApplicationToken()
+    {
+      return applicationToken;
+    }
+
+    @Override
+    public String getServiceURI()
+    {
+      StorageService service = getStorage().getService();
+      return service == null ? "" : service.getServiceURI().toString();
+    }
+
+    @Override
+    public int getBlobCount()
+    {
+      return getStorage().getBlobCount();
+    }
+
+    @Override
+    public int getCacheEntryCount() throws IOException
+    {
+      InternalStorageCache cache = getStorage().getCache();
+      if (cache == null)
+      {
+        return 0;
+      }
+
+      int count = 0;
+      for (Iterator<String> it = cache.getKeys(applicationToken); it.hasNext();)
+      {
+        it.next();
+        ++count;
+      }
+
+      return count;
+    }
+
+    @Override
+    public long getCacheHits()
+    {
+      return getStorage().getCacheHits();
+    }
+
+    @Override
+    public long getCacheMisses()
+    {
+      return getStorage().getCacheMisses();
+    }
+
+    @Override
+    public double getCacheHitRatio()
+    {
+      Storage storage = getStorage();
+      long hits = storage.getCacheHits();
+      long total = hits + storage.getCacheMisses();
+      return total == 0 ? 0.0 : (double)hits / total;
+    }
+
+    @Override
+    public void clearCache() throws IOException
+    {
+      getStorage().clearCache();
+    }
+
+    private Storage getStorage()
+    {
+      Storage storage = this.storage.get();
+      if (storage == null)
+      {
+        throw new IllegalStateException("Storage has been garbage collected");
+      }
+
+      return storage;
+    }
+  }
+
+  /**
+   * @author Eike Stepper
+   */
+  private static final class FileStorageCacheBean implements FileStorageCacheMBean
+  {
+    private final WeakReference<FileStorageCache> cache;
+
+    private final Set<String> applicationTokens = new CopyOnWriteArraySet<String>();
+
+    private final String folder;
+
+    public FileStorageCacheBean(FileStorageCache cache)
+    {
+      this.cache = new WeakReference<FileStorageCache>(cache);
+      folder = cache.getFolder().getAbsolutePath();
+    }
+
+    public FileStorageCache getCache()
+    {
+      return cache.get();
+    }
+
+    public void addApplicationToken(String applicationToken)
+    {
+      applicationTokens.add(applicationToken);
+    }
+
+    @Override
+    public String getFolder()
+    {
+      return folder;
+    }
+
+    @Override
+    public int getEntryCount()
+    {
+      return getCacheSafe().getEntryCount();
+    }
+
+    @Override
+    public long getDiskUsage()
+    {
+      return getCacheSafe().getDiskUsage();
+    }
+
+    @Override
+    public long getEvictionCount()
+    {
+      return getCacheSafe().getEvictionCount();
+    }
+
+    @Override
+    public void clear() throws IOException
+    {
+      // The package-private methods are only accessible through the internal type.
+      InternalStorageCache cache = getCacheSafe();
+
+      for (String applicationToken : applicationTokens)
+      {
+        for (Iterator<String> it = cache.getKeys(applicationToken); it.hasNext();)
+        {
+          cache.internalDelete(applicationToken, it.next());
+        }
+      }
+    }
+
+    private FileStorageCache getCacheSafe()
+    {
+      FileStorageCache cache = this.cache.get();
+      if (cache == null)
+      {
+        throw new IllegalStateException("Cache has been garbage collected");
+      }
+
+      return cache;
+    }
+  }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright (c) 2015 Eike Stepper (Berlin, Germany) and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Eike Stepper - initial API and implementation
+ */
+package org.eclipse.userstorage.internal;
+
+import org.eclipse.userstorage.IStorageService;
+import org.eclipse.userstorage.spi.IStorageMetrics;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Forwards all measurements to the {@link StorageService#getStatistics() statistics} of the measured service
+ * and to the registered {@link IStorageMetrics metrics}.
+ *
+ * @author Eike Stepper
+ */
+public final class StorageMetrics implements IStorageMetrics
+{
+  public static final StorageMetrics INSTANCE = new StorageMetrics();
+
+  private final List<IStorageMetrics> metrics = new CopyOnWriteArrayList<IStorageMetrics>();
+
+  private StorageMetrics()
+  {
+    String property = System.getProperty(StorageProperties.METRICS, null);
+    if (property != null)
+    {
+      try
+      {
+        @SuppressWarnings("unchecked")
+        Class<IStorageMetrics> c = (Class<IStorageMetrics>)Class.forName(property);
+        metrics.add(c.newInstance());
+      }
+      catch (Throwable ex)
+      {
+        Activator.log(ex);
+      }
+    }
+  }
+
+  public void addMetrics(IStorageMetrics metrics)
+  {
+    if (metrics != null && metrics != this)
+    {
+      this.metrics.add(metrics);
+    }
+  }
+
+  public void removeMetrics(IStorageMetrics metrics)
+  {
+    this.metrics.remove(metrics);
+  }
+
+  @Override
+  public void requestCompleted(IStorageService service, Operation operation, int statusCode, long nanos)
+  {
+    service.getStatistics().requestCompleted(service, operation, statusCode, nanos);
+
+    for (IStorageMetrics metrics : this.metrics)
+    {
+      try
+      {
+        metrics.requestCompleted(service, operation, statusCode, nanos);
+      }
+      catch (Exception ex)
+      {
+        Activator.log(ex);
+      }
+    }
+  }
+
+  @Override
+  public void bytesSent(IStorageService service, long bytes)
+  {
+    service.getStatistics().bytesSent(service, bytes);
+
+    for (IStorageMetrics metrics : this.metrics)
+    {
+      try
+      {
+        metrics.bytesSent(service, bytes);
+      }
+      catch (Exception ex)
+      {
+        Activator.log(ex);
+      }
+    }
+  }
+
+  @Override
+  public void bytesReceived(IStorageService service, long bytes)
+  {
+    service.getStatistics().bytesReceived(service, bytes);
+
+    for (IStorageMetrics metrics : this.metrics)
+    {
+      try
+      {
+        metrics.bytesReceived(service, bytes);
+      }
+      catch (Exception ex)
+      {
+        Activator.log(ex);
+      }
+    }
+  }
+
+  @Override
+  public void cacheAccessed(IStorageService service, boolean hit)
+  {
+    service.getStatistics().cacheAccessed(service, hit);
+
+    for (IStorageMetrics metrics : this.metrics)
+    {
+      try
+      {
+        metrics.cacheAccessed(service, hit);
+      }
+      catch (Exception ex)
+      {
+        Activator.log(ex);
+      }
+    }
+  }
+
+  @Override
+  public void authenticationRetried(IStorageService service)
+  {
+    service.getStatistics().authenticationRetried(service);
+
+    for (IStorageMetrics metrics : this.metrics)
+    {
+      try
+      {
+        metrics.authenticationRetried(service);
+      }
+      catch (Exception ex)
+      {
+        Activator.log(ex);
+      }
+    }
+  }
+
+  @Override
+  public void readsFailedOver(IStorageService service, IStorageService failoverService)
+  {
+    service.getStatistics().readsFailedOver(service, failoverService);
+
+    for (IStorageMetrics metrics : this.metrics)
+    {
+      try
+      {
+        metrics.readsFailedOver(service, failoverService);
+      }
+      catch (Exception ex)
+      {
+        Activator.log(ex);
+      }
+    }
+  }
+
+  @Override
+  public void circuitBreakerStateChanged(IStorageService service, CircuitBreakerState oldState, CircuitBreakerState newState)
+  {
+    service.getStatistics().circuitBreakerStateChanged(service, oldState, newState);
+
+    for (IStorageMetrics metrics : this.metrics)
+    {
+      try
+      {
+        metrics.circuitBreakerStateChanged(service, oldState, newState);
+      }
+      catch (Exception ex)
+      {
+        Activator.log(ex);
+      }
+    }
+  }
+}
@@ -19,10 +19,44 @@ public final class StorageProperties
 
   public static final String CREDENTIALS_PROVIDER = "org.eclipse.userstorage.credentialsProvider";
 
+  public static final String METRICS = "org.eclipse.userstorage.metrics";
+
+  public static final String JMX = "org.eclipse.userstorage.jmx";
+
+  public static final String TRACER = "org.eclipse.userstorage.tracer";
+
   public static final String CONNECT_TIMEOUT = "org.eclipse.userstorage.connectTimeout";
 
   public static final String SOCKET_TIMEOUT = "org.eclipse.userstorage.socketTimeout";
 
+  public static final String CACHE_FILL_BUFFER_SIZE = "org.eclipse.userstorage.cacheFillBufferSize";
+
+  public static final String CACHE_FILL_THREADS = "org.eclipse.userstorage.cacheFillThreads";
+
+  public static final String CACHE_FILL_IDLE_TIMEOUT = "org.eclipse.userstorage.cacheFillIdleTimeout";
+
+  public static final String SERVICE_FAILOVER = "org.eclipse.userstorage.serviceFailover";
+
+  public static final String RETRY_ATTEMPTS = "org.eclipse.userstorage.retryAttempts";
+
+  public static final String RETRY_DELAY = "org.eclipse.userstorage.retryDelay";
+
+  public static final String RETRY_MAX_DELAY = "org.eclipse.userstorage.retryMaxDelay";
+
+  public static final String CIRCUIT_BREAKER_FAILURES = "org.eclipse.userstorage.circuitBreakerFailures";
+
+  public static final String CIRCUIT_BREAKER_ERROR_RATE = "org.eclipse.userstorage.circuitBreakerErrorRate";
+
+  public static final String CIRCUIT_BREAKER_OPEN_TIME = "org.eclipse.userstorage.circuitBreakerOpenTime";
+
+  public static final String HEDGING_PERCENTILE = "org.eclipse.userstorage.hedgingPercentile";
+
+  public static final String HEDGING_THREADS = "org.eclipse.userstorage.hedgingThreads";
+
+  public static final String PERSISTENT_SESSIONS = "org.eclipse.userstorage.persistentSessions";
+
+  public static final String SESSION_LIFETIME = "org.eclipse.userstorage.sessionLifetime";
+
   private StorageProperties()
   {
   }
@@ -15,6 +15,7 @@ import org.eclipse.userstorage.internal.util.StringUtil;
 import org.eclipse.userstorage.spi.Credentials;
 import org.eclipse.userstorage.spi.ICredentialsProvider;
 import org.eclipse.userstorage.util.ConflictException;
+import org.eclipse.userstorage.util.StorageStatistics;
 
 import org.eclipse.equinox.security.storage.ISecurePreferences;
 import org.eclipse.equinox.security.storage.StorageException;
@@ -24,6 +25,8 @@ import java.io.InputStream;
 import java.net.URI;
 import java.util.Map;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * @author Eike Stepper
@@ -38,8 +41,30 @@ public class StorageService implements IStorageService
 
   private static final boolean QUIET_SECURE_STORAGE_EXCEPTION = Boolean.getBoolean("org.eclipse.userstorage.quietSecureStorageException");
 
+  private static final Credentials NO_CREDENTIALS = new Credentials();
+
   private final Semaphore authenticationSemaphore = new Semaphore(1);
 
+  private final RetryPolicy.Budget retryBudget = new RetryPolicy.Budget();
+
+  private final CircuitBreaker circuitBreaker = new CircuitBreaker(this);
+
+  private final HedgingPolicy.LatencyTracker latencyTracker = new HedgingPolicy.LatencyTracker();
+
+  private volatile HedgingPolicy hedgingPolicy = HedgingPolicy.INSTANCE;
+
+  private final RetryPolicy.Budget hedgingBudget = new RetryPolicy.Budget();
+
+  private final StorageStatistics statistics = new StorageStatistics();
+
+  private final AtomicInteger inFlightRequests = new AtomicInteger();
+
+  /**
+   * Holds either the {@link Credentials} that have been read from the secure storage, {@link #NO_CREDENTIALS},
+   * or an invalidation token that forces the next {@link #getCredentials()} call to read the secure storage again.
+   */
+  private final AtomicReference<Object> credentialsSnapshot = new AtomicReference<Object>(new Object());
+
   private final String serviceLabel;
 
   private final URI serviceURI;
@@ -118,38 +143,131 @@ public class StorageService implements IStorageService
     return authenticationSemaphore;
   }
 
-  public Credentials getCredentials()
+  @Override
+  public StorageStatistics getStatistics()
   {
-    try
+    return statistics;
+  }
+
+  /**
+   * Returns the number of requests that have been sent to this service and not yet been answered.
+   */
+  public int getInFlightRequests()
+  {
+    return inFlightRequests.get();
+  }
+
+  AtomicInteger getInFlightRequestsCounter()
+  {
+    return inFlightRequests;
+  }
+
+  /**
+   * Returns the number of milliseconds since the current session was established, or -1 if there is no session.
+   */
+  public synchronized long getSessionAge()
+  {
+    return session == null ? -1 : session.getSessionAge();
+  }
+
+  /**
+   * Discards the current session, so that the next request logs in again.
+   */
+  public synchronized void resetSession()
+  {
+    if (session != null)
     {
-      ISecurePreferences securePreferences = getSecurePreferences();
-      if (securePreferences != null)
-      {
-        String username = securePreferences.get(USERNAME_KEY, null);
-        String password = securePreferences.get(PASSWORD_KEY, null);
+      session.reset();
+    }
+  }
 
-        if (StringUtil.isEmpty(username))
-        {
-          username = null;
-        }
+  public CircuitBreaker getCircuitBreaker()
+  {
+    return circuitBreaker;
+  }
 
-        if (StringUtil.isEmpty(password))
-        {
-          password = null;
-        }
+  public HedgingPolicy getHedgingPolicy()
+  {
+    return hedgingPolicy;
+  }
 
-        if (username != null || password != null)
-        {
-          return new Credentials(username, password);
-        }
+  /**
+   * Replaces the {@link HedgingPolicy#INSTANCE default} hedging policy of this service, e.g., for a service with a different latency profile.
+   */
+  public void setHedgingPolicy(HedgingPolicy hedgingPolicy)
+  {
+    this.hedgingPolicy = hedgingPolicy == null ? HedgingPolicy.INSTANCE : hedgingPolicy;
+  }
+
+  public HedgingPolicy.LatencyTracker getLatencyTracker()
+  {
+    return latencyTracker;
+  }
+
+  public RetryPolicy.Budget getHedgingBudget()
+  {
+    return hedgingBudget;
+  }
+
+  public RetryPolicy.Budget getRetryBudget()
+  {
+    return retryBudget;
+  }
+
+  public Credentials getCredentials()
+  {
+    Object snapshot = credentialsSnapshot.get();
+    if (!(snapshot instanceof Credentials))
+    {
+      Object invalidationToken = snapshot;
+
+      try
+      {
+        snapshot = readCredentials();
+      }
+      catch (StorageException ex)
+      {
+        logSecureStorageProblem(ex);
+        return null;
       }
+
+      // Don't overwrite an invalidation that happened while the secure storage was read.
+      credentialsSnapshot.compareAndSet(invalidationToken, snapshot);
     }
-    catch (StorageException ex)
+
+    return snapshot == NO_CREDENTIALS ? null : (Credentials)snapshot;
+  }
+
+  private Credentials readCredentials() throws StorageException
+  {
+    ISecurePreferences securePreferences = getSecurePreferences();
+    if (securePreferences != null)
     {
-      logSecureStorageProblem(ex);
+      String username = securePreferences.get(USERNAME_KEY, null);
+      String password = securePreferences.get(PASSWORD_KEY, null);
+
+      if (StringUtil.isEmpty(username))
+      {
+        username = null;
+      }
+
+      if (StringUtil.isEmpty(password))
+      {
+        password = null;
+      }
+
+      if (username != null || password != null)
+      {
+        return new Credentials(username, password);
+      }
     }
 
-    return null;
+    return NO_CREDENTIALS;
+  }
+
+  void invalidateCredentials()
+  {
+    credentialsSnapshot.set(new Object());
   }
 
   public void setCredentials(Credentials credentials)
@@ -188,6 +306,8 @@ public class StorageService implements IStorageService
     }
     finally
     {
+      invalidateCredentials();
+
       if (session != null)
       {
         session.reset();
@@ -404,10 +524,20 @@ public class StorageService implements IStorageService
 
   private Session openSession()
   {
+    StorageManagement.registerService(this);
     return new Session(this);
   }
 
-  private static void logSecureStorageProblem(Exception ex)
+  synchronized void renewSession(Session session)
+  {
+    // Don't renew a session that has been replaced in the meantime.
+    if (session == this.session)
+    {
+      session.renew();
+    }
+  }
+
+  static void logSecureStorageProblem(Exception ex)
   {
     if (QUIET_SECURE_STORAGE_EXCEPTION && ex instanceof StorageException)
     {
@@ -431,6 +561,7 @@ public class StorageService implements IStorageService
     public void remove()
     {
       StorageServiceRegistry.INSTANCE.removeService(this);
+      invalidateCredentials();
 
       ISecurePreferences securePreferences = getSecurePreferences();
       if (securePreferences != null)
@@ -13,6 +13,7 @@ package org.eclipse.userstorage.internal;
 import org.eclipse.userstorage.IStorageService;
 import org.eclipse.userstorage.internal.StorageService.DynamicService;
 import org.eclipse.userstorage.internal.util.StringUtil;
+import org.eclipse.userstorage.spi.IStorageMetrics;
 
 import org.eclipse.core.runtime.IConfigurationElement;
 import org.eclipse.core.runtime.IExtension;
@@ -23,16 +24,22 @@ import org.eclipse.core.runtime.Platform;
 import org.eclipse.equinox.security.storage.ISecurePreferences;
 import org.eclipse.equinox.security.storage.StorageException;
 
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
 import java.net.URI;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
 
 /**
  * @author Eike Stepper
@@ -63,11 +70,34 @@ public final class StorageServiceRegistry implements IStorageService.Registry
 
   private static final String STAGING_SERVICE_URI = "https://api-staging.eclipse.org/";
 
+  private static final boolean DEBUG = Boolean.getBoolean("org.eclipse.userstorage.registry.debug");
+
   private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
 
   private final Set<WeakReference<Storage>> storages = new HashSet<WeakReference<Storage>>();
 
-  private final Map<URI, IStorageService> services = new LinkedHashMap<URI, IStorageService>();
+  private final ReferenceQueue<Storage> storagesQueue = new ReferenceQueue<Storage>();
+
+  private final ConcurrentMap<URI, ServiceHealth> healths = new ConcurrentHashMap<URI, ServiceHealth>();
+
+  private final Object lock = new Object();
+
+  /**
+   * An immutable snapshot of the registered services that is replaced under the {@link #lock} whenever a service is added or removed,
+   * so that lookups need no locking.
+   */
+  private volatile Map<URI, IStorageService> services = Collections.emptyMap();
+
+  private volatile int version;
+
+  private volatile boolean started;
+
+  /**
+   * Is released when the services from the extension registry and from the secure storage have been loaded.
+   */
+  private volatile CountDownLatch dynamicServicesLoaded;
+
+  private volatile Thread dynamicServicesLoader;
 
   private boolean running;
 
@@ -78,36 +108,106 @@ public final class StorageServiceRegistry implements IStorageService.Registry
   @Override
   public IStorageService[] getServices()
   {
-    synchronized (services)
-    {
-      start();
-      return services.values().toArray(new IStorageService[services.size()]);
-    }
+    start();
+    awaitDynamicServices();
+
+    Map<URI, IStorageService> services = this.services;
+    return services.values().toArray(new IStorageService[services.size()]);
   }
 
   @Override
   public StorageService getService(URI serviceURI)
   {
-    synchronized (services)
+    start();
+
+    StorageService service = (StorageService)services.get(serviceURI);
+    if (service == null)
     {
-      start();
-      return (StorageService)services.get(serviceURI);
+      awaitDynamicServices();
+      service = (StorageService)services.get(serviceURI);
     }
+
+    return service;
   }
 
   public StorageService getFirstService()
   {
-    synchronized (services)
+    start();
+
+    Map<URI, IStorageService> services = this.services;
+    if (services.isEmpty())
     {
-      start();
+      awaitDynamicServices();
+      services = this.services;
+    }
+
+    if (services.isEmpty())
+    {
+      return null;
+    }
+
+    return (StorageService)services.values().iterator().next();
+  }
+
+  /**
+   * Returns the health of the given service, as observed by the requests to that service.
+   */
+  public ServiceHealth getHealth(IStorageService service)
+  {
+    URI serviceURI = service.getServiceURI();
 
-      if (services.isEmpty())
+    ServiceHealth health = healths.get(serviceURI);
+    if (health == null)
+    {
+      health = new ServiceHealth();
+
+      ServiceHealth existingHealth = healths.putIfAbsent(serviceURI, health);
+      if (existingHealth != null)
       {
-        return null;
+        health = existingHealth;
       }
+    }
+
+    return health;
+  }
+
+  /**
+   * Returns the given preferred service if its {@link CircuitBreaker#isAvailable() circuit breaker} lets requests through,
+   * otherwise the available service with the best {@link ServiceHealth#getScore() score}.
+   * Returns the preferred service if no service is available.
+   */
+  public StorageService selectService(StorageService preferredService)
+  {
+    if (preferredService.getCircuitBreaker().isAvailable())
+    {
+      return preferredService;
+    }
+
+    StorageService bestService = preferredService;
+    double bestScore = Double.MAX_VALUE;
 
-      return (StorageService)services.values().iterator().next();
+    for (IStorageService service : services.values())
+    {
+      if (((StorageService)service).getCircuitBreaker().isAvailable())
+      {
+        double score = getHealth(service).getScore();
+        if (score < bestScore)
+        {
+          bestService = (StorageService)service;
+          bestScore = score;
+        }
+      }
     }
+
+    return bestService;
+  }
+
+  /**
+   * Returns a number that changes whenever a service is added or removed.
+   */
+  public int getVersion()
+  {
+    return version;
   }
 
   @Override
@@ -149,6 +249,15 @@ public final class StorageServiceRegistry implements IStorageService.Registry
   {
     List<IStorageService.Dynamic> result = new ArrayList<IStorageService.Dynamic>();
 
+    // The secure storage doesn't notify about changes, so pick up the credentials of the registered services again.
+    for (IStorageService service : services.values())
+    {
+      if (service instanceof StorageService)
+      {
+        ((StorageService)service).invalidateCredentials();
+      }
+    }
+
     ISecurePreferences securePreferences = Activator.getSecurePreferences();
     if (securePreferences != null)
     {
@@ -201,11 +310,45 @@ public final class StorageServiceRegistry implements IStorageService.Registry
     listeners.remove(listener);
   }
 
+  @Override
+  public void addMetrics(IStorageMetrics metrics)
+  {
+    StorageMetrics.INSTANCE.addMetrics(metrics);
+  }
+
+  @Override
+  public void removeMetrics(IStorageMetrics metrics)
+  {
+    StorageMetrics.INSTANCE.removeMetrics(metrics);
+  }
+
+  /**
+   * Returns the number of storages that haven't been garbage collected yet.
+   */
+  public int getStorageCount()
+  {
+    synchronized (storages)
+    {
+      expungeStorages();
+      return storages.size();
+    }
+  }
+
   void addStorage(Storage storage)
   {
     synchronized (storages)
     {
-      storages.add(new WeakReference<Storage>(storage));
+      expungeStorages();
+      storages.add(new WeakReference<Storage>(storage, storagesQueue));
+    }
+  }
+
+  private void expungeStorages()
+  {
+    Reference<? extends Storage> ref;
+    while ((ref = storagesQueue.poll()) != null)
+    {
+      storages.remove(ref);
     }
   }
 
@@ -213,7 +356,7 @@ public final class StorageServiceRegistry implements IStorageService.Registry
   {
     URI serviceURI = service.getServiceURI();
 
-    synchronized (services)
+    synchronized (lock)
     {
       start();
 
@@ -223,7 +366,9 @@ public final class StorageServiceRegistry implements IStorageService.Registry
         throw new IllegalStateException("Service already registered: " + registered);
       }
 
-      services.put(serviceURI, service);
+      Map<URI, IStorageService> newServices = new LinkedHashMap<URI, IStorageService>(services);
+      newServices.put(serviceURI, service);
+      setServices(newServices);
     }
 
     for (Listener listener : listeners)
@@ -243,12 +388,21 @@ public final class StorageServiceRegistry implements IStorageService.Registry
   {
     URI serviceURI = service.getServiceURI();
 
-    synchronized (services)
+    synchronized (lock)
     {
       start();
-      services.remove(serviceURI);
+
+      Map<URI, IStorageService> newServices = new LinkedHashMap<URI, IStorageService>(services);
+      if (newServices.remove(serviceURI) != null)
+      {
+        setServices(newServices);
+      }
+
+      healths.remove(serviceURI);
     }
 
+    StorageManagement.unregisterService(service);
+
     for (Listener listener : listeners)
     {
       try
@@ -287,11 +441,17 @@ public final class StorageServiceRegistry implements IStorageService.Registry
 
   public void start()
   {
-    synchronized (services)
+    if (started)
+    {
+      return;
+    }
+
+    synchronized (lock)
     {
       if (!running)
       {
         running = true;
+        long startTime = System.nanoTime();
 
         try
         {
@@ -318,9 +478,45 @@ public final class StorageServiceRegistry implements IStorageService.Registry
                 "I agree the use of this service is governed by the Eclipse Foundation <a href='http://www.eclipse.org/legal/services/termsofuse.php'>Terms of Use</a> and the Eclipse Foundation <a href='http://www.eclipse.org/legal/services/privacy.php'>Privacy Policy</a>.");
 
             StorageService eclipseStorage = new StorageService(serviceLabel, serviceURI, createAccountURI, editAccountURI, recoverPasswordURI, termsOfUseLink);
-            services.put(eclipseStorage.getServiceURI(), eclipseStorage);
+            Map<URI, IStorageService> newServices = new LinkedHashMap<URI, IStorageService>(services);
+            newServices.put(eclipseStorage.getServiceURI(), eclipseStorage);
+            setServices(newServices);
           }
 
+          // Walking the extension registry and the secure storage can be slow, e.g., if the keyring must be unlocked.
+          startDynamicServices();
+        }
+        catch (Exception ex)
+        {
+          Activator.log(ex);
+        }
+        finally
+        {
+          started = true;
+        }
+
+        if (DEBUG)
+        {
+          System.out.println("Registry started in " + (System.nanoTime() - startTime) / 1000 + " us");
+        }
+      }
+    }
+  }
+
+  private void startDynamicServices()
+  {
+    final CountDownLatch latch = new CountDownLatch(1);
+    dynamicServicesLoaded = latch;
+
+    Thread thread = new Thread("UserStorage Service Loader")
+    {
+      @Override
+      public void run()
+      {
+        long startTime = System.nanoTime();
+
+        try
+        {
           if (Activator.PLATFORM_RUNNING)
           {
             HANDLER.start();
@@ -332,17 +528,51 @@ public final class StorageServiceRegistry implements IStorageService.Registry
         {
           Activator.log(ex);
         }
+        finally
+        {
+          dynamicServicesLoader = null;
+          latch.countDown();
+        }
+
+        if (DEBUG)
+        {
+          System.out.println("Registry loaded dynamic services in " + (System.nanoTime() - startTime) / 1000 + " us");
+        }
+      }
+    };
+
+    thread.setDaemon(true);
+    dynamicServicesLoader = thread;
+    thread.start();
+  }
+
+  private void awaitDynamicServices()
+  {
+    CountDownLatch latch = dynamicServicesLoaded;
+    if (latch != null && Thread.currentThread() != dynamicServicesLoader)
+    {
+      try
+      {
+        latch.await();
+      }
+      catch (InterruptedException ex)
+      {
+        Thread.currentThread().interrupt();
       }
     }
   }
 
   public void stop() throws Exception
   {
-    synchronized (services)
+    // The loader needs the lock to add the services.
+    awaitDynamicServices();
+
+    synchronized (lock)
     {
       if (running)
       {
         running = false;
+        started = false;
 
         try
         {
@@ -351,7 +581,8 @@ public final class StorageServiceRegistry implements IStorageService.Registry
             HANDLER.stop();
           }
 
-          services.clear();
+          Map<URI, IStorageService> noServices = Collections.emptyMap();
+          setServices(noServices);
         }
         catch (Exception ex)
         {
@@ -361,6 +592,12 @@ public final class StorageServiceRegistry implements IStorageService.Registry
     }
   }
 
+  private void setServices(Map<URI, IStorageService> services)
+  {
+    this.services = Collections.unmodifiableMap(services);
+    ++version;
+  }
+
   private static String getValue(URI serviceURI, String property, String defaultValue)
   {
     String value = System.getProperty(PREFIX + property);
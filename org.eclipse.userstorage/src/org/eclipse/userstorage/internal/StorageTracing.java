@@ -0,0 +1,351 @@
+/*
+ * Copyright (c) 2015 Eike Stepper (Berlin, Germany) and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Eike Stepper - initial API and implementation
+ */
+package org.eclipse.userstorage.internal;
+
+import org.eclipse.userstorage.IStorageService;
+import org.eclipse.userstorage.spi.IStorageMetrics.Operation;
+import org.eclipse.userstorage.spi.IStorageTracer;
+import org.eclipse.userstorage.spi.IStorageTracer.Span;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Forwards the begin and end of all traced operations to the {@link IStorageTracer tracer} that is named by the
+ * <code>org.eclipse.userstorage.tracer</code> system property.
+ * <p>
+ * Without a tracer every <code>begin</code> method returns <code>null</code> right away, so the tracing costs nothing.
+ *
+ * @author Eike Stepper
+ */
+public final class StorageTracing
+{
+  private static volatile IStorageTracer tracer = createTracer();
+
+  private StorageTracing()
+  {
+  }
+
+  public static boolean isEnabled()
+  {
+    return tracer != null;
+  }
+
+  /**
+   * Re-creates the tracer from the system property, for tests that set it after this class has been initialized.
+   */
+  public static void reload()
+  {
+    tracer = createTracer();
+  }
+
+  public static Span beginRequest(IStorageService service, Operation operation)
+  {
+    IStorageTracer tracer = StorageTracing.tracer;
+    if (tracer == null)
+    {
+      return null;
+    }
+
+    try
+    {
+      return tracer.beginRequest(service, getMethod(operation), getURITemplate(operation));
+    }
+    catch (Throwable ex)
+    {
+      Activator.log(ex);
+      return null;
+    }
+  }
+
+  public static Span beginAuthentication(IStorageService service)
+  {
+    IStorageTracer tracer = StorageTracing.tracer;
+    if (tracer == null)
+    {
+      return null;
+    }
+
+    try
+    {
+      return tracer.beginAuthentication(service);
+    }
+    catch (Throwable ex)
+    {
+      Activator.log(ex);
+      return null;
+    }
+  }
+
+  public static Span beginCacheOpen(String applicationToken, String key)
+  {
+    IStorageTracer tracer = StorageTracing.tracer;
+    if (tracer == null)
+    {
+      return null;
+    }
+
+    try
+    {
+      return tracer.beginCacheOpen(applicationToken, key);
+    }
+    catch (Throwable ex)
+    {
+      Activator.log(ex);
+      return null;
+    }
+  }
+
+  public static Span beginCacheFill(String applicationToken, String key)
+  {
+    IStorageTracer tracer = StorageTracing.tracer;
+    if (tracer == null)
+    {
+      return null;
+    }
+
+    try
+    {
+      return tracer.beginCacheFill(applicationToken, key);
+    }
+    catch (Throwable ex)
+    {
+      Activator.log(ex);
+      return null;
+    }
+  }
+
+  public static Span beginCacheEvict(String applicationToken, String key)
+  {
+    IStorageTracer tracer = StorageTracing.tracer;
+    if (tracer == null)
+    {
+      return null;
+    }
+
+    try
+    {
+      return tracer.beginCacheEvict(applicationToken, key);
+    }
+    catch (Throwable ex)
+    {
+      Activator.log(ex);
+      return null;
+    }
+  }
+
+  public static Span beginJSONParse()
+  {
+    IStorageTracer tracer = StorageTracing.tracer;
+    if (tracer == null)
+    {
+      return null;
+    }
+
+    try
+    {
+      return tracer.beginJSONParse();
+    }
+    catch (Throwable ex)
+    {
+      Activator.log(ex);
+      return null;
+    }
+  }
+
+  public static Span beginJSONBuild()
+  {
+    IStorageTracer tracer = StorageTracing.tracer;
+    if (tracer == null)
+    {
+      return null;
+    }
+
+    try
+    {
+      return tracer.beginJSONBuild();
+    }
+    catch (Throwable ex)
+    {
+      Activator.log(ex);
+      return null;
+    }
+  }
+
+  public static void end(Span span, int status, long bytes)
+  {
+    if (span != null)
+    {
+      try
+      {
+        span.end(status, bytes);
+      }
+      catch (Throwable ex)
+      {
+        Activator.log(ex);
+      }
+    }
+  }
+
+  private static String getMethod(Operation operation)
+  {
+    switch (operation)
+    {
+      case LOGIN:
+      case TOKEN:
+        return "POST";
+
+      case PUT:
+        return "PUT";
+
+      case DELETE:
+        return "DELETE";
+
+      default:
+        return "GET";
+    }
+  }
+
+  private static String getURITemplate(Operation operation)
+  {
+    switch (operation)
+    {
+      case LOGIN:
+        return "api/user/login";
+
+      case TOKEN:
+        return "api/user/token";
+
+      case LIST:
+        return "api/blob/{applicationToken}";
+
+      default:
+        return "api/blob/{applicationToken}/{key}";
+    }
+  }
+
+  private static IStorageTracer createTracer()
+  {
+    String property = System.getProperty(StorageProperties.TRACER, null);
+    if (property != null)
+    {
+      try
+      {
+        @SuppressWarnings("unchecked")
+        Class<IStorageTracer> c = (Class<IStorageTracer>)Class.forName(property);
+        return c.newInstance();
+      }
+      catch (Throwable ex)
+      {
+        Activator.log(ex);
+      }
+    }
+
+    return null;
+  }
+
+  /**
+   * Counts the bytes that are read from a stream and ends a {@link Span span} with that count.
+   *
+   * @author Eike Stepper
+   */
+  public static final class SpanInputStream extends FilterInputStream
+  {
+    private final Span span;
+
+    private long bytes;
+
+    private boolean ended;
+
+    public SpanInputStream(InputStream in, Span span)
+    {
+      super(in);
+      this.span = span;
+    }
+
+    @Override
+    public int read() throws IOException
+    {
+      int c = super.read();
+      if (c == -1)
+      {
+        end();
+      }
+      else
+      {
+        ++bytes;
+      }
+
+      return c;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException
+    {
+      int n = super.read(b, off, len);
+      if (n == -1)
+      {
+        end();
+      }
+      else
+      {
+        bytes += n;
+      }
+
+      return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException
+    {
+      long skipped = super.skip(n);
+      bytes += skipped;
+      return skipped;
+    }
+
+    @Override
+    public boolean markSupported()
+    {
+      return false;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+      try
+      {
+        super.close();
+      }
+      finally
+      {
+        end();
+      }
+    }
+
+    public long getBytes()
+    {
+      return bytes;
+    }
+
+    /**
+     * Ends the span with the number of bytes read so far. Subsequent calls have no effect.
+     */
+    public void end()
+    {
+      if (!ended)
+      {
+        ended = true;
+        StorageTracing.end(span, 0, bytes);
+      }
+    }
+  }
+}
@@ -0,0 +1,374 @@
+/*
+ * Copyright (c) 2015 Eike Stepper (Berlin, Germany) and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Eike Stepper - initial API and implementation
+ */
+package org.eclipse.userstorage.internal.util;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Recycles the byte arrays and direct byte buffers that are used to copy streams.
+ * <p>
+ * Buffers are pooled in power-of-two size classes between {@link #MIN_SIZE} and {@link #MAX_SIZE}; larger buffers are not pooled.
+ * The pool is split into stripes that are selected by the current thread, so that concurrent copies don't contend for a single lock.
+ * A buffer may be released by a different thread than the one that acquired it.
+ * <p>
+ * If the system property <code>org.eclipse.userstorage.bufferPool.debug</code> is set to <code>true</code>, or if {@link #setDebug(boolean) debug mode} is turned on,
+ * buffers that are garbage collected without having been released, as well as buffers that are released twice, are reported.
+ * <p>
+ * {@link IOUtil#copy(java.io.InputStream, java.io.OutputStream) IOUtil.copy()} and the ring buffer of {@link IOUtil.AsyncOutputStream}
+ * borrow their buffers from this pool. Code that reads streams with a loop of its own must borrow its buffer with {@link #getBuffer(int)}.
+ *
+ * @author Eike Stepper
+ */
+public final class BufferPool
+{
+  public static final int MIN_SIZE = 4096;
+
+  public static final int MAX_SIZE = 1024 * 1024;
+
+  private static final int MIN_SHIFT = Integer.numberOfTrailingZeros(MIN_SIZE);
+
+  private static final int SIZE_CLASSES = Integer.numberOfTrailingZeros(MAX_SIZE) - MIN_SHIFT + 1;
+
+  /**
+   * The number of bytes that each stripe keeps per size class. Size classes above this limit keep a single buffer per stripe.
+   */
+  private static final int BYTES_PER_SIZE_CLASS = 64 * 1024;
+
+  private static final Stripe[] STRIPES = createStripes();
+
+  private static final AtomicLong ALLOCATIONS = new AtomicLong();
+
+  private static final AtomicLong REUSES = new AtomicLong();
+
+  private static final AtomicLong LEAKS = new AtomicLong();
+
+  private static final Set<LeakReference> LEAK_REFERENCES = Collections.newSetFromMap(new ConcurrentHashMap<LeakReference, Boolean>());
+
+  private static final ReferenceQueue<Object> LEAK_QUEUE = new ReferenceQueue<Object>();
+
+  private static volatile boolean debug = Boolean.getBoolean("org.eclipse.userstorage.bufferPool.debug");
+
+  private BufferPool()
+  {
+  }
+
+  /**
+   * Returns a byte array of at least the given size. The caller should {@link #release(byte[]) release} it when it's no longer needed.
+   */
+  public static byte[] getBuffer(int size)
+  {
+    int sizeClass = getSizeClass(size);
+    if (sizeClass == -1)
+    {
+      ALLOCATIONS.incrementAndGet();
+      return new byte[size];
+    }
+
+    byte[] buffer = (byte[])getStripe().heapBuffers[sizeClass].acquire();
+    if (buffer == null)
+    {
+      ALLOCATIONS.incrementAndGet();
+      buffer = new byte[MIN_SIZE << sizeClass];
+    }
+    else
+    {
+      REUSES.incrementAndGet();
+    }
+
+    trackAcquisition(buffer);
+    return buffer;
+  }
+
+  public static void release(byte[] buffer)
+  {
+    if (buffer != null)
+    {
+      int sizeClass = getExactSizeClass(buffer.length);
+      if (sizeClass != -1 && trackRelease(buffer))
+      {
+        getStripe().heapBuffers[sizeClass].release(buffer);
+      }
+    }
+  }
+
+  /**
+   * Returns a cleared direct byte buffer with a capacity of at least the given size.
+   * The caller should {@link #release(ByteBuffer) release} it when it's no longer needed.
+   */
+  public static ByteBuffer getDirectBuffer(int size)
+  {
+    int sizeClass = getSizeClass(size);
+    if (sizeClass == -1)
+    {
+      ALLOCATIONS.incrementAndGet();
+      return ByteBuffer.allocateDirect(size);
+    }
+
+    ByteBuffer buffer = (ByteBuffer)getStripe().directBuffers[sizeClass].acquire();
+    if (buffer == null)
+    {
+      ALLOCATIONS.incrementAndGet();
+      buffer = ByteBuffer.allocateDirect(MIN_SIZE << sizeClass);
+    }
+    else
+    {
+      REUSES.incrementAndGet();
+      buffer.clear();
+    }
+
+    trackAcquisition(buffer);
+    return buffer;
+  }
+
+  public static void release(ByteBuffer buffer)
+  {
+    if (buffer != null && buffer.isDirect())
+    {
+      int sizeClass = getExactSizeClass(buffer.capacity());
+      if (sizeClass != -1 && trackRelease(buffer))
+      {
+        getStripe().directBuffers[sizeClass].release(buffer);
+      }
+    }
+  }
+
+  /**
+   * Returns the number of buffers that could not be taken from the pool and had to be allocated.
+   */
+  public static long getAllocations()
+  {
+    return ALLOCATIONS.get();
+  }
+
+  /**
+   * Returns the number of buffers that were taken from the pool.
+   */
+  public static long getReuses()
+  {
+    return REUSES.get();
+  }
+
+  /**
+   * Returns the number of buffers that have been garbage collected without having been released while debug mode was on.
+   * Leaks are detected when buffers are acquired, so the count may lag behind.
+   */
+  public static long getLeaks()
+  {
+    return LEAKS.get();
+  }
+
+  /**
+   * Returns the number of stripes, i.e., the number of independent pools that the threads are spread over.
+   */
+  public static int getStripes()
+  {
+    return STRIPES.length;
+  }
+
+  public static boolean isDebug()
+  {
+    return debug;
+  }
+
+  /**
+   * Turns the tracking of leaked and twice released buffers on or off.
+   * Buffers that have been acquired before debug mode is turned on are reported as not acquired from the pool when they're released.
+   */
+  public static void setDebug(boolean debug)
+  {
+    if (!debug)
+    {
+      LEAK_REFERENCES.clear();
+    }
+
+    BufferPool.debug = debug;
+  }
+
+  private static int getSizeClass(int size)
+  {
+    if (size > MAX_SIZE)
+    {
+      return -1;
+    }
+
+    if (size <= MIN_SIZE)
+    {
+      return 0;
+    }
+
+    return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SHIFT;
+  }
+
+  private static int getExactSizeClass(int size)
+  {
+    if (size < MIN_SIZE || size > MAX_SIZE || Integer.bitCount(size) != 1)
+    {
+      return -1;
+    }
+
+    return Integer.numberOfTrailingZeros(size) - MIN_SHIFT;
+  }
+
+  private static Stripe getStripe()
+  {
+    return STRIPES[(int)(Thread.currentThread().getId() & STRIPES.length - 1)];
+  }
+
+  private static Stripe[] createStripes()
+  {
+    int processors = Math.min(Runtime.getRuntime().availableProcessors(), 8);
+    int count = Integer.highestOneBit(Math.max(processors, 1));
+
+    Stripe[] stripes = new Stripe[count];
+    for (int i = 0; i < stripes.length; i++)
+    {
+      stripes[i] = new Stripe();
+    }
+
+    return stripes;
+  }
+
+  private static void trackAcquisition(Object buffer)
+  {
+    if (debug)
+    {
+      reportLeaks();
+      LEAK_REFERENCES.add(new LeakReference(buffer));
+    }
+  }
+
+  /**
+   * Returns whether the given buffer may be returned to the pool.
+   */
+  private static boolean trackRelease(Object buffer)
+  {
+    if (debug)
+    {
+      for (LeakReference reference : LEAK_REFERENCES)
+      {
+        if (reference.get() == buffer && LEAK_REFERENCES.remove(reference))
+        {
+          return true;
+        }
+      }
+
+      new IllegalStateException("Buffer released twice or not acquired from the pool").printStackTrace();
+      return false;
+    }
+
+    return true;
+  }
+
+  private static void reportLeaks()
+  {
+    Reference<?> reference;
+    while ((reference = LEAK_QUEUE.poll()) != null)
+    {
+      if (LEAK_REFERENCES.remove(reference))
+      {
+        LEAKS.incrementAndGet();
+        ((LeakReference)reference).getAllocation().printStackTrace();
+      }
+    }
+  }
+
+  /**
+   * @author Eike Stepper
+   */
+  private static final class Stripe
+  {
+    private final Slots[] heapBuffers = new Slots[SIZE_CLASSES];
+
+    private final Slots[] directBuffers = new Slots[SIZE_CLASSES];
+
+    public Stripe()
+    {
+      for (int i = 0; i < SIZE_CLASSES; i++)
+      {
+        int slots = Math.max(1, BYTES_PER_SIZE_CLASS / (MIN_SIZE << i));
+        heapBuffers[i] = new Slots(slots);
+        directBuffers[i] = new Slots(slots);
+      }
+    }
+  }
+
+  /**
+   * A lock-free, bounded set of pooled buffers.
+   *
+   * @author Eike Stepper
+   */
+  private static final class Slots
+  {
+    private final AtomicReferenceArray<Object> slots;
+
+    public Slots(int length)
+    {
+      slots = new AtomicReferenceArray<Object>(length);
+    }
+
+    public Object acquire()
+    {
+      for (int i = 0; i < slots.length(); i++)
+      {
+        if (slots.get(i) != null)
+        {
+          Object buffer = slots.getAndSet(i, null);
+          if (buffer != null)
+          {
+            return buffer;
+          }
+        }
+      }
+
+      return null;
+    }
+
+    public void release(Object buffer)
+    {
+      for (int i = 0; i < slots.length(); i++)
+      {
+        if (slots.get(i) == null && slots.compareAndSet(i, null, buffer))
+        {
+          return;
+        }
+      }
+
+      // The pool is full; let the buffer be garbage collected.
+    }
+  }
+
+  /**
+   * @author Eike Stepper
+   */
+  private static final class LeakReference extends WeakReference<Object>
+  {
+    private final Exception allocation;
+
+    public LeakReference(Object buffer)
+    {
+      super(buffer, LEAK_QUEUE);
+      allocation = new Exception("Buffer leaked, acquired by " + Thread.currentThread().getName());
+    }
+
+    public Exception getAllocation()
+    {
+      return allocation;
+    }
+  }
+}
@@ -22,13 +22,15 @@ import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.OutputStream;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * @author Eike Stepper
  */
 public final class IOUtil
 {
-  private static final byte[] BUFFER = new byte[8192];
+  private static final int DEFAULT_BUFFER_SIZE = 8192;
 
   private IOUtil()
   {
@@ -99,20 +101,21 @@ public final class IOUtil
 
   public static long copy(InputStream input, OutputStream output, int bufferSize) throws RuntimeException
   {
-    if (bufferSize == BUFFER.length)
+    byte[] buffer = BufferPool.getBuffer(bufferSize);
+
+    try
     {
-      return copy(input, output);
+      return copy(input, output, buffer);
+    }
+    finally
+    {
+      BufferPool.release(buffer);
     }
-
-    return copy(input, output, new byte[bufferSize]);
   }
 
   public static long copy(InputStream input, OutputStream output) throws RuntimeException
   {
-    synchronized (BUFFER)
-    {
-      return copy(input, output, BUFFER);
-    }
+    return copy(input, output, DEFAULT_BUFFER_SIZE);
   }
 
   public static Object readObject(File file)
@@ -359,4 +362,239 @@ public final class IOUtil
       }
     }
   }
+
+  /**
+   * Decouples the writer of a stream from a potentially slow target stream.
+   * <p>
+   * The written bytes are copied into a bounded ring buffer that a background thread drains into the target stream.
+   * If the ring buffer overflows, if the target stream fails, if the writer stays idle for longer than the idle timeout,
+   * or if the executor has no thread to spare, the transfer is abandoned: all further writes are ignored
+   * and the target stream is closed without being told that the end of the file was reached.
+   * Closing this stream never blocks; the target stream is closed by the background thread after the ring buffer has been drained.
+   * When the transfer is done the ring buffer is released and the completion callback is called.
+   *
+   * @author Eike Stepper
+   */
+  public static final class AsyncOutputStream extends OutputStream implements EndOfFileAware
+  {
+    private final OutputStream out;
+
+    private final long idleTimeout;
+
+    private final Runnable completion;
+
+    private byte[] buffer;
+
+    private int head;
+
+    private int size;
+
+    private boolean endOfFile;
+
+    private boolean closed;
+
+    private boolean abandoned;
+
+    private boolean done;
+
+    public AsyncOutputStream(OutputStream out, int bufferSize, long idleTimeout, Executor executor, Runnable completion)
+    {
+      this.out = out;
+      this.idleTimeout = idleTimeout;
+      this.completion = completion;
+      buffer = BufferPool.getBuffer(bufferSize);
+
+      try
+      {
+        executor.execute(new Runnable()
+        {
+          @Override
+          public void run()
+          {
+            drain();
+          }
+        });
+      }
+      catch (RejectedExecutionException ex)
+      {
+        abandon();
+        finish();
+      }
+    }
+
+    @Override
+    public void write(int b) throws IOException
+    {
+      write(new byte[] { (byte)b }, 0, 1);
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) throws IOException
+    {
+      if (closed)
+      {
+        throw new IOException("Stream closed");
+      }
+
+      if (abandoned || len == 0)
+      {
+        return;
+      }
+
+      if (len > buffer.length - size)
+      {
+        abandon();
+        return;
+      }
+
+      int tail = (head + size) % buffer.length;
+      int n = Math.min(len, buffer.length - tail);
+      System.arraycopy(b, off, buffer, tail, n);
+      System.arraycopy(b, off + n, buffer, 0, len - n);
+      size += len;
+
+      notifyAll();
+    }
+
+    @Override
+    public synchronized void reachedEndOfFile()
+    {
+      endOfFile = true;
+    }
+
+    /**
+     * Abandons the transfer, i.e., discards all buffered bytes and ignores all further writes.
+     */
+    public synchronized void abandon()
+    {
+      abandoned = true;
+      size = 0;
+      notifyAll();
+    }
+
+    public synchronized boolean isAbandoned()
+    {
+      return abandoned;
+    }
+
+    public synchronized boolean isClosed()
+    {
+      return closed;
+    }
+
+    public synchronized boolean isDone()
+    {
+      return done;
+    }
+
+    /**
+     * Waits until the target stream is closed.
+     * If this stream is not closed, yet, this method waits for the writer, at most until the writer has been idle for the idle timeout.
+     */
+    public synchronized void await() throws InterruptedException
+    {
+      while (!done)
+      {
+        wait();
+      }
+    }
+
+    @Override
+    public synchronized void close() throws IOException
+    {
+      closed = true;
+      notifyAll();
+    }
+
+    private void drain()
+    {
+      try
+      {
+        for (;;)
+        {
+          int offset;
+          int length;
+
+          synchronized (this)
+          {
+            long idleSince = System.currentTimeMillis();
+            while (size == 0 && !closed && !abandoned)
+            {
+              long timeout = idleSince + idleTimeout - System.currentTimeMillis();
+              if (timeout <= 0)
+              {
+                // The writer has probably dropped this stream without closing it.
+                abandon();
+                break;
+              }
+
+              wait(timeout);
+            }
+
+            if (abandoned)
+            {
+              break;
+            }
+
+            if (size == 0)
+            {
+              // Closed and completely drained.
+              if (endOfFile && out instanceof EndOfFileAware)
+              {
+                ((EndOfFileAware)out).reachedEndOfFile();
+              }
+
+              break;
+            }
+
+            offset = head;
+            length = Math.min(size, buffer.length - head);
+          }
+
+          // The bytes between offset and offset + length are not touched by the writer until the head is advanced.
+          out.write(buffer, offset, length);
+
+          synchronized (this)
+          {
+            if (!abandoned)
+            {
+              head = (head + length) % buffer.length;
+              size -= length;
+              notifyAll();
+            }
+          }
+        }
+      }
+      catch (Exception ex)
+      {
+        abandon();
+      }
+      finally
+      {
+        finish();
+      }
+    }
+
+    private void finish()
+    {
+      closeSilent(out);
+
+      byte[] buffer;
+      synchronized (this)
+      {
+        // The writer doesn't touch the buffer anymore because it's either closed or abandoned.
+        buffer = this.buffer;
+        this.buffer = null;
+        done = true;
+        notifyAll();
+      }
+
+      BufferPool.release(buffer);
+
+      if (completion != null)
+      {
+        completion.run();
+      }
+    }
+  }
 }
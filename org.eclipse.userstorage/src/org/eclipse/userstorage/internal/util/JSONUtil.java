@@ -10,6 +10,7 @@
  */
 package org.eclipse.userstorage.internal.util;
 
+
 import org.apache.commons.codec.binary.Base64InputStream;
 
 import java.io.EOFException;
@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2015 Eike Stepper (Berlin, Germany) and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Eike Stepper - initial API and implementation
+ */
+package org.eclipse.userstorage.internal.util;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A thread-safe map that references its values weakly and can be used to canonicalize them.
+ * <p>
+ * Lookups don't block. The entries of garbage collected values are expunged
+ * through a {@link ReferenceQueue} whenever the map is accessed.
+ *
+ * @author Eike Stepper
+ */
+public final class WeakValueMap<K, V>
+{
+  private final ConcurrentMap<K, ValueReference<K, V>> map = new ConcurrentHashMap<K, ValueReference<K, V>>();
+
+  private final ReferenceQueue<V> queue = new ReferenceQueue<V>();
+
+  public WeakValueMap()
+  {
+  }
+
+  public V get(K key)
+  {
+    expunge();
+
+    ValueReference<K, V> ref = map.get(key);
+    return ref == null ? null : ref.get();
+  }
+
+  /**
+   * Associates the given value with the given key, unless the key is already associated with a value that is still reachable.
+   *
+   * @return the value that was already associated with the given key, or <code>null</code> if the given value has been associated.
+   */
+  public V putIfAbsent(K key, V value)
+  {
+    expunge();
+
+    ValueReference<K, V> newRef = new ValueReference<K, V>(key, value, queue);
+
+    for (;;)
+    {
+      ValueReference<K, V> ref = map.putIfAbsent(key, newRef);
+      if (ref == null)
+      {
+        return null;
+      }
+
+      V existingValue = ref.get();
+      if (existingValue != null)
+      {
+        return existingValue;
+      }
+
+      // The existing value has been garbage collected but its entry has not been expunged, yet.
+      if (map.replace(key, ref, newRef))
+      {
+        return null;
+      }
+    }
+  }
+
+  public List<V> values()
+  {
+    expunge();
+
+    List<V> values = new ArrayList<V>();
+    for (ValueReference<K, V> ref : map.values())
+    {
+      V value = ref.get();
+      if (value != null)
+      {
+        values.add(value);
+      }
+    }
+
+    return values;
+  }
+
+  public int size()
+  {
+    expunge();
+    return map.size();
+  }
+
+  public void clear()
+  {
+    map.clear();
+    expunge();
+  }
+
+  private void expunge()
+  {
+    Reference<? extends V> ref;
+    while ((ref = queue.poll()) != null)
+    {
+      @SuppressWarnings("unchecked")
+      ValueReference<K, V> valueRef = (ValueReference<K, V>)ref;
+
+      // Don't remove a newer entry for the same key.
+      map.remove(valueRef.key, valueRef);
+    }
+  }
+
+  /**
+   * @author Eike Stepper
+   */
+  private static final class ValueReference<K, V> extends WeakReference<V>
+  {
+    private final K key;
+
+    public ValueReference(K key, V value, ReferenceQueue<V> queue)
+    {
+      super(value, queue);
+      this.key = key;
+    }
+  }
+}
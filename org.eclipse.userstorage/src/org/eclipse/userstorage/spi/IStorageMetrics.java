@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2015 Eike Stepper (Berlin, Germany) and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Eike Stepper - initial API and implementation
+ */
+package org.eclipse.userstorage.spi;
+
+import org.eclipse.userstorage.IStorageService;
+
+/**
+ * Receives measurements of the requests that are sent to {@link IStorageService storage services}
+ * and of the accesses to the {@link StorageCache caches} of their storages.
+ * <p>
+ * Metrics are registered with {@link IStorageService.Registry#addMetrics(IStorageMetrics) IStorageService.Registry.addMetrics()}.
+ * The methods are called on the threads that send the requests, so they should return quickly and must be thread-safe.
+ * <p>
+ *
+ * @author Eike Stepper
+ */
+public interface IStorageMetrics
+{
+  /**
+   * Called when a response has been received or when a request has failed.
+   *
+   * @param service the service that the request was sent to, never <code>null</code>.<p>
+   * @param operation the operation of the request, never <code>null</code>.<p>
+   * @param statusCode the HTTP status code of the response, or <code>-1</code> if no response has been received.<p>
+   * @param nanos the time between sending the request and receiving the response in nanoseconds.<p>
+   */
+  public void requestCompleted(IStorageService service, Operation operation, int statusCode, long nanos);
+
+  /**
+   * Called when bytes have been sent to the given service.
+   *
+   * @param service the service that the bytes were sent to, never <code>null</code>.<p>
+   * @param bytes the number of bytes that have been sent.<p>
+   */
+  public void bytesSent(IStorageService service, long bytes);
+
+  /**
+   * Called when bytes have been received from the given service.
+   *
+   * @param service the service that the bytes were received from, never <code>null</code>.<p>
+   * @param bytes the number of bytes that have been received.<p>
+   */
+  public void bytesReceived(IStorageService service, long bytes);
+
+  /**
+   * Called when the contents of a blob have been looked up in the cache of a storage.
+   *
+   * @param service the service of the storage, never <code>null</code>.<p>
+   * @param hit <code>true</code> if the cached contents have been used, <code>false</code> otherwise.<p>
+   */
+  public void cacheAccessed(IStorageService service, boolean hit);
+
+  /**
+   * Called when a request has to authenticate again because the session or the credentials were rejected.
+   *
+   * @param service the service that rejected the session or the credentials, never <code>null</code>.<p>
+   */
+  public void authenticationRetried(IStorageService service);
+
+  /**
+   * Called when the reads of a storage have been redirected from the given service to another service, or back.
+   * <p>
+   * The service of the storage doesn't change when its reads fail over; writes and deletes still go to the given service.
+   *
+   * @param service the service of the storage, never <code>null</code>.<p>
+   * @param failoverService the service that serves the reads from now on, or <code>null</code> if the reads go to the given service again.<p>
+   */
+  public void readsFailedOver(IStorageService service, IStorageService failoverService);
+
+  /**
+   * Called when the circuit breaker of the given service has changed its state.
+   * <p>
+   * While the breaker is {@link CircuitBreakerState#OPEN open}, the requests to the service fail fast.
+   *
+   * @param service the service of the circuit breaker, never <code>null</code>.<p>
+   * @param oldState the previous state of the circuit breaker, never <code>null</code>.<p>
+   * @param newState the new state of the circuit breaker, never <code>null</code>.<p>
+   */
+  public void circuitBreakerStateChanged(IStorageService service, CircuitBreakerState oldState, CircuitBreakerState newState);
+
+  /**
+   * Enumerates the kinds of requests that are sent to a {@link IStorageService storage service}.
+   *
+   * @author Eike Stepper
+   */
+  public enum Operation
+  {
+    LOGIN, TOKEN, LIST, GET, PUT, DELETE
+  }
+
+  /**
+   * Enumerates the states of the circuit breaker of a {@link IStorageService storage service}.
+   *
+   * @author Eike Stepper
+   */
+  public enum CircuitBreakerState
+  {
+    /**
+     * Requests are sent to the service.
+     */
+    CLOSED,
+
+    /**
+     * Requests fail fast without being sent to the service.
+     */
+    OPEN,
+
+    /**
+     * A single probe request is sent to the service to find out whether it has recovered.
+     */
+    HALF_OPEN
+  }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2015 Eike Stepper (Berlin, Germany) and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Eike Stepper - initial API and implementation
+ */
+package org.eclipse.userstorage.spi;
+
+import org.eclipse.userstorage.IStorageService;
+
+/**
+ * Records the durations of the operations that a storage performs, for example as JDK Flight Recorder events.
+ * <p>
+ * A tracer is installed by setting the system property <code>org.eclipse.userstorage.tracer</code> to the name of a class
+ * that implements this interface and has a public no-argument constructor.
+ * Bundles that contribute tracers must register themselves as buddies of the <code>org.eclipse.userstorage</code> bundle.
+ * <p>
+ * Each <code>begin</code> method is called when an operation starts and returns a {@link Span span} that is {@link Span#end(int, long) ended}
+ * when the operation is over, possibly on a different thread.
+ * A tracer that doesn't record a particular kind of operation, for example because the corresponding event type is disabled,
+ * returns <code>null</code> so that the operation isn't slowed down.
+ * <p>
+ *
+ * @author Eike Stepper
+ */
+public interface IStorageTracer
+{
+  /**
+   * Begins an HTTP request. The span is ended with the HTTP status code of the response, or <code>-1</code> if no response has been received,
+   * and the number of bytes in the response body.
+   *
+   * @param service the service that the request is sent to, never <code>null</code>.<p>
+   * @param method the HTTP method of the request, never <code>null</code>.<p>
+   * @param uriTemplate the path of the request relative to the service URI, with placeholders for the application token and the key, never <code>null</code>.<p>
+   */
+  public Span beginRequest(IStorageService service, String method, String uriTemplate);
+
+  /**
+   * Begins an authentication, i.e., a login and the acquisition of a CSRF token.
+   * The span is ended with the HTTP status code of the login response, or <code>-1</code> if the authentication has failed, and zero bytes.
+   *
+   * @param service the service that is authenticated with, never <code>null</code>.<p>
+   */
+  public Span beginAuthentication(IStorageService service);
+
+  /**
+   * Begins opening the cached contents of a blob. The span is ended with <code>1</code> if the contents are cached, <code>0</code> otherwise, and zero bytes.
+   */
+  public Span beginCacheOpen(String applicationToken, String key);
+
+  /**
+   * Begins filling the cache with the contents of a blob.
+   * The span is ended with <code>1</code> if the contents have been written completely, <code>0</code> otherwise, and the number of bytes written.
+   */
+  public Span beginCacheFill(String applicationToken, String key);
+
+  /**
+   * Begins deleting the cached contents of a blob. The span is ended with <code>0</code> and zero bytes.
+   */
+  public Span beginCacheEvict(String applicationToken, String key);
+
+  /**
+   * Begins parsing the JSON document of a response. The span is ended with <code>0</code> and the number of bytes that the parser has consumed.
+   * If a streamed value is extracted from the document, the bytes of that value are not included.
+   */
+  public Span beginJSONParse();
+
+  /**
+   * Begins building the JSON document of a request. The document is built while it's read,
+   * so the span is ended with <code>0</code> and the number of bytes built when the document has been read completely or is closed.
+   */
+  public Span beginJSONBuild();
+
+  /**
+   * The duration of an operation.
+   *
+   * @author Eike Stepper
+   */
+  public interface Span
+  {
+    /**
+     * Ends this span.
+     *
+     * @param status the outcome of the operation, as described by the <code>begin</code> method that has returned this span.<p>
+     * @param bytes the number of bytes that the operation has transferred, as described by the <code>begin</code> method that has returned this span.<p>
+     */
+    public void end(int status, long bytes);
+  }
+}
@@ -22,12 +22,15 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A local file system based {@link StorageCache cache}.
@@ -43,6 +46,8 @@ public class FileStorageCache extends StorageCache
 
   private final File folder;
 
+  private final AtomicLong evictions = new AtomicLong();
+
   /**
    * Constructs this cache with a randomly named folder in the user's temp directory.
    *
@@ -80,6 +85,52 @@ public class FileStorageCache extends StorageCache
     return folder;
   }
 
+  /**
+   * Returns the number of blobs in this cache.
+   * <p>
+   * The blobs are counted by listing the files of this cache, so this method should not be called frequently.
+   * <p>
+   *
+   * @return the number of blobs in this cache.<p>
+   */
+  public int getEntryCount()
+  {
+    return getPropertiesFiles().size();
+  }
+
+  /**
+   * Returns the number of bytes that the properties and contents files of this cache occupy on disk.
+   * <p>
+   * The files are listed and measured, so this method should not be called frequently.
+   * <p>
+   *
+   * @return the number of bytes that the files of this cache occupy on disk.<p>
+   */
+  public long getDiskUsage()
+  {
+    long usage = 0;
+    for (File propertiesFile : getPropertiesFiles())
+    {
+      String name = propertiesFile.getName();
+      File contentsFile = new File(propertiesFile.getParentFile(), name.substring(0, name.length() - PROPERTIES.length()));
+
+      usage += propertiesFile.length();
+      usage += contentsFile.length();
+    }
+
+    return usage;
+  }
+
+  /**
+   * Returns the number of blobs that have been removed from this cache, i.e., blobs that have been deleted, replaced, or that failed to download.
+   *
+   * @return the number of blobs that have been removed from this cache.<p>
+   */
+  public long getEvictionCount()
+  {
+    return evictions.get();
+  }
+
   /**
    * {@inheritDoc}
    */
@@ -99,7 +150,7 @@ public class FileStorageCache extends StorageCache
         String key = getKeyFromFileName(name);
         if (key != null)
         {
-          keys.add(name);
+          keys.add(key);
         }
       }
     }
@@ -198,8 +249,13 @@ public class FileStorageCache extends StorageCache
   @Override
   protected void delete(String applicationToken, String key) throws IOException
   {
-    getFile(applicationToken, key, PROPERTIES).delete();
-    getFile(applicationToken, key, null).delete();
+    boolean deleted = getFile(applicationToken, key, PROPERTIES).delete();
+    deleted |= getFile(applicationToken, key, null).delete();
+
+    if (deleted)
+    {
+      evictions.incrementAndGet();
+    }
   }
 
   /**
@@ -231,6 +287,44 @@ public class FileStorageCache extends StorageCache
     return new File(folder, applicationFolderName);
   }
 
+  /**
+   * Returns the properties files of all blobs in this cache.
+   */
+  protected List<File> getPropertiesFiles()
+  {
+    List<File> result = new ArrayList<File>();
+
+    File[] applicationFolders = folder.listFiles();
+    if (applicationFolders != null)
+    {
+      for (File applicationFolder : applicationFolders)
+      {
+        if (applicationFolder.isDirectory())
+        {
+          collectPropertiesFiles(applicationFolder, result);
+        }
+      }
+    }
+
+    return result;
+  }
+
+  protected final void collectPropertiesFiles(File applicationFolder, List<File> result)
+  {
+    File[] files = applicationFolder.listFiles();
+    if (files != null)
+    {
+      for (File file : files)
+      {
+        String name = file.getName();
+        if (name.endsWith(PROPERTIES) && getKeyFromFileName(name) != null && file.isFile())
+        {
+          result.add(file);
+        }
+      }
+    }
+  }
+
   protected String getFileNameFromKey(String key, String extension)
   {
     return key + StringUtil.safe(extension);
@@ -349,6 +443,14 @@ public class FileStorageCache extends StorageCache
       return getFolder();
     }
 
+    @Override
+    protected List<File> getPropertiesFiles()
+    {
+      List<File> result = new ArrayList<File>();
+      collectPropertiesFiles(getFolder(), result);
+      return result;
+    }
+
     protected final void checkApplication(String applicationToken) throws IllegalArgumentException
     {
       if (!this.applicationToken.equals(applicationToken))
@@ -0,0 +1,184 @@
+/*
+ * Copyright (c) 2015 Eike Stepper (Berlin, Germany) and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Eike Stepper - initial API and implementation
+ */
+package org.eclipse.userstorage.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of latencies with a bounded relative error.
+ * <p>
+ * Latencies are recorded in microseconds into log-linear buckets, similar to an HDR histogram:
+ * values below {@link #SUB_BUCKETS} have their own buckets, and every power-of-two range above is split into {@link #SUB_BUCKETS} buckets.
+ * The relative error of the reported values is therefore less than 1 / {@link #SUB_BUCKETS}.
+ * Recording a value costs a few atomic increments and never blocks.
+ * <p>
+ *
+ * @author Eike Stepper
+ */
+public final class LatencyHistogram
+{
+  public static final int SUB_BUCKETS = 32;
+
+  private static final int SUB_BUCKET_BITS = Integer.numberOfTrailingZeros(SUB_BUCKETS);
+
+  /**
+   * Values are clamped to 2^40 microseconds, i.e., about 12 days.
+   */
+  private static final int MAX_EXPONENT = 40;
+
+  private static final long MAX_VALUE = (1L << MAX_EXPONENT) - 1;
+
+  private final AtomicLongArray counts = new AtomicLongArray(getBucket(MAX_VALUE) + 1);
+
+  private final AtomicLong count = new AtomicLong();
+
+  private final AtomicLong sum = new AtomicLong();
+
+  private final AtomicLong max = new AtomicLong();
+
+  public LatencyHistogram()
+  {
+  }
+
+  /**
+   * Records the given latency.
+   *
+   * @param nanos the latency in nanoseconds.<p>
+   */
+  public void record(long nanos)
+  {
+    long micros = Math.min(Math.max(nanos / 1000, 0), MAX_VALUE);
+
+    counts.incrementAndGet(getBucket(micros));
+    count.incrementAndGet();
+    sum.addAndGet(micros);
+
+    long oldMax;
+    while (micros > (oldMax = max.get()))
+    {
+      if (max.compareAndSet(oldMax, micros))
+      {
+        break;
+      }
+    }
+  }
+
+  /**
+   * Returns the number of recorded latencies.
+   */
+  public long getCount()
+  {
+    return count.get();
+  }
+
+  /**
+   * Returns the mean of the recorded latencies in microseconds.
+   */
+  public double getMean()
+  {
+    long count = this.count.get();
+    return count == 0 ? 0.0 : (double)sum.get() / count;
+  }
+
+  /**
+   * Returns the maximum of the recorded latencies in microseconds.
+   */
+  public long getMax()
+  {
+    return max.get();
+  }
+
+  /**
+   * Returns the latency in microseconds that the given percentage of the recorded latencies don't exceed.
+   *
+   * @param percentile a percentage between 0.0 and 100.0.<p>
+   * @return the latency in microseconds that the given percentage of the recorded latencies don't exceed, or 0 if no latencies have been recorded.<p>
+   */
+  public long getPercentile(double percentile)
+  {
+    long[] snapshot = new long[counts.length()];
+    long total = 0;
+
+    for (int i = 0; i < snapshot.length; i++)
+    {
+      snapshot[i] = counts.get(i);
+      total += snapshot[i];
+    }
+
+    if (total == 0)
+    {
+      return 0;
+    }
+
+    long rank = Math.max(1, (long)Math.ceil(total * Math.min(Math.max(percentile, 0.0), 100.0) / 100.0));
+    long seen = 0;
+
+    for (int i = 0; i < snapshot.length; i++)
+    {
+      seen += snapshot[i];
+      if (seen >= rank)
+      {
+        return Math.min(getHighestValue(i), max.get());
+      }
+    }
+
+    return max.get();
+  }
+
+  /**
+   * Removes all recorded latencies.
+   * Latencies that are recorded concurrently may or may not survive the reset.
+   */
+  public void reset()
+  {
+    for (int i = 0; i < counts.length(); i++)
+    {
+      counts.set(i, 0);
+    }
+
+    count.set(0);
+    sum.set(0);
+    max.set(0);
+  }
+
+  @Override
+  public String toString()
+  {
+    return "LatencyHistogram[count=" + getCount() + ", mean=" + Math.round(getMean()) + "us, p50=" + getPercentile(50) + "us, p99=" + getPercentile(99)
+        + "us, max=" + getMax() + "us]";
+  }
+
+  private static int getBucket(long value)
+  {
+    if (value < SUB_BUCKETS)
+    {
+      return (int)value;
+    }
+
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    int shift = exponent - SUB_BUCKET_BITS;
+    int subBucket = (int)(value >>> shift) - SUB_BUCKETS;
+    return SUB_BUCKETS + shift * SUB_BUCKETS + subBucket;
+  }
+
+  private static long getHighestValue(int bucket)
+  {
+    if (bucket < SUB_BUCKETS)
+    {
+      return bucket;
+    }
+
+    int shift = (bucket - SUB_BUCKETS) / SUB_BUCKETS;
+    long subBucket = (bucket - SUB_BUCKETS) % SUB_BUCKETS + SUB_BUCKETS;
+    return ((subBucket + 1) << shift) - 1;
+  }
+}
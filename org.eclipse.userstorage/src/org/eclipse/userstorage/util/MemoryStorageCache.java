@@ -0,0 +1,733 @@
+/*
+ * Copyright (c) 2015 Eike Stepper (Berlin, Germany) and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Eike Stepper - initial API and implementation
+ */
+package org.eclipse.userstorage.util;
+
+import org.eclipse.userstorage.spi.StorageCache;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An in-memory {@link StorageCache cache} that keeps the contents of the cached blobs off the Java heap.
+ * <p>
+ * The contents are stored in fixed-size chunks that are sliced from direct {@link ByteBuffer byte buffer} slabs.
+ * Slabs are allocated lazily until the configured {@link #getMaxBytes() byte budget} is reached; after that
+ * the least recently used blobs are evicted to make room for new contents.
+ * Evicted or replaced chunks are recycled, so the slabs themselves are never released before {@link #clear()} is called.
+ * <p>
+ * The input streams returned by this cache read directly from the chunks and stay valid even if the blob is evicted
+ * or replaced while they are being read.
+ * <p>
+ *
+ * @author Eike Stepper
+ */
+public class MemoryStorageCache extends StorageCache
+{
+  /**
+   * The default {@link #getMaxBytes() byte budget} of a memory cache.
+   */
+  public static final long DEFAULT_MAX_BYTES = 64 * 1024 * 1024;
+
+  /**
+   * The default {@link #getSlabSize() slab size} of a memory cache.
+   */
+  public static final int DEFAULT_SLAB_SIZE = 1024 * 1024;
+
+  /**
+   * The default {@link #getChunkSize() chunk size} of a memory cache.
+   */
+  public static final int DEFAULT_CHUNK_SIZE = 4 * 1024;
+
+  private static final String[] NO_PROPERTIES = {};
+
+  private static final ByteBuffer[] NO_CHUNKS = {};
+
+  private final long maxBytes;
+
+  private final int slabSize;
+
+  private final int chunkSize;
+
+  private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+  private final Deque<ByteBuffer> freeChunks = new ArrayDeque<ByteBuffer>();
+
+  private long allocatedBytes;
+
+  private long evictions;
+
+  private int generation;
+
+  /**
+   * Constructs this cache with the {@link #DEFAULT_MAX_BYTES default byte budget}.
+   */
+  public MemoryStorageCache()
+  {
+    this(DEFAULT_MAX_BYTES);
+  }
+
+  /**
+   * Constructs this cache with the given byte budget.
+   *
+   * @param maxBytes the maximum number of bytes that this cache allocates for blob contents, must be positive.<p>
+   */
+  public MemoryStorageCache(long maxBytes)
+  {
+    this(maxBytes, DEFAULT_SLAB_SIZE, DEFAULT_CHUNK_SIZE);
+  }
+
+  /**
+   * Constructs this cache with the given byte budget, slab size and chunk size.
+   *
+   * @param maxBytes the maximum number of bytes that this cache allocates for blob contents, must be positive.<p>
+   * @param slabSize the number of bytes of each direct buffer that this cache allocates, must be a multiple of <code>chunkSize</code>.<p>
+   * @param chunkSize the number of bytes of the smallest unit of storage, must be positive.<p>
+   */
+  public MemoryStorageCache(long maxBytes, int slabSize, int chunkSize)
+  {
+    if (maxBytes <= 0)
+    {
+      throw new IllegalArgumentException("maxBytes=" + maxBytes);
+    }
+
+    if (chunkSize <= 0)
+    {
+      throw new IllegalArgumentException("chunkSize=" + chunkSize);
+    }
+
+    if (slabSize < chunkSize || slabSize % chunkSize != 0)
+    {
+      throw new IllegalArgumentException("slabSize=" + slabSize);
+    }
+
+    this.maxBytes = maxBytes;
+    this.slabSize = slabSize;
+    this.chunkSize = chunkSize;
+  }
+
+  /**
+   * Returns the maximum number of bytes that this cache allocates for blob contents.
+   *
+   * @return the maximum number of bytes that this cache allocates for blob contents.<p>
+   */
+  public final long getMaxBytes()
+  {
+    return maxBytes;
+  }
+
+  /**
+   * Returns the number of bytes of each direct buffer that this cache allocates.
+   *
+   * @return the number of bytes of each direct buffer that this cache allocates.<p>
+   */
+  public final int getSlabSize()
+  {
+    return slabSize;
+  }
+
+  /**
+   * Returns the number of bytes of the smallest unit of storage in this cache.
+   *
+   * @return the number of bytes of the smallest unit of storage in this cache.<p>
+   */
+  public final int getChunkSize()
+  {
+    return chunkSize;
+  }
+
+  /**
+   * Returns the number of bytes that this cache has currently allocated in direct buffers.
+   *
+   * @return the number of bytes that this cache has currently allocated in direct buffers.<p>
+   */
+  public final synchronized long getAllocatedBytes()
+  {
+    return allocatedBytes;
+  }
+
+  /**
+   * Returns the number of bytes of the allocated direct buffers that are currently not used by any blob.
+   *
+   * @return the number of bytes of the allocated direct buffers that are currently not used by any blob.<p>
+   */
+  public final synchronized long getFreeBytes()
+  {
+    return (long)freeChunks.size() * chunkSize;
+  }
+
+  /**
+   * Returns the number of blobs that are currently cached in this cache.
+   *
+   * @return the number of blobs that are currently cached in this cache.<p>
+   */
+  public final synchronized int getEntryCount()
+  {
+    return entries.size();
+  }
+
+  /**
+   * Returns the number of blobs whose contents have been evicted from this cache to stay within the {@link #getMaxBytes() byte budget}.
+   *
+   * @return the number of blobs that have been evicted from this cache.<p>
+   */
+  public final synchronized long getEvictionCount()
+  {
+    return evictions;
+  }
+
+  /**
+   * Removes all blobs from this cache and releases all direct buffers.
+   * <p>
+   * Input streams that are currently open on cached contents stay valid.
+   */
+  public synchronized void clear()
+  {
+    for (Entry entry : entries.values())
+    {
+      entry.setContents(null);
+    }
+
+    entries.clear();
+    freeChunks.clear();
+    allocatedBytes = 0;
+    ++generation;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public synchronized Iterator<String> getKeys(String applicationToken) throws IOException
+  {
+    List<String> keys = new ArrayList<String>();
+    for (Entry entry : entries.values())
+    {
+      if (entry.applicationToken.equals(applicationToken))
+      {
+        keys.add(entry.key);
+      }
+    }
+
+    return keys.iterator();
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  protected synchronized void loadProperties(String applicationToken, String key, Map<String, String> properties) throws IOException
+  {
+    Entry entry = entries.get(getEntryKey(applicationToken, key));
+    if (entry != null)
+    {
+      String[] buffer = entry.properties;
+      for (int i = 0; i < buffer.length; i += 2)
+      {
+        properties.put(buffer[i], buffer[i + 1]);
+      }
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  protected synchronized void saveProperties(String applicationToken, String key, Map<String, String> properties) throws IOException
+  {
+    String[] buffer = NO_PROPERTIES;
+    if (!properties.isEmpty())
+    {
+      buffer = new String[2 * properties.size()];
+
+      int i = 0;
+      for (Map.Entry<String, String> entry : properties.entrySet())
+      {
+        buffer[i++] = entry.getKey();
+        buffer[i++] = entry.getValue();
+      }
+    }
+
+    getEntry(applicationToken, key).properties = buffer;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  protected synchronized InputStream getInputStream(String applicationToken, String key) throws IOException
+  {
+    Entry entry = entries.get(getEntryKey(applicationToken, key));
+    if (entry != null && entry.contents != null)
+    {
+      return new ContentsInputStream(entry.contents);
+    }
+
+    return null;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  protected synchronized OutputStream getOutputStream(String applicationToken, String key) throws IOException
+  {
+    return new ContentsOutputStream(applicationToken, key, generation);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  protected synchronized void delete(String applicationToken, String key) throws IOException
+  {
+    Entry entry = entries.remove(getEntryKey(applicationToken, key));
+    if (entry != null)
+    {
+      entry.setContents(null);
+    }
+  }
+
+  private Entry getEntry(String applicationToken, String key)
+  {
+    String entryKey = getEntryKey(applicationToken, key);
+
+    Entry entry = entries.get(entryKey);
+    if (entry == null)
+    {
+      entry = new Entry(applicationToken, key);
+      entries.put(entryKey, entry);
+    }
+
+    return entry;
+  }
+
+  private synchronized void publish(String applicationToken, String key, Contents contents)
+  {
+    if (contents.generation != generation)
+    {
+      // The cache has been cleared while the contents were written.
+      return;
+    }
+
+    getEntry(applicationToken, key).setContents(contents);
+  }
+
+  private synchronized void discard(String applicationToken, String key, int generation) throws IOException
+  {
+    if (generation == this.generation)
+    {
+      delete(applicationToken, key);
+    }
+  }
+
+  private synchronized ByteBuffer allocateChunk(String applicationToken, String key, int generation)
+  {
+    if (generation != this.generation)
+    {
+      // Don't mix chunks of the current slabs into contents of the slabs that clear() has dropped,
+      // they would never be recycled and their bytes would never be subtracted from allocatedBytes.
+      return null;
+    }
+
+    for (;;)
+    {
+      ByteBuffer chunk = freeChunks.poll();
+      if (chunk != null)
+      {
+        chunk.clear();
+        return chunk;
+      }
+
+      if (allocatedBytes + slabSize <= maxBytes)
+      {
+        ByteBuffer slab = ByteBuffer.allocateDirect(slabSize);
+        allocatedBytes += slabSize;
+
+        for (int position = 0; position < slabSize; position += chunkSize)
+        {
+          slab.limit(position + chunkSize).position(position);
+          freeChunks.add(slab.slice());
+        }
+
+        continue;
+      }
+
+      if (!evict(getEntryKey(applicationToken, key)))
+      {
+        return null;
+      }
+    }
+  }
+
+  private boolean evict(String protectedKey)
+  {
+    for (Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator(); it.hasNext();)
+    {
+      Map.Entry<String, Entry> mapEntry = it.next();
+
+      // Entries without contents don't occupy chunks, evicting them would only lose their properties.
+      if (mapEntry.getValue().contents != null && !mapEntry.getKey().equals(protectedKey))
+      {
+        it.remove();
+        mapEntry.getValue().setContents(null);
+        ++evictions;
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  private synchronized void releaseChunks(ByteBuffer[] chunks, int generation)
+  {
+    if (generation != this.generation)
+    {
+      // The slabs of these chunks have been dropped by clear().
+      return;
+    }
+
+    for (int i = 0; i < chunks.length; i++)
+    {
+      freeChunks.add(chunks[i]);
+    }
+  }
+
+  private static String getEntryKey(String applicationToken, String key)
+  {
+    return applicationToken + "/" + key;
+  }
+
+  /**
+   * @author Eike Stepper
+   */
+  private final class Entry
+  {
+    private final String applicationToken;
+
+    private final String key;
+
+    private String[] properties = NO_PROPERTIES;
+
+    private Contents contents;
+
+    public Entry(String applicationToken, String key)
+    {
+      this.applicationToken = applicationToken;
+      this.key = key;
+    }
+
+    public void setContents(Contents contents)
+    {
+      if (this.contents != null)
+      {
+        this.contents.dispose();
+      }
+
+      this.contents = contents;
+    }
+  }
+
+  /**
+   * @author Eike Stepper
+   */
+  private final class Contents
+  {
+    private final ByteBuffer[] chunks;
+
+    private final int length;
+
+    private final int generation;
+
+    private int readers;
+
+    private boolean disposed;
+
+    public Contents(ByteBuffer[] chunks, int length, int generation)
+    {
+      this.chunks = chunks;
+      this.length = length;
+      this.generation = generation;
+    }
+
+    public synchronized void acquire()
+    {
+      ++readers;
+    }
+
+    public void release()
+    {
+      boolean free;
+      synchronized (this)
+      {
+        free = --readers == 0 && disposed;
+      }
+
+      if (free)
+      {
+        releaseChunks(chunks, generation);
+      }
+    }
+
+    public void dispose()
+    {
+      boolean free;
+      synchronized (this)
+      {
+        free = !disposed && readers == 0;
+        disposed = true;
+      }
+
+      if (free)
+      {
+        releaseChunks(chunks, generation);
+      }
+    }
+  }
+
+  /**
+   * Reads the chunks of a {@link Contents} through read-only views, i.e., without intermediate copies.
+   *
+   * @author Eike Stepper
+   */
+  private static final class ContentsInputStream extends InputStream
+  {
+    private final Contents contents;
+
+    private int remaining;
+
+    private int index;
+
+    private ByteBuffer chunk;
+
+    private boolean closed;
+
+    public ContentsInputStream(Contents contents)
+    {
+      this.contents = contents;
+      remaining = contents.length;
+      contents.acquire();
+    }
+
+    @Override
+    public int read() throws IOException
+    {
+      ByteBuffer chunk = nextChunk();
+      if (chunk == null)
+      {
+        return -1;
+      }
+
+      --remaining;
+      return chunk.get() & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException
+    {
+      if (len == 0)
+      {
+        return 0;
+      }
+
+      ByteBuffer chunk = nextChunk();
+      if (chunk == null)
+      {
+        return -1;
+      }
+
+      int n = Math.min(len, chunk.remaining());
+      chunk.get(b, off, n);
+      remaining -= n;
+      return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException
+    {
+      long skipped = 0;
+      while (skipped < n)
+      {
+        ByteBuffer chunk = nextChunk();
+        if (chunk == null)
+        {
+          break;
+        }
+
+        int step = (int)Math.min(n - skipped, chunk.remaining());
+        chunk.position(chunk.position() + step);
+        remaining -= step;
+        skipped += step;
+      }
+
+      return skipped;
+    }
+
+    @Override
+    public int available() throws IOException
+    {
+      return closed ? 0 : remaining;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+      if (!closed)
+      {
+        closed = true;
+        chunk = null;
+        contents.release();
+      }
+    }
+
+    private ByteBuffer nextChunk() throws IOException
+    {
+      if (closed)
+      {
+        throw new IOException("Stream closed");
+      }
+
+      if (remaining == 0)
+      {
+        return null;
+      }
+
+      if (chunk == null || !chunk.hasRemaining())
+      {
+        chunk = contents.chunks[index++].asReadOnlyBuffer();
+        chunk.rewind();
+        chunk.limit(Math.min(chunk.capacity(), remaining));
+      }
+
+      return chunk;
+    }
+  }
+
+  /**
+   * Collects the written bytes in chunks and publishes them as the new contents of a blob when it's closed.
+   * If the {@link MemoryStorageCache#getMaxBytes() byte budget} is exhausted the written bytes are silently discarded
+   * and the blob is removed from the cache when the stream is closed.
+   * If the cache is {@link MemoryStorageCache#clear() cleared} while the stream is open the written bytes are discarded as well.
+   *
+   * @author Eike Stepper
+   */
+  private final class ContentsOutputStream extends OutputStream
+  {
+    private final String applicationToken;
+
+    private final String key;
+
+    private final List<ByteBuffer> chunks = new ArrayList<ByteBuffer>();
+
+    private final int generation;
+
+    private ByteBuffer chunk;
+
+    private int length;
+
+    private boolean overflow;
+
+    private boolean closed;
+
+    public ContentsOutputStream(String applicationToken, String key, int generation)
+    {
+      this.applicationToken = applicationToken;
+      this.key = key;
+      this.generation = generation;
+    }
+
+    @Override
+    public void write(int b) throws IOException
+    {
+      ByteBuffer chunk = nextChunk();
+      if (chunk != null)
+      {
+        chunk.put((byte)b);
+        ++length;
+      }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException
+    {
+      while (len > 0)
+      {
+        ByteBuffer chunk = nextChunk();
+        if (chunk == null)
+        {
+          return;
+        }
+
+        int n = Math.min(len, chunk.remaining());
+        chunk.put(b, off, n);
+        length += n;
+        off += n;
+        len -= n;
+      }
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+      if (!closed)
+      {
+        closed = true;
+        chunk = null;
+
+        if (overflow)
+        {
+          discard(applicationToken, key, generation);
+        }
+        else
+        {
+          publish(applicationToken, key, new Contents(chunks.toArray(NO_CHUNKS), length, generation));
+        }
+      }
+    }
+
+    private ByteBuffer nextChunk() throws IOException
+    {
+      if (closed)
+      {
+        throw new IOException("Stream closed");
+      }
+
+      if (overflow)
+      {
+        return null;
+      }
+
+      if (chunk == null || !chunk.hasRemaining())
+      {
+        chunk = allocateChunk(applicationToken, key, generation);
+        if (chunk == null)
+        {
+          overflow = true;
+          releaseChunks(chunks.toArray(NO_CHUNKS), generation);
+          chunks.clear();
+          return null;
+        }
+
+        chunks.add(chunk);
+      }
+
+      return chunk;
+    }
+  }
+}
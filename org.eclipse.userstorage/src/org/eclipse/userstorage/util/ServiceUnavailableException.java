@@ -0,0 +1,58 @@
+/*
+ * Copyright (c) 2015 Eike Stepper (Berlin, Germany) and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Eike Stepper - initial API and implementation
+ */
+package org.eclipse.userstorage.util;
+
+import org.eclipse.userstorage.IStorageService;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.net.URI;
+
+/**
+ * Signals that a request has not been sent to a {@link IStorageService service}
+ * because recent requests to that service have failed and its circuit breaker is open.
+ *
+ * @author Eike Stepper
+ */
+public class ServiceUnavailableException extends IOException
+{
+  private static final long serialVersionUID = 1L;
+
+  private URI serviceURI;
+
+  /**
+   * Public constructor to make this exception {@link Serializable}.
+   */
+  public ServiceUnavailableException()
+  {
+  }
+
+  /**
+   * Constructs this exception with the given parameters.
+   *
+   * @param serviceURI the URI of the service that is unavailable.
+   */
+  public ServiceUnavailableException(URI serviceURI)
+  {
+    super("Service unavailable: " + serviceURI);
+    this.serviceURI = serviceURI;
+  }
+
+  /**
+   * Returns the URI of the service that is unavailable.
+   *
+   * @return the URI of the service that is unavailable.
+   */
+  public final URI getServiceURI()
+  {
+    return serviceURI;
+  }
+}
@@ -24,6 +24,7 @@ import org.osgi.service.prefs.Preferences;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.HashMap;
@@ -201,12 +202,31 @@ public final class Settings
   }
 
   /**
+   * Settings that are stored in a properties file.
+   * <p>
+   * The properties are kept in memory and are only reloaded if the modification time or the size of the file changes.
+   * The file is written through a temporary file that is renamed.
+   * On platforms that can't rename a file over an existing file the old file is renamed to a backup file first,
+   * so that either the file or its backup file is complete at any time; the backup file is read if the file is missing.
+   * If {@link #setAutoFlush(boolean) auto flush} is turned off, multiple {@link #setValue(String, String) changes}
+   * are written with a single {@link #flush()} call.
+   *
    * @author Eike Stepper
    */
-  public final class FileSettings implements ISettings
+  public static final class FileSettings implements ISettings
   {
     private final File file;
 
+    private Properties properties;
+
+    private long lastModified;
+
+    private long length;
+
+    private boolean autoFlush = true;
+
+    private boolean dirty;
+
     public FileSettings(File file)
     {
       this.file = file;
@@ -222,54 +242,45 @@ public final class Settings
       this(Activator.PLUGIN_ID);
     }
 
+    public File getFile()
+    {
+      return file;
+    }
+
+    public synchronized boolean isAutoFlush()
+    {
+      return autoFlush;
+    }
+
     /**
-     * {@inheritDoc}
+     * Sets whether each {@link #setValue(String, String) change} is written to the file immediately.
+     * Turning auto flush on writes pending changes.
      */
-    @Override
-    public String getValue(String key) throws Exception
+    public synchronized void setAutoFlush(boolean autoFlush) throws IOException
     {
-      Properties properties = new Properties();
-
-      if (file.isFile())
+      this.autoFlush = autoFlush;
+      if (autoFlush)
       {
-        InputStream in = null;
-
-        try
-        {
-          in = new FileInputStream(file);
-          properties.load(in);
-        }
-        finally
-        {
-          IOUtil.close(in);
-        }
+        flush();
       }
-
-      return properties.getProperty(key);
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    public void setValue(String key, String value) throws Exception
+    public synchronized String getValue(String key) throws Exception
     {
-      Properties properties = new Properties();
-
-      if (file.isFile())
-      {
-        InputStream in = null;
+      return getProperties().getProperty(key);
+    }
 
-        try
-        {
-          in = new FileInputStream(file);
-          properties.load(in);
-        }
-        finally
-        {
-          IOUtil.close(in);
-        }
-      }
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized void setValue(String key, String value) throws Exception
+    {
+      Properties properties = getProperties();
 
       boolean changed = false;
       if (value == null)
@@ -283,7 +294,7 @@ public final class Settings
       else
       {
         Object oldValue = properties.setProperty(key, value);
-        if (oldValue != null && !oldValue.equals(value))
+        if (!value.equals(oldValue))
         {
           changed = true;
         }
@@ -291,18 +302,122 @@ public final class Settings
 
       if (changed)
       {
-        OutputStream out = null;
+        dirty = true;
 
-        try
+        if (autoFlush)
         {
-          out = new FileOutputStream(file);
-          properties.store(out, null);
+          flush();
         }
-        finally
+      }
+    }
+
+    /**
+     * Writes pending changes to the file.
+     */
+    public synchronized void flush() throws IOException
+    {
+      if (!dirty)
+      {
+        return;
+      }
+
+      File folder = file.getAbsoluteFile().getParentFile();
+      IOUtil.mkdirs(folder);
+
+      File tempFile = File.createTempFile(file.getName(), ".tmp", folder);
+      OutputStream out = null;
+
+      try
+      {
+        out = new FileOutputStream(tempFile);
+        properties.store(out, null);
+        out.close();
+        out = null;
+
+        File backupFile = getBackupFile();
+        if (!tempFile.renameTo(file))
         {
-          IOUtil.close(out);
+          // Some platforms don't replace existing files.
+          backupFile.delete();
+
+          if (!file.renameTo(backupFile) && file.exists())
+          {
+            throw new IOException("Could not rename " + file + " to " + backupFile);
+          }
+
+          if (!tempFile.renameTo(file))
+          {
+            backupFile.renameTo(file);
+            throw new IOException("Could not rename " + tempFile + " to " + file);
+          }
         }
+
+        // The backup file is also left over if a previous flush() has been interrupted.
+        backupFile.delete();
       }
+      finally
+      {
+        IOUtil.closeSilent(out);
+        tempFile.delete();
+      }
+
+      dirty = false;
+      lastModified = file.lastModified();
+      length = file.length();
+    }
+
+    private Properties getProperties() throws IOException
+    {
+      // Pending changes win over external changes.
+      if (dirty)
+      {
+        return properties;
+      }
+
+      File file = this.file;
+      if (!file.isFile())
+      {
+        // A previous flush() has been interrupted between the renames.
+        File backupFile = getBackupFile();
+        if (backupFile.isFile())
+        {
+          file = backupFile;
+        }
+      }
+
+      long lastModified = file.lastModified();
+      long length = file.length();
+
+      if (properties == null || lastModified != this.lastModified || length != this.length)
+      {
+        Properties properties = new Properties();
+
+        if (file.isFile())
+        {
+          InputStream in = null;
+
+          try
+          {
+            in = new FileInputStream(file);
+            properties.load(in);
+          }
+          finally
+          {
+            IOUtil.close(in);
+          }
+        }
+
+        this.properties = properties;
+        this.lastModified = lastModified;
+        this.length = length;
+      }
+
+      return properties;
+    }
+
+    private File getBackupFile()
+    {
+      return new File(file.getAbsoluteFile().getParentFile(), file.getName() + ".bak");
     }
   }
 }
@@ -0,0 +1,302 @@
+/*
+ * Copyright (c) 2015 Eike Stepper (Berlin, Germany) and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Eike Stepper - initial API and implementation
+ */
+package org.eclipse.userstorage.util;
+
+import org.eclipse.userstorage.IStorageService;
+import org.eclipse.userstorage.spi.IStorageMetrics;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * An in-memory {@link IStorageMetrics metrics} collector that keeps the statistics of one {@link IStorageService storage service}.
+ * <p>
+ * All counters are updated without locks, so the statistics can be collected with a low overhead at all times.
+ * The statistics of a service are available via {@link IStorageService#getStatistics()}.
+ * <p>
+ *
+ * @author Eike Stepper
+ */
+public final class StorageStatistics implements IStorageMetrics
+{
+  private static final int NOT_MODIFIED = 304;
+
+  private static final int MAX_STATUS_CODE = 599;
+
+  private final Map<Operation, LatencyHistogram> latencies = new EnumMap<Operation, LatencyHistogram>(Operation.class);
+
+  private final AtomicLongArray statusCodes = new AtomicLongArray(MAX_STATUS_CODE + 1);
+
+  private final AtomicLong failures = new AtomicLong();
+
+  private final AtomicLong bytesSent = new AtomicLong();
+
+  private final AtomicLong bytesReceived = new AtomicLong();
+
+  private final AtomicLong cacheHits = new AtomicLong();
+
+  private final AtomicLong cacheMisses = new AtomicLong();
+
+  private final AtomicLong authenticationRetries = new AtomicLong();
+
+  private final AtomicLong readFailovers = new AtomicLong();
+
+  private final AtomicLong circuitBreakerOpenings = new AtomicLong();
+
+  public StorageStatistics()
+  {
+    for (Operation operation : Operation.values())
+    {
+      latencies.put(operation, new LatencyHistogram());
+    }
+  }
+
+  @Override
+  public void requestCompleted(IStorageService service, Operation operation, int statusCode, long nanos)
+  {
+    latencies.get(operation).record(nanos);
+
+    if (statusCode >= 0 && statusCode <= MAX_STATUS_CODE)
+    {
+      statusCodes.incrementAndGet(statusCode);
+    }
+    else
+    {
+      failures.incrementAndGet();
+    }
+  }
+
+  @Override
+  public void bytesSent(IStorageService service, long bytes)
+  {
+    bytesSent.addAndGet(bytes);
+  }
+
+  @Override
+  public void bytesReceived(IStorageService service, long bytes)
+  {
+    bytesReceived.addAndGet(bytes);
+  }
+
+  @Override
+  public void cacheAccessed(IStorageService service, boolean hit)
+  {
+    (hit ? cacheHits : cacheMisses).incrementAndGet();
+  }
+
+  @Override
+  public void authenticationRetried(IStorageService service)
+  {
+    authenticationRetries.incrementAndGet();
+  }
+
+  @Override
+  public void readsFailedOver(IStorageService service, IStorageService failoverService)
+  {
+    if (failoverService != null)
+    {
+      readFailovers.incrementAndGet();
+    }
+  }
+
+  @Override
+  public void circuitBreakerStateChanged(IStorageService service, CircuitBreakerState oldState, CircuitBreakerState newState)
+  {
+    if (newState == CircuitBreakerState.OPEN)
+    {
+      circuitBreakerOpenings.incrementAndGet();
+    }
+  }
+
+  /**
+   * Returns the latency histogram of the given operation.
+   *
+   * @param operation the operation for which to return the latency histogram, must not be <code>null</code>.<p>
+   * @return the latency histogram of the given operation, never <code>null</code>.<p>
+   */
+  public LatencyHistogram getLatencies(Operation operation)
+  {
+    return latencies.get(operation);
+  }
+
+  /**
+   * Returns the number of responses with the given HTTP status code.
+   */
+  public long getStatusCodeCount(int statusCode)
+  {
+    if (statusCode >= 0 && statusCode <= MAX_STATUS_CODE)
+    {
+      return statusCodes.get(statusCode);
+    }
+
+    return 0;
+  }
+
+  /**
+   * Returns the numbers of responses, keyed by their HTTP status codes.
+   *
+   * @return the numbers of responses, keyed by their HTTP status codes, never <code>null</code>.<p>
+   */
+  public Map<Integer, Long> getStatusCodeCounts()
+  {
+    Map<Integer, Long> result = new TreeMap<Integer, Long>();
+    for (int i = 0; i <= MAX_STATUS_CODE; i++)
+    {
+      long count = statusCodes.get(i);
+      if (count != 0)
+      {
+        result.put(i, count);
+      }
+    }
+
+    return result;
+  }
+
+  /**
+   * Returns the number of requests that failed without a response.
+   */
+  public long getFailures()
+  {
+    return failures.get();
+  }
+
+  /**
+   * Returns the ratio of blob retrievals that were answered with "304 Not Modified".
+   *
+   * @return the ratio of blob retrievals that were answered with "304 Not Modified", between 0.0 and 1.0.<p>
+   */
+  public double getNotModifiedRatio()
+  {
+    long gets = latencies.get(Operation.GET).getCount();
+    return gets == 0 ? 0.0 : Math.min(1.0, (double)statusCodes.get(NOT_MODIFIED) / gets);
+  }
+
+  public long getBytesSent()
+  {
+    return bytesSent.get();
+  }
+
+  public long getBytesReceived()
+  {
+    return bytesReceived.get();
+  }
+
+  public long getCacheHits()
+  {
+    return cacheHits.get();
+  }
+
+  public long getCacheMisses()
+  {
+    return cacheMisses.get();
+  }
+
+  /**
+   * Returns the ratio of cache accesses that were hits.
+   *
+   * @return the ratio of cache accesses that were hits, between 0.0 and 1.0.<p>
+   */
+  public double getCacheHitRatio()
+  {
+    long hits = cacheHits.get();
+    long total = hits + cacheMisses.get();
+    return total == 0 ? 0.0 : (double)hits / total;
+  }
+
+  public long getAuthenticationRetries()
+  {
+    return authenticationRetries.get();
+  }
+
+  /**
+   * Returns how often the reads of a storage have been redirected from this service to another service.
+   */
+  public long getReadFailovers()
+  {
+    return readFailovers.get();
+  }
+
+  /**
+   * Returns how often the circuit breaker of this service has opened, including the failed probes.
+   */
+  public long getCircuitBreakerOpenings()
+  {
+    return circuitBreakerOpenings.get();
+  }
+
+  /**
+   * Resets all statistics to zero.
+   */
+  public void reset()
+  {
+    for (LatencyHistogram histogram : latencies.values())
+    {
+      histogram.reset();
+    }
+
+    for (int i = 0; i <= MAX_STATUS_CODE; i++)
+    {
+      statusCodes.set(i, 0);
+    }
+
+    failures.set(0);
+    bytesSent.set(0);
+    bytesReceived.set(0);
+    cacheHits.set(0);
+    cacheMisses.set(0);
+    authenticationRetries.set(0);
+    readFailovers.set(0);
+    circuitBreakerOpenings.set(0);
+  }
+
+  @Override
+  public String toString()
+  {
+    StringBuilder builder = new StringBuilder();
+    builder.append("StorageStatistics[");
+
+    for (Map.Entry<Operation, LatencyHistogram> entry : latencies.entrySet())
+    {
+      LatencyHistogram histogram = entry.getValue();
+      if (histogram.getCount() != 0)
+      {
+        builder.append(entry.getKey());
+        builder.append('=');
+        builder.append(histogram);
+        builder.append(", ");
+      }
+    }
+
+    builder.append("statusCodes=");
+    builder.append(getStatusCodeCounts());
+    builder.append(", failures=");
+    builder.append(getFailures());
+    builder.append(", bytesSent=");
+    builder.append(getBytesSent());
+    builder.append(", bytesReceived=");
+    builder.append(getBytesReceived());
+    builder.append(", cacheHits=");
+    builder.append(getCacheHits());
+    builder.append(", cacheMisses=");
+    builder.append(getCacheMisses());
+    builder.append(", authenticationRetries=");
+    builder.append(getAuthenticationRetries());
+    builder.append(", readFailovers=");
+    builder.append(getReadFailovers());
+    builder.append(", circuitBreakerOpenings=");
+    builder.append(getCircuitBreakerOpenings());
+    builder.append(']');
+    return builder.toString();
+  }
+}
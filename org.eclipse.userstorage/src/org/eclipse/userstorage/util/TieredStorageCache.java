@@ -0,0 +1,508 @@
+/*
+ * Copyright (c) 2015 Eike Stepper (Berlin, Germany) and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Eike Stepper - initial API and implementation
+ */
+package org.eclipse.userstorage.util;
+
+import org.eclipse.userstorage.IStorageService;
+import org.eclipse.userstorage.internal.Activator;
+import org.eclipse.userstorage.internal.StorageCacheAccessor;
+import org.eclipse.userstorage.internal.util.IOUtil;
+import org.eclipse.userstorage.internal.util.IOUtil.EndOfFileAware;
+import org.eclipse.userstorage.spi.StorageCache;
+
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A {@link StorageCache cache} that stacks a small, fast upper tier over a large, slower lower tier.
+ * <p>
+ * All writes go through to both tiers in a single pass, so the ETags of the two tiers are always the same
+ * and blobs that the upper tier evicts remain available in the lower tier.
+ * Blobs that are only found in the lower tier are promoted to the upper tier while they are being read.
+ * The upper tier is filled like with the contents of a retrieved blob, so that it doesn't expose a promoted blob before it's complete.
+ * <p>
+ *
+ * @author Eike Stepper
+ */
+public class TieredStorageCache extends StorageCache
+{
+  private final StorageCache upperTier;
+
+  private final StorageCache lowerTier;
+
+  /**
+   * Constructs this cache with the given tiers.
+   *
+   * @param upperTier the small and fast cache to consult first, must not be <code>null</code>.<p>
+   * @param lowerTier the large and slower cache to consult if the upper tier misses, must not be <code>null</code>.<p>
+   */
+  public TieredStorageCache(StorageCache upperTier, StorageCache lowerTier)
+  {
+    if (upperTier == null)
+    {
+      throw new IllegalArgumentException("Upper tier is null");
+    }
+
+    if (lowerTier == null)
+    {
+      throw new IllegalArgumentException("Lower tier is null");
+    }
+
+    if (upperTier == lowerTier)
+    {
+      throw new IllegalArgumentException("Upper tier and lower tier are identical");
+    }
+
+    this.upperTier = upperTier;
+    this.lowerTier = lowerTier;
+  }
+
+  /**
+   * Constructs this cache with a {@link MemoryStorageCache memory cache} over a {@link FileStorageCache file cache} in the given folder.
+   *
+   * @param folder the folder of the lower tier, must not be <code>null</code>.<p>
+   */
+  public TieredStorageCache(File folder)
+  {
+    this(new MemoryStorageCache(), new FileStorageCache(folder));
+  }
+
+  /**
+   * Constructs this cache with a {@link MemoryStorageCache memory cache} over a {@link FileStorageCache file cache}
+   * in a randomly named folder in the user's temp directory.
+   */
+  public TieredStorageCache()
+  {
+    this(new MemoryStorageCache(), new FileStorageCache());
+  }
+
+  /**
+   * Returns the small and fast cache that is consulted first.
+   *
+   * @return the upper tier of this cache, never <code>null</code>.<p>
+   */
+  public final StorageCache getUpperTier()
+  {
+    return upperTier;
+  }
+
+  /**
+   * Returns the large and slower cache that is consulted if the upper tier misses.
+   *
+   * @return the lower tier of this cache, never <code>null</code>.<p>
+   */
+  public final StorageCache getLowerTier()
+  {
+    return lowerTier;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  protected void storageChanged(IStorageService oldService, IStorageService newService)
+  {
+    StorageCacheAccessor.setService(upperTier, newService);
+    StorageCacheAccessor.setService(lowerTier, newService);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public Iterator<String> getKeys(String applicationToken) throws IOException
+  {
+    Set<String> keys = new LinkedHashSet<String>();
+
+    for (Iterator<String> it = upperTier.getKeys(applicationToken); it.hasNext();)
+    {
+      keys.add(it.next());
+    }
+
+    for (Iterator<String> it = lowerTier.getKeys(applicationToken); it.hasNext();)
+    {
+      keys.add(it.next());
+    }
+
+    return keys.iterator();
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  protected void loadProperties(String applicationToken, String key, Map<String, String> properties) throws IOException
+  {
+    StorageCacheAccessor.loadProperties(upperTier, applicationToken, key, properties);
+    if (properties.isEmpty())
+    {
+      StorageCacheAccessor.loadProperties(lowerTier, applicationToken, key, properties);
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  protected void saveProperties(String applicationToken, String key, Map<String, String> properties) throws IOException
+  {
+    StorageCacheAccessor.abandonFill(upperTier, applicationToken, key);
+    StorageCacheAccessor.saveProperties(lowerTier, applicationToken, key, properties);
+
+    try
+    {
+      StorageCacheAccessor.saveProperties(upperTier, applicationToken, key, properties);
+    }
+    catch (IOException ex)
+    {
+      deleteUpper(applicationToken, key, ex);
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  protected InputStream getInputStream(String applicationToken, String key) throws IOException
+  {
+    InputStream in = StorageCacheAccessor.getCompleteInputStream(upperTier, applicationToken, key);
+    if (in != null)
+    {
+      return in;
+    }
+
+    in = StorageCacheAccessor.getInputStream(lowerTier, applicationToken, key);
+    if (in != null)
+    {
+      return promote(applicationToken, key, in);
+    }
+
+    return null;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  protected OutputStream getOutputStream(String applicationToken, String key) throws IOException
+  {
+    StorageCacheAccessor.abandonFill(upperTier, applicationToken, key);
+    OutputStream lowerOut = StorageCacheAccessor.getOutputStream(lowerTier, applicationToken, key);
+    OutputStream upperOut = null;
+
+    try
+    {
+      upperOut = StorageCacheAccessor.getOutputStream(upperTier, applicationToken, key);
+    }
+    catch (IOException ex)
+    {
+      deleteUpper(applicationToken, key, ex);
+    }
+
+    return new TierOutputStream(applicationToken, key, upperOut, lowerOut);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  protected void delete(String applicationToken, String key) throws IOException
+  {
+    try
+    {
+      StorageCacheAccessor.abandonFill(upperTier, applicationToken, key);
+      StorageCacheAccessor.delete(upperTier, applicationToken, key);
+    }
+    finally
+    {
+      StorageCacheAccessor.delete(lowerTier, applicationToken, key);
+    }
+  }
+
+  private InputStream promote(String applicationToken, String key, InputStream in)
+  {
+    try
+    {
+      Map<String, String> properties = new HashMap<String, String>();
+      StorageCacheAccessor.loadProperties(lowerTier, applicationToken, key, properties);
+
+      OutputStream upperOut = StorageCacheAccessor.getFillOutputStream(upperTier, applicationToken, key, properties);
+      if (upperOut != null)
+      {
+        return new PromotingInputStream(in, upperOut);
+      }
+    }
+    catch (IOException ex)
+    {
+      Activator.log(ex);
+    }
+
+    // The blob is already being promoted by another reader.
+    return in;
+  }
+
+  private void deleteUpper(String applicationToken, String key, IOException cause)
+  {
+    Activator.log(cause);
+
+    try
+    {
+      StorageCacheAccessor.delete(upperTier, applicationToken, key);
+    }
+    catch (IOException ex)
+    {
+      Activator.log(ex);
+    }
+  }
+
+  /**
+   * Writes the contents of a blob into both tiers.
+   * A failure of the upper tier abandons only the upper tier, a failure of the lower tier is propagated.
+   *
+   * @author Eike Stepper
+   */
+  private final class TierOutputStream extends OutputStream
+  {
+    private final String applicationToken;
+
+    private final String key;
+
+    private final OutputStream lowerOut;
+
+    private OutputStream upperOut;
+
+    public TierOutputStream(String applicationToken, String key, OutputStream upperOut, OutputStream lowerOut)
+    {
+      this.applicationToken = applicationToken;
+      this.key = key;
+      this.upperOut = upperOut;
+      this.lowerOut = lowerOut;
+    }
+
+    @Override
+    public void write(int b) throws IOException
+    {
+      lowerOut.write(b);
+
+      if (upperOut != null)
+      {
+        try
+        {
+          upperOut.write(b);
+        }
+        catch (IOException ex)
+        {
+          abandonUpper(ex);
+        }
+      }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException
+    {
+      lowerOut.write(b, off, len);
+
+      if (upperOut != null)
+      {
+        try
+        {
+          upperOut.write(b, off, len);
+        }
+        catch (IOException ex)
+        {
+          abandonUpper(ex);
+        }
+      }
+    }
+
+    @Override
+    public void flush() throws IOException
+    {
+      lowerOut.flush();
+
+      if (upperOut != null)
+      {
+        try
+        {
+          upperOut.flush();
+        }
+        catch (IOException ex)
+        {
+          abandonUpper(ex);
+        }
+      }
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+      try
+      {
+        if (upperOut != null)
+        {
+          IOException ex = IOUtil.closeSilent(upperOut);
+          upperOut = null;
+
+          if (ex != null)
+          {
+            deleteUpper(applicationToken, key, ex);
+          }
+        }
+      }
+      finally
+      {
+        lowerOut.close();
+      }
+    }
+
+    private void abandonUpper(IOException ex)
+    {
+      IOUtil.closeSilent(upperOut);
+      upperOut = null;
+
+      deleteUpper(applicationToken, key, ex);
+    }
+  }
+
+  /**
+   * Copies the contents of a blob from the lower tier into the fill stream of the upper tier while they are being read.
+   * The fill is told about the end of the contents only if it has been reached, otherwise the upper tier discards the blob.
+   *
+   * @author Eike Stepper
+   */
+  private static final class PromotingInputStream extends FilterInputStream
+  {
+    private static final int EOF = -1;
+
+    private OutputStream upperOut;
+
+    public PromotingInputStream(InputStream in, OutputStream upperOut)
+    {
+      super(in);
+      this.upperOut = upperOut;
+    }
+
+    @Override
+    public int read() throws IOException
+    {
+      int c = in.read();
+      if (upperOut != null)
+      {
+        if (c != EOF)
+        {
+          try
+          {
+            upperOut.write(c);
+          }
+          catch (IOException ex)
+          {
+            finish(ex);
+          }
+        }
+        else
+        {
+          finish(null);
+        }
+      }
+
+      return c;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException
+    {
+      int n = in.read(b, off, len);
+      if (upperOut != null)
+      {
+        if (n != EOF)
+        {
+          try
+          {
+            upperOut.write(b, off, n);
+          }
+          catch (IOException ex)
+          {
+            finish(ex);
+          }
+        }
+        else
+        {
+          finish(null);
+        }
+      }
+
+      return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException
+    {
+      if (upperOut != null)
+      {
+        // Skipped bytes can't be promoted.
+        finish(new IOException("Promotion of skipped contents"));
+      }
+
+      return super.skip(n);
+    }
+
+    @Override
+    public boolean markSupported()
+    {
+      return false;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+      try
+      {
+        if (upperOut != null)
+        {
+          // The contents have not been read completely, so the upper tier discards them.
+          IOUtil.closeSilent(upperOut);
+          upperOut = null;
+        }
+      }
+      finally
+      {
+        super.close();
+      }
+    }
+
+    private void finish(IOException exception)
+    {
+      if (exception == null && upperOut instanceof EndOfFileAware)
+      {
+        ((EndOfFileAware)upperOut).reachedEndOfFile();
+      }
+
+      IOException ex = IOUtil.closeSilent(upperOut);
+      upperOut = null;
+
+      if (exception != null)
+      {
+        Activator.log(exception);
+      }
+      else if (ex != null)
+      {
+        Activator.log(ex);
+      }
+    }
+  }
+}